@@ -0,0 +1,500 @@
+package com.octave.main;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unpacks the exec.mp3/noexec.mp3 payload of an add-on package (they share
+ * our user id) straight from its APK. Payloads in the indexed format (see
+ * octavePackReader) are read through the asset's file descriptor, which
+ * works because aapt stores .mp3 assets uncompressed; they can be filtered
+ * and are unpacked on several threads. The older tar.gz payloads are
+ * streamed through the AssetManager and always unpacked whole, on several
+ * cores if they are blocked gzip (see octaveParallelGzipInputStream).
+ *
+ * Files of indexed payloads go through an octaveBlobStore in our files
+ * directory, so content that another package (or the other ABI build of
+ * the same add-on) already unpacked is hard linked instead of written.
+ * An add-on may split a payload into &lt;payload&gt;_all.mp3, the part
+ * that is the same for every ABI, and the per-ABI rest; installOwned()
+ * unpacks both. One add-on APK can carry the rest for every ABI as
+ * &lt;payload&gt;-&lt;abi&gt;.mp3 (with &lt;payload&gt;-&lt;abi&gt;_files.idx),
+ * and only the variant for the device's ABI (see octaveAbi) is read.
+ *
+ * An octaveInstallProfile can leave documentation and other trees Octave
+ * does not need out of an install; fetchSkipped() unpacks them later.
+ */
+public class octaveAddonInstaller {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final String BLOB_DIR = "blobs";
+    private static final String ALL_SUFFIX = "_all.mp3";
+    private static final String NOEXEC = "noexec";
+
+    private octaveAddonInstaller() {
+    }
+
+    /**
+     * @param packageName the add-on, e.g. com.octave.signal
+     * @param assetName exec.mp3 or noexec.mp3
+     * @param root where the payload is unpacked
+     * @param filter which entries to create, or null; a filter that is
+     *               also an octaveTarExtractor.Filter (an
+     *               octaveInstallProfile) is applied to tar.gz payloads too
+     * @return the number of entries extracted
+     */
+    public static int install(Context c, String packageName, String assetName, File root,
+            octavePackReader.Filter filter, octaveTarExtractor.ProgressListener listener)
+            throws IOException, NameNotFoundException {
+        return install(c, packageName, assetName, root, filter,
+                Runtime.getRuntime().availableProcessors(), listener);
+    }
+
+    /**
+     * Like install() above, but unpacks on at most threads threads.
+     */
+    static int install(Context c, String packageName, String assetName, File root,
+            octavePackReader.Filter filter, int threads,
+            octaveTarExtractor.ProgressListener listener)
+            throws IOException, NameNotFoundException {
+        AssetManager assets = c.createPackageContext(packageName, 0).getAssets();
+        AssetFileDescriptor afd = openFd(assets, assetName);
+        if (null != afd) {
+            try {
+                FileChannel channel = new FileInputStream(afd.getFileDescriptor()).getChannel();
+                long start = afd.getStartOffset();
+                long length = afd.getLength();
+                if (octavePackReader.isPack(channel, start, length)) {
+                    octavePackReader reader = new octavePackReader(channel, start, length);
+                    reader.setBlobStore(getBlobStore(c));
+                    return reader.extract(root, filter, threads, listener);
+                }
+            } finally {
+                afd.close();
+            }
+        }
+        InputStream in = octaveParallelGzipInputStream.open(assets.open(assetName), threads);
+        try {
+            octaveTarExtractor extractor = new octaveTarExtractor(root);
+            extractor.setProgressListener(listener);
+            if (filter instanceof octaveTarExtractor.Filter) {
+                extractor.setFilter((octaveTarExtractor.Filter) filter);
+            }
+            extractor.extract(in);
+            return extractor.getEntryCount();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Installs or upgrades one payload of an add-on and records what it
+     * brings in octaveFileOwners. Nothing is unpacked if the add-on would
+     * overwrite files another package owns; afterwards the files only its
+     * previous version listed, and nobody else claims, are removed.
+     *
+     * @param payload "exec" or "noexec"
+     * @return the number of entries extracted
+     * @throws octaveFileOwners.ConflictException listing the clashing paths
+     * @throws octaveSpacePlanner.InsufficientSpaceException if the payload
+     *             would not fit under root
+     */
+    public static int installOwned(Context c, String packageName, String payload, File root,
+            octaveTarExtractor.ProgressListener listener)
+            throws IOException, NameNotFoundException {
+        return installOwned(c, packageName, payload, root,
+                octaveInstallProfile.forName(octaveInstallProfile.FULL), listener);
+    }
+
+    /**
+     * Like installOwned() above, but unpacks only what the profile accepts
+     * and records the subtrees it skipped. The package still owns the
+     * skipped paths, so nothing else can take them over.
+     */
+    public static int installOwned(Context c, String packageName, String payload, File root,
+            octaveInstallProfile profile, octaveTarExtractor.ProgressListener listener)
+            throws IOException, NameNotFoundException {
+        return installOwned(c, packageName, payload, root, profile,
+                Runtime.getRuntime().availableProcessors(), listener);
+    }
+
+    /**
+     * Like installOwned() above, but unpacks on at most threads threads,
+     * for callers that run several installs at once (octaveInstallQueue).
+     */
+    static int installOwned(Context c, String packageName, String payload, File root,
+            octaveInstallProfile profile, int threads,
+            octaveTarExtractor.ProgressListener listener)
+            throws IOException, NameNotFoundException {
+        octaveInstallMetrics metrics = octaveInstallMetrics.startOnThread(packageName + "/" + payload);
+        metrics.tag("abi", octaveAbi.get());
+        metrics.tag("profile", profile.getName());
+        metrics.begin(octaveInstallMetrics.PHASE_ADDON);
+        String outcome = "failed";
+        try {
+            int count = installOwned(c, packageName, payload, root, profile, threads, listener,
+                    metrics);
+            outcome = "installed";
+            return count;
+        } finally {
+            metrics.end(octaveInstallMetrics.PHASE_ADDON);
+            metrics.write(c.getFilesDir(), outcome);
+        }
+    }
+
+    private static int installOwned(Context c, String packageName, String payload, File root,
+            octaveInstallProfile profile, int threads,
+            octaveTarExtractor.ProgressListener listener, octaveInstallMetrics metrics)
+            throws IOException, NameNotFoundException {
+        metrics.enter(octaveInstallMetrics.PHASE_PLAN);
+        octaveManifestIndex index = loadManifest(c, packageName, payload);
+        octaveSpacePlanner space = new octaveSpacePlanner(root);
+        space.addManifest(index, profile);
+        if (space.getUnknownSizes() > 0) {
+            // a text listing has no sizes; the payloads themselves are a lower bound
+            space.addBytes(payloadLength(c, packageName, payload));
+        }
+        space.check();
+        int version = c.getPackageManager().getPackageInfo(packageName, 0).versionCode;
+        octaveFileOwners owners = octaveFileOwners.get(c);
+        octaveFileOwners.Plan plan = owners.plan(packageName, payload, version, root, index);
+        if (!plan.getConflicts().isEmpty()) {
+            throw new octaveFileOwners.ConflictException(packageName, plan.getConflicts());
+        }
+        int count = 0;
+        try {
+            metrics.enter(octaveInstallMetrics.PHASE_EXTRACT);
+            if (hasAsset(c, packageName, payload + ALL_SUFFIX)) {
+                // the ABI specific part may link to files in here
+                count += install(c, packageName, payload + ALL_SUFFIX, root, profile, threads,
+                        listener);
+            }
+            count += install(c, packageName, selectVariant(c, packageName, payload + ".mp3"),
+                    root, profile, threads, listener);
+            metrics.enter(octaveInstallMetrics.PHASE_COMMIT);
+            octaveFileOwners.removeOrphans(owners.commit(plan));
+        } finally {
+            // the paths it reserved are free again if the install failed
+            owners.abandon(plan);
+        }
+        metrics.enter(null);
+        profile.saveSkipped(octaveDeliveryRecord.getPreferences(c),
+                getPayloadKey(packageName, payload));
+        return count;
+    }
+
+    /**
+     * Unpacks a subtree that an install profile left out, e.g.
+     * "usr/share/doc/octave-signal". Only the entries below it are read
+     * from an indexed payload; a tar.gz payload is streamed through once.
+     *
+     * @return the number of entries extracted, 0 if nothing was skipped there
+     */
+    public static int fetchSkipped(Context c, String packageName, String payload, File root,
+            String subtree, octaveTarExtractor.ProgressListener listener)
+            throws IOException, NameNotFoundException {
+        SharedPreferences prefs = octaveDeliveryRecord.getPreferences(c);
+        String key = getPayloadKey(packageName, payload);
+        if (!octaveInstallProfile.wasSkipped(prefs, key, subtree)) {
+            return 0;
+        }
+        octaveInstallProfile only = octaveInstallProfile.only(subtree);
+        int count = 0;
+        if (hasAsset(c, packageName, payload + ALL_SUFFIX)) {
+            count += install(c, packageName, payload + ALL_SUFFIX, root, only, listener);
+        }
+        count += install(c, packageName, selectVariant(c, packageName, payload + ".mp3"), root,
+                only, listener);
+        octaveInstallProfile.fetched(prefs, key, subtree);
+        return count;
+    }
+
+    /**
+     * Reads the Octave Forge DESCRIPTION from an add-on's noexec payload,
+     * found through its manifest. An indexed payload gives up the one
+     * entry; a tar.gz payload is streamed up to it.
+     *
+     * @return null if the add-on carries none (gnuplot)
+     */
+    static octaveForgeDescription readDescription(Context c, String packageName)
+            throws IOException, NameNotFoundException {
+        octaveManifestIndex index = loadManifest(c, packageName, NOEXEC);
+        String path = null;
+        for (int i = 0; i < index.size() && null == path; i++) {
+            if (index.getPath(i).endsWith("/" + octaveForgeDescription.FILE_NAME)) {
+                path = index.getPath(i);
+            }
+        }
+        if (null == path) {
+            return null;
+        }
+        AssetManager assets = c.createPackageContext(packageName, 0).getAssets();
+        List<String> assetNames = new ArrayList<String>();
+        if (hasAsset(c, packageName, NOEXEC + ALL_SUFFIX)) {
+            assetNames.add(NOEXEC + ALL_SUFFIX);
+        }
+        assetNames.add(selectVariant(c, packageName, NOEXEC + ".mp3"));
+        for (String assetName : assetNames) {
+            InputStream in = openEntry(assets, assetName, path);
+            if (null != in) {
+                try {
+                    return octaveForgeDescription.parse(in);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        throw new FileNotFoundException(path + " is not in " + packageName);
+    }
+
+    /**
+     * @return the entry's data, or null if the payload does not have it
+     */
+    private static InputStream openEntry(AssetManager assets, String assetName, String path)
+            throws IOException {
+        AssetFileDescriptor afd = openFd(assets, assetName);
+        if (null != afd) {
+            try {
+                FileChannel channel = new FileInputStream(afd.getFileDescriptor()).getChannel();
+                long start = afd.getStartOffset();
+                long length = afd.getLength();
+                if (octavePackReader.isPack(channel, start, length)) {
+                    octavePackReader reader = new octavePackReader(channel, start, length);
+                    octavePackReader.Entry entry = reader.getEntry(path);
+                    if (null == entry) {
+                        return null;
+                    }
+                    // the descriptor is closed below, so read it all now
+                    InputStream in = reader.openEntry(entry);
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        data.write(buffer, 0, n);
+                    }
+                    return new ByteArrayInputStream(data.toByteArray());
+                }
+            } finally {
+                afd.close();
+            }
+        }
+        octaveTarInputStream tar = new octaveTarInputStream(
+                octaveParallelGzipInputStream.open(assets.open(assetName), 1));
+        octaveTarInputStream.Entry entry;
+        while (null != (entry = tar.getNextEntry())) {
+            if (path.equals(octaveTarInputStream.normalizeName(entry.name))) {
+                return tar;
+            }
+        }
+        tar.close();
+        return null;
+    }
+
+    /**
+     * @return the stored size of the payload's assets, leaving out those
+     *         the APK compressed
+     */
+    private static long payloadLength(Context c, String packageName, String payload)
+            throws IOException, NameNotFoundException {
+        AssetManager assets = c.createPackageContext(packageName, 0).getAssets();
+        long length = 0;
+        for (String assetName : new String[] {
+                payload + ALL_SUFFIX, selectVariant(c, packageName, payload + ".mp3")
+        }) {
+            AssetFileDescriptor afd = openFd(assets, assetName);
+            if (null != afd) {
+                length += afd.getLength();
+                afd.close();
+            }
+        }
+        return length;
+    }
+
+    private static String getPayloadKey(String packageName, String payload) {
+        return packageName + "/" + payload;
+    }
+
+    /**
+     * Removes what an uninstalled add-on brought, except paths other
+     * packages still claim.
+     *
+     * @return the number of paths removed
+     */
+    public static int uninstallOwned(Context c, String packageName) throws IOException {
+        int removed = octaveFileOwners.removeOrphans(
+                octaveFileOwners.get(c).release(packageName));
+        getBlobStore(c).prune();
+        return removed;
+    }
+
+    static octaveBlobStore getBlobStore(Context c) {
+        return new octaveBlobStore(new File(c.getFilesDir(), BLOB_DIR));
+    }
+
+    /**
+     * @return the variant of an asset for the device's ABI if the add-on
+     *         ships one, otherwise the asset itself
+     */
+    static String selectVariant(Context c, String packageName, String assetName)
+            throws NameNotFoundException {
+        String variant = octaveAbi.variant(assetName);
+        return null != variant && hasAsset(c, packageName, variant) ? variant : assetName;
+    }
+
+    private static boolean hasAsset(Context c, String packageName, String assetName)
+            throws NameNotFoundException {
+        try {
+            c.createPackageContext(packageName, 0).getAssets().open(assetName).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Loads the manifest of an add-on payload: the compiled
+     * &lt;payload&gt;_files.idx if the package ships one, otherwise its
+     * &lt;payload&gt;_files.txt listing, parsed once here. If the add-on
+     * carries per-ABI payloads, the manifest for the device's ABI is used.
+     *
+     * @param payload "exec" or "noexec"
+     */
+    public static octaveManifestIndex loadManifest(Context c, String packageName,
+            String payload) throws IOException, NameNotFoundException {
+        AssetManager assets = c.createPackageContext(packageName, 0).getAssets();
+        String abiPayload = octaveAbi.variant(payload);
+        if (null != abiPayload && hasAsset(c, packageName, abiPayload + ".mp3")) {
+            payload = abiPayload;
+        }
+        InputStream in;
+        boolean compiled = true;
+        try {
+            in = assets.open(payload + "_files.idx");
+        } catch (FileNotFoundException e) {
+            in = assets.open(payload + "_files.txt");
+            compiled = false;
+        }
+        try {
+            in = new BufferedInputStream(in, BUFFER_SIZE);
+            return compiled ? octaveManifestIndex.read(in) : octaveManifestIndex.parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Checks that everything in the manifest is present under root: files
+     * and directories with the right type, symlinks pointing where they
+     * should (where the platform can read links).
+     *
+     * @return the paths that are missing or wrong, empty if all is well
+     */
+    public static List<String> verify(octaveManifestIndex index, File root)
+            throws IOException {
+        return verify(index, root, null);
+    }
+
+    /**
+     * Like verify() above, but only for the paths the filter accepts, e.g.
+     * the octaveInstallProfile the payload was installed with.
+     */
+    public static List<String> verify(octaveManifestIndex index, File root,
+            octaveTarExtractor.Filter filter) throws IOException {
+        List<String> bad = new ArrayList<String>();
+        for (int i = 0; i < index.size(); i++) {
+            String path = index.getPath(i);
+            if (null != filter && !filter.accept(path)) {
+                continue;
+            }
+            File f = new File(root, path);
+            boolean ok;
+            switch (index.getType(i)) {
+                case octaveTarInputStream.TYPE_DIRECTORY:
+                    ok = f.isDirectory();
+                    break;
+                case octaveTarInputStream.TYPE_SYMLINK:
+                    ok = isSymlink(f);
+                    if (ok) {
+                        String target = octavePosix.readlink(f.getPath());
+                        ok = null == target || target.equals(index.getLinkTarget(i));
+                    }
+                    break;
+                case octaveTarInputStream.TYPE_FILE:
+                    ok = f.isFile() && (index.getSize(i) == octaveManifestIndex.UNKNOWN_SIZE
+                            || f.length() == index.getSize(i));
+                    break;
+                default:
+                    ok = true;
+                    break;
+            }
+            if (!ok) {
+                bad.add(path);
+            }
+        }
+        return bad;
+    }
+
+    /**
+     * Removes what the manifest lists from root. Directories are removed
+     * last and deepest first, and only if nothing else is left in them.
+     *
+     * @return the number of entries removed
+     */
+    public static int uninstall(octaveManifestIndex index, File root) {
+        int removed = 0;
+        for (int i = 0; i < index.size(); i++) {
+            if (index.getType(i) != octaveTarInputStream.TYPE_DIRECTORY
+                    && new File(root, index.getPath(i)).delete()) {
+                removed++;
+            }
+        }
+        // in path order a directory comes before its contents
+        for (int i = index.size() - 1; i >= 0; i--) {
+            if (index.getType(i) == octaveTarInputStream.TYPE_DIRECTORY
+                    && new File(root, index.getPath(i)).delete()) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * A symlink is a path whose canonical form differs from the canonical
+     * form of its parent plus its name; this also sees dangling links.
+     */
+    static boolean isSymlink(File f) throws IOException {
+        File parent = f.getParentFile();
+        File inCanonicalDir = null == parent ? f : new File(parent.getCanonicalFile(),
+                f.getName());
+        return !inCanonicalDir.getCanonicalFile().equals(inCanonicalDir.getAbsoluteFile());
+    }
+
+    /**
+     * @return the asset's descriptor, or null if it was stored compressed
+     *         and can only be streamed
+     */
+    private static AssetFileDescriptor openFd(AssetManager assets, String assetName)
+            throws IOException {
+        try {
+            return assets.openFd(assetName);
+        } catch (FileNotFoundException e) {
+            // "probably compressed", or really missing; open() tells which
+            return null;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.octave.main;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps one copy of every payload file by content. A blob is a hard link,
+ * named after the file's SHA-256 (and whether it is executable, since
+ * links share their mode), to a file some installed payload created. When
+ * another payload brings the same content - the arm and x86 builds of an
+ * add-on, or two add-ons built from the same _all.deb - the file is linked
+ * from the store instead of being inflated and written again, and takes
+ * no extra space.
+ *
+ * Blobs are only an optimization: if the store is on another filesystem or
+ * the platform cannot make hard links, nothing is linked and the payload
+ * is written out as usual. The digests come from indexed payloads written
+ * by octavePackTool (format version 2 onwards).
+ *
+ * Since a blob and every file linked from it are one inode, the installed
+ * trees must be treated as read-only: a file changed in place changes in
+ * every add-on that shares it, and in the store. Installers replace files
+ * by unlinking them first, as octaveTarExtractor.prepareParent() does. A
+ * blob whose length no longer matches is dropped rather than linked, which
+ * catches truncation and appends but not same-length edits.
+ */
+public class octaveBlobStore {
+
+    private final File mDir;
+
+    /**
+     * @param dir the store; it must be on the same filesystem as the trees
+     *            that files are linked into
+     */
+    public octaveBlobStore(File dir) {
+        mDir = dir;
+    }
+
+    File getBlob(byte[] digest, int mode) {
+        String hex = octaveBlockDigest.toHex(digest);
+        return new File(new File(mDir, hex.substring(0, 2)),
+                (mode & 0111) != 0 ? hex + ".x" : hex);
+    }
+
+    /**
+     * Links target to the stored copy of the content, if there is one.
+     *
+     * @param size the length of the content
+     * @return false if target still has to be written
+     */
+    public boolean materialize(byte[] digest, int mode, long size, File target)
+            throws IOException {
+        File blob = getBlob(digest, mode);
+        if (!blob.isFile()) {
+            return false;
+        }
+        if (blob.length() != size) {
+            // written to through one of its links; the next adopt() replaces it
+            blob.delete();
+            return false;
+        }
+        octaveTarExtractor.prepareParent(target);
+        try {
+            octavePosix.link(blob.getPath(), target.getPath());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds a freshly written file to the store, unless its content is
+     * already there.
+     */
+    public void adopt(byte[] digest, int mode, File file) {
+        File blob = getBlob(digest, mode);
+        if (blob.exists()) {
+            return;
+        }
+        File parent = blob.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            return;
+        }
+        try {
+            octavePosix.link(file.getPath(), blob.getPath());
+        } catch (IOException e) {
+            // another thread stored it first, or no hard links here
+        }
+    }
+
+    /**
+     * Removes the blobs no installed file links to any more, e.g. after
+     * an add-on was uninstalled.
+     *
+     * @return the number of blobs removed, or -1 if link counts cannot be
+     *         read on this platform
+     */
+    public int prune() throws IOException {
+        File[] buckets = mDir.listFiles();
+        if (null == buckets) {
+            return 0;
+        }
+        int removed = 0;
+        for (File bucket : buckets) {
+            File[] blobs = bucket.listFiles();
+            if (null == blobs) {
+                continue;
+            }
+            for (File blob : blobs) {
+                long links = octavePosix.linkCount(blob.getPath());
+                if (links < 0) {
+                    return -1;
+                }
+                if (links == 1 && blob.delete()) {
+                    removed++;
+                }
+            }
+            bucket.delete();
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,65 @@
+package com.octave.main;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Asks long running work to stop. The loops that inflate, untar, unpack
+ * and hash call check() as they go, on a token taken from current() when
+ * they start; an octaveWorkerPool task runs with its own token as current,
+ * so work started from one stops when the task is cancelled, helper
+ * threads included. Outside a task current() is a token nobody cancels.
+ */
+public class octaveCancelToken {
+
+    /** Never cancelled */
+    public static final octaveCancelToken NONE = new octaveCancelToken() {
+        @Override
+        public void cancel() {
+        }
+    };
+
+    private static final ThreadLocal<octaveCancelToken> sCurrent =
+            new ThreadLocal<octaveCancelToken>();
+
+    private volatile boolean mCancelled;
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @throws InterruptedIOException once the token is cancelled
+     */
+    public void check() throws InterruptedIOException {
+        if (mCancelled) {
+            throw new InterruptedIOException("cancelled");
+        }
+    }
+
+    /**
+     * @return the token of the task this thread is running, or NONE
+     */
+    public static octaveCancelToken current() {
+        octaveCancelToken token = sCurrent.get();
+        return null == token ? NONE : token;
+    }
+
+    /**
+     * Makes token the current one of this thread, null for none.
+     *
+     * @return the token that was current before
+     */
+    static octaveCancelToken setCurrent(octaveCancelToken token) {
+        octaveCancelToken previous = sCurrent.get();
+        if (null == token) {
+            sCurrent.remove();
+        } else {
+            sCurrent.set(token);
+        }
+        return previous;
+    }
+}
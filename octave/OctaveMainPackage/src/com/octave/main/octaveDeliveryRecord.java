@@ -0,0 +1,116 @@
+package com.octave.main;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+
+/**
+ * What we know about a delivered and verified expansion file: where it is,
+ * which version it is, its length and modification time when it was
+ * verified, and its digest. Kept as one preference string per file so a
+ * warm start costs one preference read and one stat per file and never
+ * loads the downloader library.
+ */
+final class octaveDeliveryRecord {
+
+    private static final String PREF_PREFIX = "delivery.";
+    private static final String SEPARATOR = "|";
+
+    final boolean mIsMain;
+    final int mVersion;
+    final String mFileName;
+    final String mPath;
+    final long mSize;
+    final long mModified;
+    final String mDigest;
+
+    octaveDeliveryRecord(boolean isMain, int version, String fileName, File file, String digest) {
+        mIsMain = isMain;
+        mVersion = version;
+        mFileName = fileName;
+        mPath = file.getPath();
+        mSize = file.length();
+        mModified = file.lastModified();
+        mDigest = digest;
+    }
+
+    private octaveDeliveryRecord(boolean isMain, String[] fields) {
+        mIsMain = isMain;
+        mVersion = Integer.parseInt(fields[0]);
+        mFileName = fields[1];
+        mPath = fields[2];
+        mSize = Long.parseLong(fields[3]);
+        mModified = Long.parseLong(fields[4]);
+        mDigest = fields[5];
+    }
+
+    static SharedPreferences getPreferences(Context c) {
+        return c.getSharedPreferences(octaveDownloaderService.PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String key(boolean isMain) {
+        return PREF_PREFIX + (isMain ? "main" : "patch");
+    }
+
+    /**
+     * @return the stored record, or null if there is none (or it is garbled)
+     */
+    static octaveDeliveryRecord load(SharedPreferences prefs, boolean isMain) {
+        String value = prefs.getString(key(isMain), null);
+        if (null == value) {
+            return null;
+        }
+        String[] fields = value.split("\\" + SEPARATOR, -1);
+        if (fields.length != 6) {
+            return null;
+        }
+        try {
+            return new octaveDeliveryRecord(isMain, fields);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    void save(SharedPreferences prefs) {
+        prefs.edit().putString(key(mIsMain), mVersion + SEPARATOR + mFileName + SEPARATOR
+                + mPath + SEPARATOR + mSize + SEPARATOR + mModified + SEPARATOR + mDigest)
+                .commit();
+    }
+
+    static void clear(SharedPreferences prefs, boolean isMain) {
+        prefs.edit().remove(key(isMain)).commit();
+    }
+
+    /**
+     * @return true if this record is for xf and the file on disk is still
+     *         exactly the one that was verified
+     */
+    boolean isValidFor(octaveDownloaderActivity.XAPKFile xf) {
+        if (xf.mIsMain != mIsMain || xf.mFileVersion != mVersion
+                || !xf.getFileName().equals(mFileName)) {
+            return false;
+        }
+        if ((xf.mFileSize > 0 && xf.mFileSize != mSize)
+                || (null != xf.mDigest && !xf.mDigest.equalsIgnoreCase(mDigest))) {
+            return false;
+        }
+        File f = new File(mPath);
+        // length() is 0 for a missing file, so this also covers deletion
+        return f.length() == mSize && f.lastModified() == mModified;
+    }
+
+    /**
+     * The warm start check: true if every expansion file has a record that
+     * still matches the file on disk.
+     */
+    static boolean allDelivered(SharedPreferences prefs, octaveDownloaderActivity.XAPKFile[] xapks) {
+        for (octaveDownloaderActivity.XAPKFile xf : xapks) {
+            octaveDeliveryRecord record = load(prefs, xf.mIsMain);
+            if (null == record || !record.isValidFor(xf)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
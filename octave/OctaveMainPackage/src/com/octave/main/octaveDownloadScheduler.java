@@ -0,0 +1,220 @@
+package com.octave.main;
+
+/**
+ * Decides how many connections octaveSegmentedDownloader runs and how large
+ * a range each of them asks for, from what the transfer itself shows.
+ *
+ * Throughput is measured over windows of at least a second (longer on slow
+ * round trips). After a window the connection count is probed upwards by
+ * one; if the next full window is not clearly faster the extra connection
+ * is dropped again and the count held for a while before the next probe.
+ * Once the link is full, extra connections only share it, so the count
+ * settles where they stop helping: one or two on a congested cellular path,
+ * more on Wi-Fi behind a server that throttles each connection. Stalls and
+ * refused requests take a connection away straight away.
+ *
+ * Ranges are sized so that each takes a couple of seconds at the current
+ * rate per connection and the request round trip stays small next to it,
+ * in whole units of the downloader's chunk size (a multiple of the digest
+ * block). Near the end they shrink so all connections finish together.
+ *
+ * Times are passed in, in milliseconds, so the scheduler can be driven off
+ * the device. All methods are thread safe.
+ */
+public class octaveDownloadScheduler {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 6;
+    /** the largest range, in units */
+    public static final int DEFAULT_MAX_UNITS = 16;
+
+    private static final long MIN_WINDOW = 1000;
+    private static final int RTTS_PER_WINDOW = 8;
+    /** an extra connection has to add this much to stay */
+    private static final double GAIN = 1.10;
+    /** windows to wait after backing off before probing again */
+    private static final int HOLD_WINDOWS = 4;
+    /** how long a range should take at the rate per connection */
+    private static final long RANGE_TIME = 2000;
+    /** and at least this many round trips, so the request is cheap */
+    private static final int RTTS_PER_RANGE = 10;
+    /** ranges left per connection before they start to shrink */
+    private static final int TAIL_RANGES = 2;
+
+    private final boolean mAdaptive;
+    private final int mMaxConnections;
+    private final int mMaxUnits;
+
+    private long mUnitSize = 1;
+    private int mConnections;
+    private int mPeakConnections;
+    private int mUnits = 1;
+
+    private long mRtt = -1;
+    private long mWindowStart = -1;
+    private long mWindowBytes;
+    // bytes per millisecond over the last window, and before the last probe
+    private double mRate = -1;
+    private double mBaseline = -1;
+    private boolean mProbing;
+    private boolean mSettling;
+    private int mHold;
+
+    /**
+     * @param connections how many connections to start with
+     * @param maxConnections how many there may be at most
+     */
+    public octaveDownloadScheduler(int connections, int maxConnections) {
+        this(connections, maxConnections, DEFAULT_MAX_UNITS, true);
+    }
+
+    private octaveDownloadScheduler(int connections, int maxConnections, int maxUnits,
+            boolean adaptive) {
+        mMaxConnections = Math.max(1, maxConnections);
+        mConnections = Math.max(1, Math.min(connections, mMaxConnections));
+        mPeakConnections = mConnections;
+        mMaxUnits = Math.max(1, maxUnits);
+        mAdaptive = adaptive;
+    }
+
+    /**
+     * @return a scheduler that always runs the given number of connections
+     *         with one unit per range, the downloader's original behavior
+     */
+    public static octaveDownloadScheduler fixed(int connections) {
+        return new octaveDownloadScheduler(connections, connections, 1, false);
+    }
+
+    /**
+     * Called by the downloader before the transfer with its chunk size.
+     */
+    synchronized void setUnitSize(long unitSize) {
+        mUnitSize = Math.max(1, unitSize);
+    }
+
+    public synchronized int getConnections() {
+        return mConnections;
+    }
+
+    public synchronized int getPeakConnections() {
+        return mPeakConnections;
+    }
+
+    /**
+     * @return the smoothed request round trip in ms, or -1 if not known yet
+     */
+    public synchronized long getRoundTrip() {
+        return mRtt;
+    }
+
+    /**
+     * @param unitsLeft units not yet handed out
+     * @return how many units the next range should cover, at least one
+     */
+    public synchronized int nextRange(long unitsLeft) {
+        int units = mUnits;
+        long tail = (unitsLeft + (long) TAIL_RANGES * mConnections - 1)
+                / ((long) TAIL_RANGES * mConnections);
+        return (int) Math.max(1, Math.min(units, tail));
+    }
+
+    /**
+     * @param rtt ms from sending a request to having the response headers
+     */
+    public synchronized void onResponse(long rtt) {
+        // smoothed like TCP's SRTT
+        mRtt = mRtt < 0 ? rtt : mRtt + (rtt - mRtt) / 8;
+    }
+
+    /**
+     * @param now a monotonic time in milliseconds
+     * @param bytes how many bytes just arrived, on any connection
+     * @return true if a window ended, so the connection count may have
+     *         changed
+     */
+    public synchronized boolean onBytes(long now, long bytes) {
+        if (mWindowStart < 0) {
+            mWindowStart = now;
+        }
+        mWindowBytes += bytes;
+        long elapsed = now - mWindowStart;
+        if (elapsed < Math.max(MIN_WINDOW, RTTS_PER_WINDOW * mRtt)) {
+            return false;
+        }
+        mRate = (double) mWindowBytes / elapsed;
+        mWindowStart = now;
+        mWindowBytes = 0;
+        sizeRanges();
+        if (mAdaptive) {
+            adjust();
+        }
+        return true;
+    }
+
+    /**
+     * A connection stalled or the server turned a request down: the link
+     * or the server has more connections than it can take, so run one
+     * fewer for a while. A connection that merely dropped, as they do on
+     * lossy radio links, says nothing about the count and is not reported.
+     */
+    public synchronized void onError() {
+        if (!mAdaptive) {
+            return;
+        }
+        if (mConnections > 1) {
+            change(mConnections - 1);
+        }
+        mProbing = false;
+        mBaseline = -1;
+        mHold = HOLD_WINDOWS;
+    }
+
+    private void adjust() {
+        if (mSettling) {
+            // the window a change was made in says little about it
+            mSettling = false;
+            return;
+        }
+        if (mProbing) {
+            mProbing = false;
+            if (mRate >= mBaseline * GAIN) {
+                mBaseline = mRate;
+            } else {
+                change(mConnections - 1);
+                mBaseline = -1;
+                mHold = HOLD_WINDOWS;
+                return;
+            }
+        } else {
+            mBaseline = mRate;
+        }
+        if (mHold > 0) {
+            mHold--;
+        } else if (mConnections < mMaxConnections) {
+            change(mConnections + 1);
+            mProbing = true;
+        }
+    }
+
+    private void change(int connections) {
+        mConnections = connections;
+        mPeakConnections = Math.max(mPeakConnections, connections);
+        mSettling = true;
+    }
+
+    private void sizeRanges() {
+        if (!mAdaptive) {
+            return;
+        }
+        double perConnection = mRate / mConnections;
+        double bytes = perConnection * Math.max(RANGE_TIME, RTTS_PER_RANGE * mRtt);
+        long units = (long) Math.ceil(bytes / mUnitSize);
+        mUnits = (int) Math.max(1, Math.min(mMaxUnits, units));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mConnections + " connections (peak " + mPeakConnections + "), " + mUnits
+                + " units per range, rtt " + mRtt + " ms, "
+                + Math.round(Math.max(0, mRate) * 1000 / 1024) + " KiB/s";
+    }
+}
@@ -0,0 +1,607 @@
+package com.octave.main;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records which package put which path into the shared rootfs. All of our
+ * packages run as com.octave.sharedid and unpack into the same tree, so
+ * directories like usr/lib and the odd identical file are listed by several
+ * add-ons; each such path has one owner (the first package to bring it),
+ * the owner's version and a reference count, and every package's claims
+ * are kept so ownership can pass on when the owner goes away. A claim
+ * belongs to one payload of the package (exec or noexec), so installing
+ * one payload never takes the other's paths for dropped ones.
+ *
+ * Installing or upgrading is two steps: plan() merges the package's new
+ * manifest against its recorded claims (both in path order, so this is a
+ * single pass) and finds the conflicts with other packages, then commit()
+ * records the result once the payload is unpacked and hands back the paths
+ * nobody claims any more. Only those need to be removed; nothing else in
+ * the tree is looked at.
+ *
+ * Several installs may run at once (octaveInstallQueue), so a plan without
+ * conflicts reserves the paths it adds until it is committed or abandoned,
+ * and a later plan that would write one of them differently conflicts with
+ * it. commit() looks at the conflicts again, in its transaction, if other
+ * plans were committed since it was made.
+ *
+ * Paths are stored absolute. SQLite compares TEXT with memcmp, which is the
+ * order octaveManifestIndex keeps, so range queries come back merge-ready.
+ * All of this does disk I/O and belongs on a worker thread.
+ */
+public class octaveFileOwners extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "octave_files.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static octaveFileOwners sInstance;
+
+    /** the paths of uncommitted plans, guarded by this */
+    private final Map<String, Reservation> mReserved = new HashMap<String, Reservation>();
+    /** plans committed so far, guarded by this */
+    private int mCommits;
+
+    /**
+     * A plan that would overwrite files another package owns.
+     */
+    public static class ConflictException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Conflict> mConflicts;
+
+        ConflictException(String packageName, List<Conflict> conflicts) {
+            super(packageName + " conflicts with installed packages over " + conflicts.size()
+                    + " paths, e.g. " + conflicts.get(0));
+            mConflicts = conflicts;
+        }
+
+        public List<Conflict> getConflicts() {
+            return mConflicts;
+        }
+    }
+
+    /**
+     * A path two packages disagree on.
+     */
+    public static class Conflict {
+        public final String mPath;
+        public final String mOwner;
+        public final int mOwnerVersion;
+
+        Conflict(String path, String owner, int ownerVersion) {
+            mPath = path;
+            mOwner = owner;
+            mOwnerVersion = ownerVersion;
+        }
+
+        @Override
+        public String toString() {
+            return mPath + " (owned by " + mOwner + " " + mOwnerVersion + ")";
+        }
+    }
+
+    /**
+     * What installing one payload of a package changes.
+     */
+    public static class Plan {
+        final String mPackage;
+        final String mPayload;
+        final int mVersion;
+        final File mRoot;
+        final octaveManifestIndex mIndex;
+        /** indexes into mIndex of the paths the package did not claim before */
+        final List<Integer> mAdded = new ArrayList<Integer>();
+        /** absolute paths the package claimed before and no longer lists */
+        final List<String> mRemoved = new ArrayList<String>();
+        final List<Conflict> mConflicts = new ArrayList<Conflict>();
+        int mKept;
+        /** mCommits when the plan was made */
+        int mCommitsBefore;
+
+        Plan(String packageName, String payload, int version, File root,
+                octaveManifestIndex index) {
+            mPackage = packageName;
+            mPayload = payload;
+            mVersion = version;
+            mRoot = root;
+            mIndex = index;
+        }
+
+        public List<Conflict> getConflicts() {
+            return mConflicts;
+        }
+
+        public int getAddedCount() {
+            return mAdded.size();
+        }
+
+        public int getRemovedCount() {
+            return mRemoved.size();
+        }
+
+        public int getKeptCount() {
+            return mKept;
+        }
+    }
+
+    /**
+     * A path an uncommitted plan adds: entry mIndex of its manifest.
+     */
+    private static class Reservation {
+        final Plan mPlan;
+        final int mIndex;
+
+        Reservation(Plan plan, int index) {
+            mPlan = plan;
+            mIndex = index;
+        }
+    }
+
+    private octaveFileOwners(Context c) {
+        super(c, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    public static synchronized octaveFileOwners get(Context c) {
+        if (null == sInstance) {
+            sInstance = new octaveFileOwners(c.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE files (path TEXT PRIMARY KEY, package TEXT NOT NULL,"
+                + " version INTEGER NOT NULL, refcount INTEGER NOT NULL, type INTEGER NOT NULL,"
+                + " size INTEGER NOT NULL, link TEXT)");
+        db.execSQL("CREATE TABLE claims (package TEXT NOT NULL, payload TEXT NOT NULL,"
+                + " path TEXT NOT NULL, PRIMARY KEY (package, payload, path))");
+        db.execSQL("CREATE INDEX claims_path ON claims (path)");
+        db.execSQL("CREATE TABLE packages (package TEXT PRIMARY KEY, version INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // nothing to migrate yet
+    }
+
+    /**
+     * @return the installed version of the package, or -1 if it has never
+     *         been recorded
+     */
+    public int getVersion(String packageName) {
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT version FROM packages WHERE package = ?", new String[] {
+                    packageName
+                });
+        try {
+            return cursor.moveToNext() ? cursor.getInt(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the package owning the path, or null if none does
+     */
+    public String getOwner(File f) {
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT package FROM files WHERE path = ?", new String[] {
+                    f.getAbsolutePath()
+                });
+        try {
+            return cursor.moveToNext() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Works out what installing the manifest of one payload under root
+     * changes for the package. Nothing is written.
+     *
+     * @param payload "exec" or "noexec"; only the package's claims for
+     *            this payload are compared with the manifest
+     * @return the plan; if it has no conflicts, it must be committed or
+     *         abandoned
+     */
+    public synchronized Plan plan(String packageName, String payload, int version, File root,
+            octaveManifestIndex index) {
+        Plan plan = new Plan(packageName, payload, version, root, index);
+        SQLiteDatabase db = getReadableDatabase();
+        String base = root.getAbsolutePath() + File.separator;
+        Cursor claimed = db.rawQuery("SELECT path FROM claims WHERE package = ?"
+                + " AND payload = ? AND path >= ? AND path < ? ORDER BY path",
+                new String[] {
+                packageName, payload, base, upperBound(base)
+        });
+        try {
+            String old = claimed.moveToNext() ? claimed.getString(0) : null;
+            for (int i = 0; i < index.size(); i++) {
+                String path = base + index.getPath(i);
+                int cmp = -1;
+                while (null != old && (cmp = compare(old, path)) < 0) {
+                    plan.mRemoved.add(old);
+                    old = claimed.moveToNext() ? claimed.getString(0) : null;
+                }
+                if (null != old && cmp == 0) {
+                    plan.mKept++;
+                    old = claimed.moveToNext() ? claimed.getString(0) : null;
+                } else {
+                    plan.mAdded.add(i);
+                    Conflict conflict = checkConflict(db, path, index, i);
+                    if (null == conflict) {
+                        conflict = checkReserved(plan, path, index, i);
+                    }
+                    if (null != conflict) {
+                        plan.mConflicts.add(conflict);
+                    }
+                }
+            }
+            while (null != old) {
+                plan.mRemoved.add(old);
+                old = claimed.moveToNext() ? claimed.getString(0) : null;
+            }
+        } finally {
+            claimed.close();
+        }
+        plan.mCommitsBefore = mCommits;
+        if (plan.mConflicts.isEmpty()) {
+            for (int i : plan.mAdded) {
+                mReserved.put(base + index.getPath(i), new Reservation(plan, i));
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Releases the paths of a plan that will not be committed, e.g. as its
+     * install failed. Harmless for a committed plan.
+     */
+    public synchronized void abandon(Plan plan) {
+        Iterator<Reservation> it = mReserved.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().mPlan == plan) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Records the plan: the new claims, the package's version, and the
+     * release of the paths it no longer lists.
+     *
+     * @return the paths no package claims any more, in path order; they are
+     *         still on disk
+     * @throws ConflictException if the plan had conflicts, or another
+     *             package has since claimed a path it adds differently
+     */
+    public List<String> commit(Plan plan) throws ConflictException {
+        if (!plan.mConflicts.isEmpty()) {
+            throw new ConflictException(plan.mPackage, plan.mConflicts);
+        }
+        try {
+            return record(plan);
+        } finally {
+            abandon(plan);
+        }
+    }
+
+    private List<String> record(Plan plan) throws ConflictException {
+        SQLiteDatabase db = getWritableDatabase();
+        List<String> orphans = new ArrayList<String>();
+        String base = plan.mRoot.getAbsolutePath() + File.separator;
+        db.beginTransaction();
+        try {
+            boolean recheck;
+            synchronized (this) {
+                recheck = mCommits != plan.mCommitsBefore;
+            }
+            if (recheck) {
+                List<Conflict> conflicts = new ArrayList<Conflict>();
+                for (int i : plan.mAdded) {
+                    Conflict conflict = checkConflict(db, base + plan.mIndex.getPath(i),
+                            plan.mIndex, i);
+                    if (null != conflict) {
+                        conflicts.add(conflict);
+                    }
+                }
+                if (!conflicts.isEmpty()) {
+                    throw new ConflictException(plan.mPackage, conflicts);
+                }
+            }
+            Statements s = new Statements(db);
+            try {
+                octaveManifestIndex index = plan.mIndex;
+                for (int i : plan.mAdded) {
+                    String path = base + index.getPath(i);
+                    s.mClaim.bindString(1, plan.mPackage);
+                    s.mClaim.bindString(2, plan.mPayload);
+                    s.mClaim.bindString(3, path);
+                    s.mClaim.execute();
+                    s.mReference.bindString(1, path);
+                    s.mReference.execute();
+                    if (count(s.mExists, path) == 0) {
+                        s.mInsert.bindString(1, path);
+                        s.mInsert.bindString(2, plan.mPackage);
+                        s.mInsert.bindLong(3, plan.mVersion);
+                        s.mInsert.bindLong(4, index.getType(i));
+                        s.mInsert.bindLong(5, index.getSize(i));
+                        String link = index.getLinkTarget(i);
+                        if (null == link) {
+                            s.mInsert.bindNull(6);
+                        } else {
+                            s.mInsert.bindString(6, link);
+                        }
+                        s.mInsert.execute();
+                    }
+                }
+                for (String path : plan.mRemoved) {
+                    if (release(s, plan.mPackage, plan.mPayload, path)) {
+                        orphans.add(path);
+                    }
+                }
+            } finally {
+                s.close();
+            }
+            db.execSQL("UPDATE files SET version = ? WHERE package = ? AND path >= ?"
+                    + " AND path < ?", new Object[] {
+                    plan.mVersion, plan.mPackage, base, upperBound(base)
+            });
+            db.execSQL("INSERT OR REPLACE INTO packages (package, version) VALUES (?, ?)",
+                    new Object[] {
+                    plan.mPackage, plan.mVersion
+            });
+            db.setTransactionSuccessful();
+            synchronized (this) {
+                mCommits++;
+            }
+        } finally {
+            db.endTransaction();
+        }
+        return orphans;
+    }
+
+    /**
+     * Drops every claim of the package, e.g. once it has been uninstalled.
+     *
+     * @return the paths no package claims any more, in path order; they are
+     *         still on disk
+     */
+    public List<String> release(String packageName) {
+        SQLiteDatabase db = getWritableDatabase();
+        List<String> orphans = new ArrayList<String>();
+        db.beginTransaction();
+        try {
+            List<String[]> claimed = new ArrayList<String[]>();
+            Cursor cursor = db.rawQuery("SELECT payload, path FROM claims WHERE package = ?"
+                    + " ORDER BY path", new String[] {
+                    packageName
+            });
+            try {
+                while (cursor.moveToNext()) {
+                    claimed.add(new String[] {
+                            cursor.getString(0), cursor.getString(1)
+                    });
+                }
+            } finally {
+                cursor.close();
+            }
+            Statements s = new Statements(db);
+            try {
+                for (String[] claim : claimed) {
+                    if (release(s, packageName, claim[0], claim[1])) {
+                        orphans.add(claim[1]);
+                    }
+                }
+            } finally {
+                s.close();
+            }
+            db.execSQL("DELETE FROM packages WHERE package = ?", new Object[] {
+                packageName
+            });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return orphans;
+    }
+
+    /**
+     * Removes orphaned paths from disk: everything but directories first,
+     * then directories deepest first, each only if it has emptied.
+     *
+     * @param orphans as returned by commit() or release(), in path order
+     * @return the number of paths removed
+     */
+    public static int removeOrphans(List<String> orphans) {
+        int removed = 0;
+        List<File> dirs = new ArrayList<File>();
+        for (String path : orphans) {
+            File f = new File(path);
+            boolean isDirectory;
+            try {
+                isDirectory = f.isDirectory() && !octaveAddonInstaller.isSymlink(f);
+            } catch (IOException e) {
+                isDirectory = false;
+            }
+            if (isDirectory) {
+                dirs.add(f);
+            } else if (f.delete()) {
+                removed++;
+            }
+        }
+        // in path order a directory comes before its contents
+        for (int i = dirs.size() - 1; i >= 0; i--) {
+            if (dirs.get(i).delete()) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * The statements commit() and release() run once per path, compiled
+     * once per transaction.
+     */
+    private static class Statements {
+        final SQLiteStatement mClaim;
+        final SQLiteStatement mReference;
+        final SQLiteStatement mExists;
+        final SQLiteStatement mInsert;
+        final SQLiteStatement mUnclaim;
+        final SQLiteStatement mDereference;
+        final SQLiteStatement mRefcount;
+        final SQLiteStatement mDelete;
+        final SQLiteStatement mReassign;
+
+        Statements(SQLiteDatabase db) {
+            mClaim = db.compileStatement(
+                    "INSERT OR IGNORE INTO claims (package, payload, path) VALUES (?, ?, ?)");
+            mReference = db.compileStatement(
+                    "UPDATE files SET refcount = refcount + 1 WHERE path = ?");
+            mExists = db.compileStatement("SELECT count(*) FROM files WHERE path = ?");
+            mInsert = db.compileStatement("INSERT INTO files (path, package, version,"
+                    + " refcount, type, size, link) VALUES (?, ?, ?, 1, ?, ?, ?)");
+            mUnclaim = db.compileStatement(
+                    "DELETE FROM claims WHERE package = ? AND payload = ? AND path = ?");
+            mDereference = db.compileStatement(
+                    "UPDATE files SET refcount = refcount - 1 WHERE path = ?");
+            mRefcount = db.compileStatement("SELECT refcount FROM files WHERE path = ?");
+            mDelete = db.compileStatement("DELETE FROM files WHERE path = ?");
+            // the longest-standing remaining claimant takes over
+            mReassign = db.compileStatement("UPDATE files SET"
+                    + " package = (SELECT c.package FROM claims c JOIN packages p"
+                    + " ON p.package = c.package WHERE c.path = files.path"
+                    + " ORDER BY c.rowid LIMIT 1),"
+                    + " version = (SELECT p.version FROM claims c JOIN packages p"
+                    + " ON p.package = c.package WHERE c.path = files.path"
+                    + " ORDER BY c.rowid LIMIT 1)"
+                    + " WHERE path = ? AND package = ?");
+        }
+
+        void close() {
+            mClaim.close();
+            mReference.close();
+            mExists.close();
+            mInsert.close();
+            mUnclaim.close();
+            mDereference.close();
+            mRefcount.close();
+            mDelete.close();
+            mReassign.close();
+        }
+    }
+
+    /**
+     * Drops one claim of the package.
+     *
+     * @return true if that was the last claim on the path
+     */
+    private static boolean release(Statements s, String packageName, String payload,
+            String path) {
+        s.mUnclaim.bindString(1, packageName);
+        s.mUnclaim.bindString(2, payload);
+        s.mUnclaim.bindString(3, path);
+        s.mUnclaim.execute();
+        s.mDereference.bindString(1, path);
+        s.mDereference.execute();
+        if (count(s.mRefcount, path) <= 0) {
+            s.mDelete.bindString(1, path);
+            s.mDelete.execute();
+            return true;
+        }
+        s.mReassign.bindString(1, path);
+        s.mReassign.bindString(2, packageName);
+        s.mReassign.execute();
+        return false;
+    }
+
+    /**
+     * Two packages may share a path if it is a directory in both, or the
+     * same kind of entry with the same link target and, where both sizes
+     * are known, the same size.
+     *
+     * @return null if the path is free or may be shared
+     */
+    private static Conflict checkConflict(SQLiteDatabase db, String path,
+            octaveManifestIndex index, int i) {
+        Cursor cursor = db.rawQuery("SELECT package, version, type, size, link FROM files"
+                + " WHERE path = ?", new String[] {
+                path
+        });
+        try {
+            if (!cursor.moveToNext()) {
+                return null;
+            }
+            boolean shareable = shareable((char) cursor.getInt(2), cursor.getLong(3),
+                    cursor.getString(4), index, i);
+            return shareable ? null : new Conflict(path, cursor.getString(0), cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The same for paths another install is about to write.
+     */
+    private Conflict checkReserved(Plan plan, String path, octaveManifestIndex index, int i) {
+        Reservation reservation = mReserved.get(path);
+        if (null == reservation || reservation.mPlan == plan) {
+            return null;
+        }
+        Plan other = reservation.mPlan;
+        int j = reservation.mIndex;
+        return shareable(other.mIndex.getType(j), other.mIndex.getSize(j),
+                other.mIndex.getLinkTarget(j), index, i) ? null
+                : new Conflict(path, other.mPackage, other.mVersion);
+    }
+
+    private static boolean shareable(char type, long size, String link,
+            octaveManifestIndex index, int i) {
+        return type == index.getType(i)
+                && (type == octaveTarInputStream.TYPE_DIRECTORY
+                || (equal(link, index.getLinkTarget(i))
+                && (size == octaveManifestIndex.UNKNOWN_SIZE
+                || index.getSize(i) == octaveManifestIndex.UNKNOWN_SIZE
+                || size == index.getSize(i))));
+    }
+
+    private static long count(SQLiteStatement query, String path) {
+        query.bindString(1, path);
+        return query.simpleQueryForLong();
+    }
+
+    private static boolean equal(String a, String b) {
+        return null == a ? null == b : a.equals(b);
+    }
+
+    /**
+     * Paths are compared the way SQLite compares TEXT: as UTF-8 bytes.
+     */
+    private static int compare(String a, String b) {
+        byte[] x = octaveManifestIndex.utf8(a);
+        byte[] y = octaveManifestIndex.utf8(b);
+        return octaveManifestIndex.compareBytes(x, 0, x.length, y, 0, y.length);
+    }
+
+    /**
+     * @return the smallest string greater than everything starting with
+     *         prefix, which ends in a separator
+     */
+    private static String upperBound(String prefix) {
+        return prefix.substring(0, prefix.length() - 1)
+                + (char) (prefix.charAt(prefix.length() - 1) + 1);
+    }
+}
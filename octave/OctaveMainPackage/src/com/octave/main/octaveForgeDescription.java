@@ -0,0 +1,164 @@
+package com.octave.main;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager.NameNotFoundException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * What an Octave Forge package says about itself in the packinfo/DESCRIPTION
+ * file of its noexec payload: its name and version and the packages it
+ * depends on. Only the names of the dependencies are kept; the versions
+ * ship together, and "octave" itself is always there.
+ *
+ * Reading the file may mean streaming through a whole tar.gz payload, so
+ * load() remembers what it found for each version of an add-on.
+ */
+public class octaveForgeDescription {
+
+    public static final String FILE_NAME = "packinfo/DESCRIPTION";
+
+    private static final String PREF_PREFIX = "forgeDescription.";
+    private static final String OCTAVE = "octave";
+
+    private final String mName;
+    private final String mVersion;
+    private final List<String> mDepends;
+
+    octaveForgeDescription(String name, String version, List<String> depends) {
+        mName = name;
+        mVersion = version;
+        mDepends = Collections.unmodifiableList(depends);
+    }
+
+    /**
+     * @return the package name, lower case, e.g. "signal"
+     */
+    public String getName() {
+        return mName;
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return the names of the packages this one needs, lower case
+     */
+    public List<String> getDepends() {
+        return mDepends;
+    }
+
+    /**
+     * Parses a DESCRIPTION file: "Field: value" lines, where a line starting
+     * with white space continues the one before.
+     */
+    public static octaveForgeDescription parse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String name = null;
+        String version = null;
+        StringBuilder depends = new StringBuilder();
+        String field = null;
+        String line;
+        while (null != (line = reader.readLine())) {
+            String value;
+            if (line.length() > 0 && Character.isWhitespace(line.charAt(0))) {
+                value = line.trim();
+            } else {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    field = null;
+                    continue;
+                }
+                field = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                value = line.substring(colon + 1).trim();
+            }
+            if ("name".equals(field)) {
+                name = null == name ? value : name + value;
+            } else if ("version".equals(field)) {
+                version = null == version ? value : version + value;
+            } else if ("depends".equals(field)) {
+                depends.append(',').append(value);
+            }
+        }
+        if (null == name || name.length() == 0) {
+            throw new IOException("DESCRIPTION without a Name");
+        }
+        return new octaveForgeDescription(name.toLowerCase(Locale.US), version,
+                parseDepends(depends.toString()));
+    }
+
+    /**
+     * @return the names in "octave (>= 3.6.0), optim (>= 1.0.0), specfun",
+     *         without octave
+     */
+    static List<String> parseDepends(String depends) {
+        List<String> names = new ArrayList<String>();
+        for (String item : depends.split(",")) {
+            String dep = item.trim();
+            int paren = dep.indexOf('(');
+            if (paren >= 0) {
+                dep = dep.substring(0, paren).trim();
+            }
+            dep = dep.toLowerCase(Locale.US);
+            if (dep.length() > 0 && !OCTAVE.equals(dep) && !names.contains(dep)) {
+                names.add(dep);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the description of an installed add-on, or null if it is not
+     *         a Forge package (gnuplot)
+     */
+    public static octaveForgeDescription load(Context c, String packageName)
+            throws IOException, NameNotFoundException {
+        int version = c.getPackageManager().getPackageInfo(packageName, 0).versionCode;
+        SharedPreferences prefs = octaveDeliveryRecord.getPreferences(c);
+        String key = PREF_PREFIX + packageName;
+        String cached = prefs.getString(key, null);
+        String prefix = version + "\n";
+        if (null != cached && cached.startsWith(prefix)) {
+            return decode(cached.substring(prefix.length()));
+        }
+        octaveForgeDescription description = octaveAddonInstaller.readDescription(c,
+                packageName);
+        prefs.edit().putString(key, prefix + encode(description)).commit();
+        return description;
+    }
+
+    private static String encode(octaveForgeDescription description) {
+        if (null == description) {
+            return "";
+        }
+        StringBuilder s = new StringBuilder();
+        s.append(description.mName).append('\n');
+        s.append(null == description.mVersion ? "" : description.mVersion).append('\n');
+        for (String dep : description.mDepends) {
+            s.append(dep).append(',');
+        }
+        return s.toString();
+    }
+
+    private static octaveForgeDescription decode(String s) {
+        String[] fields = s.split("\n", -1);
+        if (fields.length < 3) {
+            return null;
+        }
+        return new octaveForgeDescription(fields[0], fields[1], parseDepends(fields[2]));
+    }
+
+    @Override
+    public String toString() {
+        return mName + " " + mVersion + " " + mDepends;
+    }
+}
@@ -0,0 +1,278 @@
+package com.octave.main;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where the time of an install goes. A session has named phases, timed with
+ * System.nanoTime() so clock changes do not matter, and named counters;
+ * when it ends it is appended as one JSON line to a file in app storage,
+ * which can be collected from the field and aggregated, e.g.
+ *
+ * {"kind":"rootfs","start":1389000000000,"abi":"armeabi","outcome":"delivered",
+ *  "ms":73512,"phases":{"license":2210,"connect":412,"transfer":61022,
+ *  "extract":62300,"verify":40},"counters":{"bytes":104857600,"retries":1,
+ *  "stalls":0,"files":5123,"fsyncs":0,"waits":310}}
+ *
+ * Phases may overlap (extraction runs alongside the transfer); a phase that
+ * is entered several times adds up. The current session is shared by
+ * everything in the process, so the download engine and the extractors
+ * count into it without being handed anything. Installs that run side by
+ * side (octaveInstallQueue) each keep a session of their own on their
+ * thread instead, see startOnThread(); helper threads count into the
+ * session of the thread that started them. There is no Android
+ * dependency, so it can be exercised on a plain JVM.
+ */
+public final class octaveInstallMetrics {
+
+    public static final String PHASE_LICENSE = "license";
+    public static final String PHASE_CONNECT = "connect";
+    public static final String PHASE_TRANSFER = "transfer";
+    public static final String PHASE_PAUSED = "paused";
+    public static final String PHASE_VERIFY = "verify";
+    public static final String PHASE_PATCH = "patch";
+    public static final String PHASE_EXTRACT = "extract";
+    public static final String PHASE_ADDON = "addon";
+    /** loading an add-on's manifest and checking it against what is installed */
+    public static final String PHASE_PLAN = "plan";
+    /** recording file ownership and removing orphans */
+    public static final String PHASE_COMMIT = "commit";
+
+    public static final String COUNTER_BYTES = "bytes";
+    public static final String COUNTER_RETRIES = "retries";
+    public static final String COUNTER_STALLS = "stalls";
+    public static final String COUNTER_FILES = "files";
+    public static final String COUNTER_FSYNCS = "fsyncs";
+    /** times an extractor had to wait for the download to catch up */
+    public static final String COUNTER_WAITS = "waits";
+
+    public static final String FILE_NAME = "install_metrics.jsonl";
+    /** the file is started afresh once it is this long */
+    private static final long MAX_FILE_SIZE = 256 * 1024;
+
+    private static octaveInstallMetrics sCurrent = new octaveInstallMetrics("none", false);
+    private static final ThreadLocal<octaveInstallMetrics> sThread =
+            new ThreadLocal<octaveInstallMetrics>();
+
+    private final String mKind;
+    private final long mStartTime = System.currentTimeMillis();
+    private final long mStartNanos = System.nanoTime();
+    private final Map<String, String> mTags = new LinkedHashMap<String, String>();
+    // per phase: total nanos, nanos when it was entered (0 if not running)
+    private final Map<String, long[]> mPhases = new LinkedHashMap<String, long[]>();
+    private final Map<String, long[]> mCounters = new LinkedHashMap<String, long[]>();
+    private boolean mRecorded;
+    private String mExclusive;
+    /** the thread's own session before this one, for startOnThread() */
+    private octaveInstallMetrics mOuter;
+
+    private octaveInstallMetrics(String kind, boolean recorded) {
+        mKind = kind;
+        mRecorded = recorded;
+        for (String counter : new String[] {
+                COUNTER_BYTES, COUNTER_RETRIES, COUNTER_STALLS, COUNTER_FILES, COUNTER_FSYNCS,
+                COUNTER_WAITS
+        }) {
+            mCounters.put(counter, new long[1]);
+        }
+    }
+
+    /**
+     * Starts a new session, which becomes the current one.
+     *
+     * @param kind what is being installed, e.g. "rootfs" or an add-on
+     */
+    public static synchronized octaveInstallMetrics start(String kind) {
+        sCurrent = new octaveInstallMetrics(kind, true);
+        return sCurrent;
+    }
+
+    /**
+     * Starts a new session that is current on the calling thread only,
+     * until it is written; the process-wide session and other threads do
+     * not see it.
+     */
+    public static octaveInstallMetrics startOnThread(String kind) {
+        octaveInstallMetrics metrics = new octaveInstallMetrics(kind, true);
+        metrics.mOuter = sThread.get();
+        sThread.set(metrics);
+        return metrics;
+    }
+
+    /**
+     * @return the calling thread's own session if it has one, otherwise the
+     *         current session; before any was started, one that is counted
+     *         into but never written
+     */
+    public static octaveInstallMetrics get() {
+        octaveInstallMetrics own = sThread.get();
+        if (null != own) {
+            return own;
+        }
+        synchronized (octaveInstallMetrics.class) {
+            return sCurrent;
+        }
+    }
+
+    /**
+     * Shorthand for get().count(counter, delta), for the hot paths.
+     */
+    public static void add(String counter, long delta) {
+        get().count(counter, delta);
+    }
+
+    public synchronized void tag(String name, String value) {
+        if (null != value) {
+            mTags.put(name, value);
+        }
+    }
+
+    public synchronized void begin(String phase) {
+        long[] p = phase(phase);
+        if (p[1] == 0) {
+            p[1] = System.nanoTime();
+        }
+    }
+
+    public synchronized void end(String phase) {
+        long[] p = mPhases.get(phase);
+        if (null != p && p[1] != 0) {
+            p[0] += System.nanoTime() - p[1];
+            p[1] = 0;
+        }
+    }
+
+    /**
+     * Ends the phase the last enter() began and begins this one, for phases
+     * that follow each other like the downloader's states.
+     *
+     * @param phase null to just end the last one
+     */
+    public synchronized void enter(String phase) {
+        if (null != mExclusive && !mExclusive.equals(phase)) {
+            end(mExclusive);
+        }
+        mExclusive = phase;
+        if (null != phase) {
+            begin(phase);
+        }
+    }
+
+    public synchronized void count(String counter, long delta) {
+        long[] c = mCounters.get(counter);
+        if (null == c) {
+            c = new long[1];
+            mCounters.put(counter, c);
+        }
+        c[0] += delta;
+    }
+
+    private long[] phase(String phase) {
+        long[] p = mPhases.get(phase);
+        if (null == p) {
+            p = new long[2];
+            mPhases.put(phase, p);
+        }
+        return p;
+    }
+
+    /**
+     * @return the session as one line of JSON; running phases count up to now
+     */
+    public synchronized String toJson(String outcome) {
+        long now = System.nanoTime();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"kind\":");
+        quote(sb, mKind);
+        sb.append(",\"start\":").append(mStartTime);
+        for (Map.Entry<String, String> tag : mTags.entrySet()) {
+            sb.append(',');
+            quote(sb, tag.getKey());
+            sb.append(':');
+            quote(sb, tag.getValue());
+        }
+        sb.append(",\"outcome\":");
+        quote(sb, outcome);
+        sb.append(",\"ms\":").append((now - mStartNanos) / 1000000);
+        sb.append(",\"phases\":{");
+        boolean first = true;
+        for (Map.Entry<String, long[]> e : mPhases.entrySet()) {
+            long[] p = e.getValue();
+            long nanos = p[0] + (p[1] != 0 ? now - p[1] : 0);
+            first = separate(sb, first);
+            quote(sb, e.getKey());
+            sb.append(':').append(nanos / 1000000);
+        }
+        sb.append("},\"counters\":{");
+        first = true;
+        for (Map.Entry<String, long[]> e : mCounters.entrySet()) {
+            first = separate(sb, first);
+            quote(sb, e.getKey());
+            sb.append(':').append(e.getValue()[0]);
+        }
+        return sb.append("}}").toString();
+    }
+
+    /**
+     * Appends the session to FILE_NAME in dir, e.g. getFilesDir(), once;
+     * the session then stops being the current one. Metrics must never
+     * break an install, so failures are ignored.
+     */
+    public void write(File dir, String outcome) {
+        if (sThread.get() == this) {
+            if (null == mOuter) {
+                sThread.remove();
+            } else {
+                sThread.set(mOuter);
+            }
+        }
+        synchronized (octaveInstallMetrics.class) {
+            if (sCurrent == this) {
+                sCurrent = new octaveInstallMetrics("none", false);
+            }
+        }
+        synchronized (this) {
+            if (!mRecorded) {
+                return;
+            }
+            mRecorded = false;
+        }
+        File file = new File(dir, FILE_NAME);
+        try {
+            OutputStream out = new FileOutputStream(file, file.length() < MAX_FILE_SIZE);
+            try {
+                out.write((toJson(outcome) + "\n").getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // no record this time
+        }
+    }
+
+    private static boolean separate(StringBuilder sb, boolean first) {
+        if (!first) {
+            sb.append(',');
+        }
+        return false;
+    }
+
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '"' || ch == '\\') {
+                sb.append('\\').append(ch);
+            } else if (ch < 0x20) {
+                sb.append(String.format("\\u%04x", (int) ch));
+            } else {
+                sb.append(ch);
+            }
+        }
+        sb.append('"');
+    }
+}
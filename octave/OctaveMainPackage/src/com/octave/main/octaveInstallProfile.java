@@ -0,0 +1,202 @@
+package com.octave.main;
+
+import android.content.SharedPreferences;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Which parts of a payload to unpack, as path rules over its manifest. Each
+ * rule is a directory; the directory and everything below it is skipped.
+ *
+ * - full unpacks everything, as before;
+ * - standard leaves out documentation: usr/share/doc (changelogs,
+ *   copyright files, NEWS.gz), man and info pages, lintian overrides and
+ *   the like, none of which Octave reads;
+ * - minimal also leaves out translations and C/C++ headers, which only
+ *   mkoctfile and pkg build need.
+ *
+ * The rules that actually skipped something are recorded per payload, so
+ * a subtree can be unpacked later on demand (see octaveAddonInstaller
+ * fetchSkipped() and octaveDownloaderActivity EXTRA_FETCH).
+ */
+public class octaveInstallProfile implements octavePackReader.Filter, octaveTarExtractor.Filter {
+
+    public static final String MINIMAL = "minimal";
+    public static final String STANDARD = "standard";
+    public static final String FULL = "full";
+
+    /** Followed by the payload's key: the subtrees it was unpacked without */
+    static final String PREF_SKIPPED_PREFIX = "skipped.";
+    private static final String SEPARATOR = "\n";
+
+    private static final String[] DOCUMENTATION = {
+            "usr/share/doc/",
+            "usr/share/doc-base/",
+            "usr/share/man/",
+            "usr/share/info/",
+            "usr/share/lintian/",
+            "usr/share/bug/",
+            "usr/share/menu/"
+    };
+
+    private static final String[] NON_ESSENTIAL = {
+            "usr/share/locale/",
+            "usr/include/"
+    };
+
+    private final String mName;
+    private final String[] mRules;
+    private final boolean mOnly;
+    private final Set<String> mSkipped = new TreeSet<String>();
+
+    private octaveInstallProfile(String name, String[] rules, boolean only) {
+        mName = name;
+        mRules = rules;
+        mOnly = only;
+    }
+
+    /**
+     * @param name MINIMAL, STANDARD or FULL; anything else (or null) is FULL
+     */
+    public static octaveInstallProfile forName(String name) {
+        if (MINIMAL.equals(name)) {
+            String[] rules = new String[DOCUMENTATION.length + NON_ESSENTIAL.length];
+            System.arraycopy(DOCUMENTATION, 0, rules, 0, DOCUMENTATION.length);
+            System.arraycopy(NON_ESSENTIAL, 0, rules, DOCUMENTATION.length,
+                    NON_ESSENTIAL.length);
+            return new octaveInstallProfile(MINIMAL, rules, false);
+        } else if (STANDARD.equals(name)) {
+            return new octaveInstallProfile(STANDARD, DOCUMENTATION, false);
+        }
+        return new octaveInstallProfile(FULL, new String[0], false);
+    }
+
+    /**
+     * @return a filter that accepts nothing but the subtree, for fetching
+     *         it after the fact
+     */
+    public static octaveInstallProfile only(String subtree) {
+        return new octaveInstallProfile(null, new String[] {
+                asDirectory(subtree)
+        }, true);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public boolean accept(String path) {
+        for (String rule : mRules) {
+            if (isUnder(path, rule)) {
+                if (!mOnly) {
+                    synchronized (mSkipped) {
+                        mSkipped.add(rule);
+                    }
+                }
+                return mOnly;
+            }
+        }
+        return !mOnly;
+    }
+
+    @Override
+    public boolean accept(octavePackReader.Entry entry) {
+        return accept(entry.name);
+    }
+
+    /**
+     * @return the rules that skipped at least one entry so far
+     */
+    public Set<String> getSkipped() {
+        synchronized (mSkipped) {
+            return new TreeSet<String>(mSkipped);
+        }
+    }
+
+    /**
+     * Records what this profile skipped for a payload, replacing what an
+     * earlier install of it skipped.
+     */
+    void saveSkipped(SharedPreferences prefs, String payloadKey) {
+        Set<String> skipped = getSkipped();
+        if (skipped.isEmpty()) {
+            prefs.edit().remove(PREF_SKIPPED_PREFIX + payloadKey).commit();
+        } else {
+            prefs.edit().putString(PREF_SKIPPED_PREFIX + payloadKey, join(skipped)).commit();
+        }
+    }
+
+    /**
+     * @return the subtrees the payload was unpacked without, empty if none
+     */
+    public static Set<String> loadSkipped(SharedPreferences prefs, String payloadKey) {
+        Set<String> skipped = new TreeSet<String>();
+        String value = prefs.getString(PREF_SKIPPED_PREFIX + payloadKey, null);
+        if (null != value) {
+            for (String rule : value.split(SEPARATOR)) {
+                if (rule.length() > 0) {
+                    skipped.add(rule);
+                }
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * @return true if some of subtree was skipped for the payload
+     */
+    static boolean wasSkipped(SharedPreferences prefs, String payloadKey, String subtree) {
+        String dir = asDirectory(subtree);
+        for (String rule : loadSkipped(prefs, payloadKey)) {
+            if (dir.startsWith(rule) || rule.startsWith(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the skipped rules that lie within a subtree that has now been
+     * unpacked. A rule the subtree only covers part of stays.
+     */
+    static void fetched(SharedPreferences prefs, String payloadKey, String subtree) {
+        String dir = asDirectory(subtree);
+        Set<String> skipped = loadSkipped(prefs, payloadKey);
+        Set<String> left = new TreeSet<String>();
+        for (String rule : skipped) {
+            if (!rule.startsWith(dir)) {
+                left.add(rule);
+            }
+        }
+        if (left.isEmpty()) {
+            prefs.edit().remove(PREF_SKIPPED_PREFIX + payloadKey).commit();
+        } else if (left.size() != skipped.size()) {
+            prefs.edit().putString(PREF_SKIPPED_PREFIX + payloadKey, join(left)).commit();
+        }
+    }
+
+    /**
+     * A directory entry is under its own rule, so it is skipped along with
+     * its contents.
+     */
+    private static boolean isUnder(String path, String rule) {
+        return asDirectory(path).startsWith(rule);
+    }
+
+    private static String asDirectory(String path) {
+        return path.endsWith("/") ? path : path + "/";
+    }
+
+    private static String join(Set<String> rules) {
+        StringBuilder sb = new StringBuilder();
+        for (String rule : rules) {
+            if (sb.length() > 0) {
+                sb.append(SEPARATOR);
+            }
+            sb.append(rule);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,321 @@
+package com.octave.main;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * The handful of POSIX calls the extractors need that java.io.File does not
+ * offer at our minSdkVersion. android.system.Os is used where it exists
+ * (API 21+), then the hidden libcore.io.Libcore.os (API 14+), then
+ * java.nio.file, which is what a desktop JVM has (the build tools and
+ * benchmarks), and finally the toolbox/coreutils binaries. All of them are
+ * looked up by reflection, since none exists on every device.
+ */
+final class octavePosix {
+
+    // Linux errno values
+    private static final int ENOSPC = 28;
+    private static final int ENOSYS = 38;
+    private static final int EOPNOTSUPP = 95;
+
+    /** Files from this size on get their blocks reserved before writing */
+    static final long PREALLOCATE_MIN = 256 * 1024;
+
+    private static Object sOs;
+    private static Method sSymlink;
+    private static Method sLink;
+    private static Method sChmod;
+    private static Method sReadlink;
+    private static Method sLstat;
+    private static Method sStatVfs;
+    private static Method sFallocate;
+
+    // java.nio.file, when there is neither Os nor Libcore
+    private static Method sGetPath;
+    private static Method sCreateSymbolicLink;
+    private static Method sCreateLink;
+    private static Method sReadSymbolicLink;
+    private static Method sGetAttribute;
+    private static Method sSetAttribute;
+    private static Object sNoFileAttributes;
+    private static Object sFollowLinks;
+    private static Object sNoFollowLinks;
+
+    static {
+        try {
+            Class<?> os = Class.forName("android.system.Os");
+            bind(os);
+        } catch (Exception e) {
+            try {
+                Class<?> libcore = Class.forName("libcore.io.Libcore");
+                sOs = libcore.getField("os").get(null);
+                bind(sOs.getClass());
+            } catch (Exception e2) {
+                sOs = null;
+                sSymlink = null;
+                sLink = null;
+                sChmod = null;
+                sReadlink = null;
+                sLstat = null;
+                sStatVfs = null;
+                sFallocate = null;
+                try {
+                    bindNio();
+                } catch (Exception e3) {
+                    sGetPath = null;
+                }
+            }
+        }
+    }
+
+    private static void bindNio() throws Exception {
+        Class<?> paths = Class.forName("java.nio.file.Paths");
+        Class<?> files = Class.forName("java.nio.file.Files");
+        Class<?> path = Class.forName("java.nio.file.Path");
+        Class<?> attribute = Class.forName("java.nio.file.attribute.FileAttribute");
+        Class<?> linkOption = Class.forName("java.nio.file.LinkOption");
+        Class<?> attributes = Array.newInstance(attribute, 0).getClass();
+        Class<?> linkOptions = Array.newInstance(linkOption, 0).getClass();
+        sCreateSymbolicLink = files.getMethod("createSymbolicLink", path, path, attributes);
+        sCreateLink = files.getMethod("createLink", path, path);
+        sReadSymbolicLink = files.getMethod("readSymbolicLink", path);
+        sGetAttribute = files.getMethod("getAttribute", path, String.class, linkOptions);
+        sSetAttribute = files.getMethod("setAttribute", path, String.class, Object.class,
+                linkOptions);
+        sNoFileAttributes = Array.newInstance(attribute, 0);
+        Object noFollow = Array.newInstance(linkOption, 1);
+        Array.set(noFollow, 0, linkOption.getField("NOFOLLOW_LINKS").get(null));
+        sNoFollowLinks = noFollow;
+        sFollowLinks = Array.newInstance(linkOption, 0);
+        // set last, it is what says the rest is there
+        sGetPath = paths.getMethod("get", String.class, String[].class);
+    }
+
+    private static void bind(Class<?> os) throws NoSuchMethodException {
+        sSymlink = os.getMethod("symlink", String.class, String.class);
+        sLink = os.getMethod("link", String.class, String.class);
+        sChmod = os.getMethod("chmod", String.class, int.class);
+        try {
+            // not in every libcore.io.Os
+            sReadlink = os.getMethod("readlink", String.class);
+        } catch (NoSuchMethodException e) {
+            sReadlink = null;
+        }
+        try {
+            sLstat = os.getMethod("lstat", String.class);
+        } catch (NoSuchMethodException e) {
+            sLstat = null;
+        }
+        try {
+            sStatVfs = os.getMethod("statvfs", String.class);
+        } catch (NoSuchMethodException e) {
+            sStatVfs = null;
+        }
+        try {
+            sFallocate = os.getMethod("posix_fallocate", FileDescriptor.class, long.class,
+                    long.class);
+        } catch (NoSuchMethodException e) {
+            sFallocate = null;
+        }
+    }
+
+    private octavePosix() {
+    }
+
+    /**
+     * Creates path as a symbolic link pointing at target.
+     */
+    static void symlink(String target, String path) throws IOException {
+        if (null != sSymlink) {
+            invoke(sSymlink, target, path);
+        } else if (null != sGetPath) {
+            invokeStatic(sCreateSymbolicLink, nioPath(path), nioPath(target), sNoFileAttributes);
+        } else {
+            exec(new String[] {
+                    "ln", "-s", target, path
+            });
+        }
+    }
+
+    /**
+     * Creates path as a hard link to the existing file.
+     */
+    static void link(String existing, String path) throws IOException {
+        if (null != sLink) {
+            invoke(sLink, existing, path);
+        } else if (null != sGetPath) {
+            invokeStatic(sCreateLink, nioPath(path), nioPath(existing));
+        } else {
+            exec(new String[] {
+                    "ln", existing, path
+            });
+        }
+    }
+
+    static void chmod(String path, int mode) throws IOException {
+        if (null != sChmod) {
+            invoke(sChmod, path, Integer.valueOf(mode));
+        } else if (null != sGetPath) {
+            invokeStatic(sSetAttribute, nioPath(path), "unix:mode", Integer.valueOf(mode),
+                    sFollowLinks);
+        } else {
+            exec(new String[] {
+                    "chmod", Integer.toOctalString(mode), path
+            });
+        }
+    }
+
+    /**
+     * @return the target of the symlink at path, or null if this platform
+     *         offers no way to read it
+     */
+    static String readlink(String path) throws IOException {
+        if (null == sReadlink) {
+            return null == sGetPath ? null
+                    : invokeStatic(sReadSymbolicLink, nioPath(path)).toString();
+        }
+        return (String) invoke(sReadlink, path);
+    }
+
+    /**
+     * @return the number of hard links to path, or -1 if this platform
+     *         offers no way to find out
+     */
+    static long linkCount(String path) throws IOException {
+        if (null == sLstat) {
+            return null == sGetPath ? -1 : ((Number) invokeStatic(sGetAttribute,
+                    nioPath(path), "unix:nlink", sNoFollowLinks)).longValue();
+        }
+        Object stat = invoke(sLstat, path);
+        try {
+            return stat.getClass().getField("st_nlink").getLong(stat);
+        } catch (NoSuchFieldException e) {
+            return -1;
+        } catch (IllegalAccessException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the bytes and the inodes an unprivileged process may still
+     *         use on the file system holding path, and its block size; null
+     *         if this platform offers no statvfs()
+     */
+    static long[] statvfs(String path) throws IOException {
+        if (null == sStatVfs) {
+            return null;
+        }
+        Object stat = invoke(sStatVfs, path);
+        try {
+            Class<?> c = stat.getClass();
+            long fragment = c.getField("f_frsize").getLong(stat);
+            if (fragment <= 0) {
+                fragment = c.getField("f_bsize").getLong(stat);
+            }
+            return new long[] {
+                    c.getField("f_bavail").getLong(stat) * fragment,
+                    c.getField("f_favail").getLong(stat), fragment
+            };
+        } catch (NoSuchFieldException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reserves the blocks for the first length bytes of an open file, so
+     * they are allocated together rather than one write at a time, and a
+     * full disk shows before anything is written.
+     *
+     * @return false if this platform or file system cannot preallocate
+     * @throws IOException if there is no room (ENOSPC) or the call fails
+     *         for another reason
+     */
+    static boolean fallocate(FileDescriptor fd, long length) throws IOException {
+        if (null == sFallocate || length <= 0) {
+            return false;
+        }
+        try {
+            sFallocate.invoke(sOs, fd, Long.valueOf(0), Long.valueOf(length));
+            return true;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            int errno = -1;
+            try {
+                errno = cause.getClass().getField("errno").getInt(cause);
+            } catch (Exception e2) {
+                // not an ErrnoException
+            }
+            if (errno == EOPNOTSUPP || errno == ENOSYS) {
+                return false;
+            }
+            IOException ioe = new IOException((errno == ENOSPC ? "no space for "
+                    : "unable to reserve ") + length + " bytes: " + cause);
+            ioe.initCause(cause);
+            throw ioe;
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reserves the blocks of a file about to be written with length bytes,
+     * if it is large enough for that to matter, so ext4 allocates it in few
+     * extents and a full disk shows before the first write. Smaller files
+     * and file systems without fallocate() are left alone.
+     *
+     * @throws IOException if the file system has no room for it
+     */
+    static void preallocate(FileDescriptor fd, long length) throws IOException {
+        if (length >= PREALLOCATE_MIN) {
+            fallocate(fd, length);
+        }
+    }
+
+    private static Object invoke(Method m, Object... args) throws IOException {
+        try {
+            return m.invoke(sOs, args);
+        } catch (InvocationTargetException e) {
+            IOException ioe = new IOException(m.getName() + " failed: " + e.getCause());
+            ioe.initCause(e.getCause());
+            throw ioe;
+        } catch (IllegalAccessException e) {
+            throw new IOException(m.getName() + " not accessible");
+        }
+    }
+
+    private static Object nioPath(String path) throws IOException {
+        return invokeStatic(sGetPath, path, new String[0]);
+    }
+
+    private static Object invokeStatic(Method m, Object... args) throws IOException {
+        try {
+            return m.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            IOException ioe = new IOException(m.getName() + " failed: " + e.getCause());
+            ioe.initCause(e.getCause());
+            throw ioe;
+        } catch (IllegalAccessException e) {
+            throw new IOException(m.getName() + " not accessible");
+        }
+    }
+
+    private static void exec(String[] cmd) throws IOException {
+        Process p = Runtime.getRuntime().exec(cmd);
+        try {
+            if (p.waitFor() != 0) {
+                throw new IOException(cmd[0] + " exited with " + p.exitValue() + " for "
+                        + cmd[cmd.length - 1]);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted running " + cmd[0]);
+        } finally {
+            p.destroy();
+        }
+    }
+}
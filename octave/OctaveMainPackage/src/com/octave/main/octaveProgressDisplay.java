@@ -0,0 +1,194 @@
+package com.octave.main;
+
+import com.octave.main.R;
+import com.google.android.vending.expansion.downloader.DownloadProgressInfo;
+import com.google.android.vending.expansion.downloader.Helpers;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+/**
+ * Puts download progress on the dashboard of octaveDownloaderActivity.
+ * Progress callbacks only feed an octaveThroughputEstimator and note the
+ * latest values; the views are refreshed from one posted runnable at most
+ * once a frame, and each view only when what it shows has changed at the
+ * precision it is shown at. The speed and time remaining shown are the
+ * smoothed ones, whatever the service reported. While a transfer is under
+ * way and no callback comes, the estimator is fed the unchanged count
+ * every second, so a stall shows as a falling rate and a growing time
+ * remaining rather than the figures of before it.
+ *
+ * All methods must be called on the UI thread.
+ */
+class octaveProgressDisplay {
+
+    /** One frame at 60 Hz */
+    private static final long REFRESH_INTERVAL = 16;
+
+    /** Helpers shows megabytes with two decimals */
+    private static final long FRACTION_RESOLUTION = 1024 * 1024 / 100;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final ProgressBar mPB;
+    private final TextView mProgressFraction;
+    private final TextView mProgressPercent;
+    private final TextView mAverageSpeed;
+    private final TextView mTimeRemaining;
+    private final TextView mProgressExtracted;
+
+    private final octaveThroughputEstimator mEstimator = new octaveThroughputEstimator();
+
+    private long mTotal = -1;
+    private long mProgress;
+    private boolean mScheduled;
+    private long mLastRefresh;
+    private long mLastPost;
+
+    // what the views show, in the units they show it in
+    private int mShownMax = -1;
+    private int mShownProgress = -1;
+    private int mShownSecondary = -1;
+    private long mShownPercent = -1;
+    private long mShownFraction = -1;
+    private long mShownFractionTotal = -1;
+    private long mShownSpeed = -1;
+    private long mShownSeconds = Long.MIN_VALUE;
+    private long mShownExtracted = -1;
+    private int mShownEntries = -1;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled = false;
+            mLastRefresh = SystemClock.uptimeMillis();
+            refresh();
+        }
+    };
+
+    private final Runnable mStalled = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastPost >= octaveThroughputEstimator.STALL_REFRESH_INTERVAL) {
+                mEstimator.update(now, mProgress, mTotal);
+            }
+            mLastRefresh = now;
+            refresh();
+        }
+    };
+
+    octaveProgressDisplay(Context context, Handler handler, ProgressBar pb,
+            TextView progressFraction, TextView progressPercent, TextView averageSpeed,
+            TextView timeRemaining, TextView progressExtracted) {
+        mContext = context;
+        mHandler = handler;
+        mPB = pb;
+        mProgressFraction = progressFraction;
+        mProgressPercent = progressPercent;
+        mAverageSpeed = averageSpeed;
+        mTimeRemaining = timeRemaining;
+        mProgressExtracted = progressExtracted;
+    }
+
+    /**
+     * Takes a progress report and schedules a refresh, unless one is
+     * already pending.
+     */
+    void post(DownloadProgressInfo progress) {
+        long now = SystemClock.uptimeMillis();
+        if (progress.mOverallTotal != mTotal) {
+            // another phase (download, verification, patching) started
+            mEstimator.reset();
+            mTotal = progress.mOverallTotal;
+        }
+        mEstimator.update(now, progress.mOverallProgress, progress.mOverallTotal);
+        mProgress = progress.mOverallProgress;
+        mLastPost = now;
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mRefresh, Math.max(0, mLastRefresh + REFRESH_INTERVAL - now));
+        }
+    }
+
+    /**
+     * Drops a pending refresh, e.g. when the activity goes away.
+     */
+    void cancel() {
+        mHandler.removeCallbacks(mRefresh);
+        mHandler.removeCallbacks(mStalled);
+        mScheduled = false;
+    }
+
+    private void refresh() {
+        long total = mTotal;
+        long progress = mProgress;
+
+        int max = (int) (total >> 8);
+        if (max != mShownMax) {
+            mPB.setMax(max);
+            mShownMax = max;
+        }
+        int position = (int) (progress >> 8);
+        if (position != mShownProgress) {
+            mPB.setProgress(position);
+            mShownProgress = position;
+        }
+        long percent = total > 0 ? progress * 100 / total : 0;
+        if (percent != mShownPercent) {
+            mProgressPercent.setText(Long.toString(percent) + "%");
+            mShownPercent = percent;
+        }
+        long fraction = progress / FRACTION_RESOLUTION;
+        if (fraction != mShownFraction || total != mShownFractionTotal) {
+            mProgressFraction.setText(Helpers.getDownloadProgressString(progress, total));
+            mShownFraction = fraction;
+            mShownFractionTotal = total;
+        }
+
+        float rate = mEstimator.getBytesPerMillisecond();
+        // Helpers shows kilobytes per second with two decimals
+        long speed = Math.round(rate * 1000 / 1024 * 100);
+        if (speed != mShownSpeed) {
+            mAverageSpeed.setText(mContext.getString(R.string.kilobytes_per_second,
+                    Helpers.getSpeedString(rate)));
+            mShownSpeed = speed;
+        }
+        long remaining = mEstimator.getTimeRemaining();
+        long seconds = remaining < 0 ? -1 : remaining / 1000;
+        if (seconds != mShownSeconds) {
+            mTimeRemaining.setText(mContext.getString(R.string.time_remaining,
+                    Helpers.getTimeRemaining(remaining)));
+            mShownSeconds = seconds;
+        }
+
+        if (octaveExtractionProgress.isActive()) {
+            long extracted = octaveExtractionProgress.getBytes();
+            int entries = octaveExtractionProgress.getEntries();
+            int secondary = (int) (extracted >> 8);
+            if (secondary != mShownSecondary) {
+                mPB.setSecondaryProgress(secondary);
+                mShownSecondary = secondary;
+            }
+            if (extracted / FRACTION_RESOLUTION != mShownExtracted || entries != mShownEntries) {
+                mProgressExtracted.setText(mContext.getString(R.string.text_extracted,
+                        Helpers.getDownloadProgressString(extracted, total), entries));
+                mShownExtracted = extracted / FRACTION_RESOLUTION;
+                mShownEntries = entries;
+            }
+            if (mProgressExtracted.getVisibility() != View.VISIBLE) {
+                mProgressExtracted.setVisibility(View.VISIBLE);
+            }
+        }
+
+        // pushed back by every refresh, so it only fires once callbacks stop
+        mHandler.removeCallbacks(mStalled);
+        if (total > 0 && progress < total) {
+            mHandler.postDelayed(mStalled, octaveThroughputEstimator.STALL_REFRESH_INTERVAL);
+        }
+    }
+}
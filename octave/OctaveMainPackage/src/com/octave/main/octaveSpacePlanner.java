@@ -0,0 +1,214 @@
+package com.octave.main;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.os.StatFs;
+
+/**
+ * Adds up what an install will take on disk, from the manifest or the pack
+ * index before a byte is written, and refuses it up front when the file
+ * system does not have that much room: failing on ENOSPC halfway through
+ * leaves a tree that is neither the old version nor the new one, and an
+ * ext4 data partition can as well run out of inodes for Octave's many
+ * small files while still showing free megabytes.
+ *
+ * Files are counted in whole blocks, plus an inode each; directories take
+ * a block and an inode, symlinks an inode. Files already present at the
+ * same paths are credited, since the install replaces them.
+ */
+public class octaveSpacePlanner {
+
+    /** Left free beyond what the install needs, for the rest of the system */
+    public static final long RESERVE_BYTES = 16 * 1024 * 1024;
+    public static final long RESERVE_INODES = 256;
+
+    private static final long DEFAULT_BLOCK_SIZE = 4096;
+
+    /**
+     * The file system holding the target has less room than the install
+     * needs.
+     */
+    public static class InsufficientSpaceException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long mNeededBytes;
+        private final long mAvailableBytes;
+
+        InsufficientSpaceException(String message, long neededBytes, long availableBytes) {
+            super(message);
+            mNeededBytes = neededBytes;
+            mAvailableBytes = availableBytes;
+        }
+
+        public long getNeededBytes() {
+            return mNeededBytes;
+        }
+
+        public long getAvailableBytes() {
+            return mAvailableBytes;
+        }
+    }
+
+    private final File mRoot;
+    private final long[] mAvailable;
+    private final long mBlockSize;
+    private long mBytes;
+    private long mInodes;
+    private int mUnknownSizes;
+
+    /**
+     * @param root where the install goes; it need not exist yet
+     */
+    public octaveSpacePlanner(File root) throws IOException {
+        mRoot = root;
+        mAvailable = available(root);
+        mBlockSize = mAvailable[2] > 0 ? mAvailable[2] : DEFAULT_BLOCK_SIZE;
+    }
+
+    /**
+     * Counts a file of size bytes to be written at path below the root.
+     */
+    public void addFile(String path, long size) {
+        if (size == octaveManifestIndex.UNKNOWN_SIZE) {
+            mUnknownSizes++;
+            mInodes++;
+            return;
+        }
+        long replaced = null == path ? 0 : new File(mRoot, path).length();
+        mBytes += blocks(size) - blocks(replaced);
+        if (0 == replaced) {
+            mInodes++;
+        }
+    }
+
+    public void addDirectory() {
+        mBytes += mBlockSize;
+        mInodes++;
+    }
+
+    public void addSymlink() {
+        mInodes++;
+    }
+
+    /**
+     * Counts bytes not tied to one file, e.g. the compressed size of a
+     * payload whose listing has no sizes.
+     */
+    public void addBytes(long bytes) {
+        mBytes += blocks(bytes);
+    }
+
+    /**
+     * Counts the entries of a manifest that filter accepts.
+     *
+     * @param filter null for all of them
+     */
+    public void addManifest(octaveManifestIndex index, octaveTarExtractor.Filter filter) {
+        for (int i = 0; i < index.size(); i++) {
+            String path = index.getPath(i);
+            if (null != filter && !filter.accept(path)) {
+                continue;
+            }
+            add(index.getType(i), path, index.getSize(i));
+        }
+    }
+
+    /**
+     * Counts the entries of a pack that filter accepts.
+     *
+     * @param filter null for all of them
+     */
+    public void addPack(octavePackReader pack, octavePackReader.Filter filter) {
+        for (octavePackReader.Entry e : pack.getEntries()) {
+            if (null != filter && !filter.accept(e)) {
+                continue;
+            }
+            add(e.type, e.name, e.size);
+        }
+    }
+
+    private void add(char type, String path, long size) {
+        switch (type) {
+            case octaveTarInputStream.TYPE_FILE:
+                addFile(path, size);
+                break;
+            case octaveTarInputStream.TYPE_DIRECTORY:
+                addDirectory();
+                break;
+            case octaveTarInputStream.TYPE_SYMLINK:
+                addSymlink();
+                break;
+            default:
+                // hard links share the inode and blocks of their target
+                break;
+        }
+    }
+
+    /**
+     * @return the bytes counted so far, in whole blocks
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public long getInodes() {
+        return mInodes;
+    }
+
+    /**
+     * @return how many files were counted without a size; getBytes() is
+     *         then a lower bound
+     */
+    public int getUnknownSizes() {
+        return mUnknownSizes;
+    }
+
+    /**
+     * @throws InsufficientSpaceException unless what was counted fits with
+     *             the reserve to spare; nothing is thrown where the free
+     *             space cannot be queried
+     */
+    public void check() throws InsufficientSpaceException {
+        long bytes = mAvailable[0];
+        if (bytes >= 0 && mBytes + RESERVE_BYTES > bytes) {
+            throw new InsufficientSpaceException("need " + mBytes + " bytes on " + mRoot
+                    + " but only " + bytes + " are free", mBytes, bytes);
+        }
+        long inodes = mAvailable[1];
+        if (inodes >= 0 && mInodes + RESERVE_INODES > inodes) {
+            throw new InsufficientSpaceException("need " + mInodes + " inodes on " + mRoot
+                    + " but only " + inodes + " are free", mBytes, bytes);
+        }
+    }
+
+    private long blocks(long size) {
+        return (size + mBlockSize - 1) / mBlockSize * mBlockSize;
+    }
+
+    /**
+     * @return the free bytes and inodes of the file system holding file,
+     *         and its block size; -1 where unknown
+     */
+    public static long[] available(File file) throws IOException {
+        File existing = file.getAbsoluteFile();
+        while (null != existing && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        if (null == existing) {
+            return new long[] {
+                    -1, -1, -1
+            };
+        }
+        long[] stat = octavePosix.statvfs(existing.getPath());
+        if (null != stat) {
+            return stat;
+        }
+        // before android.system.Os; StatFs knows nothing of inodes
+        StatFs statFs = new StatFs(existing.getPath());
+        long blockSize = statFs.getBlockSize();
+        return new long[] {
+                statFs.getAvailableBlocks() * blockSize, -1, blockSize
+        };
+    }
+}
@@ -0,0 +1,228 @@
+package com.octave.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Unpacks a tar stream into a directory, creating each entry as soon as its
+ * data has been read. Regular files, directories, symlinks and hard links
+ * are supported, which covers everything linkify and dpkg put into our
+ * payloads; device nodes and fifos are skipped.
+ *
+ * File data goes through an octaveWriteBehind, so the decoder does not
+ * wait for the storage and the files are synced together at the end
+ * rather than one by one.
+ */
+public class octaveTarExtractor {
+
+    /**
+     * Called after every entry from the extracting thread.
+     */
+    public interface ProgressListener {
+        void onEntryExtracted(String name, long archiveBytes, int entries);
+    }
+
+    /**
+     * Decides which entries are created; the data of the others is skipped
+     * without being written.
+     */
+    public interface Filter {
+        /**
+         * @param name the normalized entry name
+         */
+        boolean accept(String name);
+    }
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final File mRoot;
+    /** canonical path of mRoot with a trailing separator */
+    private String mCanonicalRoot;
+    /** the last parent directory found to be inside mRoot */
+    private File mCheckedParent;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private ProgressListener mListener;
+    private Filter mFilter;
+    private int mEntries;
+    private boolean mDurable = true;
+    private octaveWriteBehind mWriter;
+    private octaveCancelToken mToken = octaveCancelToken.NONE;
+
+    public octaveTarExtractor(File root) {
+        mRoot = root;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param filter null to extract everything
+     */
+    public void setFilter(Filter filter) {
+        mFilter = filter;
+    }
+
+    /**
+     * @param durable false to leave syncing the files to the kernel, e.g.
+     *            for scratch trees
+     */
+    public void setDurable(boolean durable) {
+        mDurable = durable;
+    }
+
+    public int getEntryCount() {
+        return mEntries;
+    }
+
+    /**
+     * Extracts every entry of the (already decompressed) tar stream. The
+     * stream is not closed. When this returns every file is written and,
+     * unless setDurable(false) was called, synced. It stops with an
+     * InterruptedIOException once the octaveCancelToken current on the
+     * calling thread is cancelled.
+     */
+    public void extract(InputStream tarStream) throws IOException {
+        octaveTarInputStream tar = new octaveTarInputStream(tarStream);
+        if (!mRoot.isDirectory() && !mRoot.mkdirs()) {
+            throw new IOException("unable to create " + mRoot);
+        }
+        mCanonicalRoot = mRoot.getCanonicalPath() + File.separator;
+        mCheckedParent = null;
+        mToken = octaveCancelToken.current();
+        mWriter = new octaveWriteBehind("octaveTarWriter", mDurable);
+        try {
+            extractEntries(tar);
+            mWriter.close();
+        } finally {
+            octaveSegmentedDownloader.closeQuietly(mWriter);
+            mWriter = null;
+        }
+    }
+
+    private void extractEntries(octaveTarInputStream tar) throws IOException {
+        octaveTarInputStream.Entry entry;
+        while (null != (entry = tar.getNextEntry())) {
+            mToken.check();
+            String name = octaveTarInputStream.normalizeName(entry.name);
+            if (null == name) {
+                throw new IOException("refusing to extract " + entry.name);
+            }
+            if (name.length() > 0 && (null == mFilter || mFilter.accept(name))) {
+                extractEntry(tar, entry, name);
+            }
+            mEntries++;
+            if (null != mListener) {
+                mListener.onEntryExtracted(name, tar.getPosition(), mEntries);
+            }
+        }
+    }
+
+    private void extractEntry(octaveTarInputStream tar, octaveTarInputStream.Entry entry,
+            String name) throws IOException {
+        File target = new File(mRoot, name);
+        checkInside(target);
+        switch (entry.type) {
+            case octaveTarInputStream.TYPE_DIRECTORY:
+                if (!target.isDirectory() && !target.mkdirs()) {
+                    throw new IOException("unable to create " + target);
+                }
+                break;
+            case octaveTarInputStream.TYPE_FILE:
+                prepareParent(target);
+                writeFile(tar, target, entry.size);
+                octaveInstallMetrics.add(octaveInstallMetrics.COUNTER_FILES, 1);
+                // only the exec bits matter to us, everything else is the app's own uid
+                if ((entry.mode & 0111) != 0) {
+                    octavePosix.chmod(target.getPath(), entry.mode & 0777);
+                }
+                break;
+            case octaveTarInputStream.TYPE_SYMLINK:
+                prepareParent(target);
+                octavePosix.symlink(entry.linkName, target.getPath());
+                // the new link may stand where a checked directory was
+                mCheckedParent = null;
+                break;
+            case octaveTarInputStream.TYPE_HARDLINK:
+                String linkName = octaveTarInputStream.normalizeName(entry.linkName);
+                if (null == linkName) {
+                    throw new IOException("refusing to link to " + entry.linkName);
+                }
+                File source = new File(mRoot, linkName);
+                checkInside(source);
+                prepareParent(target);
+                octavePosix.link(source.getPath(), target.getPath());
+                break;
+            default:
+                // device nodes, fifos: nothing we can or need to create
+                break;
+        }
+    }
+
+    /**
+     * Refuses a target whose directory resolves outside mRoot, which a
+     * symlink created by an earlier entry would otherwise make possible.
+     * The nearest existing ancestor is resolved, and the first missing
+     * directory below it must not be a dangling symlink, so mkdirs() does
+     * not create anything through such a link either.
+     */
+    private void checkInside(File target) throws IOException {
+        File parent = target.getParentFile();
+        if (null == parent || parent.equals(mCheckedParent)) {
+            return;
+        }
+        File existing = parent;
+        File missing = null;
+        while (null != existing && !existing.exists()) {
+            missing = existing;
+            existing = existing.getParentFile();
+        }
+        String canonical = null == existing ? "" : existing.getCanonicalPath()
+                + File.separator;
+        if (!canonical.startsWith(mCanonicalRoot)
+                || (null != missing && isSymlink(missing))) {
+            throw new IOException("refusing to extract " + target + " outside " + mRoot);
+        }
+        if (existing == parent) {
+            mCheckedParent = parent;
+        }
+    }
+
+    private static boolean isSymlink(File f) {
+        try {
+            return null != octavePosix.readlink(f.getPath());
+        } catch (IOException e) {
+            // not a link at all
+            return false;
+        }
+    }
+
+    /**
+     * Makes sure the parent exists and nothing is in the way of the new
+     * entry; tar semantics are that a later member replaces an earlier one.
+     * An unconditional unlink is cheaper than stat'ing first and also catches
+     * dangling symlinks, which File.exists() does not see.
+     */
+    static void prepareParent(File target) throws IOException {
+        File parent = target.getParentFile();
+        if (null != parent && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("unable to create " + parent);
+        }
+        target.delete();
+    }
+
+    private void writeFile(InputStream in, File target, long size) throws IOException {
+        OutputStream out = mWriter.open(target, size);
+        try {
+            int n;
+            while ((n = in.read(mBuffer)) != -1) {
+                mToken.check();
+                out.write(mBuffer, 0, n);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package com.octave.main;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Minimal streaming tar reader for the archives we ship: ustar entries as
+ * written by GNU tar, including the GNU long name/long link records and pax
+ * path/linkpath/size overrides. Call getNextEntry() and then read the
+ * entry's data from this stream until it returns -1.
+ */
+public class octaveTarInputStream extends FilterInputStream {
+
+    public static final int BLOCK_SIZE = 512;
+
+    public static final char TYPE_FILE = '0';
+    public static final char TYPE_HARDLINK = '1';
+    public static final char TYPE_SYMLINK = '2';
+    public static final char TYPE_DIRECTORY = '5';
+    public static final char TYPE_OTHER = '?';
+
+    private static final char TYPE_OLD_FILE = '\0';
+    private static final char TYPE_CONTIGUOUS = '7';
+    private static final char TYPE_GNU_LONGNAME = 'L';
+    private static final char TYPE_GNU_LONGLINK = 'K';
+    private static final char TYPE_PAX = 'x';
+    private static final char TYPE_PAX_GLOBAL = 'g';
+
+    /** Largest long name or pax header block we read into memory */
+    private static final int MAX_HEADER_DATA = 1024 * 1024;
+
+    /**
+     * One archive member. Names are returned exactly as stored (usually with
+     * a leading "./"); see normalizeName().
+     */
+    public static class Entry {
+        public String name;
+        public String linkName;
+        public char type;
+        public int mode;
+        public long size;
+        public long mtime;
+
+        public boolean isDirectory() {
+            return type == TYPE_DIRECTORY;
+        }
+
+        public boolean isFile() {
+            return type == TYPE_FILE;
+        }
+
+        public boolean isSymlink() {
+            return type == TYPE_SYMLINK;
+        }
+
+        public boolean isHardlink() {
+            return type == TYPE_HARDLINK;
+        }
+    }
+
+    private final byte[] mHeader = new byte[BLOCK_SIZE];
+    private long mRemaining;
+    private long mPadding;
+    private long mPosition;
+    private boolean mEnd;
+
+    public octaveTarInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * @return the number of archive bytes consumed so far
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Skips whatever is left of the current entry and reads the next header.
+     *
+     * @return the next entry, or null at the end of the archive
+     */
+    public Entry getNextEntry() throws IOException {
+        if (mEnd) {
+            return null;
+        }
+        skipFully(mRemaining + mPadding);
+        mRemaining = 0;
+        mPadding = 0;
+
+        String longName = null;
+        String longLink = null;
+        long paxSize = -1;
+        while (true) {
+            if (!readBlock(mHeader)) {
+                mEnd = true;
+                return null;
+            }
+            if (isZeroBlock(mHeader)) {
+                mEnd = true;
+                return null;
+            }
+            char type = (char) mHeader[156];
+            long size = parseNumber(mHeader, 124, 12);
+            if (type == TYPE_GNU_LONGNAME || type == TYPE_GNU_LONGLINK) {
+                byte[] data = readData(size);
+                String value = cString(data, 0, data.length);
+                if (type == TYPE_GNU_LONGNAME) {
+                    longName = value;
+                } else {
+                    longLink = value;
+                }
+                continue;
+            }
+            if (type == TYPE_PAX || type == TYPE_PAX_GLOBAL) {
+                byte[] records = readData(size);
+                if (type == TYPE_PAX) {
+                    String path = paxValue(records, "path");
+                    String linkPath = paxValue(records, "linkpath");
+                    String paxLength = paxValue(records, "size");
+                    if (null != path) {
+                        longName = path;
+                    }
+                    if (null != linkPath) {
+                        longLink = linkPath;
+                    }
+                    if (null != paxLength) {
+                        try {
+                            paxSize = Long.parseLong(paxLength);
+                        } catch (NumberFormatException e) {
+                            throw new IOException("bad pax size: " + paxLength);
+                        }
+                        if (paxSize < 0) {
+                            throw new IOException("bad pax size: " + paxLength);
+                        }
+                    }
+                }
+                continue;
+            }
+
+            Entry entry = new Entry();
+            entry.name = null != longName ? longName : headerName(mHeader);
+            entry.linkName = null != longLink ? longLink : cString(mHeader, 157, 100);
+            entry.mode = (int) parseNumber(mHeader, 100, 8);
+            entry.size = paxSize >= 0 ? paxSize : size;
+            entry.mtime = parseNumber(mHeader, 136, 12);
+            switch (type) {
+                case TYPE_OLD_FILE:
+                case TYPE_CONTIGUOUS:
+                case TYPE_FILE:
+                    entry.type = entry.name.endsWith("/") ? TYPE_DIRECTORY : TYPE_FILE;
+                    break;
+                case TYPE_HARDLINK:
+                case TYPE_SYMLINK:
+                case TYPE_DIRECTORY:
+                    entry.type = type;
+                    break;
+                default:
+                    entry.type = TYPE_OTHER;
+            }
+            // only regular files carry data; a hard link's size is informational
+            if (entry.type == TYPE_HARDLINK || entry.type == TYPE_SYMLINK
+                    || entry.type == TYPE_DIRECTORY) {
+                entry.size = 0;
+            }
+            mRemaining = entry.size;
+            mPadding = padding(entry.size);
+            return entry;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mRemaining <= 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("truncated tar entry");
+        }
+        mRemaining--;
+        mPosition++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (mRemaining <= 0) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, mRemaining));
+        if (n < 0) {
+            throw new EOFException("truncated tar entry");
+        }
+        mRemaining -= n;
+        mPosition += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.min(n, mRemaining);
+        skipFully(skipped);
+        mRemaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), mRemaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    static long padding(long size) {
+        long rem = size % BLOCK_SIZE;
+        return rem == 0 ? 0 : BLOCK_SIZE - rem;
+    }
+
+    /**
+     * Strips the leading "./" or "/" GNU tar leaves on member names and the
+     * trailing slash of directories. Returns null for names that would
+     * escape the extraction root.
+     */
+    public static String normalizeName(String name) {
+        while (name.startsWith("./")) {
+            name = name.substring(2);
+        }
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        while (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if (name.equals("..") || name.startsWith("../") || name.endsWith("/..")
+                || name.indexOf("/../") >= 0) {
+            return null;
+        }
+        return name.equals(".") ? "" : name;
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+        int off = 0;
+        while (off < block.length) {
+            int n = in.read(block, off, block.length - off);
+            if (n < 0) {
+                if (off == 0) {
+                    return false;
+                }
+                throw new EOFException("truncated tar header");
+            }
+            off += n;
+        }
+        mPosition += block.length;
+        return true;
+    }
+
+    /**
+     * Reads the data of a header record, e.g. a GNU long name.
+     */
+    private byte[] readData(long size) throws IOException {
+        if (size < 0 || size > MAX_HEADER_DATA) {
+            throw new IOException("tar header data of " + size + " bytes");
+        }
+        byte[] data = new byte[(int) size];
+        int off = 0;
+        while (off < data.length) {
+            int n = in.read(data, off, data.length - off);
+            if (n < 0) {
+                throw new EOFException("truncated tar header");
+            }
+            off += n;
+        }
+        mPosition += size;
+        skipFully(padding(size));
+        return data;
+    }
+
+    private void skipFully(long n) throws IOException {
+        byte[] scratch = null;
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                // some streams (GZIPInputStream at EOF) report 0, fall back to reading
+                if (null == scratch) {
+                    scratch = new byte[BLOCK_SIZE * 8];
+                }
+                int r = in.read(scratch, 0, (int) Math.min(scratch.length, n));
+                if (r < 0) {
+                    throw new EOFException("truncated tar archive");
+                }
+                skipped = r;
+            }
+            n -= skipped;
+            mPosition += skipped;
+        }
+    }
+
+    private static String headerName(byte[] header) {
+        String name = cString(header, 0, 100);
+        // POSIX ustar splits long names into prefix + name; GNU tar uses the
+        // same area for other things, so only trust it with the POSIX magic
+        if (header[257] == 'u' && header[262] == 0 && header[345] != 0) {
+            name = cString(header, 345, 155) + "/" + name;
+        }
+        return name;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String cString(byte[] buf, int off, int len) {
+        int end = off;
+        while (end < off + len && buf[end] != 0) {
+            end++;
+        }
+        try {
+            return new String(buf, off, end - off, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parses an octal field, or a GNU base-256 one if the high bit is set.
+     */
+    static long parseNumber(byte[] buf, int off, int len) {
+        if ((buf[off] & 0x80) != 0) {
+            long value = buf[off] & 0x7f;
+            for (int i = 1; i < len; i++) {
+                value = (value << 8) | (buf[off + i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        int end = off + len;
+        int i = off;
+        while (i < end && (buf[i] == ' ' || buf[i] == 0)) {
+            i++;
+        }
+        for (; i < end; i++) {
+            byte b = buf[i];
+            if (b < '0' || b > '7') {
+                break;
+            }
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Pulls one key out of a block of pax "len key=value\n" records. The
+     * length counts bytes, and values are UTF-8, so the records are sliced
+     * as bytes and only the value is decoded.
+     */
+    private static String paxValue(byte[] records, String key) {
+        byte[] k;
+        try {
+            k = key.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        int pos = 0;
+        while (pos < records.length) {
+            int len = 0;
+            int i = pos;
+            while (i < records.length && records[i] >= '0' && records[i] <= '9') {
+                len = len * 10 + (records[i] - '0');
+                i++;
+            }
+            if (i == pos || i >= records.length || records[i] != ' ' || len <= 0
+                    || pos + len > records.length) {
+                break;
+            }
+            int start = i + 1;
+            int end = pos + len;
+            if (records[end - 1] == '\n') {
+                end--;
+            }
+            int eq = start + k.length;
+            if (eq < end && records[eq] == '=' && startsWith(records, start, k)) {
+                try {
+                    return new String(records, eq + 1, end - eq - 1, "UTF-8");
+                } catch (java.io.UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            pos += len;
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] buf, int off, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[off + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,262 @@
+package com.octave.main;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where verification, patching and unpacking run: a fixed number of
+ * threads owned by the process rather than by an activity, so work goes
+ * on when the activity that started it is recreated or gone. Waiting
+ * tasks run by priority, then in the order submitted.
+ *
+ * Every task has an octaveCancelToken, current on its thread while it runs
+ * (see octaveCancelToken.current()), and reports progress and its end
+ * through an octaveProgressChannel, so a UI gets one coalesced stream of
+ * updates however fast the tasks report.
+ *
+ * Nothing here needs Android, so the pool can be exercised on a plain JVM
+ * (see octaveWorkerHarness in bulidScripts).
+ */
+public class octaveWorkerPool {
+
+    /** The user is looking at a progress bar for it */
+    public static final int PRIORITY_FOREGROUND = 0;
+    /** Unpacking an add-on */
+    public static final int PRIORITY_INSTALL = 1;
+    /** Nobody is waiting for it */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int MIN_THREADS = 2;
+
+    private static octaveWorkerPool sPool;
+
+    /**
+     * The work of a task. It should call task.progress() as it goes, and
+     * check the task's token, or leave that to the loops it calls.
+     */
+    public interface Work<T> {
+        T run(Task<T> task) throws Exception;
+    }
+
+    /**
+     * Called through the task's channel, if it has one, otherwise on the
+     * worker thread.
+     */
+    public interface Listener<T> {
+        void onProgress(Task<T> task, long done, long total);
+
+        /**
+         * The task has ended: see getResult(), getError() and isCancelled().
+         */
+        void onFinished(Task<T> task);
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * A submitted piece of work.
+     */
+    public class Task<T> implements Runnable, Comparable<Task<?>> {
+        private final int mPriority;
+        private final long mSequence;
+        private final Work<T> mWork;
+        private final octaveProgressChannel mChannel;
+        private final Listener<T> mListener;
+        private final octaveCancelToken mToken = new octaveCancelToken();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private boolean mStarted;
+        private boolean mFinished;
+        private volatile T mResult;
+        private volatile Exception mError;
+
+        Task(int priority, Work<T> work, octaveProgressChannel channel, Listener<T> listener) {
+            mPriority = priority;
+            mSequence = octaveWorkerPool.this.mSequence.getAndIncrement();
+            mWork = work;
+            mChannel = channel;
+            mListener = listener;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public octaveCancelToken getToken() {
+            return mToken;
+        }
+
+        public boolean isCancelled() {
+            return mToken.isCancelled();
+        }
+
+        /**
+         * @return what the work returned, null until it has
+         */
+        public T getResult() {
+            return mResult;
+        }
+
+        /**
+         * @return what the work threw, or null
+         */
+        public Exception getError() {
+            return mError;
+        }
+
+        /**
+         * Reports progress; updates not yet delivered are replaced.
+         */
+        public void progress(final long done, final long total) {
+            if (null == mListener) {
+                return;
+            }
+            if (null == mChannel) {
+                mListener.onProgress(this, done, total);
+                return;
+            }
+            mChannel.post(this, new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onProgress(Task.this, done, total);
+                }
+            });
+        }
+
+        /**
+         * Cancels the task: a waiting one never runs, a running one stops
+         * at the next check of its token. onFinished() is still called.
+         */
+        public void cancel() {
+            mToken.cancel();
+            if (mExecutor.remove(this)) {
+                finish();
+            }
+        }
+
+        /**
+         * Waits for the task to end.
+         */
+        public void await() throws InterruptedException {
+            mDone.await();
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mStarted) {
+                    return;
+                }
+                mStarted = true;
+            }
+            if (!mToken.isCancelled()) {
+                octaveCancelToken previous = octaveCancelToken.setCurrent(mToken);
+                try {
+                    mResult = mWork.run(this);
+                } catch (Exception e) {
+                    mError = e;
+                } finally {
+                    octaveCancelToken.setCurrent(previous);
+                }
+            }
+            finish();
+        }
+
+        private void finish() {
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+                mStarted = true;
+            }
+            try {
+                if (null == mListener) {
+                    return;
+                }
+                if (null == mChannel) {
+                    mListener.onFinished(this);
+                    return;
+                }
+                mChannel.post(null, new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onFinished(Task.this);
+                    }
+                });
+            } finally {
+                // so the result is on its way by the time await() returns
+                mDone.countDown();
+            }
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : mSequence == other.mSequence ? 0 : 1;
+        }
+    }
+
+    /**
+     * @param threads how many tasks run at once
+     */
+    public octaveWorkerPool(final String name, int threads) {
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name + "-" + ++mCount);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * @return the pool of the process, with a thread per core
+     */
+    public static synchronized octaveWorkerPool get() {
+        if (null == sPool) {
+            sPool = new octaveWorkerPool("octaveWorker",
+                    Math.max(MIN_THREADS, Runtime.getRuntime().availableProcessors()));
+        }
+        return sPool;
+    }
+
+    /**
+     * Queues work.
+     *
+     * @param channel where the listener is called, or null for the worker
+     *            thread
+     * @param listener may be null
+     */
+    public <T> Task<T> submit(int priority, Work<T> work, octaveProgressChannel channel,
+            Listener<T> listener) {
+        Task<T> task = new Task<T>(priority, work, channel, listener);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * @return how many tasks run at once
+     */
+    public int getThreads() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Stops the threads once the queued tasks are done; for pools other
+     * than the one from get().
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+}
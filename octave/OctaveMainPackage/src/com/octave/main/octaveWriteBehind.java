@@ -0,0 +1,393 @@
+package com.octave.main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Moves file writes off the thread producing the data. Callers write into
+ * sinks, which collect the bytes in direct buffers of DEFAULT_BUFFER_SIZE
+ * and hand each full buffer to one writer thread as a single positional
+ * write, so the storage sees a few large writes instead of one per read of
+ * the network or the decoder. Each writer may have a fixed number of
+ * buffers in flight; a caller that gets that far ahead waits for the
+ * storage to catch up rather than queueing more. The buffers come from a
+ * pool shared by all writers, since direct buffers are slow to allocate
+ * and slow to be collected.
+ *
+ * A durable writer syncs the files it wrote at checkpoints, all together,
+ * instead of one at a time as each is closed; a checkpoint is also taken
+ * whenever MAX_UNSYNCED_FILES are waiting for one, to bound the open
+ * descriptors.
+ *
+ * A failed write fails every later call on the writer with the same error.
+ */
+public class octaveWriteBehind implements Closeable {
+
+    /** Runs on the writer thread once what was written before it is in the file. */
+    public interface Action {
+        void run() throws IOException;
+    }
+
+    public static final int DEFAULT_BUFFERS = 8;
+    public static final int DEFAULT_BUFFER_SIZE = 128 * 1024;
+
+    private static final int MAX_UNSYNCED_FILES = 64;
+    /** pooled buffers of each size kept beyond what the writers hold */
+    private static final int MAX_POOLED = 16;
+
+    /** free buffers by capacity, guarded by itself */
+    private static final Map<Integer, LinkedList<ByteBuffer>> sPools =
+            new HashMap<Integer, LinkedList<ByteBuffer>>();
+
+    private final int mBufferSize;
+    private final boolean mDurable;
+    private final Semaphore mFree;
+    private final LinkedBlockingQueue<Op> mQueue = new LinkedBlockingQueue<Op>();
+    private final Thread mThread;
+    private volatile IOException mError;
+    /** the session of the thread that made the writer */
+    private final octaveInstallMetrics mMetrics = octaveInstallMetrics.get();
+    private boolean mClosed;
+
+    // writer thread only
+    private final List<FileChannel> mUnsynced = new ArrayList<FileChannel>();
+
+    /**
+     * One queued piece of work: a buffer to write, an action, a channel to
+     * close or sync, or the end of a checkpoint.
+     */
+    private static class Op {
+        FileChannel mChannel;
+        long mPosition;
+        ByteBuffer mBuffer;
+        Action mAction;
+        boolean mClose;
+        Semaphore mDone;
+        boolean mStop;
+    }
+
+    /**
+     * @param durable whether checkpoints sync the files written
+     */
+    public octaveWriteBehind(String name, int buffers, int bufferSize, boolean durable) {
+        mBufferSize = bufferSize;
+        mDurable = durable;
+        mFree = new Semaphore(Math.max(1, buffers));
+        mThread = new Thread(name) {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public octaveWriteBehind(String name, boolean durable) {
+        this(name, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE, durable);
+    }
+
+    /**
+     * Creates (or truncates) a file and returns a sink that writes it from
+     * the start and closes it once written.
+     */
+    public Sink open(File target) throws IOException {
+        return open(target, 0);
+    }
+
+    /**
+     * Like open() above, for a file that will be length bytes long; see
+     * octavePosix.preallocate().
+     */
+    public Sink open(File target, long length) throws IOException {
+        checkError();
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            octavePosix.preallocate(out.getFD(), length);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+        return new Sink(out.getChannel(), 0, true);
+    }
+
+    /**
+     * @return a sink that writes channel from position on and leaves it
+     *         open; several sinks may write one channel at different places
+     */
+    public Sink open(FileChannel channel, long position) throws IOException {
+        checkError();
+        return new Sink(channel, position, false);
+    }
+
+    /**
+     * Waits until everything queued so far is written and, for a durable
+     * writer, synced.
+     */
+    public void checkpoint() throws IOException {
+        checkError();
+        Op op = new Op();
+        op.mDone = new Semaphore(0);
+        enqueue(op);
+        try {
+            op.mDone.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted");
+        }
+        checkError();
+    }
+
+    /**
+     * Takes a checkpoint and stops the writer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        try {
+            checkpoint();
+        } finally {
+            Op stop = new Op();
+            stop.mStop = true;
+            enqueue(stop);
+        }
+    }
+
+    /**
+     * @return true once a write has failed; nothing more will be written
+     */
+    public boolean hasFailed() {
+        return null != mError;
+    }
+
+    private void checkError() throws IOException {
+        IOException e = mError;
+        if (null != e) {
+            IOException wrapped = new IOException("write failed: " + e.getMessage());
+            wrapped.initCause(e);
+            throw wrapped;
+        }
+    }
+
+    private void enqueue(Op op) {
+        mQueue.add(op);
+    }
+
+    private ByteBuffer acquire() throws IOException {
+        try {
+            mFree.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted");
+        }
+        ByteBuffer buffer = null;
+        synchronized (sPools) {
+            LinkedList<ByteBuffer> pool = sPools.get(mBufferSize);
+            if (null != pool) {
+                buffer = pool.poll();
+            }
+        }
+        if (null == buffer) {
+            buffer = ByteBuffer.allocateDirect(mBufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void release(ByteBuffer buffer) {
+        synchronized (sPools) {
+            LinkedList<ByteBuffer> pool = sPools.get(buffer.capacity());
+            if (null == pool) {
+                pool = new LinkedList<ByteBuffer>();
+                sPools.put(buffer.capacity(), pool);
+            }
+            if (pool.size() < MAX_POOLED) {
+                pool.add(buffer);
+            }
+        }
+        mFree.release();
+    }
+
+    private void drain() {
+        while (true) {
+            Op op;
+            try {
+                op = mQueue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (op.mStop) {
+                closeAll();
+                return;
+            }
+            try {
+                if (null == mError) {
+                    perform(op);
+                }
+            } catch (IOException e) {
+                mError = e;
+            } finally {
+                if (null != op.mBuffer) {
+                    release(op.mBuffer);
+                }
+                if (op.mClose && (null != mError || !mDurable)) {
+                    octaveSegmentedDownloader.closeQuietly(op.mChannel);
+                }
+                if (null != op.mDone) {
+                    op.mDone.release();
+                }
+            }
+        }
+    }
+
+    private void perform(Op op) throws IOException {
+        if (null != op.mBuffer) {
+            ByteBuffer buffer = op.mBuffer;
+            long position = op.mPosition;
+            while (buffer.hasRemaining()) {
+                position += op.mChannel.write(buffer, position);
+            }
+        }
+        if (null != op.mAction) {
+            op.mAction.run();
+        }
+        if (op.mClose && mDurable) {
+            mUnsynced.add(op.mChannel);
+            if (mUnsynced.size() >= MAX_UNSYNCED_FILES) {
+                sync();
+            }
+        }
+        if (null != op.mDone) {
+            sync();
+        }
+    }
+
+    private void sync() throws IOException {
+        try {
+            for (FileChannel channel : mUnsynced) {
+                channel.force(true);
+                mMetrics.count(octaveInstallMetrics.COUNTER_FSYNCS, 1);
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void closeAll() {
+        for (FileChannel channel : mUnsynced) {
+            octaveSegmentedDownloader.closeQuietly(channel);
+        }
+        mUnsynced.clear();
+    }
+
+    /**
+     * Sequential writes to one place in one file. Not thread safe; one sink
+     * belongs to one producer.
+     */
+    public class Sink extends OutputStream {
+        private final FileChannel mChannel;
+        private final boolean mOwned;
+        private long mPosition;
+        private ByteBuffer mBuffer;
+        private boolean mSinkClosed;
+
+        Sink(FileChannel channel, long position, boolean owned) {
+            mChannel = channel;
+            mPosition = position;
+            mOwned = owned;
+        }
+
+        /**
+         * @return where the next byte written will go
+         */
+        public long getPosition() {
+            return mPosition + (null == mBuffer ? 0 : mBuffer.position());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {
+                    (byte) b
+            }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (null == mBuffer) {
+                    checkError();
+                    mBuffer = acquire();
+                }
+                int n = Math.min(len, mBuffer.remaining());
+                mBuffer.put(b, off, n);
+                off += n;
+                len -= n;
+                if (!mBuffer.hasRemaining()) {
+                    submit(null, false);
+                }
+            }
+        }
+
+        /**
+         * Queues what is buffered; an action given runs once it and
+         * everything before it is in the file.
+         */
+        public void then(Action action) throws IOException {
+            submit(action, false);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            submit(null, false);
+        }
+
+        /**
+         * Queues what is buffered. The file is closed by the writer; the
+         * data may not be in it yet when this returns.
+         */
+        @Override
+        public void close() throws IOException {
+            if (mSinkClosed) {
+                return;
+            }
+            mSinkClosed = true;
+            submit(null, mOwned);
+        }
+
+        private void submit(Action action, boolean close) throws IOException {
+            if (null == mBuffer && null == action && !close) {
+                return;
+            }
+            Op op = new Op();
+            op.mChannel = mChannel;
+            op.mPosition = mPosition;
+            if (null != mBuffer) {
+                mBuffer.flip();
+                mPosition += mBuffer.remaining();
+                op.mBuffer = mBuffer;
+                mBuffer = null;
+            }
+            op.mAction = action;
+            op.mClose = close;
+            enqueue(op);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.octave.main.x86;
+
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Works out which of the ABIs we build for the running device wants.
+ * Every ABI the device can run is considered in the order it prefers them:
+ * Build.SUPPORTED_ABIS where it exists (API 21+), otherwise CPU_ABI and
+ * CPU_ABI2 (API 8+). armeabi-v7a devices use the armeabi build, and x86
+ * devices that can also translate ARM code still get the x86 one, since
+ * they list it first.
+ */
+public final class octaveAbi {
+
+    public static final String ARMEABI = "armeabi";
+    public static final String X86 = "x86";
+
+    private static String sAbi;
+    private static boolean sDetected;
+
+    private octaveAbi() {
+    }
+
+    /**
+     * @return ARMEABI or X86, or null if the device can run neither
+     */
+    public static synchronized String get() {
+        if (!sDetected) {
+            sAbi = detect(getDeviceAbis());
+            sDetected = true;
+        }
+        return sAbi;
+    }
+
+    /**
+     * @param deviceAbis the device's ABIs, most preferred first
+     * @return the build to use for them, or null if there is none
+     */
+    static String detect(List<String> deviceAbis) {
+        for (String abi : deviceAbis) {
+            if (abi.startsWith(ARMEABI)) {
+                return ARMEABI;
+            }
+            if (abi.equals(X86)) {
+                return X86;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the name of the variant of an asset for this device's ABI,
+     *         e.g. exec-x86.mp3 for exec.mp3, or null if there is no ABI
+     */
+    public static String variant(String assetName) {
+        String abi = get();
+        if (null == abi) {
+            return null;
+        }
+        int dot = assetName.lastIndexOf('.');
+        return dot < 0 ? assetName + "-" + abi
+                : assetName.substring(0, dot) + "-" + abi + assetName.substring(dot);
+    }
+
+    private static List<String> getDeviceAbis() {
+        List<String> abis = new ArrayList<String>();
+        try {
+            String[] supported = (String[]) Build.class.getField("SUPPORTED_ABIS").get(null);
+            for (String abi : supported) {
+                abis.add(abi);
+            }
+        } catch (Exception e) {
+            abis.add(Build.CPU_ABI);
+            try {
+                String abi2 = (String) Build.class.getField("CPU_ABI2").get(null);
+                if (null != abi2 && abi2.length() > 0) {
+                    abis.add(abi2);
+                }
+            } catch (Exception e2) {
+                // before API 8 there is only one
+            }
+        }
+        return abis;
+    }
+}
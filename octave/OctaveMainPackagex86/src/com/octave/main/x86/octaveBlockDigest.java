@@ -0,0 +1,171 @@
+package com.octave.main.x86;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 digest of an expansion file that can be computed while the file
+ * is written out of order. The file is hashed in fixed BLOCK_SIZE blocks and
+ * the digest of the file is the SHA-256 of the concatenated block hashes,
+ * so every download connection can hash its own chunks as they arrive and
+ * nothing has to be read back from storage afterwards.
+ *
+ * digestFile() computes the same value from a finished file, which is how
+ * the expected digests in octaveDownloaderActivity are produced and how
+ * files that arrived some other way get checked once.
+ */
+public class octaveBlockDigest {
+
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final long mTotalBytes;
+    private final byte[][] mBlockHashes;
+
+    public octaveBlockDigest(long totalBytes) {
+        mTotalBytes = totalBytes;
+        mBlockHashes = new byte[blockCount(totalBytes)][];
+    }
+
+    public static int blockCount(long totalBytes) {
+        return (int) ((totalBytes + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Starts hashing at the given position, which must be the first byte of
+     * a block. The cursor must then be fed every following byte in order.
+     */
+    public Cursor cursor(long position) {
+        if (position % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("cursor must start on a block boundary");
+        }
+        return new Cursor(position);
+    }
+
+    /**
+     * Hashes a sequential run of bytes, finishing a block hash each time a
+     * block boundary or the end of the file is crossed. One cursor must only
+     * be used by one thread.
+     */
+    public class Cursor {
+        private final MessageDigest mDigest = newSha256();
+        private long mPosition;
+
+        Cursor(long position) {
+            mPosition = position;
+        }
+
+        public long getPosition() {
+            return mPosition;
+        }
+
+        public void update(byte[] b, int off, int len) {
+            while (len > 0) {
+                long blockEnd = Math.min((mPosition / BLOCK_SIZE + 1) * BLOCK_SIZE, mTotalBytes);
+                int n = (int) Math.min(len, blockEnd - mPosition);
+                mDigest.update(b, off, n);
+                mPosition += n;
+                off += n;
+                len -= n;
+                if (mPosition == blockEnd) {
+                    setBlockHash((int) ((mPosition - 1) / BLOCK_SIZE), mDigest.digest());
+                }
+            }
+        }
+    }
+
+    synchronized void setBlockHash(int block, byte[] hash) {
+        mBlockHashes[block] = hash;
+    }
+
+    synchronized byte[] getBlockHash(int block) {
+        return mBlockHashes[block];
+    }
+
+    public synchronized boolean isComplete() {
+        for (byte[] hash : mBlockHashes) {
+            if (null == hash) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the lower case hex digest of the whole file
+     * @throws IllegalStateException if some block has not been hashed yet
+     */
+    public synchronized String getDigest() {
+        MessageDigest root = newSha256();
+        for (byte[] hash : mBlockHashes) {
+            if (null == hash) {
+                throw new IllegalStateException("digest is incomplete");
+            }
+            root.update(hash);
+        }
+        return toHex(root.digest());
+    }
+
+    /**
+     * Receives the running byte count of digestFile().
+     */
+    public interface ProgressListener {
+        void onProgress(long bytesDone, long totalBytes);
+    }
+
+    /**
+     * Computes the digest of an existing file by reading it once.
+     *
+     * @param listener notified after every block, may be null
+     */
+    public static String digestFile(File file, ProgressListener listener) throws IOException {
+        long total = file.length();
+        octaveBlockDigest digest = new octaveBlockDigest(total);
+        Cursor cursor = digest.cursor(0);
+        octaveCancelToken token = octaveCancelToken.current();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int n;
+            long done = 0;
+            while ((n = in.read(buffer)) != -1) {
+                token.check();
+                cursor.update(buffer, 0, n);
+                done += n;
+                if (null != listener && (done % BLOCK_SIZE == 0 || done == total)) {
+                    listener.onProgress(done, total);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return digest.getDigest();
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+}
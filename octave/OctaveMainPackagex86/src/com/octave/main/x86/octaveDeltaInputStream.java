@@ -0,0 +1,269 @@
+package com.octave.main.x86;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Rebuilds a new rootfs tar stream from the previous main expansion file and
+ * a delta patch, as produced by the octaveDeltaTool build tool.
+ *
+ * Patch layout: the 8 byte MAGIC, a format version byte, then a gzip stream
+ * holding the header (old file size and octaveBlockDigest, new stream length
+ * and SHA-256) followed by operations:
+ *
+ *   OP_COPY offset length - copy from the old uncompressed tar stream
+ *   OP_DATA length bytes  - literal bytes carried in the patch
+ *   OP_END
+ *
+ * Copy offsets never go backwards, so the old file is simply inflated once
+ * from front to back alongside the patch. Memory use is a couple of buffers
+ * regardless of the size of the rootfs. The result is checked against the
+ * SHA-256 in the header when the end of the patch is reached, and a
+ * mismatch surfaces as an IOException from read().
+ */
+public class octaveDeltaInputStream extends InputStream {
+
+    public static final byte[] MAGIC = {
+            'O', 'C', 'T', 'D', 'E', 'L', 'T', 'A'
+    };
+    public static final int FORMAT_VERSION = 1;
+
+    public static final int OP_END = 0;
+    public static final int OP_COPY = 1;
+    public static final int OP_DATA = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * What the patch applies to and what it produces.
+     */
+    public static class Header {
+        public long mOldSize;
+        public String mOldDigest;
+        public long mNewSize;
+        public String mNewSha256;
+    }
+
+    private final InputStream mOld;
+    private final DataInputStream mPatch;
+    private final Header mHeader;
+    private final MessageDigest mSha256 = octaveBlockDigest.newSha256();
+
+    private long mOldPosition;
+    private long mProduced;
+    private int mOp = -1;
+    private long mOpRemaining;
+    private boolean mEnd;
+
+    /**
+     * @param oldTar the old main file, already inflated
+     * @param patch the patch file, positioned after MAGIC and the version
+     */
+    private octaveDeltaInputStream(InputStream oldTar, DataInputStream patch, Header header) {
+        mOld = oldTar;
+        mPatch = patch;
+        mHeader = header;
+    }
+
+    /**
+     * Opens the patch and the old (gzipped) main file.
+     */
+    public static octaveDeltaInputStream open(File oldObb, File patch) throws IOException {
+        DataInputStream in = openPatch(patch);
+        try {
+            Header header = readHeader(in);
+            if (oldObb.length() != header.mOldSize) {
+                throw new IOException(oldObb + " is not the file this patch applies to");
+            }
+            InputStream old = octaveParallelGzipInputStream.open(new FileInputStream(oldObb),
+                    Runtime.getRuntime().availableProcessors());
+            return new octaveDeltaInputStream(old, in, header);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if f starts with the delta MAGIC rather than being a plain
+     *         gzipped payload
+     */
+    public static boolean isDelta(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            int off = 0;
+            while (off < magic.length) {
+                int n = in.read(magic, off, magic.length - off);
+                if (n < 0) {
+                    return false;
+                }
+                off += n;
+            }
+            return Arrays.equals(magic, MAGIC);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads just the header, e.g. to check the base before starting.
+     */
+    public static Header readHeader(File patch) throws IOException {
+        DataInputStream in = openPatch(patch);
+        try {
+            return readHeader(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static DataInputStream openPatch(File patch) throws IOException {
+        InputStream raw = new BufferedInputStream(new FileInputStream(patch), BUFFER_SIZE);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            new DataInputStream(raw).readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(patch + " is not a delta patch");
+            }
+            int version = raw.read();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("unsupported delta format " + version);
+            }
+            return new DataInputStream(new GZIPInputStream(raw, BUFFER_SIZE));
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    private static Header readHeader(DataInputStream in) throws IOException {
+        Header header = new Header();
+        header.mOldSize = in.readLong();
+        header.mOldDigest = in.readUTF();
+        header.mNewSize = in.readLong();
+        header.mNewSha256 = in.readUTF();
+        return header;
+    }
+
+    public Header getHeader() {
+        return mHeader;
+    }
+
+    /**
+     * @return the number of bytes of the new stream produced so far
+     */
+    public long getPosition() {
+        return mProduced;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (mOpRemaining == 0) {
+            if (mEnd || !nextOp()) {
+                return -1;
+            }
+        }
+        int want = (int) Math.min(len, mOpRemaining);
+        int n = (mOp == OP_COPY ? mOld : mPatch).read(b, off, want);
+        if (n < 0) {
+            throw new EOFException(mOp == OP_COPY ? "old file is too short for this patch"
+                    : "truncated delta patch");
+        }
+        if (mOp == OP_COPY) {
+            mOldPosition += n;
+        }
+        mOpRemaining -= n;
+        mProduced += n;
+        mSha256.update(b, off, n);
+        return n;
+    }
+
+    /**
+     * @return false once OP_END has been reached and the result checked
+     */
+    private boolean nextOp() throws IOException {
+        int op = mPatch.readUnsignedByte();
+        switch (op) {
+            case OP_COPY:
+                long offset = mPatch.readLong();
+                long length = mPatch.readLong();
+                if (offset < mOldPosition) {
+                    throw new IOException("delta copies backwards at " + offset);
+                }
+                skipOld(offset - mOldPosition);
+                mOp = op;
+                mOpRemaining = length;
+                return true;
+            case OP_DATA:
+                mOp = op;
+                mOpRemaining = mPatch.readLong();
+                return true;
+            case OP_END:
+                mEnd = true;
+                if (mProduced != mHeader.mNewSize
+                        || !octaveBlockDigest.toHex(mSha256.digest()).equals(mHeader.mNewSha256)) {
+                    throw new IOException("delta result does not match the patch header");
+                }
+                return false;
+            default:
+                throw new IOException("bad delta op " + op);
+        }
+    }
+
+    private void skipOld(long n) throws IOException {
+        byte[] scratch = null;
+        while (n > 0) {
+            long skipped = mOld.skip(n);
+            if (skipped <= 0) {
+                if (null == scratch) {
+                    scratch = new byte[BUFFER_SIZE];
+                }
+                int r = mOld.read(scratch, 0, (int) Math.min(scratch.length, n));
+                if (r < 0) {
+                    throw new EOFException("old file is too short for this patch");
+                }
+                skipped = r;
+            }
+            n -= skipped;
+            mOldPosition += skipped;
+        }
+    }
+
+    /**
+     * Reads whatever the consumer left unread (a tar reader stops at the
+     * end-of-archive blocks) so the result gets checked.
+     */
+    public void finish() throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (read(buffer, 0, buffer.length) != -1) {
+            // just draining
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mOld.close();
+        } finally {
+            mPatch.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.octave.main.x86;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Applies a delta patch file (see octaveDeltaInputStream) to the main
+ * expansion file once both have been verified. The new rootfs is written
+ * next to the expansion files as a tar.gz and, if the launching app asked
+ * for a main extraction directory, unpacked into it from there. The result
+ * of a delta is only checked once it has been read to the end, so nothing
+ * is unpacked before that check has passed. Either way the old main file
+ * stays untouched, so a failed or interrupted apply is simply retried on
+ * the next launch.
+ *
+ * A patch file that is not a delta (a plain gzipped payload) is left alone.
+ */
+final class octaveDeltaPatcher {
+    private static final String LOG_TAG = "octaveDeltaPatcher";
+
+    /** Set once a patch has been applied; the value is the rebuilt tar.gz, or "" */
+    static final String PREF_PATCHED_PREFIX = "patched.";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    interface ProgressListener {
+        void onProgress(long bytesDone, long totalBytes);
+    }
+
+    private octaveDeltaPatcher() {
+    }
+
+    /**
+     * @return true if patch is a delta that has not been applied yet
+     */
+    static boolean isPending(SharedPreferences prefs, File patch, String patchFileName) {
+        if (prefs.contains(PREF_PATCHED_PREFIX + patchFileName)) {
+            return false;
+        }
+        try {
+            return octaveDeltaInputStream.isDelta(patch);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the rebuilt rootfs tar.gz of an applied patch, or null if there
+     *         is none (not a delta, not applied yet, or unpacked instead)
+     */
+    static File getRootfs(SharedPreferences prefs, String patchFileName) {
+        String path = prefs.getString(PREF_PATCHED_PREFIX + patchFileName, null);
+        if (null == path || path.length() == 0) {
+            return null;
+        }
+        File f = new File(path);
+        return f.exists() ? f : null;
+    }
+
+    /**
+     * Rebuilds the new rootfs from main and patch.
+     *
+     * @param mainDigest the recorded octaveBlockDigest of main
+     * @param extractDir where to unpack the result, or null to write rootfs
+     * @param rootfs the tar.gz to write when there is no extractDir
+     * @param filter what to unpack into extractDir, or null for everything
+     */
+    static void apply(SharedPreferences prefs, File main, String mainDigest, File patch,
+            String patchFileName, File extractDir, File rootfs, octaveTarExtractor.Filter filter,
+            final ProgressListener listener) throws IOException {
+        octaveDeltaInputStream.Header header = octaveDeltaInputStream.readHeader(patch);
+        if (!header.mOldDigest.equalsIgnoreCase(mainDigest)) {
+            throw new IOException(patchFileName + " was made against a different main file");
+        }
+        final octaveDeltaInputStream in = octaveDeltaInputStream.open(main, patch);
+        final long total = header.mNewSize;
+        try {
+            if (null != extractDir) {
+                File temp = new File(rootfs.getPath() + ".tmp");
+                writeGzip(in, temp, total, null == listener ? null : new ProgressListener() {
+                    @Override
+                    public void onProgress(long bytesDone, long totalBytes) {
+                        listener.onProgress(bytesDone, 2 * totalBytes);
+                    }
+                });
+                InputStream tar = new GZIPInputStream(new FileInputStream(temp), BUFFER_SIZE);
+                try {
+                    octaveTarExtractor extractor = new octaveTarExtractor(extractDir);
+                    extractor.setFilter(filter);
+                    if (null != listener) {
+                        extractor.setProgressListener(new octaveTarExtractor.ProgressListener() {
+                            @Override
+                            public void onEntryExtracted(String name, long archiveBytes,
+                                    int entries) {
+                                listener.onProgress(total + archiveBytes, 2 * total);
+                            }
+                        });
+                    }
+                    extractor.extract(tar);
+                } finally {
+                    tar.close();
+                    temp.delete();
+                }
+                prefs.edit().putString(PREF_PATCHED_PREFIX + patchFileName, "").commit();
+            } else {
+                File temp = new File(rootfs.getPath() + ".tmp");
+                writeGzip(in, temp, total, listener);
+                if (!temp.renameTo(rootfs)) {
+                    temp.delete();
+                    throw new IOException("unable to rename " + temp + " to " + rootfs);
+                }
+                prefs.edit().putString(PREF_PATCHED_PREFIX + patchFileName, rootfs.getPath())
+                        .commit();
+            }
+            Log.i(LOG_TAG, "applied " + patchFileName);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeGzip(octaveDeltaInputStream in, File out, long total,
+            ProgressListener listener) throws IOException {
+        OutputStream os = new GZIPOutputStream(new BufferedOutputStream(
+                new FileOutputStream(out), BUFFER_SIZE), BUFFER_SIZE);
+        boolean ok = false;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long lastReport = 0;
+            octaveCancelToken token = octaveCancelToken.current();
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+                token.check();
+                os.write(buffer, 0, n);
+                long done = in.getPosition();
+                if (null != listener && done - lastReport >= octaveBlockDigest.BLOCK_SIZE) {
+                    listener.onProgress(done, total);
+                    lastReport = done;
+                }
+            }
+            ok = true;
+        } finally {
+            os.close();
+            if (!ok) {
+                out.delete();
+            }
+        }
+    }
+}
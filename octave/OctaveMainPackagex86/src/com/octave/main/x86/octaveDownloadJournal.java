@@ -0,0 +1,263 @@
+package com.octave.main.x86;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers which chunks of a partial download are on disk, so a transfer
+ * cut short by a pause, a process kill, a reboot or the SD card going away
+ * resumes with exactly the chunks that are missing. The journal sits next
+ * to the partial file and is append only:
+ *
+ *   header: MAGIC, version, total bytes, chunk size, hashes per chunk,
+ *           the server's validator (ETag or Last-Modified), CRC32
+ *   record: chunk number, the SHA-256 of each digest block in the chunk,
+ *           CRC32
+ *
+ * so a record torn by a crash fails its CRC and it and everything after
+ * it are dropped. The block hashes go back into the octaveBlockDigest on
+ * resume, so nothing already on disk is read again.
+ *
+ * Records are written in batches: each batch first syncs the data file,
+ * then appends and syncs the records, so a chunk is never in the journal
+ * before its bytes are on the medium. A crash loses at most the chunks of
+ * the last batch, which are simply fetched again.
+ */
+public class octaveDownloadJournal implements Closeable {
+
+    public static final String SUFFIX = ".journal";
+
+    private static final byte[] MAGIC = {
+            'O', 'C', 'T', 'J'
+    };
+    private static final int VERSION = 1;
+    /** records collected before a sync, and the most time between syncs */
+    private static final int BATCH_RECORDS = 16;
+    private static final long BATCH_INTERVAL = 2000;
+
+    private final File mFile;
+    private final RandomAccessFile mData;
+    private final RandomAccessFile mJournal;
+    private final int mHashesPerChunk;
+    private final int mRecordSize;
+
+    private final BitSet mDone = new BitSet();
+    private final Map<Integer, byte[][]> mHashes = new HashMap<Integer, byte[][]>();
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private int mPendingRecords;
+    private long mLastSync;
+    private boolean mResumed;
+
+    /**
+     * Opens the journal of a partial file, replaying it if it describes the
+     * same transfer and starting it afresh otherwise.
+     *
+     * @param data the partial file, which must already have its full length
+     * @param hashesPerChunk digest blocks per chunk, 0 if nothing is hashed
+     * @param validator what identifies the server's copy, "" if nothing does
+     */
+    public octaveDownloadJournal(File data, long totalBytes, int chunkSize, int hashesPerChunk,
+            String validator) throws IOException {
+        mFile = fileFor(data);
+        mHashesPerChunk = hashesPerChunk;
+        mRecordSize = 4 + hashesPerChunk * octavePackReader.DIGEST_LENGTH + 4;
+        byte[] header = header(totalBytes, chunkSize, hashesPerChunk, validator);
+        mData = new RandomAccessFile(data, "rw");
+        RandomAccessFile journal = null;
+        try {
+            journal = new RandomAccessFile(mFile, "rw");
+            int chunks = (int) ((totalBytes + chunkSize - 1) / chunkSize);
+            if (mData.length() == totalBytes && replay(journal, header, chunks)) {
+                mResumed = true;
+            } else {
+                mDone.clear();
+                mHashes.clear();
+                journal.setLength(0);
+                journal.write(header);
+                sync(journal);
+            }
+        } catch (IOException e) {
+            octaveSegmentedDownloader.closeQuietly(journal);
+            mData.close();
+            throw e;
+        }
+        mJournal = journal;
+        mLastSync = now();
+    }
+
+    /**
+     * @return the journal file of a partial file
+     */
+    public static File fileFor(File data) {
+        return new File(data.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return true if chunks from an earlier run were found
+     */
+    public boolean isResumed() {
+        return mResumed;
+    }
+
+    /**
+     * @return the chunks known to be on disk; the caller may keep it
+     */
+    public synchronized BitSet getDone() {
+        return (BitSet) mDone.clone();
+    }
+
+    /**
+     * @return the block hashes recorded for a chunk, or null
+     */
+    public synchronized byte[][] getHashes(int chunk) {
+        return mHashes.get(chunk);
+    }
+
+    /**
+     * Notes that a chunk is complete. It is only journalled with the next
+     * batch, after its bytes have been synced.
+     *
+     * @param hashes one per digest block of the chunk, or null if unhashed
+     */
+    public synchronized void record(int chunk, byte[][] hashes) throws IOException {
+        DataOutputStream out = new DataOutputStream(mPending);
+        int start = mPending.size();
+        out.writeInt(chunk);
+        for (int i = 0; i < mHashesPerChunk; i++) {
+            byte[] hash = null == hashes || i >= hashes.length || null == hashes[i]
+                    ? new byte[octavePackReader.DIGEST_LENGTH] : hashes[i];
+            out.write(hash);
+        }
+        byte[] all = mPending.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(all, start, all.length - start);
+        out.writeInt((int) crc.getValue());
+        mDone.set(chunk);
+        mPendingRecords++;
+        if (mPendingRecords >= BATCH_RECORDS || now() - mLastSync >= BATCH_INTERVAL) {
+            commit();
+        }
+    }
+
+    /**
+     * Makes every recorded chunk durable.
+     */
+    public synchronized void commit() throws IOException {
+        if (mPendingRecords == 0) {
+            return;
+        }
+        sync(mData);
+        mJournal.seek(mJournal.length());
+        mJournal.write(mPending.toByteArray());
+        sync(mJournal);
+        mPending.reset();
+        mPendingRecords = 0;
+        mLastSync = now();
+    }
+
+    /**
+     * Commits what is pending and closes the journal, which stays on disk
+     * for the next run.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            octaveSegmentedDownloader.closeQuietly(mJournal);
+            mData.close();
+        }
+    }
+
+    /**
+     * Closes and removes the journal, once the file is complete.
+     */
+    public synchronized void delete() {
+        octaveSegmentedDownloader.closeQuietly(mJournal);
+        octaveSegmentedDownloader.closeQuietly(mData);
+        mFile.delete();
+    }
+
+    /**
+     * @return true if the journal matches header; mDone and mHashes then
+     *         hold its intact records and any torn tail has been cut off
+     */
+    private boolean replay(RandomAccessFile journal, byte[] header, int chunks)
+            throws IOException {
+        long length = journal.length();
+        if (length < header.length) {
+            return false;
+        }
+        byte[] existing = new byte[header.length];
+        journal.seek(0);
+        journal.readFully(existing);
+        if (!Arrays.equals(existing, header)) {
+            return false;
+        }
+        int count = (int) ((length - header.length) / mRecordSize);
+        byte[] records = new byte[count * mRecordSize];
+        journal.readFully(records);
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        CRC32 crc = new CRC32();
+        int good = 0;
+        for (; good < count; good++) {
+            int offset = good * mRecordSize;
+            crc.reset();
+            crc.update(records, offset, mRecordSize - 4);
+            int chunk = buffer.getInt(offset);
+            if ((int) crc.getValue() != buffer.getInt(offset + mRecordSize - 4)
+                    || chunk < 0 || chunk >= chunks) {
+                break;
+            }
+            byte[][] hashes = new byte[mHashesPerChunk][];
+            for (int i = 0; i < mHashesPerChunk; i++) {
+                hashes[i] = Arrays.copyOfRange(records,
+                        offset + 4 + i * octavePackReader.DIGEST_LENGTH,
+                        offset + 4 + (i + 1) * octavePackReader.DIGEST_LENGTH);
+            }
+            mDone.set(chunk);
+            mHashes.put(chunk, hashes);
+        }
+        long end = header.length + (long) good * mRecordSize;
+        if (end != length) {
+            journal.setLength(end);
+            sync(journal);
+        }
+        return true;
+    }
+
+    private static byte[] header(long totalBytes, int chunkSize, int hashesPerChunk,
+            String validator) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(totalBytes);
+        out.writeInt(chunkSize);
+        out.writeInt(hashesPerChunk);
+        out.writeUTF(null == validator ? "" : validator);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    private static void sync(RandomAccessFile f) throws IOException {
+        f.getFD().sync();
+        octaveInstallMetrics.add(octaveInstallMetrics.COUNTER_FSYNCS, 1);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -27,7 +27,9 @@ import com.google.android.vending.expansion.downloader.IStub;
 
 import android.app.Activity;
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Bundle;
 import android.os.Handler;
@@ -41,6 +43,11 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This is sample code for a project built against the downloader library. It
@@ -49,6 +56,92 @@ import java.io.File;
  */
 public class octaveDownloaderActivity extends Activity implements IDownloaderClient {
     private static final String LOG_TAG = "LVLDownloader";
+
+    /**
+     * Optional extras from the launching app. If given, the main and/or patch
+     * file is unpacked into that directory while it downloads and the result
+     * intent carries EXTRA_EXTRACTED = true.
+     */
+    public static final String EXTRA_MAIN_EXTRACT_DIR = "mainExtractDir";
+    public static final String EXTRA_PATCH_EXTRACT_DIR = "patchExtractDir";
+    public static final String EXTRA_EXTRACTED = "extracted";
+
+    /**
+     * Optional: octaveInstallProfile.MINIMAL, STANDARD or FULL (the
+     * default), for what is unpacked into the extraction directories.
+     */
+    public static final String EXTRA_PROFILE = "profile";
+
+    /**
+     * Optional: a subtree the profile left out, e.g. "usr/share/doc". Once
+     * the files are delivered it is unpacked from them into the extraction
+     * directories it was left out of, and the activity finishes as usual.
+     */
+    public static final String EXTRA_FETCH = "fetch";
+
+    /**
+     * Set on the result when the patch file is a delta against the main file
+     * and no main extraction directory was given: the path of the rebuilt
+     * rootfs tar.gz, to be used instead of the main file.
+     */
+    public static final String EXTRA_ROOTFS = "rootfs";
+
+    /**
+     * Set on every result: the ABI the files were picked for (see
+     * octaveAbi), or null if the device can run none of our builds.
+     */
+    public static final String EXTRA_ABI = "abi";
+
+    /**
+     * Optional: true to only ask about the install. The activity finishes
+     * straight away, without showing anything, starting a download or
+     * unpacking, and the result carries EXTRA_INSTALLED, EXTRA_VERSION,
+     * EXTRA_NEEDS_DOWNLOAD and EXTRA_ABI.
+     */
+    public static final String EXTRA_QUERY = "query";
+
+    /**
+     * Set on a query result: true if every expansion file is delivered and
+     * verified, so a normal launch would finish at once.
+     */
+    public static final String EXTRA_INSTALLED = "installed";
+
+    /**
+     * Set on a query result: the version of the expansion files this
+     * package expects, 0 if the device can run none of our builds.
+     */
+    public static final String EXTRA_VERSION = "version";
+
+    /**
+     * Set on a query result: true if a normal launch would have to download
+     * a file, false if at most verifying or patching is left.
+     */
+    public static final String EXTRA_NEEDS_DOWNLOAD = "needsDownload";
+
+    /**
+     * Optional: the package names of add-ons to install, instead of
+     * delivering the expansion files. This is how the Octave app installs
+     * add-ons: it starts this activity for a result with the names, with
+     * EXTRA_MAIN_EXTRACT_DIR as where the exec payloads go, EXTRA_NOEXEC_DIR
+     * as where the noexec payloads go, and optionally EXTRA_PROFILE. The
+     * add-ons are installed by an octaveInstallQueue, the result code is the
+     * number installed, or -1 if any failed, and the result carries
+     * EXTRA_ADDONS_INSTALLED.
+     */
+    public static final String EXTRA_ADDONS = "addons";
+
+    /**
+     * Required with EXTRA_ADDONS: the tree the exec payloads' links reach
+     * as /noexec.
+     */
+    public static final String EXTRA_NOEXEC_DIR = "noexecDir";
+
+    /**
+     * Set on an EXTRA_ADDONS result: the package names of the add-ons that
+     * were installed.
+     */
+    public static final String EXTRA_ADDONS_INSTALLED = "addonsInstalled";
+
     private ProgressBar mPB;
 
     private TextView mStatusText;
@@ -56,6 +149,7 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
     private TextView mProgressPercent;
     private TextView mAverageSpeed;
     private TextView mTimeRemaining;
+    private TextView mProgressExtracted;
 
     private View mDashboard;
     private View mCellMessage;
@@ -72,6 +166,19 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
 
     private IStub mDownloaderClientStub;
 
+    private final Handler mHandler = new Handler();
+
+    /** Brings progress and results of pool tasks to the UI thread */
+    private final octaveProgressChannel mProgressChannel = new octaveProgressChannel(
+            new octaveProgressChannel.Poster() {
+                @Override
+                public void post(Runnable r) {
+                    mHandler.post(r);
+                }
+            });
+
+    private octaveProgressDisplay mProgressDisplay;
+
     private void setState(int newState) {
         if (mState != newState) {
             mState = newState;
@@ -90,13 +197,30 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
      * This is a little helper class that demonstrates simple testing of an
      * Expansion APK file delivered by Market. 
      */
-    private static class XAPKFile {
+    static class XAPKFile {
+        public final String mAbi;
+        public final String mPackage;
         public final boolean mIsMain;
         public final int mFileVersion;
+        public final long mFileSize;
+        public final String mDigest;
 
-        XAPKFile(boolean isMain, int fileVersion) {
+        XAPKFile(String abi, String packageName, boolean isMain, int fileVersion,
+                long fileSize, String digest) {
+            mAbi = abi;
+            mPackage = packageName;
             mIsMain = isMain;
             mFileVersion = fileVersion;
+            mFileSize = fileSize;
+            mDigest = digest;
+        }
+
+        /**
+         * @return the name Market gives the file, as
+         *         Helpers.getExpansionAPKFileName would for mPackage
+         */
+        String getFileName() {
+            return (mIsMain ? "main." : "patch.") + mFileVersion + "." + mPackage + ".obb";
         }
     }
 
@@ -107,18 +231,124 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
      * properly delivered without having to talk to the server. If the
      * application is using LVL for licensing, it may make sense to eliminate
      * these checks and to just rely on the server.
+     *
+     * The size and digest are printed by the octaveDigestTool build tool (see
+     * bulidScripts/README.md) for the file that gets uploaded. A 0 size or null digest means "not pinned":
+     * the file is still hashed and the result recorded, but nothing is
+     * rejected.
+     *
+     * The rootfs differs per ABI, so there is a main and patch pair for
+     * each, named after the package and version they were uploaded with.
+     * Only the pair for the device's ABI (see octaveAbi) is ever looked
+     * at, downloaded or unpacked.
      */
-    private static final XAPKFile[] xAPKS = {
+    static final XAPKFile[] xAPKS = {
+            new XAPKFile(
+                    octaveAbi.ARMEABI, // the ABI the rootfs in the file is built for
+                    "com.octave.main", // the package the file was uploaded to
+                    true, // true signifies a main file
+                    2, // the version of the APK that the file was uploaded against
+                    0L, // the length of the file in bytes
+                    null // octaveBlockDigest of the file
+            ),
+            // the patch slot may hold a delta against the main file, made
+            // with octaveDeltaTool; a plain gzipped payload works as before
+            new XAPKFile(
+                    octaveAbi.ARMEABI, // the ABI the rootfs in the file is built for
+                    "com.octave.main", // the package the file was uploaded to
+                    false, // true signifies a patch file
+                    2, // the version of the APK that the file was uploaded against
+                    0L, // the length of the file in bytes
+                    null // octaveBlockDigest of the file
+            ),
             new XAPKFile(
+                    octaveAbi.X86, // the ABI the rootfs in the file is built for
+                    "com.octave.main.x86", // the package the file was uploaded to
                     true, // true signifies a main file
-                    2 // the version of the APK that the file was uploaded against
+                    2, // the version of the APK that the file was uploaded against
+                    0L, // the length of the file in bytes
+                    null // octaveBlockDigest of the file
             ),
             new XAPKFile(
+                    octaveAbi.X86, // the ABI the rootfs in the file is built for
+                    "com.octave.main.x86", // the package the file was uploaded to
                     false, // true signifies a patch file
-                    2 // the version of the APK that the file was uploaded against
+                    2, // the version of the APK that the file was uploaded against
+                    0L, // the length of the file in bytes
+                    null // octaveBlockDigest of the file
             )
     };
 
+    /**
+     * @return the entries of the table for this device's ABI, main first;
+     *         empty if the device can run none of our builds
+     */
+    static XAPKFile[] getXAPKFiles() {
+        String abi = octaveAbi.get();
+        List<XAPKFile> files = new ArrayList<XAPKFile>();
+        for (XAPKFile xf : xAPKS) {
+            if (xf.mAbi.equals(abi)) {
+                files.add(xf);
+            }
+        }
+        return files.toArray(new XAPKFile[files.size()]);
+    }
+
+    /**
+     * @return the table entry for an expansion file name as the downloader
+     *         library generates it, or null if it is not one of ours
+     */
+    static XAPKFile findXAPKFile(String fileName) {
+        for (XAPKFile xf : xAPKS) {
+            if (xf.getFileName().equals(fileName)) {
+                return xf;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if Market can deliver this device's files to us, i.e.
+     *         they were uploaded to the package we were installed as; an
+     *         APK of another ABI only gets that ABI's rootfs
+     */
+    private boolean isRightPackage(XAPKFile[] files) {
+        for (XAPKFile xf : files) {
+            if (!xf.mPackage.equals(getPackageName())) {
+                return false;
+            }
+        }
+        return files.length > 0;
+    }
+
+    /**
+     * @return true if digest is acceptable for xf
+     */
+    static boolean digestMatches(XAPKFile xf, long size, String digest) {
+        if (null == xf) {
+            return true;
+        }
+        if (xf.mFileSize > 0 && xf.mFileSize != size) {
+            return false;
+        }
+        return null == xf.mDigest || xf.mDigest.equalsIgnoreCase(digest);
+    }
+
+    /**
+     * Remembers that the file was hashed and found good, so later launches
+     * never have to read it again.
+     */
+    static void recordVerified(Context c, XAPKFile xf, String fileName, File file,
+            String digest) {
+        new octaveDeliveryRecord(xf.mIsMain, xf.mFileVersion, fileName, file, digest)
+                .save(octaveDeliveryRecord.getPreferences(c));
+    }
+
+    private static boolean isVerified(SharedPreferences prefs, XAPKFile xf) {
+        octaveDeliveryRecord record = octaveDeliveryRecord.load(prefs, xf.mIsMain);
+        return null != record && record.isValidFor(xf);
+    }
+
     /**
      * Go through each of the APK Expansion files defined in the structure above
      * and determine if the files are present and match the required size. Free
@@ -131,10 +361,11 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
      * @return true if they are present.
      */
     boolean expansionFilesDelivered() {
-        for (XAPKFile xf : xAPKS) {
-            String fileName = Helpers.getExpansionAPKFileName(this, xf.mIsMain, xf.mFileVersion);
+        for (XAPKFile xf : getXAPKFiles()) {
+            String fileName = xf.getFileName();
             File fileForNewFile = new File(Helpers.generateSaveFileName(this, fileName));
-            if (!fileForNewFile.exists()) {
+            if (!fileForNewFile.exists()
+                    || (xf.mFileSize > 0 && fileForNewFile.length() != xf.mFileSize)) {
                 return false;
             }
         }
@@ -142,12 +373,81 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
     }
 
     /**
-     * If the download isn't present, we initialize the download UI. This ties
-     * all of the controls into the remote service calls.
+     * Hands the extraction targets from the launching intent to
+     * octaveDownloaderService, which runs in this process but is started
+     * through the downloader library and never sees our intent.
+     */
+    private void rememberExtractDirs() {
+        Intent launchIntent = getIntent();
+        SharedPreferences.Editor editor = getSharedPreferences(
+                octaveDownloaderService.PREFS_NAME, Context.MODE_PRIVATE).edit();
+        String mainDir = launchIntent.getStringExtra(EXTRA_MAIN_EXTRACT_DIR);
+        String patchDir = launchIntent.getStringExtra(EXTRA_PATCH_EXTRACT_DIR);
+        String profile = launchIntent.getStringExtra(EXTRA_PROFILE);
+        if (null != profile) {
+            editor.putString(octaveDownloaderService.PREF_PROFILE, profile);
+        } else {
+            editor.remove(octaveDownloaderService.PREF_PROFILE);
+        }
+        if (null != mainDir) {
+            editor.putString(octaveDownloaderService.PREF_MAIN_EXTRACT_DIR, mainDir);
+        } else {
+            editor.remove(octaveDownloaderService.PREF_MAIN_EXTRACT_DIR);
+        }
+        if (null != patchDir) {
+            editor.putString(octaveDownloaderService.PREF_PATCH_EXTRACT_DIR, patchDir);
+        } else {
+            editor.remove(octaveDownloaderService.PREF_PATCH_EXTRACT_DIR);
+        }
+        editor.commit();
+    }
+
+    /**
+     * @return true if every file the launching app asked to have unpacked
+     *         was extracted while it downloaded
+     */
+    private boolean allRequestedExtracted() {
+        SharedPreferences prefs = getSharedPreferences(octaveDownloaderService.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        boolean requested = false;
+        for (XAPKFile xf : getXAPKFiles()) {
+            String key = xf.mIsMain ? octaveDownloaderService.PREF_MAIN_EXTRACT_DIR
+                    : octaveDownloaderService.PREF_PATCH_EXTRACT_DIR;
+            if (!prefs.contains(key)) {
+                continue;
+            }
+            requested = true;
+            octaveDeliveryRecord record = octaveDeliveryRecord.load(prefs, xf.mIsMain);
+            String fileName = null != record ? record.mFileName : xf.getFileName();
+            if (!prefs.getBoolean(octaveDownloaderService.PREF_EXTRACTED_PREFIX + fileName,
+                    false)) {
+                return false;
+            }
+        }
+        return requested;
+    }
+
+    /**
+     * Creates the client stub the download service reports to, once a
+     * download has actually been started, and the views it reports into.
      */
     private void initializeDownloadUI() {
-        mDownloaderClientStub = DownloaderClientMarshaller.CreateStub
-                (this, octaveDownloaderService.class);
+        initializeViews();
+        if (null == mDownloaderClientStub) {
+            mDownloaderClientStub = DownloaderClientMarshaller.CreateStub
+                    (this, octaveDownloaderService.class);
+        }
+    }
+
+    /**
+     * Inflates the progress UI the first time something has to be shown,
+     * a download or a verification, and ties the controls into the remote
+     * service calls. Launches that find everything delivered never get here.
+     */
+    private void initializeViews() {
+        if (null != mPB) {
+            return;
+        }
         setContentView(R.layout.main_downloader);
 
         mPB = (ProgressBar) findViewById(R.id.progressBar);
@@ -156,10 +456,16 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
         mProgressPercent = (TextView) findViewById(R.id.progressAsPercentage);
         mAverageSpeed = (TextView) findViewById(R.id.progressAverageSpeed);
         mTimeRemaining = (TextView) findViewById(R.id.progressTimeRemaining);
+        mProgressExtracted = (TextView) findViewById(R.id.progressExtracted);
         mDashboard = findViewById(R.id.downloaderDashboard);
         mCellMessage = findViewById(R.id.approveCellular);
         mPauseButton = (Button) findViewById(R.id.pauseButton);
         mWiFiSettingsButton = (Button) findViewById(R.id.wifiSettingsButton);
+        if (null != mProgressDisplay) {
+            mProgressDisplay.cancel();
+        }
+        mProgressDisplay = new octaveProgressDisplay(this, mHandler, mPB, mProgressFraction,
+                mProgressPercent, mAverageSpeed, mTimeRemaining, mProgressExtracted);
 
         mPauseButton.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -204,64 +510,530 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
         
         mMe = this;
 
+        if (getIntent().getBooleanExtra(EXTRA_QUERY, false)) {
+            answerQuery();
+            return;
+        }
+
+        String[] addons = getIntent().getStringArrayExtra(EXTRA_ADDONS);
+        if (null != addons) {
+            installAddons(addons);
+            return;
+        }
+
+        /**
+         * Warm start: every file has a delivery record that still matches
+         * the file on disk, so there is nothing to download or check.
+         */
+        SharedPreferences prefs = octaveDeliveryRecord.getPreferences(this);
+        XAPKFile[] files = getXAPKFiles();
+        if (files.length > 0 && octaveDeliveryRecord.allDelivered(prefs, files)
+                && !deltaPending(prefs)) {
+            String subtree = getIntent().getStringExtra(EXTRA_FETCH);
+            if (null != subtree) {
+                fetchSkipped(prefs, subtree);
+            } else {
+                finishDelivered();
+            }
+            return;
+        }
+
         /**
-         * Both downloading and validation make use of the "download" UI
+         * Installed as the APK of another ABI: whatever Market would send
+         * is a rootfs this device cannot run, so don't fetch any of it.
          */
-        initializeDownloadUI();
+        if (!isRightPackage(files)) {
+            Log.e(LOG_TAG, getPackageName() + " has no expansion files for ABI "
+                    + octaveAbi.get());
+            Intent intent = getIntent();
+            intent.putExtra(EXTRA_ABI, octaveAbi.get());
+            setResult(-1, intent);
+            finish();
+            return;
+        }
+
+        rememberExtractDirs();
+
+        octaveInstallMetrics metrics = octaveInstallMetrics.start("rootfs");
+        metrics.tag("abi", octaveAbi.get());
+        metrics.tag("profile", getIntent().getStringExtra(EXTRA_PROFILE));
 
         /**
          * Before we do anything, are the files we expect already here and
          * delivered (presumably by Market) For free titles, this is probably
-         * worth doing. (so no Market request is necessary)
+         * worth doing. (so no Market request is necessary) Downloading and
+         * validation set up the "download" UI themselves, as they need it.
          */
-        if (!expansionFilesDelivered()) {
-
-            try {
-                Intent launchIntent = octaveDownloaderActivity.this
-                        .getIntent();
-                Intent intentToLaunchThisActivityFromNotification = new Intent(
-                        octaveDownloaderActivity
-                        .this, octaveDownloaderActivity.this.getClass());
-                intentToLaunchThisActivityFromNotification.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
-                        Intent.FLAG_ACTIVITY_CLEAR_TOP);
-                intentToLaunchThisActivityFromNotification.setAction(launchIntent.getAction());
-
-                if (launchIntent.getCategories() != null) {
-                    for (String category : launchIntent.getCategories()) {
-                        intentToLaunchThisActivityFromNotification.addCategory(category);
+        if (expansionFilesDelivered() || !startDownload()) {
+            validateXAPKFiles();
+        }
+
+    }
+
+    /**
+     * Answers EXTRA_QUERY from the delivery records and the sizes of the
+     * files on disk, without touching the UI or the download service.
+     */
+    private void answerQuery() {
+        SharedPreferences prefs = octaveDeliveryRecord.getPreferences(this);
+        XAPKFile[] files = getXAPKFiles();
+        boolean installed = files.length > 0 && octaveDeliveryRecord.allDelivered(prefs, files)
+                && !deltaPending(prefs);
+        int version = files.length > 0 ? files[0].mFileVersion : 0;
+        Intent intent = getIntent();
+        intent.putExtra(EXTRA_INSTALLED, installed);
+        intent.putExtra(EXTRA_VERSION, version);
+        intent.putExtra(EXTRA_NEEDS_DOWNLOAD, !installed && isRightPackage(files)
+                && !expansionFilesDelivered());
+        intent.putExtra(EXTRA_ABI, octaveAbi.get());
+        setResult(installed ? version : -1, intent);
+        finish();
+    }
+
+    /**
+     * Asks the downloader library to start (or resume) fetching the expansion
+     * files and, if it does, switches to the progress UI.
+     *
+     * @return false if the library found nothing to download
+     */
+    private boolean startDownload() {
+        try {
+            Intent launchIntent = octaveDownloaderActivity.this
+                    .getIntent();
+            Intent intentToLaunchThisActivityFromNotification = new Intent(
+                    octaveDownloaderActivity
+                    .this, octaveDownloaderActivity.this.getClass());
+            intentToLaunchThisActivityFromNotification.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
+                    Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            intentToLaunchThisActivityFromNotification.setAction(launchIntent.getAction());
+
+            if (launchIntent.getCategories() != null) {
+                for (String category : launchIntent.getCategories()) {
+                    intentToLaunchThisActivityFromNotification.addCategory(category);
+                }
+            }
+
+            // Build PendingIntent used to open this activity from
+            // Notification
+            PendingIntent pendingIntent = PendingIntent.getActivity(
+                    octaveDownloaderActivity.this,
+                    0, intentToLaunchThisActivityFromNotification,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+            // Request to start the download
+            int startResult = DownloaderClientMarshaller.startDownloadServiceIfRequired(this,
+                    pendingIntent, octaveDownloaderService.class);
+
+            if (startResult != DownloaderClientMarshaller.NO_DOWNLOAD_REQUIRED) {
+                // The DownloaderService has started downloading the files,
+                // show progress
+                initializeDownloadUI();
+                return true;
+            } // otherwise, download not needed so we fall through to
+              // starting the movie
+        } catch (NameNotFoundException e) {
+            Log.e(LOG_TAG, "Cannot find own package! MAYDAY!");
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private static XAPKFile getPatchXAPKFile() {
+        for (XAPKFile xf : getXAPKFiles()) {
+            if (!xf.mIsMain) {
+                return xf;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the patch file is a delta that still has to be applied
+     */
+    private boolean deltaPending(SharedPreferences prefs) {
+        XAPKFile patch = getPatchXAPKFile();
+        if (null == patch) {
+            return false;
+        }
+        String fileName = patch.getFileName();
+        return octaveDeltaPatcher.isPending(prefs,
+                new File(Helpers.generateSaveFileName(this, fileName)), fileName);
+    }
+
+    /**
+     * Rebuilds the new rootfs from the verified main and delta patch files.
+     * On failure the old main file is still intact, so the app carries on
+     * with it and the apply is tried again on the next launch.
+     */
+    private void applyDelta(SharedPreferences prefs,
+            octaveDeltaPatcher.ProgressListener listener) {
+        XAPKFile patch = getPatchXAPKFile();
+        octaveDeliveryRecord main = octaveDeliveryRecord.load(prefs, true);
+        String patchName = patch.getFileName();
+        File patchFile = new File(Helpers.generateSaveFileName(this, patchName));
+        String extractDir = prefs.getString(octaveDownloaderService.PREF_MAIN_EXTRACT_DIR, null);
+        File rootfs = new File(patchFile.getParentFile(), "rootfs." + patch.mFileVersion
+                + ".tar.gz");
+        try {
+            octaveInstallProfile profile = octaveInstallProfile.forName(
+                    prefs.getString(octaveDownloaderService.PREF_PROFILE, null));
+            octaveDeltaPatcher.apply(prefs, new File(main.mPath), main.mDigest, patchFile,
+                    patchName, null == extractDir ? null : new File(extractDir), rootfs,
+                    profile, listener);
+            if (null != extractDir) {
+                // the patched tree replaces what main was unpacked as
+                profile.saveSkipped(prefs, patchName);
+                prefs.edit().remove(octaveInstallProfile.PREF_SKIPPED_PREFIX + main.mFileName)
+                        .commit();
+                // the patched tree is complete whether or not main was unpacked
+                prefs.edit().putBoolean(octaveDownloaderService.PREF_EXTRACTED_PREFIX
+                        + main.mFileName, true).commit();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "unable to apply " + patchName, e);
+            if (null != extractDir) {
+                // whatever was unpacked is now a mix of the two versions
+                prefs.edit().remove(octaveDownloaderService.PREF_EXTRACTED_PREFIX
+                        + main.mFileName).commit();
+            }
+        }
+    }
+
+    /**
+     * Unpacks a subtree the install profile left out from the delivered
+     * files, in the background, then finishes as if just delivered. A
+     * patch that was a delta is replayed against main, since that is what
+     * was unpacked into the main extraction directory.
+     */
+    private void fetchSkipped(final SharedPreferences prefs, final String subtree) {
+        octaveWorkerPool.Work<Void> work = new octaveWorkerPool.Work<Void>() {
+
+            @Override
+            public Void run(octaveWorkerPool.Task<Void> task) {
+                for (XAPKFile xf : getXAPKFiles()) {
+                    String fileName = xf.getFileName();
+                    if (!octaveInstallProfile.wasSkipped(prefs, fileName, subtree)) {
+                        continue;
+                    }
+                    boolean delta = !xf.mIsMain && "".equals(prefs.getString(
+                            octaveDeltaPatcher.PREF_PATCHED_PREFIX + fileName, null));
+                    String dir = prefs.getString(xf.mIsMain || delta
+                            ? octaveDownloaderService.PREF_MAIN_EXTRACT_DIR
+                            : octaveDownloaderService.PREF_PATCH_EXTRACT_DIR, null);
+                    if (null == dir) {
+                        continue;
+                    }
+                    File file = new File(Helpers.generateSaveFileName(mMe, fileName));
+                    InputStream in = null;
+                    try {
+                        if (delta) {
+                            octaveDeliveryRecord main = octaveDeliveryRecord.load(prefs, true);
+                            in = octaveDeltaInputStream.open(new File(main.mPath), file);
+                        } else {
+                            in = new FileInputStream(file);
+                            in = octaveParallelGzipInputStream.open(in,
+                                    Runtime.getRuntime().availableProcessors());
+                        }
+                        octaveTarExtractor extractor = new octaveTarExtractor(new File(dir));
+                        extractor.setFilter(octaveInstallProfile.only(subtree));
+                        extractor.extract(in);
+                        octaveInstallProfile.fetched(prefs, fileName, subtree);
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "unable to fetch " + subtree + " from " + fileName, e);
+                    } finally {
+                        octaveSegmentedDownloader.closeQuietly(in);
                     }
                 }
+                return null;
+            }
 
-                // Build PendingIntent used to open this activity from
-                // Notification
-                PendingIntent pendingIntent = PendingIntent.getActivity(
-                        octaveDownloaderActivity.this,
-                        0, intentToLaunchThisActivityFromNotification,
-                        PendingIntent.FLAG_UPDATE_CURRENT);
-                // Request to start the download
-                int startResult = DownloaderClientMarshaller.startDownloadServiceIfRequired(this,
-                        pendingIntent, octaveDownloaderService.class);
-
-                if (startResult != DownloaderClientMarshaller.NO_DOWNLOAD_REQUIRED) {
-                    // The DownloaderService has started downloading the files,
-                    // show progress
-                    initializeDownloadUI();
-                    return;
-                } // otherwise, download not needed so we fall through to
-                  // starting the movie
-            } catch (NameNotFoundException e) {
-                Log.e(LOG_TAG, "Cannot find own package! MAYDAY!");
-                e.printStackTrace();
+        };
+        octaveWorkerPool.get().submit(octaveWorkerPool.PRIORITY_FOREGROUND, work,
+                mProgressChannel, new octaveWorkerPool.Listener<Void>() {
+
+            @Override
+            public void onProgress(octaveWorkerPool.Task<Void> task, long done, long total) {
             }
 
-//        } else {
-//            validateXAPKZipFiles();
-        } else {
-        	Intent intent = this.getIntent();
-        	this.setResult(xAPKS[0].mFileVersion, intent);
-        	finish();
+            @Override
+            public void onFinished(octaveWorkerPool.Task<Void> task) {
+                if (!isFinishing()) {
+                    finishDelivered();
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Installs EXTRA_ADDONS with an octaveInstallQueue, showing how many of
+     * their entries are unpacked, and finishes once every job has finished.
+     */
+    private void installAddons(String[] addons) {
+        Intent intent = getIntent();
+        String execDir = intent.getStringExtra(EXTRA_MAIN_EXTRACT_DIR);
+        String noexecDir = intent.getStringExtra(EXTRA_NOEXEC_DIR);
+        if (null == execDir || null == noexecDir) {
+            Log.e(LOG_TAG, "add-ons need both " + EXTRA_MAIN_EXTRACT_DIR + " and "
+                    + EXTRA_NOEXEC_DIR);
+            setResult(-1, intent);
+            finish();
+            return;
+        }
+        final octaveInstallQueue queue = new octaveInstallQueue(this, new File(execDir),
+                new File(noexecDir), octaveInstallProfile.forName(
+                        intent.getStringExtra(EXTRA_PROFILE)));
+        for (String addon : addons) {
+            queue.add(addon);
+        }
+        if (queue.getJobs().isEmpty()) {
+            finishAddons(queue);
+            return;
         }
+        initializeViews();
+        mStatusText.setText(R.string.text_installing_addons);
+        mPB.setIndeterminate(false);
+        queue.setListener(new octaveInstallQueue.Listener() {
+            private boolean mFinished;
 
+            @Override
+            public void onJobChanged(octaveInstallQueue.Job job) {
+                int entries = 0;
+                int total = 0;
+                boolean finished = true;
+                for (octaveInstallQueue.Job j : queue.getJobs()) {
+                    entries += j.isFinished() ? j.getTotalEntries() : j.getEntries();
+                    total += j.getTotalEntries();
+                    finished &= j.isFinished();
+                }
+                final int done = entries;
+                final int max = total;
+                mProgressChannel.post(queue, new Runnable() {
+                    @Override
+                    public void run() {
+                        mPB.setMax(max);
+                        mPB.setProgress(done);
+                    }
+                });
+                synchronized (this) {
+                    if (!finished || mFinished) {
+                        return;
+                    }
+                    mFinished = true;
+                }
+                mProgressChannel.post(null, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing()) {
+                            finishAddons(queue);
+                        }
+                    }
+                });
+            }
+        });
+        queue.start();
+    }
+
+    private void finishAddons(octaveInstallQueue queue) {
+        List<String> installed = new ArrayList<String>();
+        boolean allInstalled = true;
+        for (octaveInstallQueue.Job job : queue.getJobs()) {
+            if (job.getState() == octaveInstallQueue.STATE_DONE) {
+                installed.add(job.getPackageName());
+            } else {
+                allInstalled = false;
+            }
+        }
+        Intent intent = getIntent();
+        intent.putExtra(EXTRA_ADDONS_INSTALLED, installed.toArray(new String[installed.size()]));
+        setResult(allInstalled ? installed.size() : -1, intent);
+        finish();
+    }
+
+    /**
+     * Times the downloader's states as phases of the install, and writes
+     * the record if the download has failed for good.
+     */
+    private void recordState(int newState) {
+        octaveInstallMetrics metrics = octaveInstallMetrics.get();
+        switch (newState) {
+            case IDownloaderClient.STATE_FETCHING_URL:
+                // the LVL check, whose response carries the URLs
+                metrics.enter(octaveInstallMetrics.PHASE_LICENSE);
+                break;
+            case IDownloaderClient.STATE_CONNECTING:
+                metrics.enter(octaveInstallMetrics.PHASE_CONNECT);
+                break;
+            case IDownloaderClient.STATE_DOWNLOADING:
+                metrics.enter(octaveInstallMetrics.PHASE_TRANSFER);
+                break;
+            case IDownloaderClient.STATE_PAUSED_NEED_CELLULAR_PERMISSION:
+            case IDownloaderClient.STATE_PAUSED_WIFI_DISABLED_NEED_CELLULAR_PERMISSION:
+            case IDownloaderClient.STATE_PAUSED_BY_REQUEST:
+            case IDownloaderClient.STATE_PAUSED_ROAMING:
+            case IDownloaderClient.STATE_PAUSED_SDCARD_UNAVAILABLE:
+                metrics.enter(octaveInstallMetrics.PHASE_PAUSED);
+                break;
+            case IDownloaderClient.STATE_FAILED_CANCELED:
+            case IDownloaderClient.STATE_FAILED:
+            case IDownloaderClient.STATE_FAILED_FETCHING_URL:
+            case IDownloaderClient.STATE_FAILED_UNLICENSED:
+                metrics.enter(null);
+                metrics.write(getFilesDir(), "failed:" + newState);
+                break;
+            default:
+                metrics.enter(null);
+                break;
+        }
+    }
+
+    private void finishDelivered() {
+        octaveInstallMetrics metrics = octaveInstallMetrics.get();
+        metrics.enter(null);
+        metrics.write(getFilesDir(), "delivered");
+        Intent intent = getIntent();
+        intent.putExtra(EXTRA_EXTRACTED, allRequestedExtracted());
+        intent.putExtra(EXTRA_ABI, octaveAbi.get());
+        XAPKFile patch = getPatchXAPKFile();
+        if (null != patch) {
+            File rootfs = octaveDeltaPatcher.getRootfs(octaveDeliveryRecord.getPreferences(this),
+                    patch.getFileName());
+            if (null != rootfs) {
+                intent.putExtra(EXTRA_ROOTFS, rootfs.getPath());
+            }
+        }
+        setResult(getXAPKFiles()[0].mFileVersion, intent);
+        finish();
+    }
+
+    /**
+     * Finishes with the failure result, as after a failed download.
+     */
+    private void finishFailed() {
+        octaveInstallMetrics metrics = octaveInstallMetrics.get();
+        metrics.enter(null);
+        metrics.write(getFilesDir(), "failed");
+        setResult(-1, getIntent());
+        finish();
+    }
+
+    /**
+     * Finishes with the delivered result if every expansion file carries a
+     * recorded verdict. Normally the service hashed the files while they
+     * downloaded, so this is only a couple of preference lookups. Files that
+     * arrived some other way (the stock single-connection fallback, or a copy
+     * made by hand) are hashed here once, on the octaveWorkerPool, and their
+     * verdict recorded, even if the activity goes away meanwhile. Files that
+     * fail, or cannot be read, are deleted and downloaded again; if the
+     * library will not download them, the activity finishes with failure.
+     */
+    private void validateXAPKFiles() {
+        final SharedPreferences prefs = getSharedPreferences(octaveDownloaderService.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        if (octaveDeliveryRecord.allDelivered(prefs, getXAPKFiles()) && !deltaPending(prefs)) {
+            finishDelivered();
+            return;
+        }
+
+        octaveInstallMetrics.get().enter(octaveInstallMetrics.PHASE_VERIFY);
+        initializeViews();
+        mStatusText.setText(R.string.text_verifying);
+        mPB.setIndeterminate(false);
+        octaveWorkerPool.Work<Boolean> work = new octaveWorkerPool.Work<Boolean>() {
+
+            @Override
+            public Boolean run(final octaveWorkerPool.Task<Boolean> task) {
+                XAPKFile[] files = getXAPKFiles();
+                long total = 0;
+                for (XAPKFile xf : files) {
+                    String fileName = xf.getFileName();
+                    total += new File(Helpers.generateSaveFileName(mMe, fileName)).length();
+                }
+                final long overallTotal = total;
+                long done = 0;
+                boolean allGood = true;
+                for (XAPKFile xf : files) {
+                    String fileName = xf.getFileName();
+                    File file = new File(Helpers.generateSaveFileName(mMe, fileName));
+                    long size = file.length();
+                    if (isVerified(prefs, xf)) {
+                        done += size;
+                        continue;
+                    }
+                    final long base = done;
+                    try {
+                        String digest = octaveBlockDigest.digestFile(file,
+                                new octaveBlockDigest.ProgressListener() {
+                                    @Override
+                                    public void onProgress(long bytesDone, long totalBytes) {
+                                        task.progress(base + bytesDone, overallTotal);
+                                    }
+                                });
+                        if (digestMatches(xf, size, digest)) {
+                            recordVerified(mMe, xf, fileName, file, digest);
+                        } else {
+                            Log.e(LOG_TAG, fileName + " is corrupt (digest " + digest + ")");
+                            octaveDeliveryRecord.clear(prefs, xf.mIsMain);
+                            file.delete();
+                            allGood = false;
+                        }
+                    } catch (IOException e) {
+                        // an unreadable copy is no better than a corrupt one
+                        Log.e(LOG_TAG, "unable to verify " + fileName, e);
+                        octaveDeliveryRecord.clear(prefs, xf.mIsMain);
+                        file.delete();
+                        allGood = false;
+                    }
+                    done += size;
+                }
+                if (allGood && deltaPending(prefs)) {
+                    octaveInstallMetrics.get().enter(octaveInstallMetrics.PHASE_PATCH);
+                    applyDelta(prefs, new octaveDeltaPatcher.ProgressListener() {
+                        @Override
+                        public void onProgress(long bytesDone, long totalBytes) {
+                            task.progress(bytesDone, totalBytes);
+                        }
+                    });
+                }
+                return allGood;
+            }
+
+        };
+        octaveWorkerPool.get().submit(octaveWorkerPool.PRIORITY_FOREGROUND, work,
+                mProgressChannel, new octaveWorkerPool.Listener<Boolean>() {
+
+            @Override
+            public void onProgress(octaveWorkerPool.Task<Boolean> task, long done, long total) {
+                onDownloadProgress(new DownloadProgressInfo(total, done, -1, 0));
+            }
+
+            @Override
+            public void onFinished(octaveWorkerPool.Task<Boolean> task) {
+                if (isFinishing()) {
+                    // the verdicts are recorded, the next launch uses them
+                    return;
+                }
+                if (Boolean.TRUE.equals(task.getResult())) {
+                    finishDelivered();
+                } else {
+                    // we are already started, so connect the stub here, not in onStart
+                    if (null != mDownloaderClientStub) {
+                        mDownloaderClientStub.disconnect(mMe);
+                    }
+                    if (!startDownload()) {
+                        // the library sees nothing to fetch, so nothing would
+                        // ever move us off the verifying screen
+                        Log.e(LOG_TAG, "expansion files failed verification and cannot be"
+                                + " downloaded again");
+                        finishFailed();
+                        return;
+                    }
+                    if (null != mDownloaderClientStub) {
+                        mDownloaderClientStub.connect(mMe);
+                    }
+                }
+            }
+
+        });
     }
 
     /**
@@ -280,6 +1052,9 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
      */
     @Override
     protected void onStop() {
+        if (null != mProgressDisplay) {
+            mProgressDisplay.cancel();
+        }
         if (null != mDownloaderClientStub) {
             mDownloaderClientStub.disconnect(this);
         }
@@ -306,11 +1081,11 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
     @Override
     public void onDownloadStateChanged(int newState) {
         setState(newState);
+        recordState(newState);
         boolean showDashboard = true;
         boolean showCellMessage = false;
         boolean paused;
         boolean indeterminate;
-        Handler handler = new Handler();
         switch (newState) {
             case IDownloaderClient.STATE_IDLE:
                 // STATE_IDLE means the service is listening, so it's
@@ -336,7 +1111,7 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
                 paused = true;
                 showDashboard = false;
                 indeterminate = false;
-                handler.postDelayed(new Runnable() {
+                mHandler.postDelayed(new Runnable() {
                     public void run() {
                     	Intent intent = mMe.getIntent();
                     	mMe.setResult(-1, intent);
@@ -365,14 +1140,11 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
                 showDashboard = false;
                 paused = false;
                 indeterminate = false;
-                handler.postDelayed(new Runnable() {
+                mHandler.postDelayed(new Runnable() {
                     public void run() {
-                    	Intent intent = mMe.getIntent();
-                    	mMe.setResult(xAPKS[0].mFileVersion, intent);
-                    	finish();
+                        validateXAPKFiles();
                     }
                 }, 1000);
-//              validateXAPKZipFiles();
                 return;
             default:
                 paused = true;
@@ -394,24 +1166,12 @@ public class octaveDownloaderActivity extends Activity implements IDownloaderCli
 
     /**
      * Sets the state of the various controls based on the progressinfo object
-     * sent from the downloader service.
+     * sent from the downloader service. The views are updated by
+     * octaveProgressDisplay, at most once a frame.
      */
     @Override
     public void onDownloadProgress(DownloadProgressInfo progress) {
-        mAverageSpeed.setText(getString(R.string.kilobytes_per_second,
-                Helpers.getSpeedString(progress.mCurrentSpeed)));
-        mTimeRemaining.setText(getString(R.string.time_remaining,
-                Helpers.getTimeRemaining(progress.mTimeRemaining)));
-
-        progress.mOverallTotal = progress.mOverallTotal;
-        mPB.setMax((int) (progress.mOverallTotal >> 8));
-        mPB.setProgress((int) (progress.mOverallProgress >> 8));
-        mProgressPercent.setText(Long.toString(progress.mOverallProgress
-                * 100 /
-                progress.mOverallTotal) + "%");
-        mProgressFraction.setText(Helpers.getDownloadProgressString
-                (progress.mOverallProgress,
-                        progress.mOverallTotal));
+        mProgressDisplay.post(progress);
     }
     
     @Override
@@ -16,13 +16,50 @@
 
 package com.octave.main.x86;
 
+import com.google.android.vending.expansion.downloader.DownloadProgressInfo;
+import com.google.android.vending.expansion.downloader.DownloaderClientMarshaller;
+import com.google.android.vending.expansion.downloader.Helpers;
+import com.google.android.vending.expansion.downloader.IDownloaderClient;
+import com.google.android.vending.expansion.downloader.impl.DownloadInfo;
 import com.google.android.vending.expansion.downloader.impl.DownloaderService;
+import com.google.android.vending.expansion.downloader.impl.DownloadsDB;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Environment;
+import android.os.Messenger;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 
 /**
  * This class demonstrates the minimal client implementation of the
  * DownloaderService from the Downloader library.
  */
 public class octaveDownloaderService extends DownloaderService {
+    private static final String LOG_TAG = "octaveDownloaderService";
+
+    // don't flood the client with progress messages
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    /**
+     * Where octaveDownloaderActivity keeps the extraction targets it was
+     * launched with, and the files that have already been unpacked.
+     */
+    static final String PREFS_NAME = "octave_install";
+    static final String PREF_MAIN_EXTRACT_DIR = "mainExtractDir";
+    static final String PREF_PATCH_EXTRACT_DIR = "patchExtractDir";
+    static final String PREF_PROFILE = "profile";
+    static final String PREF_EXTRACTED_PREFIX = "extracted.";
+
     // stuff for LVL -- MODIFY FOR YOUR APPLICATION!
 	private static final String BASE64_PUBLIC_KEY = "MIIBIjANBgkqhkiG9w0BAQEFAAOCAQ8AMIIBCgKCAQEAgMWZwZmq+BwXsPmG1kYodCAiWq7DKzZZh8chsgW3tf0eIF7mX7JUVS6GeXyVDPKLS1Ems5NNksbiGbi61uDb5r41gwYxU4Q7x/oT+PdBLfHOJGDgKgciC8XXdLE8wNvsBOkbqQ5H3whi93HYZJutLoBo2OF6O5ytbSzTL8EQnajqVqT2g/bwAn2oUX1qXRt45w+IBGn4i7w7T46PG6qoLMcn05evxTmW7B6SoWIw9CZ/W+5ItYIkuVygcawJoIoBAKFJhsDNiGTVvpjuV+Lec+pWCN5544dPBRm2NsJW3x8jpxc9wj4WNCKY5eF7QCP/p9gR0xxMDB9aeIY+PBQmCQIDAQAB";
     // used by the preference obfuscater
@@ -31,6 +68,17 @@ public class octaveDownloaderService extends DownloaderService {
             -100, -12, 43, 2, -8, -4, 9, 5, -106, -108, -33, 45, -1, 84
     };
 
+    private IDownloaderClient mClientProxy;
+
+    private volatile octaveSegmentedDownloader mSegmentedDownloader;
+    private volatile boolean mAborted;
+
+    /**
+     * The segmented engine's partial file, kept apart from the stock
+     * thread's .tmp file since it is written out of order.
+     */
+    private static final String PART_SUFFIX = ".part";
+
     /**
      * This public key comes from your Android Market publisher account, and it
      * used by the LVL to validate responses from Market on your behalf.
@@ -60,4 +108,391 @@ public class octaveDownloaderService extends DownloaderService {
         return octaveAlarmReceiver.class.getName();
     }
 
+    /**
+     * Keep our own proxy to the client so the segmented engine can report
+     * through the same IDownloaderClient callbacks the stock threads use.
+     */
+    @Override
+    public void onClientUpdated(Messenger clientMessenger) {
+        mClientProxy = DownloaderClientMarshaller.CreateProxy(clientMessenger);
+        super.onClientUpdated(clientMessenger);
+    }
+
+    @Override
+    public void requestPauseDownload() {
+        cancelSegmentedDownload();
+        super.requestPauseDownload();
+    }
+
+    @Override
+    public void requestAbortDownload() {
+        mAborted = true;
+        cancelSegmentedDownload();
+        super.requestAbortDownload();
+    }
+
+    /**
+     * Once the LVL check has filled in the download URLs we fetch every
+     * outstanding file with the segmented engine and mark it successful in
+     * the downloads database. The stock implementation then only has to
+     * confirm the files and report STATE_COMPLETED. Anything the engine
+     * could not finish is left for the stock single-connection thread.
+     *
+     * If Market lists a file built for another ABI (the APK was sideloaded
+     * onto the wrong device) nothing is fetched at all.
+     */
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        String foreign = findForeignDownload();
+        if (null != foreign) {
+            Log.e(LOG_TAG, foreign + " is not for ABI " + octaveAbi.get() + ", not fetching it");
+            notifyClientState(IDownloaderClient.STATE_FAILED);
+            return;
+        }
+        downloadSegmented();
+        super.onHandleIntent(intent);
+    }
+
+    /**
+     * @return the name of an outstanding download that is one of our
+     *         expansion files for another ABI, or null if there is none
+     */
+    private String findForeignDownload() {
+        DownloadInfo[] infos = DownloadsDB.getDB(this).getDownloads();
+        if (null == infos) {
+            return null;
+        }
+        String abi = octaveAbi.get();
+        for (DownloadInfo info : infos) {
+            octaveDownloaderActivity.XAPKFile xf = octaveDownloaderActivity.findXAPKFile(
+                    info.mFileName);
+            if (info.mStatus != STATUS_SUCCESS && null != xf && !xf.mAbi.equals(abi)) {
+                return info.mFileName;
+            }
+        }
+        return null;
+    }
+
+    private void downloadSegmented() {
+        DownloadsDB db = DownloadsDB.getDB(this);
+        DownloadInfo[] infos = db.getDownloads();
+        if (null == infos) {
+            return;
+        }
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mAborted = false;
+        long overallTotal = 0;
+        long overallDone = 0;
+        for (DownloadInfo info : infos) {
+            overallTotal += info.mTotalBytes;
+            if (info.mStatus == STATUS_SUCCESS) {
+                overallDone += info.mTotalBytes;
+            }
+        }
+        for (DownloadInfo info : infos) {
+            File destFile = new File(Helpers.generateSaveFileName(this, info.mFileName));
+            File tempFile = new File(destFile.getPath() + PART_SUFFIX);
+            if (info.mStatus == STATUS_SUCCESS) {
+                // delivered by the stock thread after all
+                discardPart(tempFile);
+                continue;
+            }
+            if (null == info.mUri || getControl() != CONTROL_RUN) {
+                continue;
+            }
+            File extractDir = getExtractDir(prefs, info.mFileName);
+            ExtractionThread extraction = null;
+            try {
+                if (info.mTotalBytes > 0) {
+                    // a part left by an earlier run already has its blocks
+                    octaveSpacePlanner space = new octaveSpacePlanner(tempFile.getParentFile());
+                    space.addFile(tempFile.getName(), info.mTotalBytes);
+                    space.check();
+                }
+                octaveSegmentedDownloader downloader = new octaveSegmentedDownloader(info.mUri,
+                        tempFile, info.mTotalBytes, octaveDownloadScheduler.DEFAULT_MAX_CONNECTIONS,
+                        octaveSegmentedDownloader.DEFAULT_CHUNK_SIZE);
+                downloader.setScheduler(newScheduler());
+                // paused, killed or the card went away: the next run picks up
+                // from the journal
+                downloader.setResumable(true);
+                downloader.setProgressListener(new ProgressRelay(overallDone, overallTotal));
+                octaveBlockDigest digest = null;
+                if (info.mTotalBytes > 0) {
+                    digest = new octaveBlockDigest(info.mTotalBytes);
+                    downloader.setBlockDigest(digest);
+                }
+                mSegmentedDownloader = downloader;
+                prefs.edit().remove(PREF_EXTRACTED_PREFIX + info.mFileName).commit();
+                if (null != extractDir) {
+                    extraction = new ExtractionThread(downloader, tempFile, extractDir,
+                            octaveInstallProfile.forName(prefs.getString(PREF_PROFILE, null)),
+                            overallDone);
+                    extraction.start();
+                }
+                notifyClientState(IDownloaderClient.STATE_DOWNLOADING);
+                boolean complete = downloader.download();
+                Log.i(LOG_TAG, info.mFileName + ": " + downloader.getScheduler()
+                        + (downloader.getResumedBytes() > 0 ? ", resumed at "
+                                + downloader.getResumedBytes() : ""));
+                if (!complete) {
+                    joinQuietly(extraction);
+                    if (mAborted) {
+                        discardPart(tempFile);
+                    }
+                    return;
+                }
+                // the decoder is at most a few buffers behind by now
+                if (null != extraction) {
+                    extraction.join();
+                    if (extraction.mSkipped) {
+                        Log.i(LOG_TAG, info.mFileName + " is a delta patch, not unpacking it");
+                    } else if (null == extraction.mError) {
+                        extraction.mProfile.saveSkipped(prefs, info.mFileName);
+                        prefs.edit().putBoolean(PREF_EXTRACTED_PREFIX + info.mFileName, true)
+                                .commit();
+                    } else {
+                        Log.w(LOG_TAG, "streaming extraction of " + info.mFileName
+                                + " failed, leaving it for after the download",
+                                extraction.mError);
+                    }
+                }
+                String verified = checkDigest(info.mFileName, downloader.getTotalBytes(), digest);
+                if (null == verified) {
+                    // leave it to the stock thread; the activity hashes that copy
+                    prefs.edit().remove(PREF_EXTRACTED_PREFIX + info.mFileName).commit();
+                    discardPart(tempFile);
+                    continue;
+                }
+                if (!tempFile.renameTo(destFile)) {
+                    throw new IOException("unable to rename " + tempFile + " to " + destFile);
+                }
+                recordDelivery(info.mFileName, destFile, verified);
+                info.mTotalBytes = downloader.getTotalBytes();
+                info.mCurrentBytes = info.mTotalBytes;
+                info.mStatus = STATUS_SUCCESS;
+                db.updateDownload(info);
+                overallDone += info.mTotalBytes;
+            } catch (octaveSpacePlanner.InsufficientSpaceException e) {
+                // the stock thread finds the same and reports STATE_FAILED_SDCARD_FULL
+                Log.w(LOG_TAG, "not downloading " + info.mFileName + ": " + e.getMessage());
+                discardPart(tempFile);
+            } catch (IOException e) {
+                joinQuietly(extraction);
+                if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+                    // the stock thread reports STATE_PAUSED_SDCARD_UNAVAILABLE; once
+                    // the card is back the journal says what is still missing
+                    Log.w(LOG_TAG, "storage went away during " + info.mFileName, e);
+                    return;
+                }
+                Log.w(LOG_TAG, "segmented download of " + info.mFileName
+                        + " failed, falling back to a single connection", e);
+                discardPart(tempFile);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                mSegmentedDownloader = null;
+                octaveExtractionProgress.stop();
+            }
+        }
+    }
+
+    private static void discardPart(File part) {
+        part.delete();
+        octaveDownloadJournal.fileFor(part).delete();
+    }
+
+    /**
+     * The scheduler finds the right number of connections by itself; this
+     * only picks where it starts. Over cellular (the path resumeOverCellular
+     * allows) one connection, since radio links rarely gain from more and
+     * the extra handshakes cost; otherwise two.
+     */
+    private octaveDownloadScheduler newScheduler() {
+        int connections = 2;
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        NetworkInfo network = null == cm ? null : cm.getActiveNetworkInfo();
+        if (null != network && network.getType() == ConnectivityManager.TYPE_MOBILE) {
+            connections = 1;
+        }
+        return new octaveDownloadScheduler(connections,
+                octaveDownloadScheduler.DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Compares the digest computed during the transfer with the one pinned in
+     * octaveDownloaderActivity's table.
+     *
+     * @return the verified digest, "" if the file could not be hashed during
+     *         the transfer, or null if it is corrupt
+     */
+    private String checkDigest(String fileName, long size, octaveBlockDigest digest) {
+        if (null == digest || !digest.isComplete()) {
+            return "";
+        }
+        String value = digest.getDigest();
+        octaveDownloaderActivity.XAPKFile xf = octaveDownloaderActivity.findXAPKFile(fileName);
+        if (!octaveDownloaderActivity.digestMatches(xf, size, value)) {
+            Log.e(LOG_TAG, fileName + " failed verification (digest " + value + ")");
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * Writes the delivery record for a verified file, after it has been
+     * renamed into place so the recorded modification time is final.
+     * Unhashed files get no record; the activity checks those once.
+     */
+    private void recordDelivery(String fileName, File file, String digest) {
+        octaveDownloaderActivity.XAPKFile xf = octaveDownloaderActivity.findXAPKFile(fileName);
+        if (null != xf && digest.length() > 0) {
+            octaveDownloaderActivity.recordVerified(this, xf, fileName, file, digest);
+        }
+    }
+
+    /**
+     * @return the directory the given expansion file should be streamed
+     *         into, or null if the launching app did not ask for that
+     */
+    private static File getExtractDir(SharedPreferences prefs, String fileName) {
+        String dir = prefs.getString(fileName.startsWith("main.") ? PREF_MAIN_EXTRACT_DIR
+                : PREF_PATCH_EXTRACT_DIR, null);
+        return null == dir ? null : new File(dir);
+    }
+
+    private static void joinQuietly(Thread t) {
+        if (null != t) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Inflates and untars an expansion file while the segmented engine is
+     * still writing it. If the download fails the growing stream throws and
+     * this thread simply ends.
+     */
+    private static class ExtractionThread extends Thread {
+        private final octaveSegmentedDownloader mDownloader;
+        private final File mFile;
+        private final File mDir;
+        private final long mBaseBytes;
+        final octaveInstallProfile mProfile;
+        volatile IOException mError;
+        volatile boolean mSkipped;
+
+        ExtractionThread(octaveSegmentedDownloader downloader, File file, File dir,
+                octaveInstallProfile profile, long baseBytes) {
+            super("octaveExtraction");
+            mDownloader = downloader;
+            mFile = file;
+            mDir = dir;
+            mProfile = profile;
+            mBaseBytes = baseBytes;
+        }
+
+        @Override
+        public void run() {
+            octaveExtractionProgress.start(mBaseBytes);
+            octaveInstallMetrics.get().begin(octaveInstallMetrics.PHASE_EXTRACT);
+            InputStream in = null;
+            try {
+                final octaveGrowingFileInputStream raw = new octaveGrowingFileInputStream(
+                        mDownloader, mFile);
+                in = new BufferedInputStream(raw, octaveDeltaInputStream.MAGIC.length);
+                if (isDelta(in)) {
+                    // a delta is applied by the activity once main is verified
+                    mSkipped = true;
+                    return;
+                }
+                in = octaveParallelGzipInputStream.open(in,
+                        Runtime.getRuntime().availableProcessors());
+                octaveTarExtractor extractor = new octaveTarExtractor(mDir);
+                extractor.setFilter(mProfile);
+                extractor.setProgressListener(new octaveTarExtractor.ProgressListener() {
+                    @Override
+                    public void onEntryExtracted(String name, long archiveBytes, int entries) {
+                        octaveExtractionProgress.update(mBaseBytes + raw.getPosition(), entries);
+                    }
+                });
+                extractor.extract(in);
+            } catch (IOException e) {
+                mError = e;
+            } finally {
+                octaveInstallMetrics.get().end(octaveInstallMetrics.PHASE_EXTRACT);
+                octaveSegmentedDownloader.closeQuietly(in);
+            }
+        }
+
+        private static boolean isDelta(InputStream in) throws IOException {
+            byte[] magic = new byte[octaveDeltaInputStream.MAGIC.length];
+            in.mark(magic.length);
+            int off = 0;
+            while (off < magic.length) {
+                int n = in.read(magic, off, magic.length - off);
+                if (n < 0) {
+                    break;
+                }
+                off += n;
+            }
+            in.reset();
+            return Arrays.equals(magic, octaveDeltaInputStream.MAGIC);
+        }
+    }
+
+    private void cancelSegmentedDownload() {
+        octaveSegmentedDownloader downloader = mSegmentedDownloader;
+        if (null != downloader) {
+            downloader.cancel();
+        }
+    }
+
+    private void notifyClientState(int newState) {
+        IDownloaderClient client = mClientProxy;
+        if (null != client) {
+            client.onDownloadStateChanged(newState);
+        }
+    }
+
+    /**
+     * Turns the engine's byte counts into DownloadProgressInfo messages for
+     * the client, at most once per PROGRESS_INTERVAL. Speed is in bytes per
+     * millisecond and time remaining in milliseconds, as Helpers expects,
+     * both smoothed by an octaveThroughputEstimator.
+     */
+    private class ProgressRelay implements octaveSegmentedDownloader.ProgressListener {
+        private final long mBaseBytes;
+        private final long mOverallTotal;
+        private final octaveThroughputEstimator mEstimator = new octaveThroughputEstimator();
+        private long mLastReport;
+
+        ProgressRelay(long baseBytes, long overallTotal) {
+            mBaseBytes = baseBytes;
+            mOverallTotal = overallTotal;
+        }
+
+        @Override
+        public synchronized void onProgress(long bytesSoFar, long totalBytes) {
+            long now = SystemClock.uptimeMillis();
+            mEstimator.update(now, bytesSoFar, totalBytes);
+            if (now - mLastReport < PROGRESS_INTERVAL && bytesSoFar < totalBytes) {
+                return;
+            }
+            mLastReport = now;
+            IDownloaderClient client = mClientProxy;
+            if (null == client) {
+                return;
+            }
+            long overallTotal = Math.max(mOverallTotal, mBaseBytes + totalBytes);
+            client.onDownloadProgress(new DownloadProgressInfo(overallTotal,
+                    mBaseBytes + bytesSoFar, mEstimator.getTimeRemaining(),
+                    mEstimator.getBytesPerMillisecond()));
+        }
+    }
+
 }
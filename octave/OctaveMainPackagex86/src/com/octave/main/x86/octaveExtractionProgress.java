@@ -0,0 +1,47 @@
+package com.octave.main.x86;
+
+/**
+ * Extraction progress published by octaveDownloaderService for
+ * octaveDownloaderActivity. Both run in the same process, and the
+ * DownloadProgressInfo messages have no room for a second counter, so the
+ * activity simply samples these values whenever a download progress
+ * message arrives.
+ *
+ * Bytes are counted in compressed archive bytes consumed, which puts them on
+ * the same scale as the download progress.
+ */
+final class octaveExtractionProgress {
+
+    private static volatile long sBytes;
+    private static volatile int sEntries;
+    private static volatile boolean sActive;
+
+    private octaveExtractionProgress() {
+    }
+
+    static void start(long baseBytes) {
+        sBytes = baseBytes;
+        sActive = true;
+    }
+
+    static void update(long bytes, int entries) {
+        sBytes = bytes;
+        sEntries = entries;
+    }
+
+    static void stop() {
+        sActive = false;
+    }
+
+    static boolean isActive() {
+        return sActive;
+    }
+
+    static long getBytes() {
+        return sBytes;
+    }
+
+    static int getEntries() {
+        return sEntries;
+    }
+}
@@ -0,0 +1,68 @@
+package com.octave.main.x86;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads a file that octaveSegmentedDownloader is still writing. Every read
+ * is limited to the contiguous prefix the downloader has finished and
+ * blocks until more of it lands, so a decoder stacked on top of this stream
+ * runs right behind the download instead of after it.
+ */
+public class octaveGrowingFileInputStream extends InputStream {
+
+    private final octaveSegmentedDownloader mDownloader;
+    private final RandomAccessFile mFile;
+    private long mPosition;
+
+    public octaveGrowingFileInputStream(octaveSegmentedDownloader downloader, File file)
+            throws IOException {
+        mDownloader = downloader;
+        mFile = new RandomAccessFile(file, "r");
+    }
+
+    public long getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        long available = mDownloader.awaitContiguous(mPosition) - mPosition;
+        if (available <= 0) {
+            return -1;
+        }
+        mFile.seek(mPosition);
+        int n = mFile.read(b, off, (int) Math.min(len, available));
+        if (n > 0) {
+            mPosition += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long available = mDownloader.awaitContiguous(mPosition) - mPosition;
+        long skipped = Math.max(0, Math.min(n, available));
+        mPosition += skipped;
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,535 @@
+package com.octave.main.x86;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Installs a set of add-ons together. The Octave Forge DESCRIPTION of each
+ * (see octaveForgeDescription) says which others it depends on; an add-on
+ * is only unpacked once the add-ons it depends on that are in the same
+ * queue are installed, and add-ons that do not depend on each other are
+ * unpacked at the same time. Dependencies that are not queued are taken
+ * to be installed already, or not available as add-ons (e.g. "image").
+ *
+ * The installs run on the octaveWorkerPool at PRIORITY_INSTALL, at most a
+ * limit of them at once, whatever the dependencies allow, and the cores
+ * are split between them, so the installs share the storage instead of
+ * competing for it. Each job installs the exec payload of its add-on into
+ * the exec root and the noexec payload into the noexec root (the tree the
+ * exec payload's links reach as /noexec) with
+ * octaveAddonInstaller.installOwned().
+ *
+ * A job that fails or is cancelled fails or cancels the jobs that depend
+ * on it; the others carry on. A dependency cycle is broken, with a
+ * warning, and its add-ons installed in queue order.
+ */
+public class octaveInstallQueue {
+
+    /**
+     * Told when a job changes state or unpacks an entry, on the thread
+     * doing the work. The job may be cancelled from here.
+     */
+    public interface Listener {
+        void onJobChanged(Job job);
+    }
+
+    public static final int STATE_WAITING = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELLED = 4;
+
+    /**
+     * Installs at once on internal storage. Two keep the flash busy while
+     * one of them is inflating; SD cards slow down with any concurrent
+     * writers, so on external storage the installs take turns.
+     */
+    public static final int DEFAULT_LIMIT = 2;
+
+    private static final String LOG_TAG = "octaveInstallQueue";
+    private static final String[] STATE_NAMES = {
+            "waiting", "running", "done", "failed", "cancelled"
+    };
+    private static final String[] PAYLOADS = {
+            "exec", "noexec"
+    };
+
+    private final Context mContext;
+    /** where each of PAYLOADS goes */
+    private final File[] mRoots;
+    private final octaveInstallProfile mProfile;
+    private final int mLimit;
+    private final Map<String, Job> mJobs = new LinkedHashMap<String, Job>();
+    private boolean mStarted;
+    private boolean mPlanned;
+    private int mRunning;
+    private volatile Listener mListener;
+
+    /**
+     * One add-on to install.
+     */
+    public class Job {
+        private final String mPackageName;
+        private final List<Job> mDepends = new ArrayList<Job>();
+        private volatile octaveForgeDescription mDescription;
+        private volatile int mState = STATE_WAITING;
+        private volatile int mEntries;
+        private volatile int mTotalEntries;
+        private volatile boolean mCancelled;
+        private octaveWorkerPool.Task<Void> mTask;
+        private volatile Exception mError;
+
+        Job(String packageName) {
+            mPackageName = packageName;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        /**
+         * @return the Forge description, once the queue has read it; null
+         *         before and for add-ons that are no Forge package
+         */
+        public octaveForgeDescription getDescription() {
+            return mDescription;
+        }
+
+        public int getState() {
+            return mState;
+        }
+
+        /**
+         * @return the entries unpacked so far, of both payloads
+         */
+        public int getEntries() {
+            return mEntries;
+        }
+
+        /**
+         * @return the entries both payloads list, 0 until known
+         */
+        public int getTotalEntries() {
+            return mTotalEntries;
+        }
+
+        /**
+         * @return why the job failed or was cancelled, or null
+         */
+        public Exception getError() {
+            return mError;
+        }
+
+        public boolean isFinished() {
+            return mState >= STATE_DONE;
+        }
+
+        /**
+         * Cancels the job, and so every job that depends on it. A running
+         * install stops at its next entry, leaving what it unpacked.
+         */
+        public void cancel() {
+            octaveInstallQueue.this.cancel(this);
+        }
+
+        @Override
+        public String toString() {
+            return mPackageName + " " + STATE_NAMES[mState] + " " + mEntries + "/"
+                    + mTotalEntries;
+        }
+    }
+
+    /**
+     * @param execRoot where the exec payloads are unpacked
+     * @param noexecRoot where the noexec payloads are unpacked
+     */
+    public octaveInstallQueue(Context c, File execRoot, File noexecRoot,
+            octaveInstallProfile profile) {
+        this(c, execRoot, noexecRoot, profile,
+                Math.min(limitFor(execRoot), limitFor(noexecRoot)));
+    }
+
+    /**
+     * @param limit how many installs may run at once
+     */
+    public octaveInstallQueue(Context c, File execRoot, File noexecRoot,
+            octaveInstallProfile profile, int limit) {
+        mContext = c;
+        mRoots = new File[] {
+                execRoot, noexecRoot
+        };
+        mProfile = profile;
+        mLimit = Math.max(1, limit);
+    }
+
+    /**
+     * @return the install limit for a tree: DEFAULT_LIMIT, or 1 if it is on
+     *         external storage
+     */
+    public static int limitFor(File root) {
+        File external = Environment.getExternalStorageDirectory();
+        if (null != external && root.getAbsolutePath().startsWith(
+                external.getAbsolutePath() + File.separator)) {
+            return 1;
+        }
+        return DEFAULT_LIMIT;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues an add-on; adding it twice is harmless.
+     *
+     * @throws IllegalStateException once the queue has started
+     */
+    public synchronized Job add(String packageName) {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        Job job = mJobs.get(packageName);
+        if (null == job) {
+            job = new Job(packageName);
+            mJobs.put(packageName, job);
+        }
+        return job;
+    }
+
+    /**
+     * @return every job, in the order added
+     */
+    public synchronized List<Job> getJobs() {
+        return Collections.unmodifiableList(new ArrayList<Job>(mJobs.values()));
+    }
+
+    /**
+     * Reads the dependencies and starts the installs, in the background.
+     */
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        octaveWorkerPool.get().submit(octaveWorkerPool.PRIORITY_INSTALL,
+                new octaveWorkerPool.Work<Void>() {
+                    @Override
+                    public Void run(octaveWorkerPool.Task<Void> task) {
+                        try {
+                            plan();
+                            advance();
+                        } catch (RuntimeException e) {
+                            // nothing else would ever finish the jobs
+                            failAll(e);
+                            throw e;
+                        }
+                        return null;
+                    }
+                }, null, null);
+    }
+
+    /**
+     * Cancels every job that has not finished.
+     */
+    public void cancelAll() {
+        for (Job job : getJobs()) {
+            cancel(job);
+        }
+    }
+
+    /**
+     * Waits until every job has finished.
+     *
+     * @return true if all were installed, at once if none was added
+     * @throws IllegalStateException if jobs were added but start() was not
+     *             called
+     */
+    public synchronized boolean await() throws InterruptedException {
+        if (!mStarted && !mJobs.isEmpty()) {
+            throw new IllegalStateException("not started");
+        }
+        while (!allFinished()) {
+            wait();
+        }
+        for (Job job : mJobs.values()) {
+            if (job.mState != STATE_DONE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void cancel(Job job) {
+        octaveWorkerPool.Task<Void> task;
+        synchronized (this) {
+            job.mCancelled = true;
+            task = job.mTask;
+        }
+        if (null != task) {
+            task.cancel();
+        }
+        advance();
+    }
+
+    /**
+     * Reads every job's description and links it to the queued jobs it
+     * depends on. If the jobs together would not fit on the disk, they all
+     * fail here, before any is unpacked.
+     */
+    private void plan() {
+        Map<String, Job> byName = new HashMap<String, Job>();
+        octaveSpacePlanner[] space = new octaveSpacePlanner[PAYLOADS.length];
+        for (int p = 0; p < PAYLOADS.length; p++) {
+            try {
+                space[p] = new octaveSpacePlanner(mRoots[p]);
+            } catch (IOException e) {
+                // each install still checks for itself
+            }
+        }
+        for (Job job : getJobs()) {
+            try {
+                octaveForgeDescription description = octaveForgeDescription.load(mContext,
+                        job.mPackageName);
+                int total = 0;
+                for (int p = 0; p < PAYLOADS.length; p++) {
+                    octaveManifestIndex index = octaveAddonInstaller.loadManifest(mContext,
+                            job.mPackageName, PAYLOADS[p]);
+                    total += index.size();
+                    if (null != space[p]) {
+                        space[p].addManifest(index, mProfile);
+                    }
+                }
+                job.mDescription = description;
+                job.mTotalEntries = total;
+                if (null != description) {
+                    byName.put(description.getName(), job);
+                }
+            } catch (Exception e) {
+                finish(job, STATE_FAILED, e);
+            }
+        }
+        for (octaveSpacePlanner s : space) {
+            try {
+                if (null != s) {
+                    s.check();
+                }
+            } catch (octaveSpacePlanner.InsufficientSpaceException e) {
+                for (Job job : getJobs()) {
+                    finish(job, STATE_FAILED, e);
+                }
+                break;
+            }
+        }
+        synchronized (this) {
+            for (Job job : mJobs.values()) {
+                if (null == job.mDescription) {
+                    continue;
+                }
+                for (String name : job.mDescription.getDepends()) {
+                    Job dep = byName.get(name);
+                    if (null != dep && dep != job) {
+                        job.mDepends.add(dep);
+                    }
+                }
+            }
+            breakCycles();
+            mPlanned = true;
+        }
+    }
+
+    /**
+     * Drops the dependency that closes each cycle, walking the jobs in
+     * queue order.
+     */
+    private void breakCycles() {
+        Set<Job> done = new HashSet<Job>();
+        for (Job job : mJobs.values()) {
+            breakCycles(job, new HashSet<Job>(), done);
+        }
+    }
+
+    private void breakCycles(Job job, Set<Job> path, Set<Job> done) {
+        if (done.contains(job)) {
+            return;
+        }
+        path.add(job);
+        for (Job dep : new ArrayList<Job>(job.mDepends)) {
+            if (path.contains(dep)) {
+                Log.w(LOG_TAG, "dependency cycle: " + job.mPackageName + " needs "
+                        + dep.mPackageName + ", installing them in queue order");
+                job.mDepends.remove(dep);
+            } else {
+                breakCycles(dep, path, done);
+            }
+        }
+        path.remove(job);
+        done.add(job);
+    }
+
+    /**
+     * Settles jobs whose dependencies failed and starts those whose
+     * dependencies are installed.
+     */
+    private void advance() {
+        List<Job> changed = new ArrayList<Job>();
+        synchronized (this) {
+            if (!mStarted) {
+                return;
+            }
+            boolean again = true;
+            while (again) {
+                again = false;
+                for (final Job job : mJobs.values()) {
+                    if (job.mState != STATE_WAITING || null != job.mTask) {
+                        continue;
+                    }
+                    if (job.mCancelled) {
+                        settle(job, STATE_CANCELLED, null);
+                        changed.add(job);
+                        again = true;
+                        continue;
+                    }
+                    boolean ready = true;
+                    for (Job dep : job.mDepends) {
+                        if (dep.mState == STATE_FAILED || dep.mState == STATE_CANCELLED) {
+                            settle(job, dep.mState, new IOException(dep.mPackageName + " "
+                                    + STATE_NAMES[dep.mState]));
+                            changed.add(job);
+                            again = true;
+                            ready = false;
+                            break;
+                        }
+                        ready &= dep.mState == STATE_DONE;
+                    }
+                    if (ready && mPlanned && mRunning < mLimit) {
+                        mRunning++;
+                        job.mTask = octaveWorkerPool.get().submit(
+                                octaveWorkerPool.PRIORITY_INSTALL,
+                                new octaveWorkerPool.Work<Void>() {
+                                    @Override
+                                    public Void run(octaveWorkerPool.Task<Void> task) {
+                                        install(job);
+                                        return null;
+                                    }
+                                }, null, new octaveWorkerPool.Listener<Void>() {
+                                    @Override
+                                    public void onProgress(octaveWorkerPool.Task<Void> task,
+                                            long done, long total) {
+                                    }
+
+                                    @Override
+                                    public void onFinished(octaveWorkerPool.Task<Void> task) {
+                                        // also when cancelled before it ran
+                                        if (!job.isFinished()) {
+                                            finish(job, STATE_CANCELLED, null);
+                                        }
+                                    }
+                                });
+                    }
+                }
+            }
+        }
+        for (Job job : changed) {
+            notifyChanged(job);
+        }
+    }
+
+    private void install(final Job job) {
+        synchronized (this) {
+            if (!job.mCancelled) {
+                job.mState = STATE_RUNNING;
+            }
+        }
+        if (job.mState != STATE_RUNNING) {
+            finish(job, STATE_CANCELLED, null);
+            return;
+        }
+        notifyChanged(job);
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / mLimit);
+        try {
+            int base = 0;
+            for (int p = 0; p < PAYLOADS.length; p++) {
+                final int before = base;
+                base += octaveAddonInstaller.installOwned(mContext, job.mPackageName,
+                        PAYLOADS[p], mRoots[p], mProfile, threads,
+                        new octaveTarExtractor.ProgressListener() {
+                            @Override
+                            public void onEntryExtracted(String name, long archiveBytes,
+                                    int entries) {
+                                job.mEntries = before + entries;
+                                notifyChanged(job);
+                            }
+                        });
+            }
+            finish(job, STATE_DONE, null);
+        } catch (Exception e) {
+            if (job.mCancelled) {
+                finish(job, STATE_CANCELLED, null);
+            } else {
+                Log.e(LOG_TAG, "unable to install " + job.mPackageName, e);
+                finish(job, STATE_FAILED, e);
+            }
+        }
+    }
+
+    private void finish(Job job, int state, Exception error) {
+        synchronized (this) {
+            settle(job, state, error);
+        }
+        notifyChanged(job);
+        advance();
+    }
+
+    private void failAll(Exception error) {
+        List<Job> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<Job>(mJobs.values());
+            for (Job job : jobs) {
+                settle(job, STATE_FAILED, error);
+            }
+        }
+        for (Job job : jobs) {
+            notifyChanged(job);
+        }
+    }
+
+    private void settle(Job job, int state, Exception error) {
+        if (job.isFinished()) {
+            return;
+        }
+        if (null != job.mTask) {
+            mRunning--;
+        }
+        job.mError = error;
+        job.mState = state;
+        notifyAll();
+    }
+
+    private boolean allFinished() {
+        for (Job job : mJobs.values()) {
+            if (!job.isFinished()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void notifyChanged(Job job) {
+        Listener listener = mListener;
+        if (null != listener) {
+            listener.onJobChanged(job);
+        }
+    }
+}
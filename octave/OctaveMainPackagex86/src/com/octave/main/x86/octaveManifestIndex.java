@@ -0,0 +1,447 @@
+package com.octave.main.x86;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * What a payload contains, as a sorted path table that is cheap to load and
+ * search. It is built from the "tree -aFfi" listings the package scripts
+ * write next to each payload (exec_files.txt, noexec_files.txt), or from
+ * an indexed payload itself, and can be saved in a compact binary form
+ * (the .idx files).
+ *
+ * Paths are relative to the payload root, without a leading "./", and
+ * sorted by their UTF-8 bytes, so every path under a directory is one
+ * contiguous run: find() is a binary search and prefix() returns that run.
+ * All paths and link targets share one byte pool; per entry there is only a
+ * type, a mode, a size and the lengths and offsets into the pool.
+ */
+public class octaveManifestIndex {
+
+    public static final byte[] MAGIC = {
+            'O', 'C', 'T', 'M', 'I', 'D', 'X', '1'
+    };
+
+    /** size of entries that came from a text listing, which has none */
+    public static final long UNKNOWN_SIZE = -1;
+
+    private static final String UTF8 = "UTF-8";
+
+    /** link lengths with a special meaning, in memory and in the saved form */
+    private static final int NO_LINK = 0xffff;
+    private static final int NOEXEC_LINK = 0xfffe;
+
+    /**
+     * linkify replaces every non-executable file with a link to its copy
+     * in the noexec payload, so most link targets are just this plus the
+     * link's own path and need not be stored.
+     */
+    private static final String NOEXEC_PREFIX = "/noexec/./";
+
+    /** files tree lists next to the payload that are not in it */
+    private static final String[] LISTING_ARTIFACTS = {
+            "exec.mp3", "exec_files.txt", "noexec.mp3", "noexec_files.txt"
+    };
+
+    private final int mCount;
+    private final byte[] mPool;
+    private final int[] mPathOffset;
+    private final int[] mPathLength;
+    private final int[] mLinkOffset;
+    private final int[] mLinkLength;
+    private final byte[] mTypes;
+    private final short[] mModes;
+    private final long[] mSizes;
+
+    private octaveManifestIndex(int count, byte[] pool) {
+        mCount = count;
+        mPool = pool;
+        mPathOffset = new int[count];
+        mPathLength = new int[count];
+        mLinkOffset = new int[count];
+        mLinkLength = new int[count];
+        mTypes = new byte[count];
+        mModes = new short[count];
+        mSizes = new long[count];
+    }
+
+    /**
+     * One row while building.
+     */
+    private static class Row {
+        byte[] mPath;
+        byte[] mLink;
+        char mType;
+        int mMode;
+        long mSize;
+    }
+
+    private static final Comparator<Row> ROW_ORDER = new Comparator<Row>() {
+        @Override
+        public int compare(Row a, Row b) {
+            return compareBytes(a.mPath, 0, a.mPath.length, b.mPath, 0, b.mPath.length);
+        }
+    };
+
+    /**
+     * Parses a "tree -aFfi" listing: one path per line with a trailing "/"
+     * for directories, "*" for executables, "=" or "|" for sockets and
+     * fifos, and " -> target" for symlinks, then a summary line. The first
+     * line is the directory tree was run on; it is an entry itself unless it
+     * is ".".
+     */
+    public static octaveManifestIndex parse(InputStream listing) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(listing, UTF8));
+        List<Row> rows = new ArrayList<Row>();
+        String line;
+        boolean first = true;
+        while (null != (line = in.readLine())) {
+            if (line.length() == 0 || isSummary(line)) {
+                continue;
+            }
+            Row row = new Row();
+            String path = line;
+            int arrow = line.indexOf(" -> ");
+            if (arrow >= 0) {
+                path = line.substring(0, arrow);
+                String target = line.substring(arrow + 4);
+                // -F also marks the type of what the link points at
+                if (target.length() > 1 && (target.endsWith("/") || target.endsWith("*"))) {
+                    target = target.substring(0, target.length() - 1);
+                }
+                row.mType = octaveTarInputStream.TYPE_SYMLINK;
+                row.mMode = 0777;
+                row.mLink = target.getBytes(UTF8);
+            } else if (first || line.endsWith("/")) {
+                if (line.endsWith("/")) {
+                    path = line.substring(0, line.length() - 1);
+                }
+                row.mType = octaveTarInputStream.TYPE_DIRECTORY;
+                row.mMode = 0755;
+            } else if (line.endsWith("*")) {
+                path = line.substring(0, line.length() - 1);
+                row.mType = octaveTarInputStream.TYPE_FILE;
+                row.mMode = 0755;
+            } else if (line.endsWith("=") || line.endsWith("|")) {
+                path = line.substring(0, line.length() - 1);
+                row.mType = octaveTarInputStream.TYPE_OTHER;
+                row.mMode = 0644;
+            } else {
+                row.mType = octaveTarInputStream.TYPE_FILE;
+                row.mMode = 0644;
+            }
+            first = false;
+            path = octaveTarInputStream.normalizeName(path);
+            if (null == path) {
+                throw new IOException("bad path in listing: " + line);
+            }
+            if (path.length() == 0 || isListingArtifact(path)) {
+                continue;
+            }
+            row.mPath = path.getBytes(UTF8);
+            row.mSize = UNKNOWN_SIZE;
+            rows.add(row);
+        }
+        return build(rows);
+    }
+
+    /**
+     * Indexes an indexed payload directly, with real modes and sizes.
+     */
+    public static octaveManifestIndex fromPack(octavePackReader pack) throws IOException {
+        List<Row> rows = new ArrayList<Row>();
+        for (octavePackReader.Entry e : pack.getEntries()) {
+            Row row = new Row();
+            row.mPath = e.name.getBytes(UTF8);
+            row.mType = e.type;
+            row.mMode = e.mode & 07777;
+            row.mSize = e.size;
+            if (e.isSymlink() || e.isHardlink()) {
+                row.mLink = e.linkName.getBytes(UTF8);
+            }
+            rows.add(row);
+        }
+        return build(rows);
+    }
+
+    private static boolean isSummary(String line) {
+        // "50 directories, 199 files", "1 directory, 1 file"
+        return line.matches("\\d+ director(y|ies)(, \\d+ files?)?");
+    }
+
+    private static boolean isListingArtifact(String path) {
+        for (String artifact : LISTING_ARTIFACTS) {
+            if (artifact.equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** marks a row whose link target is NOEXEC_PREFIX + its path while building */
+    private static final char NOEXEC = 'N';
+
+    private static boolean isNoexecLink(Row row) {
+        if (row.mType != octaveTarInputStream.TYPE_SYMLINK || null == row.mLink) {
+            return false;
+        }
+        byte[] prefix = utf8(NOEXEC_PREFIX);
+        return row.mLink.length == prefix.length + row.mPath.length
+                && compareBytes(row.mLink, 0, prefix.length, prefix, 0, prefix.length) == 0
+                && compareBytes(row.mLink, prefix.length, row.mPath.length, row.mPath, 0,
+                        row.mPath.length) == 0;
+    }
+
+    private static octaveManifestIndex build(List<Row> rows) {
+        Collections.sort(rows, ROW_ORDER);
+        // a path listed twice keeps its last row
+        List<Row> unique = new ArrayList<Row>(rows.size());
+        for (Row row : rows) {
+            int last = unique.size() - 1;
+            if (last >= 0 && Arrays.equals(unique.get(last).mPath, row.mPath)) {
+                unique.set(last, row);
+            } else {
+                unique.add(row);
+            }
+        }
+        int poolSize = 0;
+        for (Row row : unique) {
+            if (row.mPath.length >= NOEXEC_LINK
+                    || (null != row.mLink && row.mLink.length >= NOEXEC_LINK)) {
+                throw new IllegalArgumentException("path too long: " + new String(row.mPath));
+            }
+            if (isNoexecLink(row)) {
+                row.mLink = null;
+                row.mType = NOEXEC;
+            }
+            poolSize += row.mPath.length + (null == row.mLink ? 0 : row.mLink.length);
+        }
+        octaveManifestIndex index = new octaveManifestIndex(unique.size(), new byte[poolSize]);
+        int pos = 0;
+        for (int i = 0; i < unique.size(); i++) {
+            Row row = unique.get(i);
+            System.arraycopy(row.mPath, 0, index.mPool, pos, row.mPath.length);
+            index.mPathOffset[i] = pos;
+            index.mPathLength[i] = row.mPath.length;
+            pos += row.mPath.length;
+            if (row.mType == NOEXEC) {
+                row.mType = octaveTarInputStream.TYPE_SYMLINK;
+                index.mLinkOffset[i] = -1;
+                index.mLinkLength[i] = NOEXEC_LINK;
+            } else if (null == row.mLink) {
+                index.mLinkOffset[i] = -1;
+                index.mLinkLength[i] = NO_LINK;
+            } else {
+                System.arraycopy(row.mLink, 0, index.mPool, pos, row.mLink.length);
+                index.mLinkOffset[i] = pos;
+                index.mLinkLength[i] = row.mLink.length;
+                pos += row.mLink.length;
+            }
+            index.mTypes[i] = (byte) row.mType;
+            index.mModes[i] = (short) row.mMode;
+            index.mSizes[i] = row.mSize;
+        }
+        return index;
+    }
+
+    /**
+     * Loads an index saved by write().
+     */
+    public static octaveManifestIndex read(InputStream in) throws IOException {
+        DataInputStream d = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        d.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a manifest index");
+        }
+        int count = d.readInt();
+        int poolSize = d.readInt();
+        if (count < 0 || poolSize < 0) {
+            throw new IOException("corrupt manifest index");
+        }
+        byte[] pool = new byte[poolSize];
+        d.readFully(pool);
+        octaveManifestIndex index = new octaveManifestIndex(count, pool);
+        // the pool holds each path followed by its link target, in order
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            index.mPathOffset[i] = pos;
+            index.mPathLength[i] = d.readUnsignedShort();
+            pos += index.mPathLength[i];
+            int linkLength = d.readUnsignedShort();
+            if (linkLength == NO_LINK || linkLength == NOEXEC_LINK) {
+                index.mLinkOffset[i] = -1;
+                index.mLinkLength[i] = linkLength;
+            } else {
+                index.mLinkOffset[i] = pos;
+                index.mLinkLength[i] = linkLength;
+                pos += linkLength;
+            }
+            index.mTypes[i] = d.readByte();
+            index.mModes[i] = d.readShort();
+            index.mSizes[i] = d.readLong();
+        }
+        if (pos != poolSize) {
+            throw new IOException("corrupt manifest index");
+        }
+        return index;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream d = new DataOutputStream(out);
+        d.write(MAGIC);
+        d.writeInt(mCount);
+        d.writeInt(mPool.length);
+        d.write(mPool);
+        for (int i = 0; i < mCount; i++) {
+            d.writeShort(mPathLength[i]);
+            d.writeShort(mLinkLength[i]);
+            d.writeByte(mTypes[i]);
+            d.writeShort(mModes[i]);
+            d.writeLong(mSizes[i]);
+        }
+        d.flush();
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the position of path, or -1 if the payload has no such entry
+     */
+    public int find(String path) {
+        byte[] key = utf8(path);
+        int lo = 0;
+        int hi = mCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareBytes(mPool, mPathOffset[mid], mPathLength[mid], key, 0, key.length);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return {from, to}: the positions from (inclusive) to to (exclusive)
+     *         are exactly the paths starting with prefix. Use "dir/" for the
+     *         contents of a directory.
+     */
+    public int[] prefix(String prefix) {
+        byte[] key = utf8(prefix);
+        int from = lowerBound(key);
+        int to = from;
+        while (to < mCount && startsWith(to, key)) {
+            to++;
+        }
+        return new int[] {
+                from, to
+        };
+    }
+
+    private int lowerBound(byte[] key) {
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareBytes(mPool, mPathOffset[mid], mPathLength[mid], key, 0, key.length) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private boolean startsWith(int i, byte[] key) {
+        if (mPathLength[i] < key.length) {
+            return false;
+        }
+        int off = mPathOffset[i];
+        for (int k = 0; k < key.length; k++) {
+            if (mPool[off + k] != key[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getPath(int i) {
+        return string(mPathOffset[i], mPathLength[i]);
+    }
+
+    /**
+     * @return one of the octaveTarInputStream TYPE_ constants
+     */
+    public char getType(int i) {
+        return (char) mTypes[i];
+    }
+
+    public int getMode(int i) {
+        return mModes[i] & 0xffff;
+    }
+
+    /**
+     * @return the size, or UNKNOWN_SIZE for an index built from a listing
+     */
+    public long getSize(int i) {
+        return mSizes[i];
+    }
+
+    /**
+     * @return the link target, or null if the entry is not a link
+     */
+    public String getLinkTarget(int i) {
+        if (mLinkLength[i] == NOEXEC_LINK) {
+            return NOEXEC_PREFIX + getPath(i);
+        }
+        return mLinkOffset[i] < 0 ? null : string(mLinkOffset[i], mLinkLength[i]);
+    }
+
+    private String string(int offset, int length) {
+        try {
+            return new String(mPool, offset, length, UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] utf8(String s) {
+        try {
+            return s.getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Unsigned byte order, which for UTF-8 is code point order.
+     */
+    static int compareBytes(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+        int n = Math.min(aLen, bLen);
+        for (int i = 0; i < n; i++) {
+            int c = (a[aOff + i] & 0xff) - (b[bOff + i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return aLen - bLen;
+    }
+}
@@ -0,0 +1,509 @@
+package com.octave.main.x86;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the indexed payload format written by the octavePackTool build tool,
+ * an alternative to the tar.gz that add-on packages ship as exec.mp3 and
+ * noexec.mp3.
+ *
+ * Layout: MAGIC, then the data blocks, then the deflated central directory,
+ * then a fixed size trailer (directory offset, compressed and plain
+ * directory length, MAGIC). Every file's data is cut into blocks of at most
+ * BLOCK_SIZE bytes that are deflated (or stored, if deflating does not help)
+ * on their own. The directory lists the blocks and, in archive order, the
+ * entries with their type, mode, link target, size and first block, and
+ * since version 2 the SHA-256 of every file, which lets extract() link
+ * content it has seen before from an octaveBlobStore.
+ *
+ * Everything is read with positional reads on a FileChannel, which is how
+ * an uncompressed APK asset is reached through its AssetFileDescriptor, so
+ * any entry can be read without touching the rest of the payload and the
+ * blocks of different files can be inflated on several threads at once.
+ */
+public class octavePackReader {
+
+    public static final byte[] MAGIC = {
+            'O', 'C', 'T', 'A', 'V', 'P', 'A', 'K'
+    };
+    public static final int FORMAT_VERSION = 2;
+    public static final int DIGEST_LENGTH = 32;
+
+    public static final int BLOCK_SIZE = 256 * 1024;
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 1;
+
+    /** directory offset, compressed length, length, MAGIC */
+    public static final int TRAILER_SIZE = 8 + 4 + 4 + 8;
+
+    /**
+     * A payload member. Names are normalized (no leading "./").
+     */
+    public static class Entry extends octaveTarInputStream.Entry {
+        public int firstBlock;
+        public int blockCount;
+        /** SHA-256 of a file's data; null for other entries and in version 1 */
+        public byte[] digest;
+    }
+
+    /**
+     * Decides which entries extract() creates.
+     */
+    public interface Filter {
+        boolean accept(Entry entry);
+    }
+
+    private final FileChannel mChannel;
+    private final long mStart;
+    private final long mLength;
+
+    private long[] mBlockOffsets;
+    private int[] mBlockCompressed;
+    private int[] mBlockLengths;
+    private byte[] mBlockMethods;
+    private List<Entry> mEntries;
+    private Map<String, Entry> mByName;
+    private octaveBlobStore mBlobStore;
+
+    /**
+     * Per-worker buffers and inflater for extract(), so writing a file
+     * allocates nothing per block.
+     */
+    private static class Scratch {
+        final byte[] mRaw = new byte[BLOCK_SIZE];
+        final byte[] mData = new byte[BLOCK_SIZE];
+        final Inflater mInflater = new Inflater(true);
+    }
+
+    /**
+     * @param channel the file holding the payload
+     * @param start where the payload starts in it (an asset's start offset)
+     * @param length the payload length
+     */
+    public octavePackReader(FileChannel channel, long start, long length) throws IOException {
+        mChannel = channel;
+        mStart = start;
+        mLength = length;
+        readDirectory();
+    }
+
+    /**
+     * @return true if the region starts with MAGIC, i.e. is not a tar.gz
+     */
+    public static boolean isPack(FileChannel channel, long start, long length)
+            throws IOException {
+        if (length < MAGIC.length + TRAILER_SIZE) {
+            return false;
+        }
+        byte[] magic = new byte[MAGIC.length];
+        readFully(channel, start, magic, 0, magic.length);
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    private void readDirectory() throws IOException {
+        if (!isPack(mChannel, mStart, mLength)) {
+            throw new IOException("not an indexed payload");
+        }
+        byte[] trailer = new byte[TRAILER_SIZE];
+        readFully(mChannel, mStart + mLength - TRAILER_SIZE, trailer, 0, TRAILER_SIZE);
+        DataInputStream t = new DataInputStream(new ByteArrayInputStream(trailer));
+        long dirOffset = t.readLong();
+        int dirCompressed = t.readInt();
+        int dirLength = t.readInt();
+        byte[] magic = new byte[MAGIC.length];
+        t.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC) || dirOffset < MAGIC.length
+                || dirOffset + dirCompressed > mLength - TRAILER_SIZE) {
+            throw new IOException("truncated indexed payload");
+        }
+        byte[] packed = new byte[dirCompressed];
+        readFully(mChannel, mStart + dirOffset, packed, 0, dirCompressed);
+        byte[] dir = new byte[dirLength];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflate(inflater, packed, dirCompressed, dir, dirLength);
+        } finally {
+            inflater.end();
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(dir));
+        int version = in.readInt();
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IOException("unsupported payload format " + version);
+        }
+        int blocks = in.readInt();
+        mBlockOffsets = new long[blocks];
+        mBlockCompressed = new int[blocks];
+        mBlockLengths = new int[blocks];
+        mBlockMethods = new byte[blocks];
+        for (int i = 0; i < blocks; i++) {
+            mBlockOffsets[i] = in.readLong();
+            mBlockCompressed[i] = in.readInt();
+            mBlockLengths[i] = in.readInt();
+            mBlockMethods[i] = in.readByte();
+            if (mBlockLengths[i] > BLOCK_SIZE || mBlockCompressed[i] > BLOCK_SIZE
+                    || mBlockCompressed[i] < 0 || mBlockLengths[i] < 0) {
+                throw new IOException("bad block " + i);
+            }
+        }
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<Entry>(count);
+        mByName = new HashMap<String, Entry>(count * 2);
+        for (int i = 0; i < count; i++) {
+            Entry e = new Entry();
+            e.name = in.readUTF();
+            e.type = (char) in.readByte();
+            e.mode = in.readInt();
+            e.mtime = in.readLong();
+            e.size = in.readLong();
+            e.linkName = in.readUTF();
+            e.firstBlock = in.readInt();
+            e.blockCount = in.readInt();
+            if (e.firstBlock < 0 || e.blockCount < 0 || e.firstBlock + e.blockCount > blocks) {
+                throw new IOException("bad block range for " + e.name);
+            }
+            if (version >= 2 && e.isFile()) {
+                e.digest = new byte[DIGEST_LENGTH];
+                in.readFully(e.digest);
+            }
+            entries.add(e);
+            mByName.put(e.name, e);
+        }
+        mEntries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return every entry, in archive order (directories before their
+     *         contents)
+     */
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @return the entry with the given normalized name, or null
+     */
+    public Entry getEntry(String name) {
+        return mByName.get(name);
+    }
+
+    /**
+     * Makes extract() link files whose content is in the store rather than
+     * writing them, and add the files it does write.
+     */
+    public void setBlobStore(octaveBlobStore store) {
+        mBlobStore = store;
+    }
+
+    /**
+     * Reads and inflates one block; safe to call from several threads.
+     */
+    byte[] readBlock(int block) throws IOException {
+        int compressed = mBlockCompressed[block];
+        int length = mBlockLengths[block];
+        byte[] raw = new byte[compressed];
+        readFully(mChannel, mStart + mBlockOffsets[block], raw, 0, compressed);
+        if (mBlockMethods[block] == METHOD_STORED) {
+            return raw;
+        }
+        byte[] data = new byte[length];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflate(inflater, raw, compressed, data, length);
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    /**
+     * @return the data of a file entry, inflated block by block as it is read
+     */
+    public InputStream openEntry(final Entry entry) {
+        return new InputStream() {
+            private int mNext = entry.firstBlock;
+            private byte[] mData = new byte[0];
+            private int mPos;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (mPos == mData.length) {
+                    if (mNext == entry.firstBlock + entry.blockCount) {
+                        return -1;
+                    }
+                    mData = readBlock(mNext++);
+                    mPos = 0;
+                }
+                int n = Math.min(len, mData.length - mPos);
+                System.arraycopy(mData, mPos, b, off, n);
+                mPos += n;
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Creates the accepted entries under root. Directories are made first,
+     * then the files are written by up to threads workers, then the links
+     * are made, since hard links need their targets in place. The workers
+     * stop at their next file or block once the octaveCancelToken current
+     * on the calling thread is cancelled.
+     *
+     * @param filter null to extract everything
+     * @return the number of entries extracted
+     */
+    public int extract(final File root, Filter filter, int threads,
+            final octaveTarExtractor.ProgressListener listener) throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("unable to create " + root);
+        }
+        List<Entry> files = new ArrayList<Entry>();
+        List<Entry> links = new ArrayList<Entry>();
+        // the workers check the token and count into the session of the thread that asked
+        final octaveCancelToken token = octaveCancelToken.current();
+        final octaveInstallMetrics metrics = octaveInstallMetrics.get();
+        final int[] done = new int[1];
+        final long[] bytes = new long[1];
+        for (Entry e : mEntries) {
+            token.check();
+            if (null != filter && !filter.accept(e)) {
+                continue;
+            }
+            if (e.isDirectory()) {
+                File dir = resolve(root, e.name);
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("unable to create " + dir);
+                }
+                progress(listener, e, done, bytes);
+            } else if (e.isFile()) {
+                files.add(e);
+            } else if (e.isSymlink() || e.isHardlink()) {
+                links.add(e);
+            }
+        }
+
+        // the workers die with the pool, their inflaters are ended with it
+        final List<Scratch> scratches = new ArrayList<Scratch>();
+        final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+            @Override
+            protected Scratch initialValue() {
+                Scratch s = new Scratch();
+                synchronized (scratches) {
+                    scratches.add(s);
+                }
+                return s;
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>(files.size());
+            for (final Entry e : files) {
+                results.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        token.check();
+                        File target = resolve(root, e.name);
+                        octaveBlobStore store = mBlobStore;
+                        if (null == store || null == e.digest) {
+                            writeFile(e, target, token, scratch.get());
+                            metrics.count(octaveInstallMetrics.COUNTER_FILES, 1);
+                        } else if (!store.materialize(e.digest, e.mode, e.size, target)) {
+                            writeFile(e, target, token, scratch.get());
+                            metrics.count(octaveInstallMetrics.COUNTER_FILES, 1);
+                            store.adopt(e.digest, e.mode, target);
+                        }
+                        progress(listener, e, done, bytes);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : results) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            pool.shutdownNow();
+            endScratches(pool, scratches);
+        }
+
+        for (Entry e : links) {
+            token.check();
+            File target = resolve(root, e.name);
+            if (e.isSymlink()) {
+                octaveTarExtractor.prepareParent(target);
+                octavePosix.symlink(e.linkName, target.getPath());
+            } else {
+                File source = resolve(root, e.linkName);
+                octaveTarExtractor.prepareParent(target);
+                octavePosix.link(source.getPath(), target.getPath());
+            }
+            progress(listener, e, done, bytes);
+        }
+        return done[0];
+    }
+
+    /**
+     * Stored blocks go from the payload to the new file with transferTo(),
+     * which on Linux is a sendfile() that never copies the bytes into the
+     * Java heap. Deflated blocks are inflated into the worker's scratch
+     * buffer and written from there.
+     */
+    private void writeFile(Entry e, File target, octaveCancelToken token, Scratch scratch)
+            throws IOException {
+        octaveTarExtractor.prepareParent(target);
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            octavePosix.preallocate(out.getFD(), e.size);
+            FileChannel dest = out.getChannel();
+            for (int b = e.firstBlock; b < e.firstBlock + e.blockCount; b++) {
+                token.check();
+                long position = mStart + mBlockOffsets[b];
+                int compressed = mBlockCompressed[b];
+                if (mBlockMethods[b] == METHOD_STORED) {
+                    transferFully(position, compressed, dest);
+                } else {
+                    int length = mBlockLengths[b];
+                    readFully(mChannel, position, scratch.mRaw, 0, compressed);
+                    inflate(scratch.mInflater, scratch.mRaw, compressed, scratch.mData, length);
+                    ByteBuffer data = ByteBuffer.wrap(scratch.mData, 0, length);
+                    while (data.hasRemaining()) {
+                        dest.write(data);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        // only the exec bits matter to us, everything else is the app's own uid
+        if ((e.mode & 0111) != 0) {
+            octavePosix.chmod(target.getPath(), e.mode & 0777);
+        }
+    }
+
+    /**
+     * @throws IOException for a name that would escape root, the same
+     *             names octaveTarExtractor refuses
+     */
+    private static File resolve(File root, String name) throws IOException {
+        String normalized = octaveTarInputStream.normalizeName(name);
+        if (null == normalized) {
+            throw new IOException("refusing to extract " + name);
+        }
+        return new File(root, normalized);
+    }
+
+    /**
+     * Frees the native memory of the workers' inflaters once the workers
+     * have stopped; if waiting is interrupted, the finalizers do it.
+     */
+    private static void endScratches(ExecutorService pool, List<Scratch> scratches) {
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized (scratches) {
+            for (Scratch s : scratches) {
+                s.mInflater.end();
+            }
+            scratches.clear();
+        }
+    }
+
+    private void transferFully(long position, long count, FileChannel dest) throws IOException {
+        while (count > 0) {
+            long n = mChannel.transferTo(position, count, dest);
+            if (n <= 0) {
+                throw new EOFException("payload ends inside a stored block");
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    private long compressedSize(Entry e) {
+        long size = 0;
+        for (int b = e.firstBlock; b < e.firstBlock + e.blockCount; b++) {
+            size += mBlockCompressed[b];
+        }
+        return size;
+    }
+
+    private void progress(octaveTarExtractor.ProgressListener listener, Entry e, int[] done,
+            long[] bytes) {
+        long size = compressedSize(e);
+        synchronized (done) {
+            done[0]++;
+            bytes[0] += size;
+            if (null != listener) {
+                listener.onEntryExtracted(e.name, bytes[0], done[0]);
+            }
+        }
+    }
+
+    private static void inflate(Inflater inflater, byte[] in, int inLength, byte[] out,
+            int outLength) throws IOException {
+        inflater.reset();
+        try {
+            inflater.setInput(in, 0, inLength);
+            int off = 0;
+            while (off < outLength) {
+                int n = inflater.inflate(out, off, outLength - off);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new EOFException("short block");
+                }
+                off += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt block: " + e.getMessage());
+        }
+    }
+
+    static void readFully(FileChannel channel, long position, byte[] b, int off, int len)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position() - off);
+            if (n < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.octave.main.x86;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates blocked gzip files on several threads. A blocked gzip file, as
+ * written by "octavePackTool gzip", is a plain concatenation of gzip members
+ * of at most DEFAULT_BLOCK_SIZE uncompressed bytes each, so gunzip and tar
+ * read it as usual. Like BGZF, every member carries its own compressed size
+ * in an "OC" extra field. The reading thread can therefore cut the input
+ * into members without inflating them, hand the members to a pool, and
+ * return the results in order. Inflating is where the time goes, so the
+ * consumer (usually a single tar extractor) sees close to the combined
+ * speed of the cores.
+ *
+ * open() falls back to GZIPInputStream for ordinary gzip files.
+ */
+public class octaveParallelGzipInputStream extends InputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    /** FEXTRA subfield id of the member size */
+    public static final byte SUBFIELD_ID1 = 'O';
+    public static final byte SUBFIELD_ID2 = 'C';
+
+    /** fixed header, XLEN, and the one subfield (id, length, 4 byte size) */
+    public static final int HEADER_SIZE = 10 + 2 + 8;
+    /** CRC32 and ISIZE */
+    public static final int TRAILER_SIZE = 8;
+
+    /** refuse members claiming more than this, rather than running out of memory */
+    private static final int MAX_MEMBER_SIZE = 16 * 1024 * 1024;
+
+    private static final int FLAG_EXTRA = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataInputStream mIn;
+    private final ExecutorService mPool;
+    private final int mWindow;
+    private final ArrayDeque<Future<byte[]>> mPending = new ArrayDeque<Future<byte[]>>();
+    private byte[] mData = new byte[0];
+    private int mPos;
+    private boolean mEof;
+    private long mPosition;
+    private final octaveCancelToken mToken = octaveCancelToken.current();
+
+    /**
+     * @param in positioned at the first member
+     * @param threads how many members are inflated at once
+     */
+    public octaveParallelGzipInputStream(InputStream in, int threads) {
+        mIn = new DataInputStream(in);
+        mPool = Executors.newFixedThreadPool(Math.max(1, threads));
+        // enough queued work to keep every thread busy while the head is consumed
+        mWindow = Math.max(1, threads) * 2;
+    }
+
+    /**
+     * @return a decoder for in: parallel for blocked gzip, GZIPInputStream
+     *         for anything else
+     */
+    public static InputStream open(InputStream in, int threads) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        byte[] header = new byte[HEADER_SIZE];
+        buffered.mark(HEADER_SIZE);
+        int off = 0;
+        while (off < HEADER_SIZE) {
+            int n = buffered.read(header, off, HEADER_SIZE - off);
+            if (n < 0) {
+                break;
+            }
+            off += n;
+        }
+        buffered.reset();
+        if (off == HEADER_SIZE && memberSize(header) > 0) {
+            return new octaveParallelGzipInputStream(buffered, threads);
+        }
+        return new GZIPInputStream(buffered, BUFFER_SIZE);
+    }
+
+    /**
+     * @return the member size from a blocked gzip header, or -1 if header is
+     *         not one
+     */
+    static int memberSize(byte[] h) {
+        if ((h[0] & 0xff) != 0x1f || (h[1] & 0xff) != 0x8b || h[2] != 8
+                || h[3] != FLAG_EXTRA) {
+            return -1;
+        }
+        int xlen = (h[10] & 0xff) | (h[11] & 0xff) << 8;
+        int slen = (h[14] & 0xff) | (h[15] & 0xff) << 8;
+        if (xlen != 8 || h[12] != SUBFIELD_ID1 || h[13] != SUBFIELD_ID2 || slen != 4) {
+            return -1;
+        }
+        return (h[16] & 0xff) | (h[17] & 0xff) << 8 | (h[18] & 0xff) << 16
+                | (h[19] & 0xff) << 24;
+    }
+
+    /**
+     * @return the number of compressed bytes consumed so far
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (mPos == mData.length) {
+            mToken.check();
+            fill();
+            Future<byte[]> head = mPending.poll();
+            if (null == head) {
+                return -1;
+            }
+            mData = get(head);
+            mPos = 0;
+        }
+        int n = Math.min(len, mData.length - mPos);
+        System.arraycopy(mData, mPos, b, off, n);
+        mPos += n;
+        return n;
+    }
+
+    /**
+     * Reads members and queues them until the window is full.
+     */
+    private void fill() throws IOException {
+        while (!mEof && mPending.size() < mWindow) {
+            byte[] header = new byte[HEADER_SIZE];
+            int first = mIn.read();
+            if (first < 0) {
+                mEof = true;
+                return;
+            }
+            header[0] = (byte) first;
+            mIn.readFully(header, 1, HEADER_SIZE - 1);
+            int size = memberSize(header);
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("gzip member without a block size at " + mPosition);
+            }
+            final byte[] member = new byte[size - HEADER_SIZE];
+            mIn.readFully(member);
+            mPosition += size;
+            mPending.add(mPool.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return inflateMember(member);
+                }
+            }));
+        }
+    }
+
+    /**
+     * @param member the deflate data followed by CRC32 and ISIZE
+     */
+    static byte[] inflateMember(byte[] member) throws IOException {
+        int deflated = member.length - TRAILER_SIZE;
+        int crc = readIntLE(member, deflated);
+        int size = readIntLE(member, deflated + 4);
+        if (size < 0 || size > MAX_MEMBER_SIZE) {
+            throw new IOException("gzip member too large");
+        }
+        byte[] data = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(member, 0, deflated);
+            int off = 0;
+            while (off < size) {
+                int n = inflater.inflate(data, off, size - off);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new EOFException("short gzip member");
+                }
+                off += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt gzip member: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        CRC32 check = new CRC32();
+        check.update(data, 0, size);
+        if ((int) check.getValue() != crc) {
+            throw new IOException("gzip member CRC mismatch");
+        }
+        return data;
+    }
+
+    private static int readIntLE(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16
+                | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static byte[] get(Future<byte[]> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mPool.shutdownNow();
+        mPending.clear();
+        mIn.close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.octave.main.x86;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries progress and results from worker threads to one consumer
+ * thread, usually the UI thread. Updates are posted under a key; an update
+ * replaces any still undelivered one with the same key, so a task reporting
+ * faster than the consumer drains only ever has its latest value waiting.
+ * Everything pending is delivered from one posted runnable, in the order
+ * the keys were first posted.
+ */
+public class octaveProgressChannel {
+
+    /**
+     * Runs a runnable on the consumer thread, e.g. Handler.post().
+     */
+    public interface Poster {
+        void post(Runnable r);
+    }
+
+    private final Poster mPoster;
+    private final Map<Object, Runnable> mPending = new LinkedHashMap<Object, Runnable>();
+    private boolean mScheduled;
+    private int mPosted;
+    private int mDelivered;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public octaveProgressChannel(Poster poster) {
+        mPoster = poster;
+    }
+
+    /**
+     * Delivers update on the consumer thread, unless another update with
+     * the same key comes before it is delivered.
+     *
+     * @param key what the update is about; null for an update that must
+     *            not be dropped, such as a result
+     */
+    public void post(Object key, Runnable update) {
+        boolean schedule;
+        synchronized (this) {
+            mPending.put(null == key ? new Object() : key, update);
+            mPosted++;
+            schedule = !mScheduled;
+            mScheduled = true;
+        }
+        if (schedule) {
+            mPoster.post(mDrain);
+        }
+    }
+
+    /**
+     * @return the updates posted and delivered so far
+     */
+    public synchronized int[] getCounts() {
+        return new int[] {
+                mPosted, mDelivered
+        };
+    }
+
+    private void drain() {
+        List<Runnable> updates;
+        synchronized (this) {
+            updates = new ArrayList<Runnable>(mPending.values());
+            mPending.clear();
+            mScheduled = false;
+            mDelivered += updates.size();
+        }
+        for (Runnable update : updates) {
+            update.run();
+        }
+    }
+}
@@ -0,0 +1,715 @@
+package com.octave.main.x86;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches a single expansion file over several concurrent HTTP Range
+ * connections. The file is split into fixed size chunks; the worker threads
+ * pull ranges of one or more chunks off a shared counter, so faster
+ * connections simply end up doing more of them. Every range is written
+ * into place in the (pre-sized) target file through an octaveWriteBehind,
+ * so the connections never wait on the storage. How many workers run
+ * and how many chunks a range covers is up to an octaveDownloadScheduler,
+ * which changes both as the transfer goes.
+ *
+ * If the server ignores the Range header the whole file is fetched over the
+ * probe connection instead, which is exactly what the stock DownloadThread
+ * would have done.
+ *
+ * With setResumable() finished chunks are kept in an octaveDownloadJournal
+ * next to the file, and a later run against the same file fetches only
+ * the chunks that are missing.
+ *
+ * Chunks finish out of order, so the engine also keeps track of the
+ * contiguous prefix of the file that is complete. Readers such as
+ * octaveGrowingFileInputStream block in awaitContiguous() to consume the
+ * file while it is still being written.
+ *
+ * This class has no Android dependencies so it can be driven from a plain
+ * JVM against a loopback HTTP server.
+ */
+public class octaveSegmentedDownloader {
+
+    /**
+     * Receives the running byte count. Called from the worker threads, so
+     * implementations must be thread safe and should return quickly.
+     */
+    public interface ProgressListener {
+        void onProgress(long bytesSoFar, long totalBytes);
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_RETRIES = 5;
+    private static final int RETRY_DELAY = 1000;
+    private static final int CONNECT_TIMEOUT = 20000;
+    private static final int READ_TIMEOUT = 20000;
+
+    private final URL mUrl;
+    private final File mTarget;
+    private final int mChunkSize;
+    private octaveDownloadScheduler mScheduler;
+
+    private long mTotalBytes;
+    private int mChunkCount;
+    private String mETag;
+    private boolean mResumable;
+    private octaveDownloadJournal mJournal;
+    private long mResumedBytes;
+    private octaveWriteBehind mWriter;
+    private FileChannel mChannel;
+
+    private final AtomicLong mBytesSoFar = new AtomicLong();
+    private final AtomicInteger mWorkers = new AtomicInteger();
+    private final List<Thread> mThreads = new ArrayList<Thread>();
+
+    private volatile boolean mCancelled;
+    private volatile IOException mFailure;
+
+    // guarded by mChunkLock
+    private final Object mChunkLock = new Object();
+    private BitSet mChunkDone = new BitSet();
+    // chunks done or being fetched, and how many are neither
+    private BitSet mChunkClaimed = new BitSet();
+    private int mUnclaimed;
+    private int mNextChunk;
+    private long mContiguous;
+    private boolean mStarted;
+    private boolean mFinished;
+
+    private ProgressListener mListener;
+    private octaveBlockDigest mDigest;
+
+    /**
+     * @param totalBytes the expected size, or 0 if it should be taken from the
+     *            server's Content-Range header
+     * @param connections the most connections the default scheduler may use
+     * @param chunkSize the smallest range; ranges are whole multiples of it
+     */
+    public octaveSegmentedDownloader(String url, File target, long totalBytes,
+            int connections, int chunkSize) throws IOException {
+        mUrl = new URL(url);
+        mTarget = target;
+        mTotalBytes = totalBytes;
+        mChunkSize = Math.max(BUFFER_SIZE, chunkSize);
+        int max = Math.max(1, connections);
+        setScheduler(new octaveDownloadScheduler(Math.min(2, max), max));
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Replaces the default scheduler, e.g. with one seeded for the network
+     * or with octaveDownloadScheduler.fixed(). Must be called before
+     * download().
+     */
+    public void setScheduler(octaveDownloadScheduler scheduler) {
+        scheduler.setUnitSize(mChunkSize);
+        mScheduler = scheduler;
+    }
+
+    public octaveDownloadScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Keeps a journal of finished chunks next to the target, which is then
+     * left in place if the download is cancelled or fails, and resumes
+     * from the journal if one for the same file is found. The journal is
+     * removed once the file is complete.
+     */
+    public void setResumable(boolean resumable) {
+        mResumable = resumable;
+    }
+
+    /**
+     * @return the bytes an earlier run had already fetched
+     */
+    public long getResumedBytes() {
+        return mResumedBytes;
+    }
+
+    /**
+     * Hashes every chunk as it is written. The chunk size must be a multiple
+     * of octaveBlockDigest.BLOCK_SIZE so chunks start on block boundaries.
+     */
+    public void setBlockDigest(octaveBlockDigest digest) {
+        if (mChunkSize % octaveBlockDigest.BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("chunk size is not a multiple of the digest block");
+        }
+        mDigest = digest;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public long getBytesSoFar() {
+        return mBytesSoFar.get();
+    }
+
+    /**
+     * Asks the workers to stop at the next buffer boundary. download() will
+     * then return false.
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (mChunkLock) {
+            mChunkLock.notifyAll();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Runs the transfer on the calling thread plus (connections - 1) helper
+     * threads and blocks until every chunk is on disk.
+     *
+     * @return true if the whole file was written, false if cancelled
+     * @throws IOException if a chunk could not be fetched after retrying
+     */
+    public boolean download() throws IOException {
+        try {
+            return downloadChunks();
+        } catch (IOException e) {
+            if (null == mFailure) {
+                mFailure = e;
+            }
+            throw e;
+        } finally {
+            synchronized (mChunkLock) {
+                mFinished = true;
+                mChunkLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Blocks until the first position + 1 bytes of the file are on disk, or
+     * the whole file is if it is shorter than that.
+     *
+     * @return the length of the contiguous complete prefix, which is at least
+     *         position + 1 unless the end of the file has been reached
+     * @throws IOException if the download failed or was cancelled first
+     */
+    public long awaitContiguous(long position) throws IOException {
+        boolean waited = false;
+        synchronized (mChunkLock) {
+            while (true) {
+                if (mStarted && (mContiguous > position
+                        || (mTotalBytes > 0 && mContiguous >= mTotalBytes))) {
+                    return mContiguous;
+                }
+                if (null != mFailure) {
+                    IOException e = new IOException("download failed");
+                    e.initCause(mFailure);
+                    throw e;
+                }
+                if (mCancelled) {
+                    throw new java.io.InterruptedIOException("download cancelled");
+                }
+                if (mFinished) {
+                    // a single stream without Content-Length only knows its size now
+                    return mContiguous;
+                }
+                if (!waited) {
+                    octaveInstallMetrics.add(octaveInstallMetrics.COUNTER_WAITS, 1);
+                    waited = true;
+                }
+                try {
+                    mChunkLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new java.io.InterruptedIOException("interrupted");
+                }
+            }
+        }
+    }
+
+    private boolean downloadChunks() throws IOException {
+        long requested = now();
+        HttpURLConnection probe = openConnection("bytes=0-0", false);
+        int code = probe.getResponseCode();
+        // the first request includes the connection setup, like the others
+        mScheduler.onResponse(now() - requested);
+        if (code == HttpURLConnection.HTTP_OK) {
+            // no range support, take the whole body off this connection
+            long length = probe.getContentLength();
+            if (length > 0) {
+                mTotalBytes = length;
+            }
+            return downloadSingle(probe);
+        }
+        if (code != HttpURLConnection.HTTP_PARTIAL) {
+            probe.disconnect();
+            throw new IOException("unexpected response " + code + " for " + mUrl);
+        }
+        long total = parseContentRangeTotal(probe.getHeaderField("Content-Range"));
+        mETag = probe.getHeaderField("ETag");
+        String validator = null != mETag ? mETag : probe.getHeaderField("Last-Modified");
+        probe.disconnect();
+        if (total <= 0) {
+            throw new IOException("missing Content-Range total for " + mUrl);
+        }
+        if (mTotalBytes > 0 && mTotalBytes != total) {
+            throw new IOException("size mismatch for " + mUrl + ": expected "
+                    + mTotalBytes + ", server has " + total);
+        }
+        mTotalBytes = total;
+        mChunkCount = (int) ((mTotalBytes + mChunkSize - 1) / mChunkSize);
+
+        File journalFile = octaveDownloadJournal.fileFor(mTarget);
+        if (!mResumable || mTarget.length() != mTotalBytes) {
+            journalFile.delete();
+        }
+        RandomAccessFile out = new RandomAccessFile(mTarget, "rw");
+        try {
+            // the chunks land all over the file; reserving it first keeps it
+            // in few extents and fails a download that cannot fit right away
+            octavePosix.preallocate(out.getFD(), mTotalBytes);
+            out.setLength(mTotalBytes);
+        } finally {
+            out.close();
+        }
+        if (mResumable) {
+            mJournal = new octaveDownloadJournal(mTarget, mTotalBytes, mChunkSize,
+                    null == mDigest ? 0 : mChunkSize / octaveBlockDigest.BLOCK_SIZE,
+                    null == validator ? "" : validator);
+            resume(mJournal.getDone());
+        }
+        synchronized (mChunkLock) {
+            mUnclaimed = mChunkCount - mChunkClaimed.cardinality();
+            int first = mChunkDone.nextClearBit(0);
+            mContiguous = Math.min((long) first * mChunkSize, mTotalBytes);
+            mStarted = true;
+            mChunkLock.notifyAll();
+        }
+
+        try {
+            runWorkers();
+        } finally {
+            if (null != mJournal) {
+                if (null == mFailure && !mCancelled) {
+                    mJournal.delete();
+                } else {
+                    closeQuietly(mJournal);
+                }
+            }
+        }
+        if (null != mFailure) {
+            throw mFailure;
+        }
+        return !mCancelled;
+    }
+
+    /**
+     * Takes the chunks an earlier run finished as done, and their block
+     * hashes as hashed.
+     */
+    private void resume(BitSet done) {
+        long bytes = 0;
+        int perChunk = mChunkSize / octaveBlockDigest.BLOCK_SIZE;
+        for (int chunk = done.nextSetBit(0); chunk >= 0; chunk = done.nextSetBit(chunk + 1)) {
+            long start = (long) chunk * mChunkSize;
+            bytes += Math.min(start + mChunkSize, mTotalBytes) - start;
+            byte[][] hashes = mJournal.getHashes(chunk);
+            if (null != mDigest && null != hashes) {
+                int blocks = octaveBlockDigest.blockCount(mTotalBytes);
+                for (int i = 0; i < perChunk && chunk * perChunk + i < blocks; i++) {
+                    mDigest.setBlockHash(chunk * perChunk + i, hashes[i]);
+                }
+            }
+        }
+        synchronized (mChunkLock) {
+            mChunkDone = (BitSet) done.clone();
+            mChunkClaimed = (BitSet) done.clone();
+        }
+        mResumedBytes = bytes;
+        mBytesSoFar.set(bytes);
+        if (bytes > 0) {
+            octaveInstallMetrics.get().tag("resumed", Long.toString(bytes));
+            notifyProgress(bytes);
+        }
+    }
+
+    private void runWorkers() throws IOException {
+        RandomAccessFile out = new RandomAccessFile(mTarget, "rw");
+        mChannel = out.getChannel();
+        // the journal syncs the data itself, before recording chunks
+        mWriter = new octaveWriteBehind("octaveSegmentWriter", false);
+        try {
+            // the calling thread is the first worker; it and the helpers start
+            // more helpers whenever the scheduler asks for more connections
+            mWorkers.set(1);
+            startWorkers();
+            new Worker().run();
+            joinWorkers();
+            mWriter.close();
+        } catch (IOException e) {
+            if (null == mFailure) {
+                mFailure = e;
+            }
+        } finally {
+            closeQuietly(mWriter);
+            out.close();
+        }
+    }
+
+    private void joinWorkers() {
+        while (true) {
+            Thread t;
+            synchronized (mThreads) {
+                if (mThreads.isEmpty()) {
+                    break;
+                }
+                t = mThreads.remove(0);
+            }
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                mCancelled = true;
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            boolean counted = true;
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (!mCancelled) {
+                    if (!stayWorking()) {
+                        counted = false;
+                        break;
+                    }
+                    int[] range = claim();
+                    if (null == range) {
+                        break;
+                    }
+                    fetchChunks(range[0], range[1], buffer);
+                    startWorkers();
+                }
+            } catch (IOException e) {
+                if (null == mFailure) {
+                    mFailure = e;
+                }
+                mCancelled = true;
+            } finally {
+                if (counted) {
+                    mWorkers.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if this worker should stop because the scheduler wants
+     *         fewer connections than are running, in which case it is no
+     *         longer counted
+     */
+    private boolean stayWorking() {
+        while (true) {
+            int running = mWorkers.get();
+            if (running <= mScheduler.getConnections()) {
+                return true;
+            }
+            if (mWorkers.compareAndSet(running, running - 1)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Hands out the next run of chunks that are neither done nor being
+     * fetched, as long as the scheduler wants ranges to be.
+     *
+     * @return the first chunk and the number of chunks, or null if there
+     *         is nothing left
+     */
+    private int[] claim() {
+        synchronized (mChunkLock) {
+            int first = mChunkClaimed.nextClearBit(mNextChunk);
+            if (first >= mChunkCount) {
+                first = mChunkClaimed.nextClearBit(0);
+            }
+            if (first >= mChunkCount) {
+                return null;
+            }
+            int units = mScheduler.nextRange(mUnclaimed);
+            int next = mChunkClaimed.nextSetBit(first);
+            int end = Math.min(first + units, next < 0 ? mChunkCount : Math.min(next, mChunkCount));
+            mChunkClaimed.set(first, end);
+            mUnclaimed -= end - first;
+            mNextChunk = end;
+            return new int[] {
+                    first, end - first
+            };
+        }
+    }
+
+    private boolean hasUnclaimed() {
+        synchronized (mChunkLock) {
+            return mUnclaimed > 0;
+        }
+    }
+
+    /**
+     * Starts helpers until as many workers run as the scheduler wants, or
+     * there is nothing left to hand out.
+     */
+    private void startWorkers() {
+        while (!mCancelled && hasUnclaimed()) {
+            int running = mWorkers.get();
+            if (running >= mScheduler.getConnections()) {
+                return;
+            }
+            if (mWorkers.compareAndSet(running, running + 1)) {
+                Thread t = new Thread(new Worker(), "octaveSegment-" + running);
+                synchronized (mThreads) {
+                    mThreads.add(t);
+                }
+                t.start();
+            }
+        }
+    }
+
+    /**
+     * Fetches count chunks from chunk on, retrying from the last byte
+     * written if the connection drops part way through. Each chunk is
+     * marked done as soon as the range is past it and its bytes are in the
+     * file.
+     */
+    private void fetchChunks(int chunk, int count, byte[] buffer) throws IOException {
+        long start = (long) chunk * mChunkSize;
+        long end = Math.min(start + (long) count * mChunkSize, mTotalBytes) - 1;
+        // a retry resumes at pos, so the same cursor and sink simply carry on
+        octaveBlockDigest.Cursor cursor = null == mDigest ? null : mDigest.cursor(start);
+        octaveWriteBehind.Sink out = mWriter.open(mChannel, start);
+        try {
+            fetchRange(chunk, count, start, end, cursor, out, buffer);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void fetchRange(int chunk, int count, long start, long end,
+            octaveBlockDigest.Cursor cursor, octaveWriteBehind.Sink out, byte[] buffer)
+            throws IOException {
+        long pos = start;
+        int nextDone = chunk;
+        int attempt = 0;
+        while (pos <= end && !mCancelled) {
+            HttpURLConnection conn = null;
+            InputStream in = null;
+            long attemptStart = pos;
+            try {
+                long requested = now();
+                conn = openConnection("bytes=" + pos + "-" + end, true);
+                int code = conn.getResponseCode();
+                mScheduler.onResponse(now() - requested);
+                if (code != HttpURLConnection.HTTP_PARTIAL) {
+                    mScheduler.onError();
+                    // a 200 here means the entity changed underneath us (If-Range)
+                    throw new IOException("unexpected response " + code + " for range "
+                            + pos + "-" + end);
+                }
+                in = conn.getInputStream();
+                int n;
+                while (pos <= end && !mCancelled
+                        && (n = in.read(buffer, 0, (int) Math.min(buffer.length, end - pos + 1))) != -1) {
+                    out.write(buffer, 0, n);
+                    if (null != cursor) {
+                        cursor.update(buffer, 0, n);
+                    }
+                    pos += n;
+                    if (mScheduler.onBytes(now(), n)) {
+                        startWorkers();
+                    }
+                    while (nextDone < chunk + count
+                            && pos >= Math.min((long) (nextDone + 1) * mChunkSize, end + 1)) {
+                        out.then(new ChunkWritten(nextDone++));
+                    }
+                    notifyProgress(mBytesSoFar.addAndGet(n));
+                }
+                if (pos <= end && !mCancelled) {
+                    throw new IOException("premature end of range " + start + "-" + end);
+                }
+            } catch (IOException e) {
+                if (e instanceof SocketTimeoutException) {
+                    octaveInstallMetrics.add(octaveInstallMetrics.COUNTER_STALLS, 1);
+                    mScheduler.onError();
+                }
+                if (mWriter.hasFailed() || ++attempt > MAX_RETRIES) {
+                    throw e;
+                }
+                octaveInstallMetrics.add(octaveInstallMetrics.COUNTER_RETRIES, 1);
+                sleepBeforeRetry(attempt);
+            } finally {
+                octaveInstallMetrics.add(octaveInstallMetrics.COUNTER_BYTES, pos - attemptStart);
+                closeQuietly(in);
+                if (null != conn) {
+                    conn.disconnect();
+                }
+            }
+        }
+    }
+
+    private boolean downloadSingle(HttpURLConnection conn) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(mTarget, "rw");
+        InputStream in = null;
+        try {
+            out.setLength(0);
+            in = conn.getInputStream();
+            synchronized (mChunkLock) {
+                mStarted = true;
+            }
+            octaveBlockDigest.Cursor cursor = null == mDigest ? null : mDigest.cursor(0);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while (!mCancelled && (n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                if (null != cursor) {
+                    cursor.update(buffer, 0, n);
+                }
+                long soFar = mBytesSoFar.addAndGet(n);
+                octaveInstallMetrics.add(octaveInstallMetrics.COUNTER_BYTES, n);
+                synchronized (mChunkLock) {
+                    mContiguous = soFar;
+                    mChunkLock.notifyAll();
+                }
+                notifyProgress(soFar);
+            }
+        } finally {
+            closeQuietly(in);
+            out.close();
+            conn.disconnect();
+        }
+        if (!mCancelled && mTotalBytes > 0 && mBytesSoFar.get() != mTotalBytes) {
+            throw new IOException("short read from " + mUrl);
+        }
+        return !mCancelled;
+    }
+
+    private class ChunkWritten implements octaveWriteBehind.Action {
+        private final int mChunk;
+
+        ChunkWritten(int chunk) {
+            mChunk = chunk;
+        }
+
+        @Override
+        public void run() throws IOException {
+            markChunkDone(mChunk);
+        }
+    }
+
+    /**
+     * Records a finished chunk, in the journal too if there is one, and
+     * advances the contiguous watermark over every finished chunk that now
+     * directly follows it.
+     */
+    private void markChunkDone(int chunk) throws IOException {
+        if (null != mJournal) {
+            byte[][] hashes = null;
+            if (null != mDigest) {
+                int perChunk = mChunkSize / octaveBlockDigest.BLOCK_SIZE;
+                int blocks = octaveBlockDigest.blockCount(mTotalBytes);
+                hashes = new byte[perChunk][];
+                for (int i = 0; i < perChunk && chunk * perChunk + i < blocks; i++) {
+                    hashes[i] = mDigest.getBlockHash(chunk * perChunk + i);
+                }
+            }
+            mJournal.record(chunk, hashes);
+        }
+        synchronized (mChunkLock) {
+            mChunkDone.set(chunk);
+            int first = mChunkDone.nextClearBit((int) (mContiguous / mChunkSize));
+            long contiguous = Math.min((long) first * mChunkSize, mTotalBytes);
+            if (contiguous != mContiguous) {
+                mContiguous = contiguous;
+                mChunkLock.notifyAll();
+            }
+        }
+    }
+
+    private HttpURLConnection openConnection(String range, boolean ifRange) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) mUrl.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        conn.setInstanceFollowRedirects(true);
+        // we want the raw bytes, not a transparently gunzipped body
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        conn.setRequestProperty("Range", range);
+        if (ifRange && null != mETag) {
+            conn.setRequestProperty("If-Range", mETag);
+        }
+        return conn;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private void notifyProgress(long bytesSoFar) {
+        ProgressListener listener = mListener;
+        if (null != listener) {
+            listener.onProgress(bytesSoFar, mTotalBytes);
+        }
+    }
+
+    private void sleepBeforeRetry(int attempt) {
+        try {
+            Thread.sleep(RETRY_DELAY * attempt);
+        } catch (InterruptedException e) {
+            mCancelled = true;
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Pulls the complete length out of "bytes 0-0/12345".
+     */
+    static long parseContentRangeTotal(String contentRange) {
+        if (null == contentRange) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0 || slash == contentRange.length() - 1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static void closeQuietly(java.io.Closeable c) {
+        if (null != c) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // nothing useful to do here
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.octave.main.x86;
+
+/**
+ * Smooths the transfer rate and time remaining of a download from a series
+ * of (time, bytes so far) samples. The rate is an exponentially weighted
+ * moving average whose weight depends on the time between samples, so
+ * callbacks arriving at uneven intervals do not skew it; bursts and stalls
+ * shorter than the time constant barely move it. The time remaining counts
+ * down with the clock between samples and is pulled towards the estimate
+ * from the current rate with the same weight, so it does not jump about.
+ *
+ * Times are passed in rather than read, so the estimator can be driven by
+ * recorded or synthetic progress traces off the device. For the same
+ * reason it cannot tell a stall from a quiet spell: a display should call
+ * update() with the unchanged count every STALL_REFRESH_INTERVAL while no
+ * progress arrives, or the rate it shows never decays.
+ */
+public class octaveThroughputEstimator {
+
+    /** How long a change of rate takes to show by about 63%, in ms */
+    public static final long DEFAULT_TIME_CONSTANT = 4000;
+
+    /** How often to feed the unchanged count while no progress arrives, in ms */
+    public static final long STALL_REFRESH_INTERVAL = 1000;
+
+    /** Samples closer together than this are folded into the next one */
+    private static final long MIN_INTERVAL = 100;
+
+    private final long mTimeConstant;
+
+    private long mLastTime = -1;
+    private long mLastBytes;
+    private double mRate = -1;
+    private double mRemaining = -1;
+
+    public octaveThroughputEstimator() {
+        this(DEFAULT_TIME_CONSTANT);
+    }
+
+    public octaveThroughputEstimator(long timeConstant) {
+        mTimeConstant = timeConstant;
+    }
+
+    /**
+     * Forgets everything, e.g. when a different file starts.
+     */
+    public void reset() {
+        mLastTime = -1;
+        mLastBytes = 0;
+        mRate = -1;
+        mRemaining = -1;
+    }
+
+    /**
+     * @param now a monotonic time in milliseconds
+     * @param bytes how much has been transferred so far
+     * @param total how much there is in all, or 0 if not known
+     */
+    public void update(long now, long bytes, long total) {
+        if (mLastTime < 0 || bytes < mLastBytes || now < mLastTime) {
+            // the first sample, or the count started over
+            reset();
+            mLastTime = now;
+            mLastBytes = bytes;
+            return;
+        }
+        long elapsed = now - mLastTime;
+        if (elapsed < MIN_INTERVAL) {
+            return;
+        }
+        double sample = (double) (bytes - mLastBytes) / elapsed;
+        double weight = 1 - Math.exp(-(double) elapsed / mTimeConstant);
+        mRate = mRate < 0 ? sample : mRate + weight * (sample - mRate);
+        mLastTime = now;
+        mLastBytes = bytes;
+
+        if (total <= 0 || mRate <= 0) {
+            mRemaining = -1;
+            return;
+        }
+        double estimate = (total - bytes) / mRate;
+        if (mRemaining < 0) {
+            mRemaining = estimate;
+        } else {
+            mRemaining = Math.max(0, mRemaining - elapsed);
+            mRemaining += weight * (estimate - mRemaining);
+        }
+    }
+
+    /**
+     * @return the smoothed rate in bytes per millisecond, as the downloader
+     *         library's Helpers.getSpeedString() takes it; 0 until known
+     */
+    public float getBytesPerMillisecond() {
+        return mRate < 0 ? 0 : (float) mRate;
+    }
+
+    /**
+     * @return the smoothed time remaining in milliseconds, or -1 if it
+     *         cannot be told yet
+     */
+    public long getTimeRemaining() {
+        return mRemaining < 0 ? -1 : (long) mRemaining;
+    }
+}
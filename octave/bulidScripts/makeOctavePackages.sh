@@ -25,9 +25,31 @@ dir[9]='octaveStatisticsAllRelease'
 dir[10]='octaveSymbolicArmRelease'
 dir[11]='octaveGnuplotArmRelease'
 
+# packs the current directory into $1.mp3 and writes its listing (and, with
+# the build tools, its path index) next to it in $2
+payload() {
+  tar -cvzf "$2/$1.mp3" --hard-dereference *
+  if [ -n "$OCTAVE_BUILD_TOOLS" ]; then
+    java -cp "$OCTAVE_BUILD_TOOLS" com.octave.build.octavePackTool ${OCTAVE_PAYLOAD_FORMAT:-pack} "$2/$1.mp3" "$2/$1.mp3"
+    java -cp "$OCTAVE_BUILD_TOOLS" com.octave.build.octaveLinkifyTool list . > "$2/$1_files.txt"
+    java -cp "$OCTAVE_BUILD_TOOLS" com.octave.build.octaveIndexTool build "$2/$1_files.txt" "$2/$1_files.idx"
+  else
+    tree -aFfi . > "$2/$1_files.txt"
+  fi
+}
+
 i=0
 for dir in "${dir[@]}"
 do
+  # the *AllRelease packages are built from _all.deb files and come out the
+  # same from the arm and x86 scripts, so whichever runs second reuses them,
+  # as long as they were built from the same .deb list
+  if [ "${dir%AllRelease}" != "$dir" ] && [ -f "$dir/noexec.mp3" ] && [ -z "$OCTAVE_REBUILD_ALL" ] \
+      && [ "$(cat "$dir/debs.txt" 2>/dev/null)" = "${pkg[$i]}" ]; then
+    echo "$dir is architecture independent and already built"
+    i=$((i+1))
+    continue
+  fi
   if [ -d "$dir" ]; then
     rm -rf "$dir"
   fi
@@ -42,14 +64,18 @@ do
     dpkg -x "$deb" .
     rm "$deb"
   done
-  /home/corbin/linkify_new2.sh .
-  tar -cvzf exec.mp3 --hard-dereference *
-  tree -aFfi . > exec_files.txt
+  if [ -n "$OCTAVE_BUILD_TOOLS" ]; then
+    java -cp "$OCTAVE_BUILD_TOOLS" com.octave.build.octaveLinkifyTool split .
+  else
+    /home/corbin/linkify_new2.sh .
+  fi
+  payload exec .
   mv /noexec .
   cd noexec
-  tar -cvzf ../noexec.mp3 --hard-dereference *
-  tree -aFfi . > ../noexec_files.txt
+  payload noexec ..
   cd ..
+  # written last, so an interrupted build is never reused
+  echo "${pkg[$i]}" > debs.txt
   cd ..
   i=$((i+1))
 done
@@ -0,0 +1,673 @@
+package com.octave.build;
+
+import com.octave.main.octaveBlockDigest;
+import com.octave.main.octaveManifestIndex;
+import com.octave.main.octavePackReader;
+import com.octave.main.octaveParallelGzipInputStream;
+import com.octave.main.octaveTarExtractor;
+import com.octave.main.octaveTarInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Times the installer's hot paths on the payloads and listings checked in
+ * to the packages' assets directories, on a plain JVM, so that a slowdown
+ * shows before it reaches a device:
+ *
+ * - untar: unpacks a payload into the target directory, as gzip (the
+ *   shipped format), blocked gzip or an indexed payload;
+ * - manifest: loads every *_files.txt listing, from the text or from the
+ *   compiled index;
+ * - hash: the block SHA-256 the downloader checks files with;
+ * - links: builds the directories and symlinks of the exec payloads
+ *   (a symlink farm) in the target directory.
+ *
+ * Each benchmark runs for every combination of the parameters it depends
+ * on; the defaults can be replaced with -p, e.g. -p threads=1,2,4. The
+ * target should be a tmpfs so the numbers are the code's, not the disk's;
+ * it is emptied, untimed, after every iteration. Links and modes are set
+ * with java.nio.file, as octavePosix does off the device.
+ *
+ * Usage (from bulidScripts, after building the tools):
+ *   java -cp classes com.octave.build.octaveBenchmarkSuite [-w warmups] [-i iterations]
+ *       [-t target] [-p name=value,...]... [-csv file] [untar|manifest|hash|links...]
+ */
+public class octaveBenchmarkSuite {
+
+    private static final String PAYLOAD = "payload";
+    private static final String CODEC = "codec";
+    private static final String BUFFER = "buffer";
+    private static final String THREADS = "threads";
+    private static final String FORMAT = "format";
+
+    private static final String CODEC_GZIP = "gzip";
+    private static final String CODEC_BLOCKED = "blocked";
+    private static final String CODEC_PACK = "pack";
+
+    private static final String FORMAT_TXT = "txt";
+    private static final String FORMAT_IDX = "idx";
+
+    private int mWarmups = 3;
+    private int mIterations = 7;
+    private File mTarget;
+    private final Map<String, String[]> mParams = new LinkedHashMap<String, String[]>();
+    private PrintStream mCsv;
+
+    /**
+     * One benchmark: set up untimed for a combination of parameters, then
+     * run and cleaned up after repeatedly.
+     */
+    private abstract class Benchmark {
+        final String mName;
+        final String[] mDepends;
+        /** what run() counts, per second, and how many of it make a unit */
+        String mUnit = "MB/s";
+        double mScale = 1e6;
+
+        Benchmark(String name, String... depends) {
+            mName = name;
+            mDepends = depends;
+        }
+
+        /**
+         * @return false to skip a combination the parameters do not apply to
+         */
+        boolean applies(Map<String, String> p) {
+            return true;
+        }
+
+        void setUp(Map<String, String> p) throws Exception {
+        }
+
+        /**
+         * @return the amount of work done, bytes unless mUnit says otherwise
+         */
+        abstract long run(Map<String, String> p) throws Exception;
+
+        void cleanUp() throws IOException {
+            clear(mTarget);
+        }
+
+        void tearDown() throws Exception {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        octaveBenchmarkSuite suite = new octaveBenchmarkSuite();
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-w".equals(args[i]) && i + 1 < args.length) {
+                suite.mWarmups = Integer.parseInt(args[++i]);
+            } else if ("-i".equals(args[i]) && i + 1 < args.length) {
+                suite.mIterations = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                suite.mTarget = new File(args[++i]);
+            } else if ("-p".equals(args[i]) && i + 1 < args.length) {
+                String param = args[++i];
+                int eq = param.indexOf('=');
+                if (eq <= 0 || !suite.mParams.containsKey(param.substring(0, eq))) {
+                    usage();
+                }
+                suite.mParams.put(param.substring(0, eq), param.substring(eq + 1).split(","));
+            } else if ("-csv".equals(args[i]) && i + 1 < args.length) {
+                suite.mCsv = new PrintStream(new FileOutputStream(args[++i]), true, "UTF-8");
+            } else if (args[i].startsWith("-")) {
+                usage();
+            } else {
+                names.add(args[i]);
+            }
+        }
+        suite.run(names);
+    }
+
+    private static void usage() {
+        System.err.println("usage: octaveBenchmarkSuite [-w warmups] [-i iterations] [-t target]"
+                + " [-p name=value,...]... [-csv file] [untar|manifest|hash|links...]");
+        System.err.println("parameters: " + PAYLOAD + ", " + CODEC + " (" + CODEC_GZIP + ","
+                + CODEC_BLOCKED + "," + CODEC_PACK + "), " + BUFFER + ", " + THREADS + ", "
+                + FORMAT + " (" + FORMAT_TXT + "," + FORMAT_IDX + ")");
+        System.exit(1);
+    }
+
+    octaveBenchmarkSuite() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        mParams.put(PAYLOAD, new String[] {
+                "../OctaveGnuplotPackage/assets/exec.mp3",
+                "../OctaveGnuplotPackage/assets/noexec.mp3",
+                "../OctaveForgeSignalPackage/assets/exec.mp3",
+                "../OctaveForgeSignalPackage/assets/noexec.mp3"
+        });
+        mParams.put(CODEC, new String[] {
+                CODEC_GZIP, CODEC_BLOCKED, CODEC_PACK
+        });
+        mParams.put(BUFFER, new String[] {
+                "16384", "65536"
+        });
+        mParams.put(THREADS, cores > 1 ? new String[] {
+                "1", Integer.toString(cores)
+        } : new String[] {
+                "1"
+        });
+        mParams.put(FORMAT, new String[] {
+                FORMAT_TXT, FORMAT_IDX
+        });
+    }
+
+    private void run(List<String> names) throws Exception {
+        if (null == mTarget) {
+            File shm = new File("/dev/shm");
+            mTarget = new File(shm.isDirectory() && shm.canWrite() ? shm
+                    : new File(System.getProperty("java.io.tmpdir")), "octave-benchmark");
+        }
+        File scratch = new File(mTarget.getPath() + ".scratch");
+        if (!mTarget.isDirectory() && !mTarget.mkdirs() || !scratch.isDirectory()
+                && !scratch.mkdirs()) {
+            throw new IOException("unable to create " + mTarget);
+        }
+
+        Map<String, Benchmark> all = new LinkedHashMap<String, Benchmark>();
+        for (Benchmark b : new Benchmark[] {
+                untar(scratch), manifest(scratch), hash(), links(scratch)
+        }) {
+            all.put(b.mName, b);
+        }
+        if (names.isEmpty()) {
+            names.addAll(all.keySet());
+        }
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores, target "
+                + mTarget + ", " + mWarmups + " warmups, " + mIterations + " iterations");
+        if (null != mCsv) {
+            mCsv.println("benchmark,parameters,mean_ms,min_ms,stddev_ms,work,rate,unit");
+        }
+        try {
+            for (String name : names) {
+                Benchmark b = all.get(name);
+                if (null == b) {
+                    throw new IllegalArgumentException("no benchmark " + name);
+                }
+                System.out.println();
+                System.out.println(name);
+                List<Map<String, String>> combinations = new ArrayList<Map<String, String>>();
+                combine(b.mDepends, 0, new LinkedHashMap<String, String>(), combinations);
+                for (Map<String, String> p : combinations) {
+                    if (b.applies(p)) {
+                        measure(b, p);
+                    }
+                }
+            }
+        } finally {
+            clear(mTarget);
+            clear(scratch);
+            mTarget.delete();
+            scratch.delete();
+            if (null != mCsv) {
+                mCsv.close();
+            }
+        }
+    }
+
+    private void combine(String[] depends, int i, Map<String, String> p,
+            List<Map<String, String>> out) {
+        if (i == depends.length) {
+            out.add(new LinkedHashMap<String, String>(p));
+            return;
+        }
+        for (String value : mParams.get(depends[i])) {
+            p.put(depends[i], value);
+            combine(depends, i + 1, p, out);
+        }
+        p.remove(depends[i]);
+    }
+
+    private void measure(Benchmark b, Map<String, String> p) throws Exception {
+        b.setUp(p);
+        try {
+            double[] times = new double[mIterations];
+            long bytes = 0;
+            for (int i = -mWarmups; i < mIterations; i++) {
+                long start = System.nanoTime();
+                bytes = b.run(p);
+                long nanos = System.nanoTime() - start;
+                b.cleanUp();
+                if (i >= 0) {
+                    times[i] = nanos / 1e6;
+                }
+            }
+            report(b, describe(p), times, bytes);
+        } finally {
+            b.tearDown();
+        }
+    }
+
+    private void report(Benchmark b, String params, double[] times, long work) {
+        double sum = 0;
+        for (double t : times) {
+            sum += t;
+        }
+        double mean = sum / times.length;
+        double squares = 0;
+        for (double t : times) {
+            squares += (t - mean) * (t - mean);
+        }
+        double stddev = times.length > 1 ? Math.sqrt(squares / (times.length - 1)) : 0;
+        double[] sorted = times.clone();
+        Arrays.sort(sorted);
+        double rate = work / (mean / 1e3) / b.mScale;
+        System.out.println(String.format("  %-62s %8.2f ms  min %8.2f  sd %6.2f %9.1f %s",
+                params, mean, sorted[0], stddev, rate, b.mUnit));
+        if (null != mCsv) {
+            mCsv.println(String.format("%s,\"%s\",%.3f,%.3f,%.3f,%d,%.1f,%s", b.mName, params,
+                    mean, sorted[0], stddev, work, rate, b.mUnit));
+        }
+    }
+
+    private static String describe(Map<String, String> p) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : p.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            String value = e.getValue();
+            if (PAYLOAD.equals(e.getKey())) {
+                value = shortName(new File(value));
+            }
+            sb.append(e.getKey()).append('=').append(value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return e.g. OctaveGnuplotPackage/exec for ../OctaveGnuplotPackage/assets/exec.mp3
+     */
+    private static String shortName(File payload) {
+        File assets = payload.getAbsoluteFile().getParentFile();
+        String name = payload.getName().replaceFirst("\\.mp3$", "");
+        return null == assets || null == assets.getParentFile() ? name
+                : assets.getParentFile().getName() + "/" + name;
+    }
+
+    private Benchmark untar(final File scratch) {
+        return new Benchmark("untar", PAYLOAD, CODEC, BUFFER, THREADS) {
+            byte[] mData;
+            File mPack;
+            long mTarBytes;
+
+            @Override
+            boolean applies(Map<String, String> p) {
+                String codec = p.get(CODEC);
+                if (CODEC_GZIP.equals(codec)) {
+                    // a single stream has nothing to spread over threads
+                    return Integer.parseInt(p.get(THREADS)) == 1;
+                }
+                // the indexed payload is read through its channel
+                return !CODEC_PACK.equals(codec) || p.get(BUFFER).equals(mParams.get(BUFFER)[0]);
+            }
+
+            @Override
+            void setUp(Map<String, String> p) throws Exception {
+                File payload = new File(p.get(PAYLOAD));
+                byte[] gzip = readFile(payload);
+                mTarBytes = tarLength(gzip);
+                String codec = p.get(CODEC);
+                if (CODEC_GZIP.equals(codec)) {
+                    mData = gzip;
+                } else if (CODEC_BLOCKED.equals(codec)) {
+                    ByteArrayOutputStream blocked = new ByteArrayOutputStream();
+                    octavePackTool.writeBlockGzip(
+                            new GZIPInputStream(new ByteArrayInputStream(gzip)), blocked,
+                            octaveParallelGzipInputStream.DEFAULT_BLOCK_SIZE);
+                    mData = blocked.toByteArray();
+                } else if (CODEC_PACK.equals(codec)) {
+                    mPack = new File(scratch, "payload.pack");
+                    octavePackTool.Writer writer = new octavePackTool.Writer(mPack);
+                    try {
+                        writer.writeAll(new octaveTarInputStream(
+                                new GZIPInputStream(new ByteArrayInputStream(gzip))));
+                    } finally {
+                        writer.close();
+                    }
+                } else {
+                    throw new IllegalArgumentException("no codec " + codec);
+                }
+            }
+
+            @Override
+            long run(Map<String, String> p) throws Exception {
+                int buffer = Integer.parseInt(p.get(BUFFER));
+                int threads = Integer.parseInt(p.get(THREADS));
+                String codec = p.get(CODEC);
+                if (CODEC_PACK.equals(codec)) {
+                    RandomAccessFile f = new RandomAccessFile(mPack, "r");
+                    try {
+                        new octavePackReader(f.getChannel(), 0, f.length()).extract(mTarget,
+                                null, threads, null);
+                    } finally {
+                        f.close();
+                    }
+                    return mTarBytes;
+                }
+                InputStream source = new ByteArrayInputStream(mData);
+                InputStream in = CODEC_GZIP.equals(codec) ? new GZIPInputStream(source, buffer)
+                        : new octaveParallelGzipInputStream(source, threads);
+                try {
+                    new octaveTarExtractor(mTarget).extract(new BufferedInputStream(in, buffer));
+                } finally {
+                    in.close();
+                }
+                return mTarBytes;
+            }
+
+            @Override
+            void tearDown() {
+                mData = null;
+                if (null != mPack) {
+                    mPack.delete();
+                    mPack = null;
+                }
+            }
+        };
+    }
+
+    private Benchmark manifest(final File scratch) {
+        return new Benchmark("manifest", FORMAT, BUFFER) {
+            final List<File> mFiles = new ArrayList<File>();
+
+            @Override
+            void setUp(Map<String, String> p) throws Exception {
+                boolean idx = FORMAT_IDX.equals(p.get(FORMAT));
+                int i = 0;
+                for (File listing : listings()) {
+                    if (!idx) {
+                        mFiles.add(listing);
+                        continue;
+                    }
+                    File index = new File(scratch, "listing" + i++ + ".idx");
+                    octaveManifestIndex manifest = parse(listing, 8192);
+                    OutputStream out = new FileOutputStream(index);
+                    try {
+                        manifest.write(out);
+                    } finally {
+                        out.close();
+                    }
+                    mFiles.add(index);
+                }
+            }
+
+            @Override
+            long run(Map<String, String> p) throws Exception {
+                boolean idx = FORMAT_IDX.equals(p.get(FORMAT));
+                int buffer = Integer.parseInt(p.get(BUFFER));
+                long bytes = 0;
+                for (File f : mFiles) {
+                    if (idx) {
+                        InputStream in = new BufferedInputStream(new FileInputStream(f), buffer);
+                        try {
+                            octaveManifestIndex.read(in);
+                        } finally {
+                            in.close();
+                        }
+                    } else {
+                        parse(f, buffer);
+                    }
+                    bytes += f.length();
+                }
+                return bytes;
+            }
+
+            @Override
+            void cleanUp() {
+                // nothing is written
+            }
+
+            @Override
+            void tearDown() {
+                for (File f : mFiles) {
+                    if (f.getParentFile().equals(scratch)) {
+                        f.delete();
+                    }
+                }
+                mFiles.clear();
+            }
+        };
+    }
+
+    private Benchmark hash() {
+        return new Benchmark("hash", PAYLOAD, BUFFER, THREADS) {
+            byte[] mData;
+            ExecutorService mExecutor;
+
+            @Override
+            void setUp(Map<String, String> p) throws Exception {
+                mData = readFile(new File(p.get(PAYLOAD)));
+                mExecutor = Executors.newFixedThreadPool(Integer.parseInt(p.get(THREADS)));
+            }
+
+            @Override
+            long run(Map<String, String> p) throws Exception {
+                final int buffer = Integer.parseInt(p.get(BUFFER));
+                int threads = Integer.parseInt(p.get(THREADS));
+                final octaveBlockDigest digest = new octaveBlockDigest(mData.length);
+                // each thread hashes a run of whole blocks, as the segments of a
+                // download are hashed
+                int blocks = octaveBlockDigest.blockCount(mData.length);
+                int perThread = (blocks + threads - 1) / threads;
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (int first = 0; first < blocks; first += perThread) {
+                    final long start = (long) first * octaveBlockDigest.BLOCK_SIZE;
+                    final long end = Math.min(mData.length,
+                            (long) (first + perThread) * octaveBlockDigest.BLOCK_SIZE);
+                    futures.add(mExecutor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            octaveBlockDigest.Cursor cursor = digest.cursor(start);
+                            for (long pos = start; pos < end; pos += buffer) {
+                                cursor.update(mData, (int) pos, (int) Math.min(buffer, end - pos));
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> f : futures) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        throw new IOException(e.getCause());
+                    }
+                }
+                if (mData.length > 0 && !digest.isComplete()) {
+                    throw new IllegalStateException("blocks left unhashed");
+                }
+                digest.getDigest();
+                return mData.length;
+            }
+
+            @Override
+            void cleanUp() {
+                // nothing is written
+            }
+
+            @Override
+            void tearDown() {
+                mExecutor.shutdown();
+                mData = null;
+            }
+        };
+    }
+
+    private Benchmark links(final File scratch) {
+        return new Benchmark("links", THREADS) {
+            File mPack;
+            int mLinks;
+
+            {
+                mUnit = "k links/s";
+                mScale = 1e3;
+            }
+
+            @Override
+            void setUp(Map<String, String> p) throws Exception {
+                // the directories and symlinks of every exec payload, which is
+                // where the links to /noexec are
+                mPack = new File(scratch, "links.pack");
+                mLinks = 0;
+                octavePackTool.Writer writer = new octavePackTool.Writer(mPack);
+                try {
+                    for (String payload : mParams.get(PAYLOAD)) {
+                        if (!new File(payload).getName().startsWith("exec")) {
+                            continue;
+                        }
+                        InputStream in = octavePackTool.openTar(new File(payload));
+                        try {
+                            mLinks += addLinks(writer, new octaveTarInputStream(in));
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } finally {
+                    writer.close();
+                }
+            }
+
+            @Override
+            long run(Map<String, String> p) throws Exception {
+                RandomAccessFile f = new RandomAccessFile(mPack, "r");
+                try {
+                    new octavePackReader(f.getChannel(), 0, f.length()).extract(mTarget, null,
+                            Integer.parseInt(p.get(THREADS)), null);
+                } finally {
+                    f.close();
+                }
+                return mLinks;
+            }
+
+            @Override
+            void tearDown() {
+                mPack.delete();
+            }
+        };
+    }
+
+    private static int addLinks(octavePackTool.Writer writer, octaveTarInputStream tar)
+            throws IOException {
+        int links = 0;
+        octaveTarInputStream.Entry entry;
+        while (null != (entry = tar.getNextEntry())) {
+            String name = octaveTarInputStream.normalizeName(entry.name);
+            if (null == name || name.length() == 0 || writer.contains(name)) {
+                continue;
+            }
+            if (entry.isDirectory()) {
+                writer.add(entry, name, "", tar);
+            } else if (entry.isSymlink()) {
+                writer.add(entry, name, entry.linkName, tar);
+                links++;
+            }
+        }
+        return links;
+    }
+
+    private List<File> listings() {
+        List<File> listings = new ArrayList<File>();
+        File[] packages = new File("..").listFiles();
+        if (null != packages) {
+            Arrays.sort(packages);
+            for (File dir : packages) {
+                File[] found = new File(dir, "assets").listFiles(new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String name) {
+                        return name.endsWith("_files.txt");
+                    }
+                });
+                if (null != found) {
+                    Arrays.sort(found);
+                    listings.addAll(Arrays.asList(found));
+                }
+            }
+        }
+        if (listings.isEmpty()) {
+            throw new IllegalStateException("no */assets/*_files.txt next to the working directory");
+        }
+        return listings;
+    }
+
+    private static octaveManifestIndex parse(File listing, int buffer) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(listing), buffer);
+        try {
+            return octaveManifestIndex.parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long tarLength(byte[] gzip) throws IOException {
+        octaveTarInputStream tar = new octaveTarInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(gzip)));
+        byte[] buffer = new byte[32 * 1024];
+        while (null != tar.getNextEntry()) {
+            while (tar.read(buffer) != -1) {
+                // just reading
+            }
+        }
+        return tar.getPosition();
+    }
+
+    /**
+     * Empties a directory without following the links in it.
+     */
+    private static void clear(File dir) throws IOException {
+        if (!dir.isDirectory()) {
+            return;
+        }
+        final Path root = dir.toPath();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                if (null != e) {
+                    throw e;
+                }
+                if (!d.equals(root)) {
+                    Files.delete(d);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        return Files.readAllBytes(f.toPath());
+    }
+}
@@ -0,0 +1,288 @@
+package com.octave.build;
+
+import com.octave.main.octaveBlockDigest;
+import com.octave.main.octaveDeltaInputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds and applies the delta patches read by octaveDeltaInputStream.
+ *
+ * The diff works on the inflated tar streams, since one changed file in a
+ * tar.gz changes every compressed byte after it. The old stream is indexed
+ * by the rsync rolling checksum of each BLOCK_SIZE block. The new stream is
+ * then scanned byte by byte for windows that match an old block at or past
+ * the end of the previous copy (the applier only reads the old file
+ * forwards), and every match is extended as far as the bytes agree. A
+ * rootfs bump keeps the tar member order, so almost everything becomes a
+ * copy and only the changed packages travel as literal data.
+ *
+ * Usage:
+ *   octaveDeltaTool diff old.obb new.obb out.patch
+ *   octaveDeltaTool apply old.obb in.patch out.tar.gz
+ */
+public class octaveDeltaTool {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4 || !(args[0].equals("diff") || args[0].equals("apply"))) {
+            System.err.println("usage: octaveDeltaTool diff <old.obb> <new.obb> <out.patch>");
+            System.err.println("       octaveDeltaTool apply <old.obb> <in.patch> <out.tar.gz>");
+            System.exit(1);
+        }
+        File old = new File(args[1]);
+        if (args[0].equals("diff")) {
+            diff(old, new File(args[2]), new File(args[3]));
+        } else {
+            apply(old, new File(args[2]), new File(args[3]));
+        }
+    }
+
+    static void apply(File oldObb, File patch, File out) throws IOException {
+        octaveDeltaInputStream in = octaveDeltaInputStream.open(oldObb, patch);
+        OutputStream os = new GZIPOutputStream(new FileOutputStream(out), BUFFER_SIZE);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                os.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+            os.close();
+        }
+    }
+
+    static void diff(File oldObb, File newObb, File patch) throws IOException {
+        File oldRaw = inflateToTemp(oldObb);
+        File newRaw = inflateToTemp(newObb);
+        try {
+            RandomAccessFile oldFile = new RandomAccessFile(oldRaw, "r");
+            RandomAccessFile newFile = new RandomAccessFile(newRaw, "r");
+            try {
+                MappedByteBuffer oldMap = map(oldFile);
+                MappedByteBuffer newMap = map(newFile);
+                DataOutputStream out = openPatch(patch);
+                try {
+                    out.writeLong(oldObb.length());
+                    out.writeUTF(octaveBlockDigest.digestFile(oldObb, null));
+                    out.writeLong(newMap.capacity());
+                    out.writeUTF(sha256(newMap));
+                    Stats stats = new Stats();
+                    writeOps(oldMap, newMap, out, stats);
+                    out.writeByte(octaveDeltaInputStream.OP_END);
+                    System.out.println(patch.getName() + ": " + stats.mCopied + " bytes copied, "
+                            + stats.mLiteral + " bytes literal");
+                } finally {
+                    out.close();
+                }
+            } finally {
+                oldFile.close();
+                newFile.close();
+            }
+        } finally {
+            oldRaw.delete();
+            newRaw.delete();
+        }
+    }
+
+    private static class Stats {
+        long mCopied;
+        long mLiteral;
+    }
+
+    private static void writeOps(MappedByteBuffer old, MappedByteBuffer cur, DataOutputStream out,
+            Stats stats) throws IOException {
+        long[] index = buildIndex(old);
+        int oldLen = old.capacity();
+        int newLen = cur.capacity();
+        int oldPos = 0;
+        int literalStart = 0;
+        int p = 0;
+        int a = 0;
+        int b = 0;
+        boolean haveSum = false;
+        while (p + BLOCK_SIZE <= newLen) {
+            // cheapest case first: the new stream simply carries on with the old one
+            int match = -1;
+            if (oldPos + BLOCK_SIZE <= oldLen && regionEquals(old, oldPos, cur, p, BLOCK_SIZE)) {
+                match = oldPos;
+            } else {
+                if (!haveSum) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < BLOCK_SIZE; i++) {
+                        int x = cur.get(p + i) & 0xff;
+                        a += x;
+                        b += (BLOCK_SIZE - i) * x;
+                    }
+                    haveSum = true;
+                }
+                match = findBlock(index, weak(a, b), old, oldPos, cur, p);
+            }
+            if (match >= 0) {
+                int len = BLOCK_SIZE;
+                while (match + len < oldLen && p + len < newLen
+                        && old.get(match + len) == cur.get(p + len)) {
+                    len++;
+                }
+                writeData(cur, literalStart, p, out, stats);
+                out.writeByte(octaveDeltaInputStream.OP_COPY);
+                out.writeLong(match);
+                out.writeLong(len);
+                stats.mCopied += len;
+                p += len;
+                oldPos = match + len;
+                literalStart = p;
+                haveSum = false;
+                continue;
+            }
+            // roll the checksum one byte forward
+            if (p + BLOCK_SIZE < newLen) {
+                int xOut = cur.get(p) & 0xff;
+                int xIn = cur.get(p + BLOCK_SIZE) & 0xff;
+                a += xIn - xOut;
+                b += a - BLOCK_SIZE * xOut;
+            }
+            p++;
+        }
+        writeData(cur, literalStart, newLen, out, stats);
+    }
+
+    /**
+     * Sorted (weak checksum << 32 | block number) for every whole old block.
+     */
+    private static long[] buildIndex(MappedByteBuffer old) {
+        int blocks = old.capacity() / BLOCK_SIZE;
+        long[] index = new long[blocks];
+        for (int blk = 0; blk < blocks; blk++) {
+            int a = 0;
+            int b = 0;
+            int base = blk * BLOCK_SIZE;
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                int x = old.get(base + i) & 0xff;
+                a += x;
+                b += (BLOCK_SIZE - i) * x;
+            }
+            index[blk] = ((long) weak(a, b) << 32) | blk;
+        }
+        Arrays.sort(index);
+        return index;
+    }
+
+    private static int weak(int a, int b) {
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * @return the offset of the first old block at or after minOffset whose
+     *         checksum and bytes match the new window at p, or -1
+     */
+    private static int findBlock(long[] index, int weak, MappedByteBuffer old, int minOffset,
+            MappedByteBuffer cur, int p) {
+        long key = (long) weak << 32;
+        int i = Arrays.binarySearch(index, key);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < index.length && (int) (index[i] >>> 32) == weak; i++) {
+            int offset = (int) (index[i] & 0xffffffffL) * BLOCK_SIZE;
+            if (offset >= minOffset && regionEquals(old, offset, cur, p, BLOCK_SIZE)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(MappedByteBuffer x, int xOff, MappedByteBuffer y, int yOff,
+            int len) {
+        for (int i = 0; i < len; i++) {
+            if (x.get(xOff + i) != y.get(yOff + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeData(MappedByteBuffer cur, int from, int to, DataOutputStream out,
+            Stats stats) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        out.writeByte(octaveDeltaInputStream.OP_DATA);
+        out.writeLong(to - from);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (int pos = from; pos < to; pos += buffer.length) {
+            int n = Math.min(buffer.length, to - pos);
+            for (int i = 0; i < n; i++) {
+                buffer[i] = cur.get(pos + i);
+            }
+            out.write(buffer, 0, n);
+        }
+        stats.mLiteral += to - from;
+    }
+
+    private static DataOutputStream openPatch(File patch) throws IOException {
+        OutputStream raw = new BufferedOutputStream(new FileOutputStream(patch), BUFFER_SIZE);
+        raw.write(octaveDeltaInputStream.MAGIC);
+        raw.write(octaveDeltaInputStream.FORMAT_VERSION);
+        return new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(raw,
+                BUFFER_SIZE), BUFFER_SIZE));
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile f) throws IOException {
+        if (f.length() > Integer.MAX_VALUE) {
+            throw new IOException("inflated stream is larger than 2 GiB");
+        }
+        return f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+    }
+
+    private static File inflateToTemp(File gz) throws IOException {
+        File tmp = File.createTempFile("octaveDelta", ".tar");
+        InputStream in = new GZIPInputStream(new FileInputStream(gz), BUFFER_SIZE);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        return tmp;
+    }
+
+    private static String sha256(MappedByteBuffer map) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md.update(map.duplicate());
+        byte[] digest = md.digest();
+        StringBuilder sb = new StringBuilder();
+        for (byte x : digest) {
+            sb.append(String.format("%02x", x & 0xff));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,27 @@
+package com.octave.build;
+
+import com.octave.main.octaveBlockDigest;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Prints the length and octaveBlockDigest of expansion files, in the form
+ * the xAPKS table in octaveDownloaderActivity wants them.
+ *
+ * Usage: octaveDigestTool main.2.com.octave.main.obb [patch.2.com.octave.main.obb ...]
+ */
+public class octaveDigestTool {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: octaveDigestTool <file>...");
+            System.exit(1);
+        }
+        for (String arg : args) {
+            File f = new File(arg);
+            System.out.println(f.getName() + ": " + f.length() + "L, \""
+                    + octaveBlockDigest.digestFile(f, null) + "\"");
+        }
+    }
+}
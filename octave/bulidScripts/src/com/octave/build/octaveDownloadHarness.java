@@ -0,0 +1,238 @@
+package com.octave.build;
+
+import com.octave.main.octaveSegmentedDownloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Drives octaveSegmentedDownloader against a Range server on loopback, on
+ * a plain JVM:
+ *
+ * - ranges: a file that is no whole number of chunks arrives intact over
+ *   several range requests;
+ * - size from server: with no expected size the total is taken from the
+ *   probe's Content-Range;
+ * - no range support: a server that ignores Range is read in one stream
+ *   off the probe connection;
+ * - reset: a range cut short mid way is requested again from where it
+ *   stopped;
+ * - changed entity: a server whose ETag changes after the probe answers
+ *   If-Range with the whole new entity, and the download fails rather
+ *   than mix the two (this one sits through the retry back-off).
+ *
+ * Prints one line per check and exits with 1 if any failed:
+ *   java -cp classes com.octave.build.octaveDownloadHarness
+ */
+public class octaveDownloadHarness {
+
+    private static final int CHUNK = 64 * 1024;
+    private static final int CONNECTIONS = 4;
+
+    private int mFailures;
+
+    public static void main(String[] args) throws Exception {
+        octaveDownloadHarness harness = new octaveDownloadHarness();
+        harness.run();
+        System.exit(harness.mFailures > 0 ? 1 : 0);
+    }
+
+    private void run() throws Exception {
+        check("ranges", ranges());
+        check("size from server", sizeFromServer());
+        check("no range support", noRangeSupport());
+        check("reset", reset());
+        check("changed entity", changedEntity());
+        System.out.println(mFailures > 0 ? mFailures + " failed" : "all passed");
+    }
+
+    private void check(String name, String failure) {
+        if (null == failure) {
+            System.out.println("ok    " + name);
+        } else {
+            System.out.println("FAIL  " + name + ": " + failure);
+            mFailures++;
+        }
+    }
+
+    private static String ranges() throws Exception {
+        RangeServer server = new RangeServer(data(10 * CHUNK + 1234));
+        String failure = download(server, server.mData.length);
+        if (null == failure && server.mRanged < 2) {
+            failure = "only " + server.mRanged + " range requests";
+        }
+        return failure;
+    }
+
+    private static String sizeFromServer() throws Exception {
+        RangeServer server = new RangeServer(data(3 * CHUNK + 1));
+        return download(server, 0);
+    }
+
+    private static String noRangeSupport() throws Exception {
+        RangeServer server = new RangeServer(data(5 * CHUNK + 77));
+        server.mIgnoreRange = true;
+        String failure = download(server, server.mData.length);
+        if (null == failure && server.mRequests != 1) {
+            failure = server.mRequests + " requests instead of 1";
+        }
+        return failure;
+    }
+
+    private static String reset() throws Exception {
+        RangeServer server = new RangeServer(data(4 * CHUNK));
+        server.mCutAfter = CHUNK / 3;
+        String failure = download(server, server.mData.length);
+        if (null == failure && server.mCut != 1) {
+            failure = "the server cut " + server.mCut + " responses";
+        }
+        return failure;
+    }
+
+    private static String changedEntity() throws Exception {
+        RangeServer server = new RangeServer(data(4 * CHUNK));
+        server.mChangeAfterProbe = true;
+        String failure = download(server, server.mData.length);
+        return null == failure ? "a mix of two entities was accepted" : null;
+    }
+
+    /**
+     * @return null if the download succeeded with the server's data
+     */
+    private static String download(RangeServer server, long totalBytes) throws Exception {
+        int port = server.start();
+        File target = File.createTempFile("octave-download", ".obb");
+        try {
+            octaveSegmentedDownloader downloader = new octaveSegmentedDownloader(
+                    "http://127.0.0.1:" + port + "/main.obb", target, totalBytes, CONNECTIONS,
+                    CHUNK);
+            if (!downloader.download()) {
+                return "cancelled";
+            }
+            if (downloader.getTotalBytes() != server.mData.length) {
+                return "total " + downloader.getTotalBytes() + " instead of "
+                        + server.mData.length;
+            }
+            if (!Arrays.equals(server.mData, Files.readAllBytes(target.toPath()))) {
+                return "the file came out different";
+            }
+            return null;
+        } catch (IOException e) {
+            return e.toString();
+        } finally {
+            server.stop();
+            target.delete();
+        }
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Serves one file, honouring single byte ranges and If-Range, with
+     * switches for the misbehaviour the checks need.
+     */
+    private static class RangeServer {
+        final byte[] mData;
+        volatile boolean mIgnoreRange;
+        /** cut the first range response short after this many bytes, 0 for never */
+        volatile int mCutAfter;
+        volatile boolean mChangeAfterProbe;
+
+        int mRequests;
+        int mRanged;
+        int mCut;
+        private String mETag = "\"one\"";
+        private HttpServer mServer;
+        private ExecutorService mExecutor;
+
+        RangeServer(byte[] data) {
+            mData = data;
+        }
+
+        int start() throws IOException {
+            mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    0), 16);
+            mExecutor = Executors.newCachedThreadPool();
+            mServer.setExecutor(mExecutor);
+            mServer.createContext("/", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    try {
+                        serve(exchange);
+                    } finally {
+                        exchange.close();
+                    }
+                }
+            });
+            mServer.start();
+            return mServer.getAddress().getPort();
+        }
+
+        void stop() {
+            mServer.stop(0);
+            mExecutor.shutdownNow();
+        }
+
+        private void serve(HttpExchange exchange) throws IOException {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            String etag;
+            boolean cut;
+            synchronized (this) {
+                if (mChangeAfterProbe && mRequests == 1) {
+                    mETag = "\"two\"";
+                }
+                mRequests++;
+                etag = mETag;
+                boolean partial = !mIgnoreRange && null != range
+                        && (null == ifRange || ifRange.equals(etag));
+                if (!partial) {
+                    range = null;
+                } else if (!"bytes=0-0".equals(range)) {
+                    mRanged++;
+                }
+                cut = null != range && mCutAfter > 0 && mRanged == 1 && mCut == 0
+                        && !"bytes=0-0".equals(range);
+                if (cut) {
+                    mCut++;
+                }
+            }
+            long first = 0;
+            long last = mData.length - 1;
+            if (null != range) {
+                String[] ends = range.substring("bytes=".length()).split("-", -1);
+                first = Long.parseLong(ends[0]);
+                if (ends[1].length() > 0) {
+                    last = Math.min(last, Long.parseLong(ends[1]));
+                }
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + first + "-" + last + "/" + mData.length);
+            }
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.sendResponseHeaders(null != range ? 206 : 200, last - first + 1);
+            OutputStream out = exchange.getResponseBody();
+            long length = last - first + 1;
+            if (cut) {
+                length = Math.min(length, mCutAfter);
+            }
+            out.write(mData, (int) first, (int) length);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.octave.build;
+
+import com.octave.main.octaveManifestIndex;
+import com.octave.main.octavePackReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Compiles a payload manifest into the binary index read by
+ * octaveManifestIndex, and queries such indexes.
+ *
+ * Usage:
+ *   octaveIndexTool build exec_files.txt exec_files.idx
+ *   octaveIndexTool build exec.mp3 exec_files.idx   (indexed payloads only;
+ *                                                  this also records sizes
+ *                                                  and real modes)
+ *   octaveIndexTool find exec_files.idx usr/bin/gnuplot
+ *   octaveIndexTool list exec_files.idx [prefix]
+ */
+public class octaveIndexTool {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("build")) {
+            build(new File(args[1]), new File(args[2]));
+        } else if (args.length == 3 && args[0].equals("find")) {
+            octaveManifestIndex index = load(new File(args[1]));
+            int i = index.find(args[2]);
+            if (i < 0) {
+                System.out.println(args[2] + ": not in the manifest");
+                System.exit(1);
+            }
+            print(index, i);
+        } else if ((args.length == 2 || args.length == 3) && args[0].equals("list")) {
+            octaveManifestIndex index = load(new File(args[1]));
+            int[] range = index.prefix(args.length == 3 ? args[2] : "");
+            for (int i = range[0]; i < range[1]; i++) {
+                print(index, i);
+            }
+        } else {
+            System.err.println("usage: octaveIndexTool build <listing.txt|payload.mp3> <out.idx>");
+            System.err.println("       octaveIndexTool find <index.idx> <path>");
+            System.err.println("       octaveIndexTool list <index.idx> [prefix]");
+            System.exit(1);
+        }
+    }
+
+    static void build(File in, File out) throws IOException {
+        octaveManifestIndex index;
+        RandomAccessFile f = new RandomAccessFile(in, "r");
+        try {
+            if (octavePackReader.isPack(f.getChannel(), 0, f.length())) {
+                index = octaveManifestIndex.fromPack(new octavePackReader(f.getChannel(), 0,
+                        f.length()));
+            } else {
+                index = octaveManifestIndex.parse(new BufferedInputStream(
+                        new FileInputStream(f.getFD())));
+            }
+        } finally {
+            f.close();
+        }
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(out));
+        try {
+            index.write(os);
+        } finally {
+            os.close();
+        }
+        System.out.println(out.getName() + ": " + index.size() + " entries, " + out.length()
+                + " bytes");
+    }
+
+    static octaveManifestIndex load(File f) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(f));
+        try {
+            return octaveManifestIndex.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void print(octaveManifestIndex index, int i) {
+        String link = index.getLinkTarget(i);
+        long size = index.getSize(i);
+        System.out.println(String.format("%c %04o %10s %s%s", index.getType(i),
+                index.getMode(i), size == octaveManifestIndex.UNKNOWN_SIZE ? "-" : "" + size,
+                index.getPath(i), null == link ? "" : " -> " + link));
+    }
+}
@@ -0,0 +1,131 @@
+package com.octave.build;
+
+import com.octave.main.octaveParallelGzipInputStream;
+import com.octave.main.octaveTarInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Measures how fast a payload is inflated and walked by the tar reader, as
+ * a single gzip stream and as blocked gzip on 1, 2, 4, ... threads. The
+ * payloads are held in memory and nothing is written out, so the numbers
+ * are decoder throughput rather than storage speed.
+ *
+ * Usage (from bulidScripts, after building the tools):
+ *   java -cp classes com.octave.build.octaveInflateBenchmark [payload...]
+ *
+ * Without arguments the gnuplot and signal exec.mp3 assets are used.
+ */
+public class octaveInflateBenchmark {
+
+    private static final int WARMUP = 3;
+    private static final int RUNS = 7;
+
+    public static void main(String[] args) throws IOException {
+        String[] payloads = args.length > 0 ? args : new String[] {
+                "../OctaveGnuplotPackage/assets/exec.mp3",
+                "../OctaveForgeSignalPackage/assets/exec.mp3"
+        };
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println(cores + " cores, block size "
+                + octaveParallelGzipInputStream.DEFAULT_BLOCK_SIZE);
+        for (String payload : payloads) {
+            bench(new File(payload), cores);
+        }
+    }
+
+    private static void bench(File payload, int cores) throws IOException {
+        byte[] gzip = readFile(payload);
+        ByteArrayOutputStream blocked = new ByteArrayOutputStream();
+        octavePackTool.writeBlockGzip(new GZIPInputStream(new ByteArrayInputStream(gzip)),
+                blocked, octaveParallelGzipInputStream.DEFAULT_BLOCK_SIZE);
+        byte[] blockedGzip = blocked.toByteArray();
+
+        long tarBytes = walk(new GZIPInputStream(new ByteArrayInputStream(gzip)));
+        System.out.println();
+        System.out.println(payload.getPath() + ": " + tarBytes + " bytes of tar, gzip "
+                + gzip.length + ", blocked gzip " + blockedGzip.length);
+
+        long single = median(gzip, 0);
+        report("gzip, 1 thread", single, single, tarBytes);
+        long one = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            long t = median(blockedGzip, threads);
+            if (threads == 1) {
+                one = t;
+            }
+            report("blocked, " + threads + (threads == 1 ? " thread" : " threads"), t, one,
+                    tarBytes);
+            if (threads >= cores) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @param threads 0 for the plain GZIPInputStream
+     * @return the median wall time in nanoseconds
+     */
+    private static long median(byte[] data, int threads) throws IOException {
+        long[] times = new long[RUNS];
+        for (int i = -WARMUP; i < RUNS; i++) {
+            long start = System.nanoTime();
+            InputStream in = threads == 0 ? new GZIPInputStream(new ByteArrayInputStream(data))
+                    : new octaveParallelGzipInputStream(new ByteArrayInputStream(data), threads);
+            try {
+                walk(in);
+            } finally {
+                in.close();
+            }
+            if (i >= 0) {
+                times[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(times);
+        return times[RUNS / 2];
+    }
+
+    /**
+     * Reads every entry the way the extractor does, minus the writing.
+     */
+    private static long walk(InputStream in) throws IOException {
+        octaveTarInputStream tar = new octaveTarInputStream(in);
+        byte[] buffer = new byte[32 * 1024];
+        while (null != tar.getNextEntry()) {
+            while (tar.read(buffer) != -1) {
+                // just reading
+            }
+        }
+        return tar.getPosition();
+    }
+
+    private static void report(String what, long nanos, long base, long bytes) {
+        System.out.println(String.format("  %-20s %8.1f ms %8.1f MB/s  x%.2f", what,
+                nanos / 1e6, bytes / (nanos / 1e9) / 1e6, (double) base / nanos));
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        byte[] data = new byte[(int) f.length()];
+        InputStream in = new FileInputStream(f);
+        try {
+            int off = 0;
+            while (off < data.length) {
+                int n = in.read(data, off, data.length - off);
+                if (n < 0) {
+                    throw new IOException(f + " shrank while reading");
+                }
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
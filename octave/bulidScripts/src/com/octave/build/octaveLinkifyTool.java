@@ -0,0 +1,370 @@
+package com.octave.build;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Does what linkify_new2.sh does, in one process: every regular file of a
+ * package tree that is neither executable nor ELF is moved to the noexec
+ * tree and replaced by a symlink to /noexec/./&lt;path&gt;, which is where
+ * the noexec payload is unpacked on the device. Directories are walked on
+ * several threads, files are moved rather than copied, and ELF files are
+ * recognized by their magic instead of by running file and grep.
+ *
+ * It keeps the script's quirks so that the trees come out the same:
+ * - names starting with "." are left alone (the script reads ls, not ls -a);
+ * - dev, mnt, proc, host-rootfs, noexec and *.deb are skipped at the top;
+ * - a file counts as ELF if "ELF" appears in its path, since the script
+ *   greps the whole output of file, which starts with the path.
+ * Unlike the script it copes with names containing backslashes or leading
+ * or trailing blanks, and it only moves regular files.
+ *
+ * "list" prints a tree the way "tree -aFfi" does, with tree's en_US
+ * ordering, so the exec_files.txt and noexec_files.txt listings no longer
+ * need tree either.
+ *
+ * Usage:
+ *   octaveLinkifyTool split <dir> [noexec dir, default /noexec]
+ *   octaveLinkifyTool list . > exec_files.txt
+ */
+public class octaveLinkifyTool {
+
+    static final String LINK_PREFIX = "/noexec/./";
+
+    static final Set<String> TOP_LEVEL_SKIP = new HashSet<String>(Arrays.asList(
+            "dev", "mnt", "proc", "host-rootfs", "noexec"));
+
+    static final byte[] ELF_MAGIC = {
+            0x7f, 'E', 'L', 'F'
+    };
+
+    static final int S_IFMT = 0170000;
+    static final int S_IFDIR = 0040000;
+    static final int S_IFREG = 0100000;
+    static final int S_IFLNK = 0120000;
+    private static final int S_IFSOCK = 0140000;
+    private static final int S_IFIFO = 0010000;
+
+    private final Path mRoot;
+    private final Path mNoexec;
+    private final ExecutorService mPool;
+    private final LinkedBlockingQueue<Future<Void>> mPending =
+            new LinkedBlockingQueue<Future<Void>>();
+    private final AtomicInteger mMoved = new AtomicInteger();
+    private final AtomicInteger mKept = new AtomicInteger();
+
+    octaveLinkifyTool(Path root, Path noexec, int threads) {
+        mRoot = root;
+        mNoexec = noexec;
+        mPool = Executors.newFixedThreadPool(threads);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if ((args.length == 2 || args.length == 3) && args[0].equals("split")) {
+            Path noexec = Paths.get(args.length == 3 ? args[2] : "/noexec");
+            octaveLinkifyTool tool = new octaveLinkifyTool(Paths.get(args[1]), noexec,
+                    Runtime.getRuntime().availableProcessors());
+            long start = System.nanoTime();
+            tool.split();
+            System.err.println(tool.mMoved.get() + " files moved to " + noexec + ", "
+                    + tool.mKept.get() + " kept, in " + (System.nanoTime() - start) / 1000000
+                    + " ms");
+        } else if (args.length == 2 && args[0].equals("list")) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+            list(args[1], out);
+            out.flush();
+        } else {
+            System.err.println("usage: octaveLinkifyTool split <dir> [noexec dir]");
+            System.err.println("       octaveLinkifyTool list <dir>");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Walks the tree, one task per directory. A task queues the tasks for
+     * its subdirectories before it finishes, so once every queued task has
+     * been waited for the walk is complete.
+     */
+    void split() throws IOException {
+        try {
+            submit(mRoot, "");
+            Future<Void> f;
+            while (null != (f = mPending.poll())) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            mPool.shutdownNow();
+        }
+    }
+
+    private void submit(final Path dir, final String relative) {
+        mPending.add(mPool.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                traverse(dir, relative);
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * @param relative the path of dir below the root, "" or ending in "/"
+     */
+    private void traverse(Path dir, String relative) throws IOException {
+        DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+        try {
+            for (Path p : entries) {
+                String name = p.getFileName().toString();
+                if (name.startsWith(".")) {
+                    continue;
+                }
+                if (relative.length() == 0
+                        && (TOP_LEVEL_SKIP.contains(name) || name.endsWith(".deb"))) {
+                    continue;
+                }
+                String path = relative + name;
+                int mode = mode(p);
+                int type = mode & S_IFMT;
+                if (type == S_IFLNK) {
+                    continue;
+                } else if (type == S_IFDIR) {
+                    submit(p, path + "/");
+                } else if (!Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS)) {
+                    continue;
+                } else if (Files.isExecutable(p) || isElf(p, path)) {
+                    mKept.incrementAndGet();
+                } else {
+                    moveToNoexec(p, path);
+                }
+            }
+        } finally {
+            entries.close();
+        }
+    }
+
+    private static boolean isElf(Path p, String path) throws IOException {
+        if (("./" + path).contains("ELF")) {
+            return true;
+        }
+        byte[] magic = new byte[ELF_MAGIC.length];
+        InputStream in = Files.newInputStream(p);
+        try {
+            int off = 0;
+            while (off < magic.length) {
+                int n = in.read(magic, off, magic.length - off);
+                if (n < 0) {
+                    return false;
+                }
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return Arrays.equals(magic, ELF_MAGIC);
+    }
+
+    private void moveToNoexec(Path p, String path) throws IOException {
+        Path target = mNoexec.resolve(path);
+        Files.createDirectories(target.getParent());
+        // a rename within one filesystem, a copy and delete across them
+        Files.move(p, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.createSymbolicLink(p, Paths.get(LINK_PREFIX + path));
+        mMoved.incrementAndGet();
+    }
+
+    /**
+     * Prints dir as "tree -aFfi dir" would: every path starts with dir as
+     * given, so list "." from inside the tree to get "./usr/...".
+     */
+    static void list(String dir, Writer out) throws IOException {
+        int[] counts = new int[2];
+        out.write(dir + "\n");
+        list(Paths.get(dir), dir + "/", out, counts);
+        out.write(summary(counts[0], counts[1]));
+    }
+
+    /**
+     * @return tree's closing lines
+     */
+    static String summary(int directories, int files) {
+        return "\n" + directories + (directories == 1 ? " directory, " : " directories, ")
+                + files + (files == 1 ? " file" : " files") + "\n";
+    }
+
+    /**
+     * @param counts directories and files so far
+     */
+    private static void list(Path dir, String prefix, Writer out, int[] counts)
+            throws IOException {
+        List<String> names = new ArrayList<String>();
+        DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+        try {
+            for (Path p : entries) {
+                names.add(p.getFileName().toString());
+            }
+        } finally {
+            entries.close();
+        }
+        Collections.sort(names, TREE_ORDER);
+        for (String name : names) {
+            Path p = dir.resolve(name);
+            int mode = mode(p);
+            if ((mode & S_IFMT) == S_IFLNK) {
+                String line = prefix + name + " -> " + Files.readSymbolicLink(p);
+                // tree classifies what the link points to, and counts links
+                // to directories as directories
+                int targetMode = Files.exists(p) ? followedMode(p) : 0;
+                out.write(line + classify(targetMode) + "\n");
+                counts[(targetMode & S_IFMT) == S_IFDIR ? 0 : 1]++;
+            } else if ((mode & S_IFMT) == S_IFDIR) {
+                out.write(prefix + name + "/\n");
+                counts[0]++;
+                list(p, prefix + name + "/", out, counts);
+            } else {
+                out.write(prefix + name + classify(mode) + "\n");
+                counts[1]++;
+            }
+        }
+    }
+
+    /**
+     * @return the mark -F puts after a name, for a stat mode (0 for none)
+     */
+    static String classify(int mode) {
+        switch (mode & S_IFMT) {
+            case 0:
+                return "";
+            case S_IFDIR:
+                return "/";
+            case S_IFSOCK:
+                return "=";
+            case S_IFIFO:
+                return "|";
+            default:
+                return (mode & 0111) != 0 ? "*" : "";
+        }
+    }
+
+    private static int mode(Path p) throws IOException {
+        return (Integer) Files.getAttribute(p, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+    }
+
+    private static int followedMode(Path p) throws IOException {
+        return (Integer) Files.getAttribute(p, "unix:mode");
+    }
+
+    /**
+     * The order tree sorts names in under the en_US.UTF-8 locale the
+     * listings were made in, i.e. glibc's ISO 14651 collation: letters and
+     * digits compared without case, punctuation ignored; then lower case
+     * before upper case; then punctuation, in the table's order.
+     */
+    static final Comparator<String> TREE_ORDER = new Comparator<String>() {
+        private static final String PUNCTUATION = " _-,;:!?.'\"()[]{}@*/\\&#%`^+<=>|~$";
+
+        @Override
+        public int compare(String a, String b) {
+            int c = compareAlphanumerics(a, b);
+            if (c != 0) {
+                return c;
+            }
+            c = compareCase(a, b);
+            if (c != 0) {
+                return c;
+            }
+            int n = Math.min(a.length(), b.length());
+            for (int i = 0; i < n; i++) {
+                c = weight(a.charAt(i)) - weight(b.charAt(i));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return a.length() - b.length();
+        }
+
+        private int compareAlphanumerics(String a, String b) {
+            int i = 0;
+            int j = 0;
+            while (true) {
+                i = nextAlphanumeric(a, i);
+                j = nextAlphanumeric(b, j);
+                if (i == a.length() || j == b.length()) {
+                    return (i == a.length() ? 0 : 1) - (j == b.length() ? 0 : 1);
+                }
+                int c = Character.toLowerCase(a.charAt(i)) - Character.toLowerCase(b.charAt(j));
+                if (c != 0) {
+                    return c;
+                }
+                i++;
+                j++;
+            }
+        }
+
+        private int compareCase(String a, String b) {
+            int i = 0;
+            int j = 0;
+            while (true) {
+                i = nextAlphanumeric(a, i);
+                j = nextAlphanumeric(b, j);
+                if (i == a.length() || j == b.length()) {
+                    return 0;
+                }
+                int c = (Character.isUpperCase(a.charAt(i)) ? 1 : 0)
+                        - (Character.isUpperCase(b.charAt(j)) ? 1 : 0);
+                if (c != 0) {
+                    return c;
+                }
+                i++;
+                j++;
+            }
+        }
+
+        private int nextAlphanumeric(String s, int i) {
+            while (i < s.length() && !Character.isLetterOrDigit(s.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+
+        /**
+         * Punctuation first, in table order, then everything else by its
+         * lower case code point.
+         */
+        private int weight(char ch) {
+            int p = PUNCTUATION.indexOf(ch);
+            return p >= 0 ? p - PUNCTUATION.length() : Character.toLowerCase(ch);
+        }
+    };
+}
@@ -0,0 +1,530 @@
+package com.octave.build;
+
+import com.octave.main.octavePackReader;
+import com.octave.main.octaveParallelGzipInputStream;
+import com.octave.main.octaveTarInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts a payload tar(.gz) into the indexed format read by
+ * octavePackReader, or into blocked gzip for
+ * octaveParallelGzipInputStream, and lists or unpacks indexed payloads on
+ * the host.
+ *
+ * "split" takes the arm and x86 builds of a payload and writes the entries
+ * they have in common (same name, type, mode, link and content) to one
+ * arch-independent payload and the rest to a thin payload per ABI. The
+ * installer unpacks &lt;payload&gt;_all.mp3 before &lt;payload&gt;.mp3.
+ *
+ * Usage:
+ *   octavePackTool pack in.tar.gz out.mp3   (in and out may be the same file)
+ *   octavePackTool gzip in.tar.gz out.mp3   (likewise)
+ *   octavePackTool list payload.mp3
+ *   octavePackTool extract payload.mp3 dir
+ *   octavePackTool split arm.mp3 x86.mp3 all.mp3 arm-only.mp3 x86-only.mp3
+ */
+public class octavePackTool {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Blocks that deflate shrinks by less than 1/STORE_BELOW_SAVING are
+     * stored: the few bytes saved are not worth inflating them on every
+     * install, and stored blocks are copied to disk without passing through
+     * the Java heap.
+     */
+    private static final int STORE_BELOW_SAVING = 8;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("pack")) {
+            pack(new File(args[1]), new File(args[2]));
+        } else if (args.length == 3 && args[0].equals("gzip")) {
+            blockGzip(new File(args[1]), new File(args[2]),
+                    octaveParallelGzipInputStream.DEFAULT_BLOCK_SIZE);
+        } else if (args.length == 2 && args[0].equals("list")) {
+            list(new File(args[1]));
+        } else if (args.length == 3 && args[0].equals("extract")) {
+            extract(new File(args[1]), new File(args[2]));
+        } else if (args.length == 6 && args[0].equals("split")) {
+            split(new File(args[1]), new File(args[2]), new File(args[3]), new File(args[4]),
+                    new File(args[5]));
+        } else {
+            System.err.println("usage: octavePackTool pack <in.tar.gz> <out.mp3>");
+            System.err.println("       octavePackTool gzip <in.tar.gz> <out.mp3>");
+            System.err.println("       octavePackTool list <payload.mp3>");
+            System.err.println("       octavePackTool extract <payload.mp3> <dir>");
+            System.err.println("       octavePackTool split <a.mp3> <b.mp3> <all.mp3> <a-only.mp3>"
+                    + " <b-only.mp3>");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the tar stream of a tar or tar.gz file
+     */
+    static InputStream openTar(File in) throws IOException {
+        InputStream raw = new BufferedInputStream(new FileInputStream(in), BUFFER_SIZE);
+        raw.mark(2);
+        boolean gzipped = raw.read() == 0x1f && raw.read() == 0x8b;
+        raw.reset();
+        return gzipped ? new GZIPInputStream(raw, BUFFER_SIZE) : raw;
+    }
+
+    static void replace(File temp, File out) throws IOException {
+        if (out.exists() && !out.delete() || !temp.renameTo(out)) {
+            throw new IOException("unable to rename " + temp + " to " + out);
+        }
+    }
+
+    static void pack(File in, File out) throws IOException {
+        File temp = new File(out.getPath() + ".tmp");
+        InputStream tar = openTar(in);
+        try {
+            Writer writer = new Writer(temp);
+            try {
+                writer.writeAll(new octaveTarInputStream(tar));
+            } finally {
+                writer.close();
+            }
+        } finally {
+            tar.close();
+        }
+        replace(temp, out);
+        System.out.println(out.getName() + ": " + in.length() + " -> " + out.length() + " bytes");
+    }
+
+    static void blockGzip(File in, File out, int blockSize) throws IOException {
+        File temp = new File(out.getPath() + ".tmp");
+        InputStream tar = openTar(in);
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+            try {
+                writeBlockGzip(tar, os, blockSize);
+            } finally {
+                os.close();
+            }
+        } finally {
+            tar.close();
+        }
+        replace(temp, out);
+        System.out.println(out.getName() + ": " + in.length() + " -> " + out.length() + " bytes");
+    }
+
+    /**
+     * Writes in as a series of gzip members of blockSize bytes, each with
+     * its own length in an "OC" extra field.
+     */
+    static void writeBlockGzip(InputStream in, OutputStream out, int blockSize)
+            throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        byte[] block = new byte[blockSize];
+        byte[] packed = new byte[blockSize + blockSize / 10 + 1024];
+        CRC32 crc = new CRC32();
+        try {
+            while (true) {
+                int len = 0;
+                int n;
+                while (len < block.length && (n = in.read(block, len, block.length - len)) > 0) {
+                    len += n;
+                }
+                if (len == 0) {
+                    return;
+                }
+                deflater.reset();
+                deflater.setInput(block, 0, len);
+                deflater.finish();
+                int size = 0;
+                while (!deflater.finished()) {
+                    size += deflater.deflate(packed, size, packed.length - size);
+                }
+                crc.reset();
+                crc.update(block, 0, len);
+                int member = octaveParallelGzipInputStream.HEADER_SIZE + size
+                        + octaveParallelGzipInputStream.TRAILER_SIZE;
+                out.write(new byte[] {
+                        0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 255,
+                        8, 0, octaveParallelGzipInputStream.SUBFIELD_ID1,
+                        octaveParallelGzipInputStream.SUBFIELD_ID2, 4, 0
+                });
+                writeIntLE(out, member);
+                out.write(packed, 0, size);
+                writeIntLE(out, (int) crc.getValue());
+                writeIntLE(out, len);
+                if (len < block.length) {
+                    return;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeIntLE(OutputStream out, int v) throws IOException {
+        out.write(v);
+        out.write(v >>> 8);
+        out.write(v >>> 16);
+        out.write(v >>> 24);
+    }
+
+    static void list(File payload) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(payload, "r");
+        try {
+            octavePackReader reader = new octavePackReader(f.getChannel(), 0, f.length());
+            for (octavePackReader.Entry e : reader.getEntries()) {
+                System.out.println(String.format("%c %04o %10d %s%s", e.type, e.mode, e.size,
+                        e.name, e.isSymlink() || e.isHardlink() ? " -> " + e.linkName : ""));
+            }
+        } finally {
+            f.close();
+        }
+    }
+
+    static void extract(File payload, File dir) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(payload, "r");
+        try {
+            octavePackReader reader = new octavePackReader(f.getChannel(), 0, f.length());
+            int n = reader.extract(dir, null, Runtime.getRuntime().availableProcessors(), null);
+            System.out.println(n + " entries");
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * Splits two builds of a payload (tar.gz or indexed) into what they
+     * share and what is particular to each. All three outputs are indexed
+     * payloads.
+     */
+    static void split(File a, File b, File all, File aOnly, File bOnly) throws IOException {
+        File aPack = toPack(a);
+        File bPack = toPack(b);
+        RandomAccessFile af = new RandomAccessFile(aPack, "r");
+        RandomAccessFile bf = new RandomAccessFile(bPack, "r");
+        try {
+            octavePackReader ar = new octavePackReader(af.getChannel(), 0, af.length());
+            octavePackReader br = new octavePackReader(bf.getChannel(), 0, bf.length());
+            Set<String> shared = new HashSet<String>();
+            for (octavePackReader.Entry e : ar.getEntries()) {
+                octavePackReader.Entry other = br.getEntry(e.name);
+                if (null != other && sameEntry(ar, e, br, other)) {
+                    shared.add(e.name);
+                }
+            }
+            // a hard link goes with its target, which is unpacked earlier
+            for (octavePackReader.Entry e : ar.getEntries()) {
+                if (e.isHardlink() && !shared.contains(e.linkName)) {
+                    shared.remove(e.name);
+                }
+            }
+            copy(ar, shared, true, all);
+            copy(ar, shared, false, aOnly);
+            copy(br, shared, false, bOnly);
+            System.out.println(shared.size() + " shared entries: " + all.getName() + " "
+                    + all.length() + ", " + aOnly.getName() + " " + aOnly.length() + ", "
+                    + bOnly.getName() + " " + bOnly.length() + " bytes");
+        } finally {
+            af.close();
+            bf.close();
+            if (aPack != a) {
+                aPack.delete();
+            }
+            if (bPack != b) {
+                bPack.delete();
+            }
+        }
+    }
+
+    /**
+     * @return f if it is an indexed payload, else a temporary one made from it
+     */
+    private static File toPack(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            if (octavePackReader.isPack(raf.getChannel(), 0, raf.length())) {
+                return f;
+            }
+        } finally {
+            raf.close();
+        }
+        File temp = File.createTempFile("split", ".mp3");
+        pack(f, temp);
+        return temp;
+    }
+
+    private static boolean sameEntry(octavePackReader ar, octavePackReader.Entry a,
+            octavePackReader br, octavePackReader.Entry b) throws IOException {
+        if (a.type != b.type || a.mode != b.mode || !a.linkName.equals(b.linkName)) {
+            return false;
+        }
+        if (!a.isFile()) {
+            return true;
+        }
+        return a.size == b.size && Arrays.equals(digest(ar, a), digest(br, b));
+    }
+
+    private static byte[] digest(octavePackReader reader, octavePackReader.Entry e)
+            throws IOException {
+        if (null != e.digest) {
+            return e.digest;
+        }
+        MessageDigest sha256 = newSha256();
+        InputStream in = reader.openEntry(e);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            sha256.update(buffer, 0, n);
+        }
+        return sha256.digest();
+    }
+
+    private static void copy(octavePackReader reader, Set<String> shared, boolean inShared,
+            File out) throws IOException {
+        File temp = new File(out.getPath() + ".tmp");
+        Writer writer = new Writer(temp);
+        try {
+            for (octavePackReader.Entry e : reader.getEntries()) {
+                if (shared.contains(e.name) == inShared) {
+                    writer.add(e, e.name, e.linkName, reader.openEntry(e));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        replace(temp, out);
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes the blocks as the tar is read and keeps the directory in
+     * memory until the end. Adding a name again replaces the earlier entry
+     * in place, as unpacking a later tar member over an earlier one would;
+     * the earlier entry's blocks are simply no longer referenced.
+     */
+    static class Writer {
+        private final OutputStream mOut;
+        private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        private final byte[] mBlock = new byte[octavePackReader.BLOCK_SIZE];
+        private final byte[] mCompressed = new byte[octavePackReader.BLOCK_SIZE + 1024];
+        private final ByteArrayOutputStream mBlockTable = new ByteArrayOutputStream();
+        private final DataOutputStream mBlocks = new DataOutputStream(mBlockTable);
+        private final Map<String, Record> mEntries = new LinkedHashMap<String, Record>();
+        private final MessageDigest mSha256 = newSha256();
+        private long mPosition;
+        private int mBlockCount;
+
+        private static class Record {
+            char mType;
+            int mMode;
+            long mMtime;
+            long mSize;
+            String mLinkName;
+            int mFirstBlock;
+            int mBlockCount;
+            byte[] mDigest;
+        }
+
+        Writer(File out) throws IOException {
+            mOut = new BufferedOutputStream(new FileOutputStream(out), BUFFER_SIZE);
+            write(octavePackReader.MAGIC, 0, octavePackReader.MAGIC.length);
+        }
+
+        void writeAll(octaveTarInputStream tar) throws IOException {
+            octaveTarInputStream.Entry entry;
+            while (null != (entry = tar.getNextEntry())) {
+                String name = octaveTarInputStream.normalizeName(entry.name);
+                if (null == name) {
+                    throw new IOException("refusing to pack " + entry.name);
+                }
+                if (name.length() == 0) {
+                    continue;
+                }
+                String linkName = "";
+                if (entry.isHardlink()) {
+                    linkName = octaveTarInputStream.normalizeName(entry.linkName);
+                } else if (entry.isSymlink()) {
+                    linkName = entry.linkName;
+                }
+                add(entry, name, linkName, tar);
+            }
+        }
+
+        /**
+         * @param data the file's data, read only for files
+         */
+        void add(octaveTarInputStream.Entry entry, String name, String linkName,
+                InputStream data) throws IOException {
+            Record r = new Record();
+            r.mType = entry.type;
+            r.mMode = entry.mode;
+            r.mMtime = entry.mtime;
+            r.mLinkName = linkName;
+            r.mFirstBlock = mBlockCount;
+            if (entry.isFile()) {
+                mSha256.reset();
+                r.mSize = writeData(data);
+                r.mDigest = mSha256.digest();
+            }
+            r.mBlockCount = mBlockCount - r.mFirstBlock;
+            mEntries.put(name, r);
+        }
+
+        /**
+         * Adds name as a file with the same data as the file from, without
+         * writing the data again.
+         *
+         * @return false if from is not a file in this payload
+         */
+        boolean addCopy(String name, int mode, long mtime, String from) {
+            Record source = mEntries.get(from);
+            if (null == source || source.mType != octaveTarInputStream.TYPE_FILE) {
+                return false;
+            }
+            Record r = new Record();
+            r.mType = source.mType;
+            r.mMode = mode;
+            r.mMtime = mtime;
+            r.mSize = source.mSize;
+            r.mLinkName = "";
+            r.mFirstBlock = source.mFirstBlock;
+            r.mBlockCount = source.mBlockCount;
+            r.mDigest = source.mDigest;
+            mEntries.put(name, r);
+            return true;
+        }
+
+        boolean contains(String name) {
+            return mEntries.containsKey(name);
+        }
+
+        void remove(String name) {
+            mEntries.remove(name);
+        }
+
+        /**
+         * @return the number of bytes written
+         */
+        private long writeData(InputStream in) throws IOException {
+            long total = 0;
+            while (true) {
+                int len = 0;
+                int n;
+                while (len < mBlock.length && (n = in.read(mBlock, len, mBlock.length - len)) > 0) {
+                    len += n;
+                }
+                if (len == 0) {
+                    return total;
+                }
+                total += len;
+                mSha256.update(mBlock, 0, len);
+                mDeflater.reset();
+                mDeflater.setInput(mBlock, 0, len);
+                mDeflater.finish();
+                int worthIt = len - len / STORE_BELOW_SAVING;
+                int packed = 0;
+                while (!mDeflater.finished() && packed < worthIt) {
+                    packed += mDeflater.deflate(mCompressed, packed, mCompressed.length - packed);
+                }
+                mBlocks.writeLong(mPosition);
+                if (mDeflater.finished() && packed < worthIt) {
+                    mBlocks.writeInt(packed);
+                    mBlocks.writeInt(len);
+                    mBlocks.writeByte(octavePackReader.METHOD_DEFLATED);
+                    write(mCompressed, 0, packed);
+                } else {
+                    // already compressed data, e.g. images and compressed fonts
+                    mBlocks.writeInt(len);
+                    mBlocks.writeInt(len);
+                    mBlocks.writeByte(octavePackReader.METHOD_STORED);
+                    write(mBlock, 0, len);
+                }
+                mBlockCount++;
+                if (len < mBlock.length) {
+                    return total;
+                }
+            }
+        }
+
+        void close() throws IOException {
+            try {
+                ByteArrayOutputStream dir = new ByteArrayOutputStream();
+                DataOutputStream d = new DataOutputStream(dir);
+                d.writeInt(octavePackReader.FORMAT_VERSION);
+                d.writeInt(mBlockCount);
+                mBlockTable.writeTo(d);
+                d.writeInt(mEntries.size());
+                for (Map.Entry<String, Record> e : mEntries.entrySet()) {
+                    Record r = e.getValue();
+                    d.writeUTF(e.getKey());
+                    d.writeByte(r.mType);
+                    d.writeInt(r.mMode);
+                    d.writeLong(r.mMtime);
+                    d.writeLong(r.mSize);
+                    d.writeUTF(r.mLinkName);
+                    d.writeInt(r.mFirstBlock);
+                    d.writeInt(r.mBlockCount);
+                    if (null != r.mDigest) {
+                        d.write(r.mDigest);
+                    }
+                }
+                byte[] plain = dir.toByteArray();
+
+                Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+                deflater.setInput(plain);
+                deflater.finish();
+                ByteArrayOutputStream packed = new ByteArrayOutputStream();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    packed.write(buffer, 0, n);
+                }
+                deflater.end();
+
+                long dirOffset = mPosition;
+                byte[] packedDir = packed.toByteArray();
+                write(packedDir, 0, packedDir.length);
+                DataOutputStream trailer = new DataOutputStream(mOut);
+                trailer.writeLong(dirOffset);
+                trailer.writeInt(packedDir.length);
+                trailer.writeInt(plain.length);
+                trailer.write(octavePackReader.MAGIC);
+                trailer.flush();
+            } finally {
+                mDeflater.end();
+                mOut.close();
+            }
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+            mPosition += len;
+        }
+    }
+}
@@ -0,0 +1,779 @@
+package com.octave.build;
+
+import com.octave.main.octaveManifestIndex;
+import com.octave.main.octaveTarInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Builds the add-on payloads straight from .deb files, without dpkg, tar,
+ * tree or any extracted tree on disk: the data.tar of each .deb is read
+ * out of the ar archive and every member is sorted into the exec or noexec
+ * payload as it streams past, by the same rules as linkify_new2.sh (see
+ * octaveLinkifyTool), and written to indexed payloads (octavePackTool) as
+ * it goes. The listings tree would have printed, and their compiled
+ * indexes, are made from the same pass.
+ *
+ * The package sets are the pkg[]/dir[] arrays of the package scripts, so
+ * they stay the only place the .deb lists are kept. Every set of every
+ * script given is built at once on a pool of worker threads; a set that
+ * appears in both scripts (the *AllRelease ones) is built once. The .deb
+ * files are taken from a local mirror directory by their file names, so
+ * builds work offline; "missing" prints the URLs still to be fetched, for
+ * wget -i.
+ *
+ * Usage (from bulidScripts):
+ *   octavePackageBuilder missing mirror makeOctavePackages.sh makeOctavex86Packages.sh
+ *   octavePackageBuilder build mirror out makeOctavePackages.sh makeOctavex86Packages.sh
+ *
+ * writes out/&lt;dir&gt;/exec.mp3, exec_files.txt, exec_files.idx and the
+ * same for noexec.
+ */
+public class octavePackageBuilder {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Pattern PKG = Pattern.compile("^pkg\\[(\\d+)\\]='([^']*)'");
+    private static final Pattern DIR = Pattern.compile("^dir\\[(\\d+)\\]='([^']*)'");
+
+    private static final byte[] AR_MAGIC = {
+            '!', '<', 'a', 'r', 'c', 'h', '>', '\n'
+    };
+    private static final int AR_HEADER_SIZE = 60;
+
+    /** what mkdir -p gives the directories linkify makes under /noexec */
+    private static final int NOEXEC_DIR_MODE = 0755;
+    private static final int PLAIN_FILE_MODE = 0644;
+
+    /**
+     * One add-on: the .deb files unpacked on top of each other into dir.
+     */
+    static class PackageSet {
+        final String mDir;
+        final List<String> mUrls;
+
+        PackageSet(String dir, List<String> urls) {
+            mDir = dir;
+            mUrls = urls;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 3 && args[0].equals("missing")) {
+            File mirror = new File(args[1]);
+            for (PackageSet set : readScripts(Arrays.asList(args).subList(2, args.length))) {
+                for (String url : set.mUrls) {
+                    if (!new File(mirror, debName(url)).isFile()) {
+                        System.out.println(url);
+                    }
+                }
+            }
+        } else if (args.length >= 4 && args[0].equals("build")) {
+            List<PackageSet> sets = readScripts(Arrays.asList(args).subList(3, args.length));
+            if (!build(new File(args[1]), new File(args[2]), sets,
+                    Runtime.getRuntime().availableProcessors())) {
+                System.exit(1);
+            }
+        } else {
+            System.err.println("usage: octavePackageBuilder missing <mirror> <script>...");
+            System.err.println("       octavePackageBuilder build <mirror> <out> <script>...");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the pkg[] and dir[] arrays of the package scripts.
+     */
+    static List<PackageSet> readScripts(List<String> scripts) throws IOException {
+        Map<String, PackageSet> sets = new LinkedHashMap<String, PackageSet>();
+        for (String script : scripts) {
+            Map<Integer, String> pkgs = new TreeMap<Integer, String>();
+            Map<Integer, String> dirs = new TreeMap<Integer, String>();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(script), "UTF-8"));
+            try {
+                String line;
+                while (null != (line = in.readLine())) {
+                    Matcher m = PKG.matcher(line);
+                    if (m.find()) {
+                        pkgs.put(Integer.valueOf(m.group(1)), m.group(2));
+                    }
+                    m = DIR.matcher(line);
+                    if (m.find()) {
+                        dirs.put(Integer.valueOf(m.group(1)), m.group(2));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            for (Map.Entry<Integer, String> e : dirs.entrySet()) {
+                String pkg = pkgs.get(e.getKey());
+                if (null == pkg) {
+                    throw new IOException(script + ": dir[" + e.getKey() + "] has no pkg[]");
+                }
+                List<String> urls = Arrays.asList(pkg.trim().split("\\s+"));
+                PackageSet known = sets.get(e.getValue());
+                if (null != known && !known.mUrls.equals(urls)) {
+                    throw new IOException(e.getValue() + " is built from different .deb files"
+                            + " in " + script);
+                }
+                sets.put(e.getValue(), new PackageSet(e.getValue(), urls));
+            }
+        }
+        return new ArrayList<PackageSet>(sets.values());
+    }
+
+    static String debName(String url) {
+        return url.substring(url.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Builds every set, threads at a time.
+     *
+     * @return false if any set failed; the others are still built
+     */
+    static boolean build(final File mirror, final File out, List<PackageSet> sets, int threads)
+            throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        boolean ok = true;
+        try {
+            Map<PackageSet, Future<String>> results =
+                    new LinkedHashMap<PackageSet, Future<String>>();
+            for (final PackageSet set : sets) {
+                results.put(set, pool.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return new Build(set, mirror, new File(out, set.mDir)).run();
+                    }
+                }));
+            }
+            for (Map.Entry<PackageSet, Future<String>> e : results.entrySet()) {
+                try {
+                    System.out.println(e.getValue().get());
+                } catch (ExecutionException failure) {
+                    System.err.println(e.getKey().mDir + ": " + failure.getCause());
+                    ok = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+        return ok;
+    }
+
+    /**
+     * What tree needs to know about a path.
+     */
+    private static class Node {
+        final int mMode;
+        final String mLink;
+        /** for files: starts with the ELF magic */
+        final boolean mElf;
+
+        Node(int mode, String link) {
+            this(mode, link, false);
+        }
+
+        Node(int mode, String link, boolean elf) {
+            mMode = mode;
+            mLink = link;
+            mElf = elf;
+        }
+
+        boolean isDirectory() {
+            return (mMode & octaveLinkifyTool.S_IFMT) == octaveLinkifyTool.S_IFDIR;
+        }
+    }
+
+    /**
+     * Builds one package set.
+     */
+    static class Build {
+        private final PackageSet mSet;
+        private final File mMirror;
+        private final File mOut;
+        /** the package tree after linkify, as tree would see it */
+        private final Map<String, Node> mTree = new HashMap<String, Node>();
+        /** the /noexec tree */
+        private final Map<String, Node> mNoexecTree = new HashMap<String, Node>();
+        private final long mNow = System.currentTimeMillis() / 1000;
+        private octavePackTool.Writer mExec;
+        private octavePackTool.Writer mNoexec;
+        private int mMoved;
+
+        Build(PackageSet set, File mirror, File out) {
+            mSet = set;
+            mMirror = mirror;
+            mOut = out;
+        }
+
+        String run() throws IOException {
+            long start = System.nanoTime();
+            if (!mOut.isDirectory() && !mOut.mkdirs()) {
+                throw new IOException("unable to create " + mOut);
+            }
+            File exec = new File(mOut, "exec.mp3");
+            File noexec = new File(mOut, "noexec.mp3");
+            File execTemp = new File(exec.getPath() + ".tmp");
+            File noexecTemp = new File(noexec.getPath() + ".tmp");
+            mExec = new octavePackTool.Writer(execTemp);
+            try {
+                mNoexec = new octavePackTool.Writer(noexecTemp);
+                try {
+                    for (String url : mSet.mUrls) {
+                        File deb = new File(mMirror, debName(url));
+                        if (!deb.isFile()) {
+                            throw new IOException(deb + " is not in the mirror; fetch " + url);
+                        }
+                        unpack(deb);
+                    }
+                } finally {
+                    mNoexec.close();
+                }
+            } finally {
+                mExec.close();
+            }
+            octavePackTool.replace(execTemp, exec);
+            octavePackTool.replace(noexecTemp, noexec);
+
+            // tree ran after tar, so it saw the payload and its own output
+            mTree.put("exec.mp3", new Node(octaveLinkifyTool.S_IFREG | PLAIN_FILE_MODE, null));
+            mTree.put("exec_files.txt",
+                    new Node(octaveLinkifyTool.S_IFREG | PLAIN_FILE_MODE, null));
+            writeListing(mTree, "exec_files");
+            writeListing(mNoexecTree, "noexec_files");
+            return mSet.mDir + ": " + mMoved + " files to noexec, exec.mp3 " + exec.length()
+                    + ", noexec.mp3 " + noexec.length() + " bytes, "
+                    + (System.nanoTime() - start) / 1000000 + " ms";
+        }
+
+        private void unpack(File deb) throws IOException {
+            InputStream data = openDataTar(deb);
+            try {
+                octaveTarInputStream tar = new octaveTarInputStream(data);
+                octaveTarInputStream.Entry entry;
+                while (null != (entry = tar.getNextEntry())) {
+                    String name = octaveTarInputStream.normalizeName(entry.name);
+                    if (null == name) {
+                        throw new IOException(deb + ": refusing " + entry.name);
+                    }
+                    if (name.length() > 0) {
+                        add(entry, name, tar);
+                    }
+                }
+            } finally {
+                data.close();
+            }
+        }
+
+        /**
+         * Does what dpkg -x, then linkify, then tar would do with one
+         * member. A later member replaces an earlier one of the same name.
+         */
+        private void add(octaveTarInputStream.Entry entry, String name, InputStream data)
+                throws IOException {
+            ensureParents(mTree, name, mExec);
+            // "tar -czf exec.mp3 *" leaves out dot files at the top
+            boolean inPayload = !name.startsWith(".");
+            if (entry.isDirectory()) {
+                mTree.put(name, new Node(octaveLinkifyTool.S_IFDIR | (entry.mode & 07777),
+                        null));
+                if (inPayload) {
+                    mExec.add(entry, name, "", null);
+                }
+                return;
+            }
+            if (null != mTree.remove(name)) {
+                mExec.remove(name);
+                mNoexec.remove(name);
+                mNoexecTree.remove(name);
+            }
+            if (entry.isSymlink()) {
+                mTree.put(name, new Node(octaveLinkifyTool.S_IFLNK | 0777, entry.linkName));
+                if (inPayload) {
+                    mExec.add(entry, name, entry.linkName, null);
+                }
+            } else if (entry.isFile()) {
+                byte[] head = new byte[octaveLinkifyTool.ELF_MAGIC.length];
+                int headLength = readUpTo(data, head);
+                boolean elf = headLength == head.length
+                        && Arrays.equals(head, octaveLinkifyTool.ELF_MAGIC);
+                // SequenceInputStream closes each stream it finishes
+                InputStream content = new SequenceInputStream(
+                        new ByteArrayInputStream(head, 0, headLength),
+                        new FilterInputStream(data) {
+                            @Override
+                            public void close() {
+                                // the tar stream goes on to the next member
+                            }
+                        });
+                if (movesToNoexec(name, entry.mode, elf)) {
+                    moveToNoexec(entry, name, content);
+                } else {
+                    mTree.put(name, new Node(octaveLinkifyTool.S_IFREG | (entry.mode & 07777),
+                            null, elf));
+                    if (inPayload) {
+                        mExec.add(entry, name, "", content);
+                    }
+                }
+            } else if (entry.isHardlink()) {
+                addHardlink(entry, name, inPayload);
+            }
+            // device nodes and fifos: not something an add-on ships
+        }
+
+        private void moveToNoexec(octaveTarInputStream.Entry entry, String name,
+                InputStream content) throws IOException {
+            ensureParents(mNoexecTree, name, mNoexec);
+            mNoexec.add(entry, name, "", content);
+            mNoexecTree.put(name, new Node(octaveLinkifyTool.S_IFREG | (entry.mode & 07777),
+                    null));
+            String target = octaveLinkifyTool.LINK_PREFIX + name;
+            mTree.put(name, new Node(octaveLinkifyTool.S_IFLNK | 0777, target));
+            if (!name.startsWith(".")) {
+                octaveTarInputStream.Entry link = new octaveTarInputStream.Entry();
+                link.type = octaveTarInputStream.TYPE_SYMLINK;
+                link.mode = 0777;
+                link.mtime = mNow;
+                mExec.add(link, name, target, null);
+            }
+            mMoved++;
+        }
+
+        /**
+         * A hard link is a second name for a file that has already streamed
+         * past, so it can only share that file's blocks, which works as
+         * long as linkify puts both names on the same side.
+         */
+        private void addHardlink(octaveTarInputStream.Entry entry, String name,
+                boolean inPayload) throws IOException {
+            String target = octaveTarInputStream.normalizeName(entry.linkName);
+            Node t = null == target ? null : mTree.get(target);
+            if (null == t || t.isDirectory()) {
+                throw new IOException("hard link " + name + " to a missing file " + target);
+            }
+            boolean targetMoved = (t.mMode & octaveLinkifyTool.S_IFMT)
+                    == octaveLinkifyTool.S_IFLNK && null != mNoexecTree.get(target);
+            int mode = targetMoved ? mNoexecTree.get(target).mMode : t.mMode;
+            boolean moved = movesToNoexec(name, mode, t.mElf);
+            if (moved != targetMoved) {
+                throw new IOException("hard link " + name + " and " + target
+                        + " end up on different sides of the noexec split");
+            }
+            if (moved) {
+                ensureParents(mNoexecTree, name, mNoexec);
+                mNoexec.addCopy(name, mode & 07777, entry.mtime, target);
+                mNoexecTree.put(name, new Node(mode, null));
+                String link = octaveLinkifyTool.LINK_PREFIX + name;
+                mTree.put(name, new Node(octaveLinkifyTool.S_IFLNK | 0777, link));
+                if (inPayload) {
+                    octaveTarInputStream.Entry symlink = new octaveTarInputStream.Entry();
+                    symlink.type = octaveTarInputStream.TYPE_SYMLINK;
+                    symlink.mode = 0777;
+                    symlink.mtime = mNow;
+                    mExec.add(symlink, name, link, null);
+                }
+                mMoved++;
+            } else {
+                mTree.put(name, new Node(mode, null, t.mElf));
+                // --hard-dereference: a file of its own, sharing the blocks
+                if (inPayload && !mExec.addCopy(name, mode & 07777, entry.mtime, target)) {
+                    throw new IOException("hard link " + name + " to " + target
+                            + ", which is not in the payload");
+                }
+            }
+        }
+
+        /**
+         * The linkify_new2.sh rules, see octaveLinkifyTool.
+         */
+        private static boolean movesToNoexec(String name, int mode, boolean elf) {
+            String[] parts = name.split("/");
+            for (String part : parts) {
+                if (part.startsWith(".")) {
+                    return false;
+                }
+            }
+            if (octaveLinkifyTool.TOP_LEVEL_SKIP.contains(parts[0])
+                    || (parts.length == 1 && parts[0].endsWith(".deb"))) {
+                return false;
+            }
+            return (mode & 0111) == 0 && !elf && !("./" + name).contains("ELF");
+        }
+
+        /**
+         * Makes the directories above name that no member created, as
+         * dpkg -x and mkdir -p would.
+         */
+        private void ensureParents(Map<String, Node> tree, String name,
+                octavePackTool.Writer writer) throws IOException {
+            int slash = name.lastIndexOf('/');
+            if (slash < 0) {
+                return;
+            }
+            String parent = name.substring(0, slash);
+            if (tree.containsKey(parent)) {
+                return;
+            }
+            ensureParents(tree, parent, writer);
+            tree.put(parent, new Node(octaveLinkifyTool.S_IFDIR | NOEXEC_DIR_MODE, null));
+            if (!parent.startsWith(".")) {
+                octaveTarInputStream.Entry dir = new octaveTarInputStream.Entry();
+                dir.type = octaveTarInputStream.TYPE_DIRECTORY;
+                dir.mode = NOEXEC_DIR_MODE;
+                dir.mtime = mNow;
+                writer.add(dir, parent, "", null);
+            }
+        }
+
+        /**
+         * Writes what "tree -aFfi ." prints in the tree, and its index.
+         */
+        private void writeListing(Map<String, Node> tree, String baseName) throws IOException {
+            Map<String, List<String>> children = new HashMap<String, List<String>>();
+            for (String name : tree.keySet()) {
+                int slash = name.lastIndexOf('/');
+                String parent = slash < 0 ? "" : name.substring(0, slash);
+                List<String> list = children.get(parent);
+                if (null == list) {
+                    list = new ArrayList<String>();
+                    children.put(parent, list);
+                }
+                list.add(slash < 0 ? name : name.substring(slash + 1));
+            }
+            StringBuilder listing = new StringBuilder(".\n");
+            int[] counts = new int[2];
+            list(tree, children, "", listing, counts);
+            listing.append(octaveLinkifyTool.summary(counts[0], counts[1]));
+            byte[] text = listing.toString().getBytes("UTF-8");
+            writeFile(new File(mOut, baseName + ".txt"), text);
+
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            octaveManifestIndex.parse(new ByteArrayInputStream(text)).write(index);
+            writeFile(new File(mOut, baseName + ".idx"), index.toByteArray());
+        }
+
+        private void list(Map<String, Node> tree, Map<String, List<String>> children,
+                String dir, StringBuilder out, int[] counts) {
+            List<String> names = children.get(dir);
+            if (null == names) {
+                return;
+            }
+            Collections.sort(names, octaveLinkifyTool.TREE_ORDER);
+            for (String name : names) {
+                String path = dir.length() == 0 ? name : dir + "/" + name;
+                Node node = tree.get(path);
+                out.append("./").append(path);
+                if (null != node.mLink) {
+                    int target = resolve(tree, dir, node.mLink, 0);
+                    out.append(" -> ").append(node.mLink)
+                            .append(octaveLinkifyTool.classify(target));
+                    counts[(target & octaveLinkifyTool.S_IFMT) == octaveLinkifyTool.S_IFDIR
+                            ? 0 : 1]++;
+                    out.append('\n');
+                } else if (node.isDirectory()) {
+                    out.append("/\n");
+                    counts[0]++;
+                    list(tree, children, path, out, counts);
+                } else {
+                    out.append(octaveLinkifyTool.classify(node.mMode)).append('\n');
+                    counts[1]++;
+                }
+            }
+        }
+
+        /**
+         * Follows a link the way stat() would have on the build machine,
+         * where /noexec held the noexec tree. Other absolute links are
+         * taken relative to the package tree.
+         *
+         * @return the target's mode, 0 if it dangles
+         */
+        private int resolve(Map<String, Node> tree, String dir, String link, int depth) {
+            if (depth > 40) {
+                return 0;
+            }
+            if (link.startsWith(octaveLinkifyTool.LINK_PREFIX)) {
+                tree = mNoexecTree;
+                dir = "";
+                link = link.substring(octaveLinkifyTool.LINK_PREFIX.length());
+            } else if (link.startsWith("/")) {
+                dir = "";
+            }
+            List<String> parts = new ArrayList<String>();
+            for (String part : (dir + "/" + link).split("/")) {
+                if (part.equals("..")) {
+                    if (!parts.isEmpty()) {
+                        parts.remove(parts.size() - 1);
+                    }
+                } else if (part.length() > 0 && !part.equals(".")) {
+                    parts.add(part);
+                }
+            }
+            if (parts.isEmpty()) {
+                return octaveLinkifyTool.S_IFDIR | 0755;
+            }
+            StringBuilder path = new StringBuilder();
+            for (String part : parts) {
+                path.append(path.length() == 0 ? "" : "/").append(part);
+            }
+            Node node = tree.get(path.toString());
+            if (null == node) {
+                return 0;
+            }
+            if (null != node.mLink) {
+                int slash = path.lastIndexOf("/");
+                return resolve(tree, slash < 0 ? "" : path.substring(0, slash), node.mLink,
+                        depth + 1);
+            }
+            return node.mMode;
+        }
+    }
+
+    /**
+     * @return the uncompressed data.tar of a .deb, read straight out of the
+     *         ar archive
+     */
+    static InputStream openDataTar(File deb) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(deb), BUFFER_SIZE);
+        try {
+            DataInputStream ar = new DataInputStream(in);
+            byte[] magic = new byte[AR_MAGIC.length];
+            ar.readFully(magic);
+            if (!Arrays.equals(magic, AR_MAGIC)) {
+                throw new IOException(deb + " is not a .deb");
+            }
+            byte[] header = new byte[AR_HEADER_SIZE];
+            while (true) {
+                try {
+                    ar.readFully(header);
+                } catch (EOFException e) {
+                    throw new IOException(deb + " has no data.tar member");
+                }
+                String name = new String(header, 0, 16, "US-ASCII").trim();
+                if (name.endsWith("/")) {
+                    name = name.substring(0, name.length() - 1);
+                }
+                long size = Long.parseLong(new String(header, 48, 10, "US-ASCII").trim());
+                if (name.startsWith("data.tar")) {
+                    return decompress(deb, name, new Member(in, size));
+                }
+                long skip = size + (size & 1);
+                while (skip > 0) {
+                    long n = ar.skip(skip);
+                    if (n <= 0) {
+                        throw new EOFException(deb + " is truncated");
+                    }
+                    skip -= n;
+                }
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        } catch (NumberFormatException e) {
+            in.close();
+            throw new IOException(deb + " has a bad ar header");
+        }
+    }
+
+    private static InputStream decompress(File deb, String name, InputStream member)
+            throws IOException {
+        if (name.equals("data.tar")) {
+            return member;
+        } else if (name.endsWith(".gz")) {
+            return new GZIPInputStream(member, BUFFER_SIZE);
+        } else if (name.endsWith(".xz") || name.endsWith(".lzma")) {
+            // no xz in the JDK; xz-utils decodes both
+            return new FilterProcess(new String[] {
+                    "xz", "-dc"
+            }, member);
+        } else if (name.endsWith(".bz2")) {
+            return new FilterProcess(new String[] {
+                    "bzip2", "-dc"
+            }, member);
+        }
+        member.close();
+        throw new IOException(deb + ": unsupported " + name);
+    }
+
+    /**
+     * One ar member; closing it closes the archive.
+     */
+    private static class Member extends FilterInputStream {
+        private long mRemaining;
+
+        Member(InputStream in, long size) {
+            super(in);
+            mRemaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining == 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, mRemaining));
+            if (n < 0) {
+                throw new EOFException("truncated ar member");
+            }
+            mRemaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * The output of a decompressor process fed from a stream on a thread
+     * of its own.
+     */
+    private static class FilterProcess extends FilterInputStream {
+        private final Process mProcess;
+        private final Thread mFeeder;
+        private final InputStream mSource;
+        private final IOException[] mFeedError = new IOException[1];
+
+        FilterProcess(String[] command, final InputStream source) throws IOException {
+            this(new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start(), source);
+        }
+
+        private FilterProcess(final Process process, final InputStream source) {
+            super(new BufferedInputStream(process.getInputStream(), BUFFER_SIZE));
+            mProcess = process;
+            mSource = source;
+            mFeeder = new Thread("feed " + process) {
+                @Override
+                public void run() {
+                    OutputStream out = process.getOutputStream();
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    try {
+                        try {
+                            int n;
+                            while ((n = source.read(buffer)) != -1) {
+                                out.write(buffer, 0, n);
+                            }
+                        } finally {
+                            out.close();
+                        }
+                    } catch (IOException e) {
+                        synchronized (mFeedError) {
+                            mFeedError[0] = e;
+                        }
+                    }
+                }
+            };
+            mFeeder.start();
+        }
+
+        /**
+         * Reads what the consumer left (a tar reader stops at the end
+         * blocks) so the process can finish, then checks how it did.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (in.read(buffer) != -1) {
+                    // draining
+                }
+                in.close();
+                int status = mProcess.waitFor();
+                mFeeder.join();
+                synchronized (mFeedError) {
+                    if (null != mFeedError[0]) {
+                        throw mFeedError[0];
+                    }
+                }
+                if (status != 0) {
+                    throw new IOException("decompressor exited with " + status);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            } finally {
+                mProcess.destroy();
+                mSource.close();
+            }
+        }
+    }
+
+    /**
+     * @return how many bytes were read, less than b.length only at the end
+     */
+    private static int readUpTo(InputStream in, byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int n = in.read(b, off, b.length - off);
+            if (n < 0) {
+                break;
+            }
+            off += n;
+        }
+        return off;
+    }
+
+    private static void writeFile(File f, byte[] data) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
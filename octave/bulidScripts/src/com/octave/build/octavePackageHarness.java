@@ -0,0 +1,443 @@
+package com.octave.build;
+
+import com.octave.main.octaveManifestIndex;
+import com.octave.main.octavePackReader;
+import com.octave.main.octaveTarInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Runs octavePackageBuilder on a plain JVM over two small .deb files it
+ * writes itself (ar archives holding debian-binary, control.tar.gz and
+ * data.tar.gz), and compares what comes out with what dpkg -x, linkify
+ * and tree make of the same files:
+ *
+ * - exec payload, noexec payload: the entries, modes, link targets and
+ *   contents of exec.mp3 and noexec.mp3; executables, ELF files and names
+ *   containing "ELF" stay, other files move to noexec behind a symlink,
+ *   a hard link follows its target, top level dot files are left out and
+ *   the second .deb replaces a file of the first;
+ * - exec listing, noexec listing: exec_files.txt and noexec_files.txt,
+ *   line for line;
+ * - indexes: the .idx files hold the same paths as the listings.
+ *
+ * Prints one line per check and exits with 1 if any failed:
+ *   java -cp classes com.octave.build.octavePackageHarness [scratch dir]
+ */
+public class octavePackageHarness {
+
+    private static final long MTIME = 1300000000L;
+    private static final String DIR = "octaveFixtureAllRelease";
+    private static final String[] DEBS = {
+            "octave-fixture_1.0-1_all.deb", "octave-fixture-extra_1.0-1_all.deb"
+    };
+
+    private static final byte[] ELF_LIBRARY = {
+            0x7f, 'E', 'L', 'F', 1, 1, 1, 0
+    };
+    private static final String OLD_SCRIPT = "function fixture\nend\n";
+    private static final String NEW_SCRIPT = "function fixture\n  disp(2)\nend\n";
+
+    /** what octavePackTool list prints for exec.mp3 */
+    private static final String[] EXEC_ENTRIES = {
+            "5 0755          0 usr",
+            "5 0755          0 usr/bin",
+            "0 0755         17 usr/bin/fixture",
+            "5 0755          0 usr/lib",
+            "0 0644          8 usr/lib/libfixture.so.1",
+            "2 0777          0 usr/lib/libfixture.so -> libfixture.so.1",
+            "5 0755          0 usr/share",
+            "5 0755          0 usr/share/octave",
+            "5 0755          0 usr/share/octave/packages",
+            "5 0755          0 usr/share/octave/packages/fixture",
+            "5 0755          0 usr/share/doc",
+            "5 0755          0 usr/share/doc/fixture",
+            "2 0777          0 usr/share/doc/fixture/copyright"
+                    + " -> /noexec/./usr/share/doc/fixture/copyright",
+            "2 0777          0 usr/share/doc/fixture/README"
+                    + " -> /noexec/./usr/share/doc/fixture/README",
+            "0 0644         10 usr/share/ELF.txt",
+            // replaced by the second .deb, so added again
+            "2 0777          0 usr/share/octave/packages/fixture/fixture.m"
+                    + " -> /noexec/./usr/share/octave/packages/fixture/fixture.m",
+            "2 0777          0 usr/share/octave/packages/fixture/extra.m"
+                    + " -> /noexec/./usr/share/octave/packages/fixture/extra.m",
+    };
+
+    /** what octavePackTool list prints for noexec.mp3 */
+    private static final String[] NOEXEC_ENTRIES = {
+            "5 0755          0 usr",
+            "5 0755          0 usr/share",
+            "5 0755          0 usr/share/octave",
+            "5 0755          0 usr/share/octave/packages",
+            "5 0755          0 usr/share/octave/packages/fixture",
+            "5 0755          0 usr/share/doc",
+            "5 0755          0 usr/share/doc/fixture",
+            "0 0644         18 usr/share/doc/fixture/copyright",
+            "0 0644         18 usr/share/doc/fixture/README",
+            "0 0644         31 usr/share/octave/packages/fixture/fixture.m",
+            "0 0644          8 usr/share/octave/packages/fixture/extra.m",
+    };
+
+    private static final String EXEC_LISTING = ".\n"
+            + "./exec_files.txt\n"
+            + "./exec.mp3\n"
+            + "./.hidden\n"
+            + "./usr/\n"
+            + "./usr/bin/\n"
+            + "./usr/bin/fixture*\n"
+            + "./usr/lib/\n"
+            + "./usr/lib/libfixture.so -> libfixture.so.1\n"
+            + "./usr/lib/libfixture.so.1\n"
+            + "./usr/share/\n"
+            + "./usr/share/doc/\n"
+            + "./usr/share/doc/fixture/\n"
+            + "./usr/share/doc/fixture/copyright ->"
+                    + " /noexec/./usr/share/doc/fixture/copyright\n"
+            + "./usr/share/doc/fixture/README -> /noexec/./usr/share/doc/fixture/README\n"
+            + "./usr/share/ELF.txt\n"
+            + "./usr/share/octave/\n"
+            + "./usr/share/octave/packages/\n"
+            + "./usr/share/octave/packages/fixture/\n"
+            + "./usr/share/octave/packages/fixture/extra.m ->"
+                    + " /noexec/./usr/share/octave/packages/fixture/extra.m\n"
+            + "./usr/share/octave/packages/fixture/fixture.m ->"
+                    + " /noexec/./usr/share/octave/packages/fixture/fixture.m\n"
+            + "\n"
+            + "9 directories, 11 files\n";
+
+    private static final String NOEXEC_LISTING = ".\n"
+            + "./usr/\n"
+            + "./usr/share/\n"
+            + "./usr/share/doc/\n"
+            + "./usr/share/doc/fixture/\n"
+            + "./usr/share/doc/fixture/copyright\n"
+            + "./usr/share/doc/fixture/README\n"
+            + "./usr/share/octave/\n"
+            + "./usr/share/octave/packages/\n"
+            + "./usr/share/octave/packages/fixture/\n"
+            + "./usr/share/octave/packages/fixture/extra.m\n"
+            + "./usr/share/octave/packages/fixture/fixture.m\n"
+            + "\n"
+            + "7 directories, 4 files\n";
+
+    private final File mScratch;
+    private final Map<String, byte[]> mContents = new HashMap<String, byte[]>();
+    private int mFailures;
+
+    private octavePackageHarness(File scratch) {
+        mScratch = scratch;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File scratch = new File(args.length > 0 ? args[0]
+                : System.getProperty("java.io.tmpdir") + "/octave-package-harness");
+        octavePackageHarness harness = new octavePackageHarness(scratch);
+        try {
+            harness.run();
+        } finally {
+            delete(scratch);
+        }
+        System.exit(harness.mFailures > 0 ? 1 : 0);
+    }
+
+    private void run() throws Exception {
+        File mirror = new File(mScratch, "mirror");
+        File out = new File(mScratch, "out");
+        if (!mirror.isDirectory() && !mirror.mkdirs()) {
+            throw new IOException("unable to create " + mirror);
+        }
+        writeDeb(new File(mirror, DEBS[0]), "octave-fixture", firstData());
+        writeDeb(new File(mirror, DEBS[1]), "octave-fixture-extra", secondData());
+        List<String> urls = new ArrayList<String>();
+        for (String deb : DEBS) {
+            urls.add("http://ftp.us.debian.org/debian/pool/main/o/octave-fixture/" + deb);
+        }
+        octavePackageBuilder.PackageSet set = new octavePackageBuilder.PackageSet(DIR, urls);
+        File dir = new File(out, DIR);
+        new octavePackageBuilder.Build(set, mirror, dir).run();
+
+        check("exec payload", payload(new File(dir, "exec.mp3"), EXEC_ENTRIES));
+        check("noexec payload", payload(new File(dir, "noexec.mp3"), NOEXEC_ENTRIES));
+        check("exec listing", listing(new File(dir, "exec_files.txt"), EXEC_LISTING));
+        check("noexec listing", listing(new File(dir, "noexec_files.txt"), NOEXEC_LISTING));
+        check("indexes", indexes(dir));
+        System.out.println(mFailures > 0 ? mFailures + " failed" : "all passed");
+    }
+
+    private void check(String name, String failure) {
+        if (null == failure) {
+            System.out.println("ok    " + name);
+        } else {
+            System.out.println("FAIL  " + name + ": " + failure);
+            mFailures++;
+        }
+    }
+
+    /**
+     * @return the data.tar of the first .deb, as GNU tar lays it out
+     */
+    private byte[] firstData() throws IOException {
+        Tar tar = new Tar();
+        tar.directory("./");
+        tar.directory("./usr/");
+        tar.directory("./usr/bin/");
+        tar.file("./usr/bin/fixture", 0755, "#!/bin/sh\nexit 0\n".getBytes("UTF-8"));
+        tar.directory("./usr/lib/");
+        tar.file("./usr/lib/libfixture.so.1", 0644, ELF_LIBRARY);
+        tar.symlink("./usr/lib/libfixture.so", "libfixture.so.1");
+        // no members for usr/share/octave and usr/share/octave/packages
+        tar.directory("./usr/share/");
+        tar.file("./usr/share/octave/packages/fixture/fixture.m", 0644,
+                OLD_SCRIPT.getBytes("UTF-8"));
+        tar.directory("./usr/share/doc/");
+        tar.directory("./usr/share/doc/fixture/");
+        tar.file("./usr/share/doc/fixture/copyright", 0644,
+                "Copyright fixture\n".getBytes("UTF-8"));
+        tar.hardlink("./usr/share/doc/fixture/README", "./usr/share/doc/fixture/copyright");
+        tar.file("./usr/share/ELF.txt", 0644, "not moved\n".getBytes("UTF-8"));
+        tar.file("./.hidden", 0644, "left out\n".getBytes("UTF-8"));
+        return tar.finish();
+    }
+
+    /**
+     * @return the data.tar of the second .deb, which replaces fixture.m
+     */
+    private byte[] secondData() throws IOException {
+        Tar tar = new Tar();
+        tar.directory("./");
+        tar.directory("./usr/");
+        tar.directory("./usr/share/");
+        tar.directory("./usr/share/octave/");
+        tar.directory("./usr/share/octave/packages/");
+        tar.directory("./usr/share/octave/packages/fixture/");
+        tar.file("./usr/share/octave/packages/fixture/fixture.m", 0644,
+                NEW_SCRIPT.getBytes("UTF-8"));
+        tar.file("./usr/share/octave/packages/fixture/extra.m", 0644,
+                "extra()\n".getBytes("UTF-8"));
+        return tar.finish();
+    }
+
+    private void writeDeb(File deb, String packageName, byte[] data) throws IOException {
+        Tar control = new Tar();
+        control.directory("./");
+        control.file("./control", 0644, ("Package: " + packageName + "\nVersion: 1.0-1\n"
+                + "Architecture: all\nDescription: octavePackageHarness fixture\n")
+                .getBytes("UTF-8"));
+        OutputStream out = new FileOutputStream(deb);
+        try {
+            out.write("!<arch>\n".getBytes("US-ASCII"));
+            arMember(out, "debian-binary", "2.0\n".getBytes("US-ASCII"));
+            arMember(out, "control.tar.gz", gzip(control.finish()));
+            arMember(out, "data.tar.gz", gzip(data));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void arMember(OutputStream out, String name, byte[] data)
+            throws IOException {
+        String header = String.format("%-16s%-12d%-6d%-6d%-8s%-10d`\n", name, MTIME, 0, 0,
+                "100644", data.length);
+        out.write(header.getBytes("US-ASCII"));
+        out.write(data);
+        if ((data.length & 1) != 0) {
+            out.write('\n');
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes ustar members, enough for the fixture's short names.
+     */
+    private class Tar {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        void directory(String name) throws IOException {
+            header(name, octaveTarInputStream.TYPE_DIRECTORY, 0755, 0, "");
+        }
+
+        void file(String name, int mode, byte[] data) throws IOException {
+            header(name, octaveTarInputStream.TYPE_FILE, mode, data.length, "");
+            mOut.write(data);
+            mOut.write(new byte[pad(data.length)]);
+            mContents.put(octaveTarInputStream.normalizeName(name), data);
+        }
+
+        void symlink(String name, String target) throws IOException {
+            header(name, octaveTarInputStream.TYPE_SYMLINK, 0777, 0, target);
+        }
+
+        void hardlink(String name, String target) throws IOException {
+            header(name, octaveTarInputStream.TYPE_HARDLINK, 0644, 0, target);
+            mContents.put(octaveTarInputStream.normalizeName(name),
+                    mContents.get(octaveTarInputStream.normalizeName(target)));
+        }
+
+        byte[] finish() {
+            mOut.write(new byte[2 * octaveTarInputStream.BLOCK_SIZE], 0,
+                    2 * octaveTarInputStream.BLOCK_SIZE);
+            return mOut.toByteArray();
+        }
+
+        private void header(String name, char type, int mode, long size, String link)
+                throws IOException {
+            byte[] h = new byte[octaveTarInputStream.BLOCK_SIZE];
+            put(h, 0, 100, name);
+            put(h, 100, 8, String.format("%07o", mode));
+            put(h, 108, 8, "0000000");
+            put(h, 116, 8, "0000000");
+            put(h, 124, 12, String.format("%011o", size));
+            put(h, 136, 12, String.format("%011o", MTIME));
+            Arrays.fill(h, 148, 156, (byte) ' ');
+            h[156] = (byte) type;
+            put(h, 157, 100, link);
+            put(h, 257, 8, "ustar  ");
+            put(h, 265, 32, "root");
+            put(h, 297, 32, "root");
+            int sum = 0;
+            for (byte b : h) {
+                sum += b & 0xff;
+            }
+            put(h, 148, 8, String.format("%06o", sum));
+            mOut.write(h);
+        }
+
+        private void put(byte[] h, int off, int len, String value) throws IOException {
+            byte[] b = value.getBytes("UTF-8");
+            if (b.length > len) {
+                throw new IOException("tar field too long: " + value);
+            }
+            System.arraycopy(b, 0, h, off, b.length);
+        }
+
+        private int pad(int size) {
+            int rem = size % octaveTarInputStream.BLOCK_SIZE;
+            return rem == 0 ? 0 : octaveTarInputStream.BLOCK_SIZE - rem;
+        }
+    }
+
+    /**
+     * @return null if the payload lists as expected and every file holds
+     *         what the fixture put under its name
+     */
+    private String payload(File payload, String[] expected) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(payload, "r");
+        try {
+            octavePackReader reader = new octavePackReader(f.getChannel(), 0, f.length());
+            List<String> lines = new ArrayList<String>();
+            for (octavePackReader.Entry e : reader.getEntries()) {
+                lines.add(String.format("%c %04o %10d %s%s", e.type, e.mode, e.size, e.name,
+                        e.isSymlink() || e.isHardlink() ? " -> " + e.linkName : ""));
+            }
+            String failure = compare(Arrays.asList(expected), lines);
+            if (null != failure) {
+                return failure;
+            }
+            for (octavePackReader.Entry e : reader.getEntries()) {
+                if (!e.isFile()) {
+                    continue;
+                }
+                byte[] data = readAll(reader.openEntry(e));
+                if (!Arrays.equals(mContents.get(e.name), data)) {
+                    return e.name + " holds \"" + new String(data, "UTF-8") + "\"";
+                }
+            }
+            return null;
+        } finally {
+            f.close();
+        }
+    }
+
+    private static String listing(File listing, String expected) throws IOException {
+        String actual = new String(Files.readAllBytes(listing.toPath()), "UTF-8");
+        return compare(Arrays.asList(expected.split("\n", -1)),
+                Arrays.asList(actual.split("\n", -1)));
+    }
+
+    private static String indexes(File dir) throws IOException {
+        for (String name : new String[] {
+                "exec_files", "noexec_files"
+        }) {
+            octaveManifestIndex text = readIndex(new File(dir, name + ".txt"), false);
+            octaveManifestIndex index = readIndex(new File(dir, name + ".idx"), true);
+            if (text.size() != index.size()) {
+                return name + ".idx has " + index.size() + " paths, the listing "
+                        + text.size();
+            }
+            for (int i = 0; i < text.size(); i++) {
+                if (!text.getPath(i).equals(index.getPath(i))
+                        || text.getType(i) != index.getType(i)) {
+                    return name + ".idx has " + index.getPath(i) + " where the listing has "
+                            + text.getPath(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static octaveManifestIndex readIndex(File f, boolean compiled)
+            throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            return compiled ? octaveManifestIndex.read(in) : octaveManifestIndex.parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return null if the lines are the same, else the first difference
+     */
+    private static String compare(List<String> expected, List<String> actual) {
+        for (int i = 0; i < Math.max(expected.size(), actual.size()); i++) {
+            String e = i < expected.size() ? expected.get(i) : "(nothing)";
+            String a = i < actual.size() ? actual.get(i) : "(nothing)";
+            if (!e.equals(a)) {
+                return "line " + (i + 1) + " is \"" + a + "\" instead of \"" + e + "\"";
+            }
+        }
+        return null;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,292 @@
+package com.octave.build;
+
+import com.octave.main.octaveBlockDigest;
+import com.octave.main.octaveDownloadScheduler;
+import com.octave.main.octaveInstallMetrics;
+import com.octave.main.octaveSegmentedDownloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A stand-in for the Play download servers on loopback that serves ranges
+ * of a file over a link with the given bandwidth, round trip and loss, so
+ * octaveSegmentedDownloader and octaveDownloadScheduler can be tried
+ * against Wi-Fi and cellular conditions on a plain JVM:
+ *
+ * - link: what all connections share, in KiB/s;
+ * - conn: what one connection gets at most, in KiB/s (receive window,
+ *   per-connection shaping by the server);
+ * - rtt: the time from a request to its response headers, in ms;
+ * - loss: the packet loss, which caps each connection further the way TCP
+ *   reacts to it (Mathis et al.: MSS * 1.22 / (rtt * sqrt(loss)));
+ * - drop: the chance per MiB that a connection is reset mid range.
+ *
+ * "compare" downloads synthetic data through every profile given, with the
+ * old fixed schedule (4 connections, 1 MiB ranges) and with the adaptive
+ * scheduler, checks what arrived and prints both:
+ *
+ *   java -cp classes com.octave.build.octaveThrottledServer compare [-d seconds] [profile...]
+ *   java -cp classes com.octave.build.octaveThrottledServer serve file [port] [profile]
+ *
+ * A profile is one of the names below or link,conn,rtt,loss,drop, e.g.
+ * 2048,512,80,0.001,0.
+ */
+public class octaveThrottledServer {
+
+    private static final int SLICE = 16 * 1024;
+    private static final int MSS = 1460;
+    private static final String ETAG = "\"octave\"";
+
+    private static final Map<String, String> PROFILES = new LinkedHashMap<String, String>();
+    static {
+        // a fast access point behind a server that shapes each connection
+        PROFILES.put("wifi", "4096,768,20,0,0");
+        // a good LTE cell: one connection nearly fills it
+        PROFILES.put("lte", "1536,1536,70,0.0002,0");
+        // 3G: little bandwidth, long round trips, the odd reset
+        PROFILES.put("3g", "384,384,180,0.001,0.02");
+        // a poor cell edge: loss caps each connection well below the link
+        PROFILES.put("lossy", "1024,1024,150,0.01,0.05");
+    }
+
+    private final byte[] mData;
+    private final double mLinkRate;
+    private final double mConnectionRate;
+    private final long mRtt;
+    private final double mDrop;
+    private final Random mRandom = new Random(1);
+    private final String mProfile;
+
+    // when the link is next free, in nanos
+    private long mLinkFree;
+    private int mRequests;
+    private int mDropped;
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+
+    octaveThrottledServer(byte[] data, String profile) {
+        String spec = PROFILES.containsKey(profile) ? PROFILES.get(profile) : profile;
+        String[] f = spec.split(",");
+        if (f.length != 5) {
+            throw new IllegalArgumentException("bad profile " + profile);
+        }
+        mData = data;
+        mProfile = profile;
+        mLinkRate = Double.parseDouble(f[0]) * 1024 / 1e9;
+        mRtt = Long.parseLong(f[2]);
+        double loss = Double.parseDouble(f[3]);
+        double connection = Double.parseDouble(f[1]) * 1024 / 1e9;
+        if (loss > 0) {
+            connection = Math.min(connection, MSS * 1.22 / (mRtt * 1e6 * Math.sqrt(loss)));
+        }
+        mConnectionRate = connection;
+        mDrop = Double.parseDouble(f[4]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && "serve".equals(args[0])) {
+            byte[] data = java.nio.file.Files.readAllBytes(new File(args[1]).toPath());
+            octaveThrottledServer server = new octaveThrottledServer(data,
+                    args.length > 3 ? args[3] : "wifi");
+            int port = server.start(args.length > 2 ? Integer.parseInt(args[2]) : 8080);
+            System.out.println("serving " + args[1] + " on http://127.0.0.1:" + port + "/ as "
+                    + server.describe());
+            return;
+        }
+        if (args.length >= 1 && "compare".equals(args[0])) {
+            int seconds = 20;
+            List<String> profiles = new ArrayList<String>();
+            for (int i = 1; i < args.length; i++) {
+                if ("-d".equals(args[i]) && i + 1 < args.length) {
+                    seconds = Integer.parseInt(args[++i]);
+                } else {
+                    profiles.add(args[i]);
+                }
+            }
+            if (profiles.isEmpty()) {
+                profiles.addAll(PROFILES.keySet());
+            }
+            for (String profile : profiles) {
+                compare(profile, seconds);
+            }
+            return;
+        }
+        System.err.println("usage: octaveThrottledServer compare [-d seconds] [profile...]");
+        System.err.println("       octaveThrottledServer serve file [port] [profile]");
+        System.err.println("profiles: " + PROFILES.keySet() + " or link,conn,rtt,loss,drop");
+        System.exit(1);
+    }
+
+    /**
+     * Downloads about seconds' worth of the link's bandwidth both ways.
+     */
+    private static void compare(String profile, int seconds) throws Exception {
+        octaveThrottledServer probe = new octaveThrottledServer(new byte[0], profile);
+        long size = (long) (probe.mLinkRate * 1e9 * seconds);
+        int chunk = octaveSegmentedDownloader.DEFAULT_CHUNK_SIZE;
+        size = Math.max(chunk, size / chunk * chunk);
+        byte[] data = new byte[(int) size];
+        new Random(size).nextBytes(data);
+        System.out.println();
+        System.out.println(profile + ": " + probe.describe() + ", " + (size >> 20) + " MiB");
+        run(data, profile, "fixed", octaveDownloadScheduler.fixed(4));
+        run(data, profile, "adaptive", new octaveDownloadScheduler(2,
+                octaveDownloadScheduler.DEFAULT_MAX_CONNECTIONS));
+    }
+
+    private static void run(byte[] data, String profile, String name,
+            octaveDownloadScheduler scheduler) throws Exception {
+        octaveThrottledServer server = new octaveThrottledServer(data, profile);
+        int port = server.start(0);
+        File target = File.createTempFile("octave-download", ".obb");
+        try {
+            octaveSegmentedDownloader downloader = new octaveSegmentedDownloader(
+                    "http://127.0.0.1:" + port + "/main.obb", target, data.length,
+                    scheduler.getConnections(), octaveSegmentedDownloader.DEFAULT_CHUNK_SIZE);
+            downloader.setScheduler(scheduler);
+            octaveBlockDigest digest = new octaveBlockDigest(data.length);
+            downloader.setBlockDigest(digest);
+            octaveInstallMetrics metrics = octaveInstallMetrics.start("compare");
+            long start = System.nanoTime();
+            downloader.download();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            String expected = octaveBlockDigest.digestFile(target, null);
+            if (!Arrays.equals(sha256(data), sha256(java.nio.file.Files.readAllBytes(
+                    target.toPath()))) || !expected.equals(digest.getDigest())) {
+                throw new IOException(name + " download of " + profile + " came out wrong");
+            }
+            String json = metrics.toJson("delivered");
+            String retries = json.replaceFirst(".*\"retries\":(\\d+).*", "$1");
+            System.out.println(String.format("  %-9s %7.2f s %8.0f KiB/s  %d requests, %s retries;"
+                    + " %s", name, elapsed, data.length / 1024 / elapsed, server.mRequests,
+                    retries, scheduler));
+        } finally {
+            server.stop();
+            target.delete();
+        }
+    }
+
+    private String describe() {
+        return String.format("link %.0f KiB/s, %.0f KiB/s per connection, rtt %d ms, drop %.2f/MiB",
+                mLinkRate * 1e9 / 1024, mConnectionRate * 1e9 / 1024, mRtt, mDrop);
+    }
+
+    /**
+     * @return the port listened on
+     */
+    int start(int port) throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                64);
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+        return mServer.getAddress().getPort();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        synchronized (this) {
+            mRequests++;
+        }
+        sleep(mRtt * 1000000);
+        long first = 0;
+        long last = mData.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        boolean partial = null != range && range.startsWith("bytes=");
+        if (partial) {
+            String[] ends = range.substring(6).split("-", -1);
+            first = Long.parseLong(ends[0]);
+            if (ends[1].length() > 0) {
+                last = Math.min(last, Long.parseLong(ends[1]));
+            }
+            if (first > last) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + mData.length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + first + "-" + last + "/" + mData.length);
+        }
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        exchange.sendResponseHeaders(partial ? 206 : 200, last - first + 1);
+        OutputStream out = exchange.getResponseBody();
+        long start = System.nanoTime();
+        long sent = 0;
+        for (long pos = first; pos <= last; pos += SLICE) {
+            int n = (int) Math.min(SLICE, last - pos + 1);
+            if (mDrop > 0 && nextDouble() < mDrop * n / (1024 * 1024)) {
+                synchronized (this) {
+                    mDropped++;
+                }
+                // a reset: the client sees a short body
+                return;
+            }
+            // the connection's own pace, then a slot on the shared link
+            sleep(start + (long) ((sent + n) / mConnectionRate) - System.nanoTime());
+            sleep(reserveLink(n) - System.nanoTime());
+            out.write(mData, (int) pos, n);
+            out.flush();
+            sent += n;
+        }
+    }
+
+    /**
+     * @return when the n bytes have gone over the link
+     */
+    private synchronized long reserveLink(int n) {
+        long now = System.nanoTime();
+        mLinkFree = Math.max(mLinkFree, now) + (long) (n / mLinkRate);
+        return mLinkFree;
+    }
+
+    private synchronized double nextDouble() {
+        return mRandom.nextDouble();
+    }
+
+    private static void sleep(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] sha256(byte[] data) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+}
@@ -0,0 +1,251 @@
+package com.octave.build;
+
+import com.octave.main.octaveThroughputEstimator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays a synthetic 60 MB download through octaveThroughputEstimator on
+ * a plain JVM, the way octaveProgressDisplay feeds it: progress callbacks
+ * 50-700 ms apart, each at a random 0.5-1.5x of 1 MB/s, and while no
+ * callback comes the unchanged count every STALL_REFRESH_INTERVAL. Half
+ * way through the callbacks stop for 5 s.
+ *
+ * The truth is what is left at the mean rate of 1 MB/s; the trace's own
+ * noise alone keeps the smoothed rate within about 10% of it.
+ *
+ * - settled: from 15 s in, outside the stall and the 15 s after it, the
+ *   time remaining is within 20% or 5 s of the truth;
+ * - steady: over the same stretch it moves by no more than 3 s per second
+ *   (1 s at least) beyond the countdown of the clock;
+ * - stall rate: the rate shown at the end of the stall is below half of
+ *   what it was when it started;
+ * - stall eta: the time remaining does not count down during the stall;
+ * - recovered: 15 s after the stall, about four time constants, it is
+ *   back within the settled bounds;
+ * - finish: it is under 2 s at the last callback.
+ *
+ * Prints one line per check and exits with 1 if any failed:
+ *   java -cp classes com.octave.build.octaveThroughputHarness
+ */
+public class octaveThroughputHarness {
+
+    private static final long TOTAL = 60L * 1024 * 1024;
+    /** 1 MB/s */
+    private static final double RATE = 1024 * 1024 / 1000.0;
+    private static final long STALL_AT = TOTAL / 2;
+    private static final long STALL_LENGTH = 5000;
+    private static final long SETTLE = 15000;
+    private static final long RECOVER = 15000;
+
+    private int mFailures;
+    private long mEnd;
+    private long mStallStart;
+
+    /** One call of update(), and what the estimator said after it */
+    private static class Sample {
+        long mTime;
+        long mBytes;
+        boolean mStallRefresh;
+        long mRemaining;
+        float mRate;
+    }
+
+    public static void main(String[] args) throws Exception {
+        octaveThroughputHarness harness = new octaveThroughputHarness();
+        harness.run();
+        System.exit(harness.mFailures > 0 ? 1 : 0);
+    }
+
+    private void run() {
+        List<Sample> samples = replay(trace(new Random(16)));
+        mEnd = samples.get(samples.size() - 1).mTime;
+        for (Sample s : samples) {
+            if (s.mBytes >= STALL_AT) {
+                mStallStart = s.mTime;
+                break;
+            }
+        }
+        long stallEnd = mStallStart + STALL_LENGTH;
+        check("settled", settled(samples, mStallStart, stallEnd));
+        check("steady", steady(samples, mStallStart, stallEnd));
+        check("stall rate", stallRate(samples, mStallStart, stallEnd));
+        check("stall eta", stallEta(samples, mStallStart, stallEnd));
+        check("recovered", recovered(samples, stallEnd));
+        check("finish", finish(samples));
+        System.out.println(mFailures > 0 ? mFailures + " failed" : "all passed");
+    }
+
+    private void check(String name, String failure) {
+        if (null == failure) {
+            System.out.println("ok    " + name);
+        } else {
+            System.out.println("FAIL  " + name + ": " + failure);
+            mFailures++;
+        }
+    }
+
+    /**
+     * @return the progress callbacks as (time, bytes) pairs, with a gap of
+     *         STALL_LENGTH once STALL_AT bytes have arrived
+     */
+    private static List<long[]> trace(Random random) {
+        List<long[]> trace = new ArrayList<long[]>();
+        long time = 0;
+        double bytes = 0;
+        boolean stalled = false;
+        trace.add(new long[] {
+                0, 0
+        });
+        while (bytes < TOTAL) {
+            long interval = 50 + random.nextInt(651);
+            double factor = 0.5 + random.nextDouble();
+            if (!stalled && bytes >= STALL_AT) {
+                stalled = true;
+                time += STALL_LENGTH;
+            }
+            time += interval;
+            bytes = Math.min(TOTAL, bytes + interval * RATE * factor);
+            trace.add(new long[] {
+                    time, (long) bytes
+            });
+        }
+        return trace;
+    }
+
+    /**
+     * Feeds the trace to an estimator, with the stall refreshes the display
+     * adds between callbacks.
+     */
+    private static List<Sample> replay(List<long[]> trace) {
+        octaveThroughputEstimator estimator = new octaveThroughputEstimator();
+        List<Sample> samples = new ArrayList<Sample>();
+        long[] last = null;
+        for (long[] callback : trace) {
+            if (null != last) {
+                long refresh = last[0] + octaveThroughputEstimator.STALL_REFRESH_INTERVAL;
+                for (; refresh < callback[0];
+                        refresh += octaveThroughputEstimator.STALL_REFRESH_INTERVAL) {
+                    samples.add(feed(estimator, refresh, last[1], true));
+                }
+            }
+            samples.add(feed(estimator, callback[0], callback[1], false));
+            last = callback;
+        }
+        return samples;
+    }
+
+    private static Sample feed(octaveThroughputEstimator estimator, long time, long bytes,
+            boolean stallRefresh) {
+        estimator.update(time, bytes, TOTAL);
+        Sample s = new Sample();
+        s.mTime = time;
+        s.mBytes = bytes;
+        s.mStallRefresh = stallRefresh;
+        s.mRemaining = estimator.getTimeRemaining();
+        s.mRate = estimator.getBytesPerMillisecond();
+        return s;
+    }
+
+    private static boolean outsideStall(Sample s, long stallStart, long stallEnd) {
+        return s.mTime >= SETTLE && (s.mTime < stallStart || s.mTime >= stallEnd + RECOVER);
+    }
+
+    private String withinBounds(Sample s) {
+        long truth = (long) ((TOTAL - s.mBytes) / RATE);
+        long error = Math.abs(s.mRemaining - truth);
+        if (s.mRemaining < 0 || error > Math.max(5000, truth * 20 / 100)) {
+            return "at " + s.mTime + " ms the time remaining is " + s.mRemaining
+                    + " ms instead of " + truth;
+        }
+        return null;
+    }
+
+    private String settled(List<Sample> samples, long stallStart, long stallEnd) {
+        for (Sample s : samples) {
+            if (outsideStall(s, stallStart, stallEnd)) {
+                String failure = withinBounds(s);
+                if (null != failure) {
+                    return failure;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String steady(List<Sample> samples, long stallStart, long stallEnd) {
+        Sample previous = null;
+        for (Sample s : samples) {
+            if (!outsideStall(s, stallStart, stallEnd)) {
+                previous = null;
+                continue;
+            }
+            if (null != previous) {
+                long elapsed = s.mTime - previous.mTime;
+                long jump = Math.abs(s.mRemaining - (previous.mRemaining - elapsed));
+                if (jump > Math.max(1000, 3 * elapsed)) {
+                    return "the time remaining moved by " + jump + " ms in " + elapsed + " ms at "
+                            + s.mTime + " ms";
+                }
+            }
+            previous = s;
+        }
+        return null;
+    }
+
+    private static String stallRate(List<Sample> samples, long stallStart, long stallEnd) {
+        Sample before = last(samples, stallStart);
+        Sample during = last(samples, stallEnd);
+        if (!during.mStallRefresh) {
+            return "no stall refresh reached the estimator";
+        }
+        if (during.mRate >= before.mRate / 2) {
+            return String.format("%.1f KB/s at the end of the stall, %.1f KB/s before",
+                    during.mRate * 1000 / 1024, before.mRate * 1000 / 1024);
+        }
+        return null;
+    }
+
+    private static String stallEta(List<Sample> samples, long stallStart, long stallEnd) {
+        Sample before = last(samples, stallStart);
+        Sample during = last(samples, stallEnd);
+        if (during.mRemaining < before.mRemaining) {
+            return "the time remaining fell from " + before.mRemaining + " to "
+                    + during.mRemaining + " ms during the stall";
+        }
+        return null;
+    }
+
+    private String recovered(List<Sample> samples, long stallEnd) {
+        for (Sample s : samples) {
+            if (s.mTime >= stallEnd + RECOVER && !s.mStallRefresh) {
+                return withinBounds(s);
+            }
+        }
+        return "the trace ends before the estimator could recover";
+    }
+
+    private static String finish(List<Sample> samples) {
+        Sample s = samples.get(samples.size() - 1);
+        if (s.mRemaining < 0 || s.mRemaining > 2000) {
+            return "the time remaining is " + s.mRemaining + " ms at the end";
+        }
+        return null;
+    }
+
+    /**
+     * @return the last sample before time
+     */
+    private static Sample last(List<Sample> samples, long time) {
+        Sample last = samples.get(0);
+        for (Sample s : samples) {
+            if (s.mTime >= time) {
+                break;
+            }
+            last = s;
+        }
+        return last;
+    }
+}
@@ -0,0 +1,425 @@
+package com.octave.build;
+
+import com.octave.main.octaveBlockDigest;
+import com.octave.main.octavePackReader;
+import com.octave.main.octaveParallelGzipInputStream;
+import com.octave.main.octaveProgressChannel;
+import com.octave.main.octaveTarExtractor;
+import com.octave.main.octaveWorkerPool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exercises octaveWorkerPool, octaveCancelToken and octaveProgressChannel
+ * on a plain JVM, with the real unpacking code on a checked in payload:
+ *
+ * - priorities: waiting tasks run by priority, then in submission order;
+ * - bound: no more tasks run at once than the pool has threads;
+ * - queued cancel: a task cancelled before it runs never runs, but still
+ *   reports its end;
+ * - untar, pack, gzip, digest: cancelling a task part way through stops
+ *   the extraction, inflation or hashing it runs, helper threads included;
+ * - coalescing: progress reported faster than the consumer drains arrives
+ *   as the latest value only, and results are never dropped.
+ *
+ * Prints one line per check and exits with 1 if any failed:
+ *   java -cp classes com.octave.build.octaveWorkerHarness [payload.tar.gz] [scratch dir]
+ */
+public class octaveWorkerHarness {
+
+    private static final String DEFAULT_PAYLOAD = "../OctaveGnuplotPackage/assets/noexec.mp3";
+    /** where the extraction checks cancel */
+    private static final int CANCEL_AT = 20;
+
+    private final File mPayload;
+    private final File mScratch;
+    private int mFailures;
+
+    private octaveWorkerHarness(File payload, File scratch) {
+        mPayload = payload;
+        mScratch = scratch;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File payload = new File(args.length > 0 ? args[0] : DEFAULT_PAYLOAD);
+        File scratch = new File(args.length > 1 ? args[1]
+                : System.getProperty("java.io.tmpdir") + "/octave-worker-harness");
+        if (!payload.isFile()) {
+            System.err.println("usage: octaveWorkerHarness [payload.tar.gz] [scratch dir]");
+            System.exit(1);
+        }
+        octaveWorkerHarness harness = new octaveWorkerHarness(payload, scratch);
+        try {
+            harness.run();
+        } finally {
+            delete(scratch);
+        }
+        System.exit(harness.mFailures > 0 ? 1 : 0);
+    }
+
+    private void run() throws Exception {
+        check("priorities", priorities());
+        check("bound", bound());
+        check("queued cancel", queuedCancel());
+        check("untar", untar());
+        check("pack", pack());
+        check("gzip", gzip());
+        check("digest", digest());
+        check("coalescing", coalescing());
+        System.out.println(mFailures == 0 ? "all passed" : mFailures + " failed");
+    }
+
+    private void check(String name, String failure) {
+        if (null == failure) {
+            System.out.println("ok    " + name);
+        } else {
+            System.out.println("FAIL  " + name + ": " + failure);
+            mFailures++;
+        }
+    }
+
+    private static String priorities() throws Exception {
+        octaveWorkerPool pool = new octaveWorkerPool("harness", 1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        octaveWorkerPool.Task<Void> blocker = pool.submit(octaveWorkerPool.PRIORITY_BACKGROUND,
+                new octaveWorkerPool.Work<Void>() {
+                    @Override
+                    public Void run(octaveWorkerPool.Task<Void> task) throws Exception {
+                        gate.await();
+                        return null;
+                    }
+                }, null, null);
+        int[] priorities = {
+                octaveWorkerPool.PRIORITY_BACKGROUND, octaveWorkerPool.PRIORITY_INSTALL,
+                octaveWorkerPool.PRIORITY_FOREGROUND, octaveWorkerPool.PRIORITY_INSTALL,
+                octaveWorkerPool.PRIORITY_FOREGROUND
+        };
+        String[] names = {
+                "background", "install1", "foreground1", "install2", "foreground2"
+        };
+        List<octaveWorkerPool.Task<Void>> tasks = new ArrayList<octaveWorkerPool.Task<Void>>();
+        // wait for the blocker to hold the only thread, so the rest queue up
+        Thread.sleep(50);
+        for (int i = 0; i < names.length; i++) {
+            final String name = names[i];
+            tasks.add(pool.submit(priorities[i], new octaveWorkerPool.Work<Void>() {
+                @Override
+                public Void run(octaveWorkerPool.Task<Void> task) {
+                    order.add(name);
+                    return null;
+                }
+            }, null, null));
+        }
+        gate.countDown();
+        blocker.await();
+        for (octaveWorkerPool.Task<Void> task : tasks) {
+            task.await();
+        }
+        pool.shutdown();
+        List<String> expected = Arrays.asList("foreground1", "foreground2", "install1",
+                "install2", "background");
+        return expected.equals(order) ? null : "ran " + order;
+    }
+
+    private static String bound() throws Exception {
+        final int threads = 3;
+        octaveWorkerPool pool = new octaveWorkerPool("harness", threads);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        List<octaveWorkerPool.Task<Void>> tasks = new ArrayList<octaveWorkerPool.Task<Void>>();
+        for (int i = 0; i < 12; i++) {
+            tasks.add(pool.submit(octaveWorkerPool.PRIORITY_INSTALL,
+                    new octaveWorkerPool.Work<Void>() {
+                        @Override
+                        public Void run(octaveWorkerPool.Task<Void> task) throws Exception {
+                            int now = running.incrementAndGet();
+                            synchronized (peak) {
+                                peak.set(Math.max(peak.get(), now));
+                            }
+                            Thread.sleep(20);
+                            running.decrementAndGet();
+                            return null;
+                        }
+                    }, null, null));
+        }
+        for (octaveWorkerPool.Task<Void> task : tasks) {
+            task.await();
+        }
+        pool.shutdown();
+        return peak.get() == threads ? null : "peak of " + peak.get() + " tasks on " + threads
+                + " threads";
+    }
+
+    private static String queuedCancel() throws Exception {
+        octaveWorkerPool pool = new octaveWorkerPool("harness", 1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        pool.submit(octaveWorkerPool.PRIORITY_FOREGROUND, new octaveWorkerPool.Work<Void>() {
+            @Override
+            public Void run(octaveWorkerPool.Task<Void> task) throws Exception {
+                gate.await();
+                return null;
+            }
+        }, null, null);
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        octaveWorkerPool.Task<Void> task = pool.submit(octaveWorkerPool.PRIORITY_FOREGROUND,
+                new octaveWorkerPool.Work<Void>() {
+                    @Override
+                    public Void run(octaveWorkerPool.Task<Void> task) {
+                        ran.incrementAndGet();
+                        return null;
+                    }
+                }, null, new octaveWorkerPool.Listener<Void>() {
+                    @Override
+                    public void onProgress(octaveWorkerPool.Task<Void> task, long done,
+                            long total) {
+                    }
+
+                    @Override
+                    public void onFinished(octaveWorkerPool.Task<Void> task) {
+                        finished.incrementAndGet();
+                    }
+                });
+        task.cancel();
+        gate.countDown();
+        task.await();
+        pool.shutdown();
+        if (ran.get() != 0) {
+            return "a cancelled task ran";
+        }
+        return finished.get() == 1 ? null : "onFinished called " + finished.get() + " times";
+    }
+
+    /**
+     * Runs work as a task that cancels itself once the listener it is given
+     * has seen CANCEL_AT entries.
+     *
+     * @return null if the work stopped with InterruptedIOException soon after
+     */
+    private String cancelled(final Extraction extraction) throws Exception {
+        delete(mScratch);
+        octaveWorkerPool pool = new octaveWorkerPool("harness", 1);
+        final AtomicInteger seen = new AtomicInteger();
+        octaveWorkerPool.Task<Integer> task = pool.submit(octaveWorkerPool.PRIORITY_INSTALL,
+                new octaveWorkerPool.Work<Integer>() {
+                    @Override
+                    public Integer run(final octaveWorkerPool.Task<Integer> task)
+                            throws Exception {
+                        return extraction.run(new octaveTarExtractor.ProgressListener() {
+                            @Override
+                            public void onEntryExtracted(String name, long archiveBytes,
+                                    int entries) {
+                                seen.set(entries);
+                                if (entries == CANCEL_AT) {
+                                    task.cancel();
+                                }
+                            }
+                        });
+                    }
+                }, null, null);
+        task.await();
+        pool.shutdown();
+        if (!(task.getError() instanceof InterruptedIOException)) {
+            return "ended with " + task.getError() + " after " + seen.get() + " entries";
+        }
+        // the file workers of an indexed payload may each finish one more
+        int slack = Runtime.getRuntime().availableProcessors() + 1;
+        return seen.get() <= CANCEL_AT + slack ? null : "went on to entry " + seen.get();
+    }
+
+    private interface Extraction {
+        int run(octaveTarExtractor.ProgressListener listener) throws IOException;
+    }
+
+    private String untar() throws Exception {
+        return cancelled(new Extraction() {
+            @Override
+            public int run(octaveTarExtractor.ProgressListener listener) throws IOException {
+                InputStream in = octavePackTool.openTar(mPayload);
+                try {
+                    octaveTarExtractor extractor = new octaveTarExtractor(mScratch);
+                    extractor.setDurable(false);
+                    extractor.setProgressListener(listener);
+                    extractor.extract(in);
+                    return extractor.getEntryCount();
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    private String pack() throws Exception {
+        final File packed = File.createTempFile("octave-harness", ".pack");
+        try {
+            octavePackTool.pack(mPayload, packed);
+            return cancelled(new Extraction() {
+                @Override
+                public int run(octaveTarExtractor.ProgressListener listener) throws IOException {
+                    RandomAccessFile file = new RandomAccessFile(packed, "r");
+                    try {
+                        octavePackReader reader = new octavePackReader(file.getChannel(), 0,
+                                file.length());
+                        return reader.extract(mScratch, null,
+                                Runtime.getRuntime().availableProcessors(), listener);
+                    } finally {
+                        file.close();
+                    }
+                }
+            });
+        } finally {
+            packed.delete();
+        }
+    }
+
+    private String gzip() throws Exception {
+        final File blocked = File.createTempFile("octave-harness", ".gz");
+        try {
+            // small members, so the cancel lands well before the end
+            octavePackTool.blockGzip(mPayload, blocked, 16 * 1024);
+            return cancelled(new Extraction() {
+                @Override
+                public int run(octaveTarExtractor.ProgressListener listener) throws IOException {
+                    InputStream in = octaveParallelGzipInputStream.open(
+                            new FileInputStream(blocked), 2);
+                    try {
+                        byte[] buffer = new byte[4096];
+                        int reads = 0;
+                        while (in.read(buffer) != -1) {
+                            listener.onEntryExtracted(null, 0, ++reads);
+                        }
+                        return reads;
+                    } finally {
+                        in.close();
+                    }
+                }
+            });
+        } finally {
+            blocked.delete();
+        }
+    }
+
+    private String digest() throws Exception {
+        return cancelled(new Extraction() {
+            @Override
+            public int run(final octaveTarExtractor.ProgressListener listener)
+                    throws IOException {
+                final int[] blocks = new int[1];
+                octaveBlockDigest.digestFile(mPayload, new octaveBlockDigest.ProgressListener() {
+                    @Override
+                    public void onProgress(long bytesDone, long totalBytes) {
+                        // a block per "entry", and the payload has a few
+                        listener.onEntryExtracted(null, bytesDone, blocks[0] += CANCEL_AT / 2);
+                    }
+                });
+                return blocks[0];
+            }
+        });
+    }
+
+    private static String coalescing() throws Exception {
+        final LinkedList<Runnable> posted = new LinkedList<Runnable>();
+        octaveProgressChannel channel = new octaveProgressChannel(
+                new octaveProgressChannel.Poster() {
+                    @Override
+                    public void post(Runnable r) {
+                        synchronized (posted) {
+                            posted.add(r);
+                        }
+                    }
+                });
+        final List<Long> progress = new ArrayList<Long>();
+        final AtomicInteger finished = new AtomicInteger();
+        octaveWorkerPool pool = new octaveWorkerPool("harness", 2);
+        final int updates = 10000;
+        List<octaveWorkerPool.Task<Void>> tasks = new ArrayList<octaveWorkerPool.Task<Void>>();
+        for (int t = 0; t < 2; t++) {
+            tasks.add(pool.submit(octaveWorkerPool.PRIORITY_FOREGROUND,
+                    new octaveWorkerPool.Work<Void>() {
+                        @Override
+                        public Void run(octaveWorkerPool.Task<Void> task) {
+                            for (int i = 1; i <= updates; i++) {
+                                task.progress(i, updates);
+                            }
+                            return null;
+                        }
+                    }, channel, new octaveWorkerPool.Listener<Void>() {
+                        @Override
+                        public void onProgress(octaveWorkerPool.Task<Void> task, long done,
+                                long total) {
+                            progress.add(done);
+                        }
+
+                        @Override
+                        public void onFinished(octaveWorkerPool.Task<Void> task) {
+                            finished.incrementAndGet();
+                        }
+                    }));
+        }
+        for (octaveWorkerPool.Task<Void> task : tasks) {
+            task.await();
+        }
+        pool.shutdown();
+        // the consumer only gets round to it now
+        while (true) {
+            Runnable r;
+            synchronized (posted) {
+                r = posted.poll();
+            }
+            if (null == r) {
+                break;
+            }
+            r.run();
+        }
+        if (finished.get() != 2) {
+            return finished.get() + " of 2 results delivered";
+        }
+        if (progress.size() != 2 || progress.get(0) != updates || progress.get(1) != updates) {
+            return "delivered progress " + (progress.size() > 4 ? progress.size() + " values"
+                    : progress.toString());
+        }
+        int[] counts = channel.getCounts();
+        System.out.println("      " + counts[0] + " updates posted, " + counts[1]
+                + " delivered");
+        return null;
+    }
+
+    private static void delete(File dir) throws IOException {
+        if (!dir.exists()) {
+            return;
+        }
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e)
+                    throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}